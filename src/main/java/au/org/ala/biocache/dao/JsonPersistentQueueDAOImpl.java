@@ -30,6 +30,8 @@ import javax.annotation.PostConstruct;
 import java.io.File;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
 import java.util.concurrent.LinkedBlockingQueue;
 
@@ -49,6 +51,9 @@ public class JsonPersistentQueueDAOImpl implements PersistentQueueDAO {
 
     private static final String FILE_PREFIX = "offline";
 
+    // suffix of a download that is being updated
+    private static final String TEMP_SUFFIX = ".tmp";
+
     @Value("${download.dir:/data/biocache-download}")
     protected String biocacheDownloadDir;
 
@@ -102,6 +107,25 @@ public class JsonPersistentQueueDAOImpl implements PersistentQueueDAO {
         offlineDownloadList.add(download);
     }
 
+    /**
+     * The download is written to a temporary file first so that a failed update does not replace the last
+     * saved state.
+     *
+     * @see au.org.ala.biocache.dao.PersistentQueueDAO#update(DownloadDetailsDTO)
+     */
+    @Override
+    public void update(DownloadDetailsDTO download) throws IOException {
+        // do not restore a download that was removed
+        if (!offlineDownloadList.contains(download)) {
+            return;
+        }
+
+        File f = getFile(download.getStartTime());
+        File tmp = new File(f.getPath() + TEMP_SUFFIX);
+        jsonMapper.writeValue(tmp, download);
+        Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
     /**
      * @see au.org.ala.biocache.dao.PersistentQueueDAO#remove(au.org.ala.biocache.dto.DownloadDetailsDTO)
      */
@@ -159,15 +183,19 @@ public class JsonPersistentQueueDAOImpl implements PersistentQueueDAO {
 
             //value = jsonMapper.readValue(file, ParamsCacheObject.class);
             for (File f : files) {
-                if (f.isFile()) {
+                if (f.isFile() && f.getName().endsWith(TEMP_SUFFIX)) {
+                    // an update that did not finish
+                    FileUtils.deleteQuietly(f);
+                } else if (f.isFile()) {
                     try {
                         DownloadDetailsDTO dd = jsonMapper.readValue(f, DownloadDetailsDTO.class);
                         // Ensure that previously partially downloaded files get their downloads
                         // reattempted by making them available for download again and removing
-                        // any partial files that already exist for it
+                        // any partial files that already exist for it. Partial files of downloads
+                        // with a checkpoint are kept so that the download can resume.
                         String previousFileLocation = dd.getFileLocation();
                         dd.setFileLocation(null);
-                        if (previousFileLocation != null) {
+                        if (dd.getCheckpoint() == null && previousFileLocation != null) {
                             FileUtils.deleteQuietly(new File(previousFileLocation));
                         }
                         fromPersistent.add(dd);
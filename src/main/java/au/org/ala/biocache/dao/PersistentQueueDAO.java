@@ -26,6 +26,12 @@ public interface PersistentQueueDAO {
      */
     boolean remove(DownloadDetailsDTO download);
 
+    /**
+     * Saves the current state of a download that is in the queue, e.g. its checkpoint.
+     * @param download The download to save
+     */
+    void update(DownloadDetailsDTO download) throws IOException;
+
     /**
      * Gets a list of all the offline downloads in the order in which they were requested.
      * @return A list of all the downloads in the queue
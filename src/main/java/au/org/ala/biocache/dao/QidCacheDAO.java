@@ -77,5 +77,11 @@ public interface QidCacheDAO {
 
     String fixWkt(String wkt) throws Exception;
 
+    /**
+     * @return bounding box of the WKT as [min longitude, min latitude, max longitude, max latitude], or null when
+     * there is no WKT
+     */
+    double[] getWktBBox(String wkt) throws Exception;
+
     void clear();
 }
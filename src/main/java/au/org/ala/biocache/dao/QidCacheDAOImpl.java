@@ -17,15 +17,19 @@ package au.org.ala.biocache.dao;
 import au.org.ala.biocache.dto.Qid;
 import au.org.ala.biocache.dto.SpatialSearchRequestDTO;
 import au.org.ala.biocache.service.DataQualityService;
+import au.org.ala.biocache.util.NormalisedWkt;
 import au.org.ala.biocache.util.QidMissingException;
 import au.org.ala.biocache.util.QidSizeException;
 import au.org.ala.biocache.util.SpatialUtils;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.cache.annotation.Cacheable;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
 import javax.inject.Inject;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -70,6 +74,14 @@ public class QidCacheDAOImpl implements QidCacheDAO {
     @Value("${qid.wkt.maxPoints:5000}")
     private int maxWktPoints;
 
+    /**
+     * Number of normalised WKT to keep, by the requested WKT and by the normalised WKT.
+     */
+    @Value("${qid.wkt.cache.size:200}")
+    private int wktCacheSize = 200;
+
+    private Cache<String, NormalisedWkt> wktCache;
+
     @Inject
     private DataQualityService dataQualityService;
 
@@ -135,6 +147,11 @@ public class QidCacheDAOImpl implements QidCacheDAO {
         }
     }
 
+    @PostConstruct
+    public void init() {
+        wktCache = CacheBuilder.newBuilder().maximumSize(wktCacheSize).build();
+    }
+
     /**
      * Store search params and return key.
      *
@@ -431,15 +448,33 @@ public class QidCacheDAOImpl implements QidCacheDAO {
         return null;
     }
 
-    @Cacheable("fixWkt")
     @Override
     public String fixWkt(String wkt) throws Exception {
         if (StringUtils.isNotEmpty(wkt)) {
-            return SpatialUtils.simplifyWkt(wkt, maxWktPoints);
+            return normaliseWkt(wkt).getWkt();
         }
         return wkt;
     }
 
+    @Override
+    public double[] getWktBBox(String wkt) throws Exception {
+        if (StringUtils.isNotEmpty(wkt)) {
+            return normaliseWkt(wkt).getBBox();
+        }
+        return null;
+    }
+
+    private NormalisedWkt normaliseWkt(String wkt) throws Exception {
+        NormalisedWkt normalised = wktCache.getIfPresent(wkt);
+        if (normalised == null) {
+            normalised = SpatialUtils.normaliseWkt(wkt, maxWktPoints);
+            wktCache.put(wkt, normalised);
+            // the fixed WKT is passed to fixWkt again, e.g. by generateQid
+            wktCache.put(normalised.getWkt(), normalised);
+        }
+        return normalised;
+    }
+
     /**
      * qid's had numeric ids (long), want to keep the same so nothing breaks
      */
@@ -140,6 +140,18 @@ public interface SearchDAO {
     @Deprecated
     List<OccurrencePoint> findRecordsForLocation(SpatialSearchRequestDTO requestParams, PointType pointType) throws Exception;
 
+    /**
+     * Retrieve the distinct points, and their counts, for a given search. The points are streamed from the index
+     * into primitive arrays.
+     *
+     * @param searchParams
+     * @param pointType
+     * @param max maximum number of points, -1 for all points
+     * @return
+     * @throws Exception
+     */
+    OccurrencePoints getOccurrencePoints(SpatialSearchRequestDTO searchParams, PointType pointType, int max) throws Exception;
+
     /**
      * Refresh any caches in use to populate queries.
      */
@@ -352,6 +364,15 @@ public interface SearchDAO {
                           List<LegendItem> legend,
                           int gridSize) throws Exception;
 
+    /**
+     * Query for heatmaps, replacing the cached result of getHeatMap with the same arguments.
+     *
+     * @see #getHeatMap
+     */
+    HeatmapDTO refreshHeatMap(String query, String[] filterQueries, Double minx, Double miny, Double maxx, Double maxy,
+                              List<LegendItem> legend,
+                              int gridSize) throws Exception;
+
     /**
      * Retrieval of outlier stats for record.
      *
@@ -16,14 +16,17 @@ package au.org.ala.biocache.dao;
 
 import au.com.bytecode.opencsv.CSVReader;
 import au.org.ala.biocache.dto.*;
+import au.org.ala.biocache.heatmap.HeatmapCoalescer;
 import au.org.ala.biocache.service.*;
 import au.org.ala.biocache.stream.*;
 import au.org.ala.biocache.util.*;
 import au.org.ala.biocache.util.solr.FieldMappingUtil;
+import au.org.ala.biocache.writer.ArrowRecordWriter;
 import au.org.ala.biocache.writer.CSVRecordWriter;
 import au.org.ala.biocache.writer.RecordWriterError;
 import au.org.ala.biocache.writer.TSVRecordWriter;
 import au.org.ala.ws.security.profile.AlaUserProfile;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.apache.commons.io.output.ByteArrayOutputStream;
 import org.apache.commons.lang.ArrayUtils;
 import org.apache.commons.lang.StringUtils;
@@ -33,6 +36,7 @@ import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.response.*;
 import org.apache.solr.client.solrj.response.FacetField.Count;
 import org.apache.solr.client.solrj.response.RangeFacet.Numeric;
+import org.apache.solr.client.solrj.util.ClientUtils;
 import org.apache.solr.common.SolrDocument;
 import org.apache.solr.common.SolrDocumentList;
 import org.apache.solr.common.params.SolrParams;
@@ -42,6 +46,7 @@ import org.slf4j.MDC;
 import org.springframework.beans.BeanUtils;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.cache.CacheManager;
+import org.springframework.cache.annotation.CachePut;
 import org.springframework.cache.annotation.Cacheable;
 import org.springframework.context.support.AbstractMessageSource;
 import org.springframework.stereotype.Component;
@@ -148,6 +153,62 @@ public class SearchDAOImpl implements SearchDAO {
     protected Pattern elpField = Pattern.compile("(,|^)el.p(,|$)");
     protected Pattern allDwcField = Pattern.compile("(,|^)allDwc(,|$)");
 
+    /**
+     * Number of rows in each record batch of fileType=arrow downloads
+     */
+    @Value("${download.arrow.batch.size:10000}")
+    protected Integer arrowBatchSize = ArrowRecordWriter.DEFAULT_BATCH_SIZE;
+
+    /**
+     * Number of threads shared by downloads to request analysis layer intersections. 0 to intersect on the download thread.
+     */
+    @Value("${download.layers.sample.threads:4}")
+    protected Integer layersSampleThreads = 4;
+
+    /**
+     * Number of analysis layer intersection batches of a download that may be waiting on the layers service
+     */
+    @Value("${download.layers.sample.inflight:4}")
+    protected Integer layersSampleInFlight = 4;
+
+    /**
+     * Number of sampled coordinates kept by each download so that repeated coordinates are only intersected once
+     */
+    @Value("${download.layers.sample.cache.size:100000}")
+    protected Integer layersSampleCacheSize = 100000;
+
+    /**
+     * thread pool for analysis layer intersections of downloads
+     */
+    private ExecutorService layersSampleExecutor = null;
+
+    /**
+     * Count the institution, collection, provider, resource and licence of downloaded records with a facet query
+     * that runs alongside the download, instead of counting each record. Not used when download limits may truncate
+     * the download.
+     */
+    @Value("${download.stats.facet:true}")
+    protected Boolean downloadStatsFacet = true;
+
+    /**
+     * Count the non-sensitive and sensitive queries of a download before they are streamed, so that an empty
+     * query is not exported.
+     */
+    @Value("${download.split.count:true}")
+    protected Boolean downloadSplitCount = true;
+
+    /**
+     * Number of threads shared by downloads to run the download stats facet queries. Stats queries of further
+     * downloads wait for a thread.
+     */
+    @Value("${download.stats.threads:4}")
+    protected Integer downloadStatsThreads = 4;
+
+    /**
+     * thread pool for the download stats facet queries
+     */
+    private ExecutorService downloadStatsExecutor = null;
+
     @Value("${download.unzipped.limit:10000}")
     public Integer unzippedLimit;
 
@@ -188,6 +249,9 @@ public class SearchDAOImpl implements SearchDAO {
     @Inject
     protected SensitiveService sensitiveService;
 
+    @Inject
+    protected HeatmapCoalescer heatmapCoalescer;
+
     @Value("${media.store.local:true}")
     protected Boolean usingLocalMediaRepo = true;
 
@@ -290,6 +354,16 @@ public class SearchDAOImpl implements SearchDAO {
 
         initSensitiveFieldMapping();
 
+        if (layersSampleThreads != null && layersSampleThreads > 0 && layersSampleExecutor == null) {
+            layersSampleExecutor = Executors.newFixedThreadPool(layersSampleThreads,
+                    new ThreadFactoryBuilder().setNameFormat("download-layers-sample-%d").setDaemon(true).build());
+        }
+
+        if (downloadStatsExecutor == null) {
+            downloadStatsExecutor = Executors.newFixedThreadPool(Math.max(downloadStatsThreads, 1),
+                    new ThreadFactoryBuilder().setNameFormat("download-stats-%d").setDaemon(true).build());
+        }
+
         countDownLatch.countDown();
     }
 
@@ -538,24 +612,16 @@ public class SearchDAOImpl implements SearchDAO {
         SolrQuery solrQuery = initSolrQuery(searchParams, false, null);
 
         //We want all the facets so we can dump all the coordinates
-        solrQuery.setFacetLimit(-1);
+        emptyFacetRequest(solrQuery, -1, 0, false);
         solrQuery.setFacetSort("count");
-        solrQuery.setRows(0);
-        solrQuery.setQuery(searchParams.getQ());
+        solrQuery.addFacetField(searchParams.getFacets()[0]);
 
-        QueryResponse qr = indexDao.runSolrQuery(solrQuery);
-        if (qr.getResults().size() > 0) {
-            FacetField ff = qr.getFacetField(searchParams.getFacets()[0]);
-            if (ff != null && ff.getValueCount() > 0) {
-                out.write("latitude,longitude\n".getBytes(StandardCharsets.UTF_8));
-                //write the facets to file
-                for (FacetField.Count value : ff.getValues()) {
-                    if (value.getName() != null && value.getCount() > 0) {
-                        out.write(value.getName().getBytes(StandardCharsets.UTF_8));
-                        out.write("\n".getBytes(StandardCharsets.UTF_8));
-                    }
-                }
-            }
+        // the coordinates are written as they are read from the streaming facet
+        StreamCoordinates procFacet = new StreamCoordinates(out);
+        indexDao.streamingQuery(solrQuery, null, procFacet, null);
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("coordinates written: " + procFacet.getCount());
         }
     }
 
@@ -596,13 +662,20 @@ public class SearchDAOImpl implements SearchDAO {
         // prepare headers
         DownloadHeaders downloadHeaders = prepareHeaders(downloadParams);
 
+        // continue the records and misc columns of the completed entries when resuming
+        DownloadCheckpoint resume = getCheckpointResume(dd, out);
+        if (resume != null) {
+            dd.getRecordsDownloaded().set(resume.getRecords());
+            downloadHeaders.miscLabels.addAll(Arrays.asList(resume.getMiscFields()));
+        }
+
         // create writer
         RecordWriter recordWriter = createRecordWriter(downloadParams, downloadHeaders, out);
 
         // submit download to executor
         if (nextExecutor != null) {
             // TODO: remove when deprecated services are removed: /occurrences/download and /occurrences/download/batchFile
-            Future future = nextExecutor.submit(prepareDownloadRunner(downloadParams, downloadHeaders, dd, downloadStats, recordWriter));
+            Future future = nextExecutor.submit(prepareDownloadRunner(downloadParams, downloadHeaders, dd, downloadStats, recordWriter, out));
 
             // wait for download to finish
             // Busy wait because we need to be able to respond to an interrupt on any callable
@@ -624,7 +697,7 @@ public class SearchDAOImpl implements SearchDAO {
             } while (waitAgain);
         } else {
             // This is already running in an executor
-            prepareDownloadRunner(downloadParams, downloadHeaders, dd, downloadStats, recordWriter).call();
+            prepareDownloadRunner(downloadParams, downloadHeaders, dd, downloadStats, recordWriter, out).call();
         }
 
 
@@ -635,19 +708,88 @@ public class SearchDAOImpl implements SearchDAO {
         return downloadHeaders;
     }
 
-    private RecordWriter createRecordWriter(DownloadRequestDTO downloadParams, DownloadHeaders downloadHeaders, OutputStream out) {
-        RecordWriterError recordWriter = downloadParams.getFileType().equals("csv") ?
-                new CSVRecordWriter(out, downloadHeaders.joinedHeader(), downloadParams.getSep(), downloadParams.getEsc()) :
-                new TSVRecordWriter(out, downloadHeaders.joinedHeader());
+    private RecordWriter createRecordWriter(DownloadRequestDTO downloadParams, DownloadHeaders downloadHeaders, OutputStream out) throws Exception {
+        RecordWriterError recordWriter;
+        if (downloadParams.getFileType().equals("csv")) {
+            recordWriter = new CSVRecordWriter(out, downloadHeaders.joinedHeader(), downloadParams.getSep(), downloadParams.getEsc());
+        } else if (downloadParams.getFileType().equals("arrow")) {
+            recordWriter = createArrowRecordWriter(downloadParams, downloadHeaders, out);
+        } else {
+            recordWriter = new TSVRecordWriter(out, downloadHeaders.joinedHeader());
+        }
 
         recordWriter.initialise();
 
         return recordWriter;
     }
 
+    /**
+     * Arrow columns are typed from the index fields. Analysis layer and species list columns are text and
+     * assertion columns are boolean.
+     */
+    private ArrowRecordWriter createArrowRecordWriter(DownloadRequestDTO downloadParams, DownloadHeaders downloadHeaders, OutputStream out) throws Exception {
+        String[] header = downloadHeaders.joinedHeader();
+        ArrowRecordWriter.ColumnType[] types = new ArrowRecordWriter.ColumnType[header.length];
+        boolean[] multivalue = new boolean[header.length];
+        Arrays.fill(types, ArrowRecordWriter.ColumnType.UTF8);
+
+        Map<String, IndexFieldDTO> indexedFields = indexDao.getIndexedFieldsMap();
+        for (int i = 0; i < downloadHeaders.labels.length; i++) {
+            IndexFieldDTO field = indexedFields.get(downloadHeaders.included[i]);
+            if (field != null) {
+                types[i] = ArrowRecordWriter.columnType(field.getDataType());
+                multivalue[i] = field.isMultivalue();
+            }
+        }
+        int qaOffset = header.length - downloadHeaders.qaLabels.length;
+        for (int i = qaOffset; i < header.length; i++) {
+            types[i] = ArrowRecordWriter.ColumnType.BOOLEAN;
+        }
+
+        return new ArrowRecordWriter(out, header, types, multivalue, arrowBatchSize);
+    }
+
+    /**
+     * Checkpoints are taken when the download has a checkpoint listener and is written to a zip.
+     *
+     * @return the checkpoint to resume from, or null
+     */
+    private static DownloadCheckpoint getCheckpointResume(DownloadDetailsDTO dd, OutputStream out) {
+        return isCheckpointed(dd, out) ? dd.getCheckpoint() : null;
+    }
+
+    private static boolean isCheckpointed(DownloadDetailsDTO dd, OutputStream out) {
+        return dd.getCheckpointListener() != null && out instanceof OptionalZipOutputStream &&
+                ((OptionalZipOutputStream) out).getType() == OptionalZipOutputStream.Type.zipped;
+    }
+
+    /**
+     * Sort the download queries by id and continue from a checkpoint. Queries written before the checkpoint are
+     * removed and the query of the checkpoint continues after the last id written.
+     *
+     * @param queries download queries
+     * @param resume  the checkpoint, or null
+     * @return copies of the queries to run
+     */
+    static List<SolrQuery> resumeQueries(List<SolrQuery> queries, DownloadCheckpoint resume) {
+        List<SolrQuery> resumed = new ArrayList<>();
+        for (int i = resume == null ? 0 : resume.getQuery(); i < queries.size(); i++) {
+            SolrQuery query = queries.get(i).getCopy();
+            query.setSort(ID, SolrQuery.ORDER.asc);
+            if (query.getFields() != null && !Arrays.asList(query.getFields().split(",")).contains(ID)) {
+                query.addField(ID);
+            }
+            if (resume != null && i == resume.getQuery() && resume.getLastId() != null) {
+                query.addFilterQuery(ID + ":{" + ClientUtils.escapeQueryChars(resume.getLastId()) + " TO *]");
+            }
+            resumed.add(query);
+        }
+        return resumed;
+    }
+
     private Callable prepareDownloadRunner(DownloadRequestDTO downloadParams, DownloadHeaders downloadHeaders,
                                            DownloadDetailsDTO dd, DownloadStats downloadStats,
-                                           RecordWriter recordWriter) throws QidMissingException {
+                                           RecordWriter recordWriter, OutputStream out) throws QidMissingException {
         queryFormatUtils.formatSearchQuery(downloadParams);
 
         SolrQuery solrQuery = new SolrQuery();
@@ -674,9 +816,113 @@ public class SearchDAOImpl implements SearchDAO {
 
         ProcessDownload procDownload = new ProcessDownload(downloadStats, downloadHeaders, recordWriter, dd,
                 checkDownloadLimits, dowloadOfflineMaxSize,
-                listsService, layersService);
+                listsService, layersService,
+                layersSampleExecutor, layersSampleInFlight, layersSampleCacheSize);
+
+        // The stats of all queries are the stats of the unsplit query. Records must be counted as they are
+        // written when the download may be truncated.
+        boolean facetStats = downloadStatsFacet && (!checkDownloadLimits ||
+                (dd.getTotalRecords() > 0 && dd.getTotalRecords() <= dowloadOfflineMaxSize));
+
+        // queries before the checkpoint of a resumed download are not streamed again
+        int firstQuery = 0;
+        if (isCheckpointed(dd, out)) {
+            DownloadCheckpoint resume = dd.getCheckpoint();
+            queries = resumeQueries(queries, resume);
+            firstQuery = resume == null ? 0 : resume.getQuery();
+            if (resume != null && !facetStats) {
+                for (Map.Entry<String, Integer> entry : resume.getUidStats().entrySet()) {
+                    downloadStats.getUidStats().put(entry.getKey(), new AtomicInteger(entry.getValue()));
+                }
+                downloadStats.getLicences().addAll(resume.getLicences());
+            }
+            procDownload.enableCheckpoints((OptionalZipOutputStream) out, resume, dd.getCheckpointListener());
+        }
+
+        DownloadCallable callable;
+        if (facetStats) {
+            SolrQuery statsQuery = solrQuery.getCopy();
+            callable = new DownloadCallable(queries, indexDao, procDownload,
+                    () -> addDownloadStats(statsQuery, downloadStats), downloadStatsExecutor);
+        } else {
+            callable = new DownloadCallable(queries, indexDao, procDownload);
+        }
+
+        if (sensitiveFq != null && downloadSplitCount) {
+            SolrQuery countQuery = solrQuery.getCopy();
+            callable.setQueryCounts(() -> {
+                long[] counts = countSplitQueries(countQuery, sensitiveFq);
+                dd.setTotalRecords(counts[0] + counts[1]);
+                return counts;
+            }, firstQuery);
+        }
+
+        return callable;
+    }
+
+    /**
+     * Count the records of the queries of splitQueries with one request.
+     *
+     * @return the number of records of the query without and with the fq
+     */
+    private long[] countSplitQueries(SolrQuery query, String fq) throws Exception {
+        SolrQuery solrQuery = query.getCopy();
+        solrQuery.setFields();
+        emptyFacetRequest(solrQuery, 0, 0, false);
+        solrQuery.addFacetQuery(fq);
+
+        QueryResponse qr = indexDao.runSolrQuery(solrQuery);
+        long total = qr.getResults().getNumFound();
+        long fqCount = qr.getFacetQuery().values().iterator().next();
+        return new long[]{total - fqCount, fqCount};
+    }
+
+    /**
+     * Add the institution, collection, data provider and data resource counts, and licences, of a download query
+     * to the download stats.
+     *
+     * @param downloadQuery the download query
+     * @param downloadStats stats to update when the query is successful
+     * @return the number of records found
+     * @throws Exception
+     */
+    private long addDownloadStats(SolrQuery downloadQuery, DownloadStats downloadStats) throws Exception {
+        SolrQuery solrQuery = downloadQuery.getCopy();
+        solrQuery.setFields();
+
+        // convert to facet query, with missing values for the licence of records without a licence
+        emptyFacetRequest(solrQuery, -1, 0, true);
+        // records without a data resource are not downloaded
+        solrQuery.addFilterQuery(OccurrenceIndex.DATA_RESOURCE_UID + ":*");
+        solrQuery.addFacetField(OccurrenceIndex.INSTITUTION_UID,
+                OccurrenceIndex.COLLECTION_UID,
+                OccurrenceIndex.DATA_PROVIDER_UID,
+                OccurrenceIndex.DATA_RESOURCE_UID,
+                OccurrenceIndex.LICENSE);
+
+        QueryResponse qr = indexDao.runSolrQuery(solrQuery);
 
-        return new DownloadCallable(queries, indexDao, procDownload);
+        DownloadStats stats = new DownloadStats();
+        for (FacetField facet : qr.getFacetFields()) {
+            if (facet.getValues() == null) {
+                continue;
+            }
+            boolean licence = OccurrenceIndex.LICENSE.equals(facet.getName());
+            for (FacetField.Count ffc : facet.getValues()) {
+                if (ffc.getCount() == 0) {
+                    continue;
+                }
+                if (licence) {
+                    stats.addLicence(ffc.getName());
+                } else if (ffc.getName() != null) {
+                    stats.getUidStats().computeIfAbsent(ffc.getName(), k -> new AtomicInteger()).addAndGet((int) ffc.getCount());
+                }
+            }
+        }
+
+        downloadStats.addAll(stats);
+
+        return qr.getResults().getNumFound();
     }
 
 
@@ -969,46 +1215,22 @@ public class SearchDAOImpl implements SearchDAO {
 
     @Deprecated
     private List<OccurrencePoint> getPoints(SpatialSearchRequestDTO searchParams, PointType pointType, int max) throws Exception {
-        List<OccurrencePoint> points = new ArrayList<>();
+        return getOccurrencePoints(searchParams, pointType, max).toOccurrencePoints();
+    }
+
+    /**
+     * @see au.org.ala.biocache.dao.SearchDAO#getOccurrencePoints(SpatialSearchRequestDTO, PointType, int)
+     */
+    @Override
+    public OccurrencePoints getOccurrencePoints(SpatialSearchRequestDTO searchParams, PointType pointType, int max) throws Exception {
+        OccurrencePoints points = new OccurrencePoints(pointType);
 
         SolrQuery solrQuery = initSolrQuery(searchParams, false, null);
         emptyFacetRequest(solrQuery, max, 0, false);
         solrQuery.addFacetField(pointType.getLabel());
 
-        QueryResponse qr = indexDao.runSolrQuery(solrQuery);
-        List<FacetField> facets = qr.getFacetFields();
+        indexDao.streamingQuery(solrQuery, null, new StreamPoints(points, max), null);
 
-        if (facets != null) {
-            for (FacetField facet : facets) {
-                List<FacetField.Count> facetEntries = facet.getValues();
-                if (facet.getName().contains(pointType.getLabel()) && (facetEntries != null) && (facetEntries.size() > 0)) {
-
-                    for (FacetField.Count fcount : facetEntries) {
-                        if (StringUtils.isNotEmpty(fcount.getName()) && fcount.getCount() > 0) {
-                            OccurrencePoint point = new OccurrencePoint(pointType);
-                            point.setCount(fcount.getCount());
-                            String[] pointsDelimited = StringUtils.split(fcount.getName(), ',');
-                            List<Float> coords = new ArrayList<Float>();
-
-                            for (String coord : pointsDelimited) {
-                                try {
-                                    Float decimalCoord = Float.parseFloat(coord);
-                                    coords.add(decimalCoord);
-                                } catch (NumberFormatException numberFormatException) {
-                                    logger.warn("Error parsing Float for Lat/Long: " + numberFormatException.getMessage(), numberFormatException);
-                                }
-                            }
-
-                            if (!coords.isEmpty()) {
-                                Collections.reverse(coords); // must be long, lat order
-                                point.setCoordinates(coords);
-                                points.add(point);
-                            }
-                        }
-                    }
-                }
-            }
-        }
         return points;
     }
 
@@ -2361,6 +2583,22 @@ public class SearchDAOImpl implements SearchDAO {
         return found;
     }
 
+    @Override
+    @CachePut("heatmapCache")
+    public HeatmapDTO refreshHeatMap(
+            String query,
+            String[] filterQueries,
+            Double minx,
+            Double miny,
+            Double maxx,
+            Double maxy,
+            List<LegendItem> legend,
+            int gridSizeInPixels)
+            throws Exception {
+        // same arguments, and cache key, as getHeatMap
+        return getHeatMap(query, filterQueries, minx, miny, maxx, maxy, legend, gridSizeInPixels);
+    }
+
     @Override
     @Cacheable("heatmapCache")
     public HeatmapDTO getHeatMap(
@@ -2388,44 +2626,21 @@ public class SearchDAOImpl implements SearchDAO {
             minx += 360;
         }
 
+        // tiles of the same size have the same gridLevel, so concurrent tile requests can be merged
+        int gridLevel = heatmapGridLevel(minx, miny, maxx, maxy);
+
         // single layers
         if (gridSizeInPixels > 1 || legend == null || legend.isEmpty()) {
             // single layer
-            QueryResponse qr = null;
-            SolrQuery solrQuery =
-                    createHeatmapQuery(
-                            query,
-                            filterQueries,
-                            minx,
-                            miny,
-                            maxx,
-                            maxy);
-            qr = query(solrQuery); // can throw exception
-
-            // FIXME UGLY - not needed with SOLR8, but current constraint is SOLR 6 API
-            // See SpatialHeatmapFacets.HeatmapFacet in SOLR 8 API
-            SimpleOrderedMap facetHeatMaps =
-                    ((SimpleOrderedMap)
-                            ((SimpleOrderedMap) ((qr.getResponse().get("facet_counts")))).get("facet_heatmaps"));
-
-            Integer gridLevel = -1;
-            if (facetHeatMaps != null) {
-                SimpleOrderedMap heatmap = (SimpleOrderedMap) facetHeatMaps.get(spatialFieldWMS);
-                gridLevel = (Integer) heatmap.get("gridLevel");
-                Integer rows = (Integer) heatmap.get("rows");
-                Integer columns = (Integer) heatmap.get("columns");
-                List<List<Integer>> layer = (List<List<Integer>>) heatmap.get("counts_ints2D");
-                Double hminx = (Double) heatmap.get("minX");
-                Double hminy = (Double) heatmap.get("minY");
-                Double hmaxx = (Double) heatmap.get("maxX");
-                Double hmaxy = (Double) heatmap.get("maxY");
-                layers.add(layer);
+            HeatmapDTO grid = heatmapCoalescer.getGrid(query, filterQueries, minx, miny, maxx, maxy, gridLevel, this::queryHeatmapGrid);
+            if (grid != null) {
+                layers.add(grid.layers.get(0));
                 return new HeatmapDTO(
-                        gridLevel, layers, legend, gridSizeInPixels, rows, columns, hminx, hminy, hmaxx, hmaxy);
+                        grid.gridLevel, layers, legend, gridSizeInPixels, grid.rows, grid.columns, grid.minx, grid.miny, grid.maxx, grid.maxy);
             }
         } else {
             // multiple layers
-            Integer gridLevel = -1;
+            Integer resultGridLevel = -1;
             Integer rows = 0;
             Integer columns = 0;
             Double hminx = minx;
@@ -2433,65 +2648,92 @@ public class SearchDAOImpl implements SearchDAO {
             Double hmaxx = maxx;
             Double hmaxy = maxy;
 
-            int zoomOffset = 0;
             for (int legendIdx = 0; legendIdx < legend.size(); legendIdx++) {
                 LegendItem legendItem = legend.get(legendIdx);
 
                 // add the FQ for the legend item
-                QueryResponse qr = null;
-
-                SolrQuery solrQuery =
-                        createHeatmapQuery(
-                                query, filterQueries, minx, miny, maxx, maxy);
-                String[] fqs =
-                        Arrays.copyOf(
-                                solrQuery.getFilterQueries(), solrQuery.getFilterQueries().length + 1);
-                fqs[fqs.length - 1] = legendItem.getFq();
-                solrQuery.setFilterQueries(fqs);
-
-                // query
-                qr = query(solrQuery); // can throw exception
-
-                if (qr != null) {
-                    SimpleOrderedMap facetHeatMaps =
-                            ((SimpleOrderedMap)
-                                    ((SimpleOrderedMap) ((qr.getResponse().get("facet_counts"))))
-                                            .get("facet_heatmaps"));
-
-                    if (facetHeatMaps != null) {
-                        // iterate over legend
-                        SimpleOrderedMap heatmap = (SimpleOrderedMap) facetHeatMaps.get(spatialFieldWMS);
-                        gridLevel = (Integer) heatmap.get("gridLevel");
-                        List<List<Integer>> layer = (List<List<Integer>>) heatmap.get("counts_ints2D");
-                        rows = (Integer) heatmap.get("rows");
-                        columns = (Integer) heatmap.get("columns");
-                        hminx = (Double) heatmap.get("minX");
-                        hminy = (Double) heatmap.get("minY");
-                        hmaxx = (Double) heatmap.get("maxX");
-                        hmaxy = (Double) heatmap.get("maxY");
-                        layers.add(layer);
-                    } else {
-                        layers.add(null);
-                    }
+                String[] fqs = (String[]) ArrayUtils.add(filterQueries, legendItem.getFq());
+
+                HeatmapDTO grid = heatmapCoalescer.getGrid(query, fqs, minx, miny, maxx, maxy, gridLevel, this::queryHeatmapGrid);
+                if (grid != null) {
+                    resultGridLevel = grid.gridLevel;
+                    rows = grid.rows;
+                    columns = grid.columns;
+                    hminx = grid.minx;
+                    hminy = grid.miny;
+                    hmaxx = grid.maxx;
+                    hmaxy = grid.maxy;
+                    layers.add(grid.layers.get(0));
                 } else {
                     layers.add(null);
                 }
             }
 
             return new HeatmapDTO(
-                    gridLevel, layers, legend, gridSizeInPixels, rows, columns, hminx, hminy, hmaxx, hmaxy);
+                    resultGridLevel, layers, legend, gridSizeInPixels, rows, columns, hminx, hminy, hmaxx, hmaxy);
         }
 
         return null;
     }
 
+    /**
+     * Query a single layer facet.heatmap.
+     *
+     * @return heatmap with one layer, or null when there is no heatmap
+     */
+    private HeatmapDTO queryHeatmapGrid(
+            String query,
+            String[] filterQueries,
+            double minx,
+            double miny,
+            double maxx,
+            double maxy,
+            int gridLevel,
+            int maxCells)
+            throws Exception {
+        SolrQuery solrQuery = createHeatmapQuery(query, filterQueries, minx, miny, maxx, maxy, gridLevel);
+        if (maxCells > 0) {
+            solrQuery.set("facet.heatmap.maxCells", maxCells);
+        }
+
+        QueryResponse qr = query(solrQuery); // can throw exception
+        if (qr == null) {
+            return null;
+        }
+
+        // FIXME UGLY - not needed with SOLR8, but current constraint is SOLR 6 API
+        // See SpatialHeatmapFacets.HeatmapFacet in SOLR 8 API
+        SimpleOrderedMap facetHeatMaps =
+                ((SimpleOrderedMap)
+                        ((SimpleOrderedMap) ((qr.getResponse().get("facet_counts")))).get("facet_heatmaps"));
+        if (facetHeatMaps == null) {
+            return null;
+        }
+
+        SimpleOrderedMap heatmap = (SimpleOrderedMap) facetHeatMaps.get(spatialFieldWMS);
+        List<List<List<Integer>>> layers = new ArrayList<>();
+        layers.add((List<List<Integer>>) heatmap.get("counts_ints2D"));
+        return new HeatmapDTO(
+                (Integer) heatmap.get("gridLevel"),
+                layers,
+                null,
+                1,
+                (Integer) heatmap.get("rows"),
+                (Integer) heatmap.get("columns"),
+                (Double) heatmap.get("minX"),
+                (Double) heatmap.get("minY"),
+                (Double) heatmap.get("maxX"),
+                (Double) heatmap.get("maxY"));
+    }
+
     private SolrQuery createHeatmapQuery(
             String query,
             String[] filterQueries,
             Double minx,
             Double miny,
             Double maxx,
-            Double maxy) {
+            Double maxy,
+            int gridLevel) {
         SolrQuery solrQuery = new SolrQuery();
         solrQuery.setRequestHandler("standard");
         solrQuery.set("facet.heatmap", spatialFieldWMS);
@@ -2507,7 +2749,22 @@ public class SearchDAOImpl implements SearchDAO {
 
         String geom = "[\"" + minx + " " + miny + "\" TO \"" + maxx + " " + maxy + "\"]";
         solrQuery.set("facet.heatmap.geom", geom);
+        solrQuery.set(
+                "facet.heatmap.gridLevel",
+                String.valueOf(gridLevel)); // good for points, probably
 
+        solrQuery.setFacetLimit(-1);
+        solrQuery.setFacet(true);
+        solrQuery.setFilterQueries(filterQueries);
+        solrQuery.setRows(0);
+        solrQuery.setQuery(query);
+        return solrQuery;
+    }
+
+    /**
+     * @return facet.heatmap.gridLevel for a bbox with minx and maxx between -180 and 180
+     */
+    private int heatmapGridLevel(double minx, double miny, double maxx, double maxy) {
         // Calculate the tile width in degrees. minx and maxx may independently wrap the date line (180 degrees).
         double tileWidth = maxx > minx ? maxx - minx : maxx - (minx - 360);
 
@@ -2527,17 +2784,7 @@ public class SearchDAOImpl implements SearchDAO {
         }
 
         // Add 7 to the min zoom level to get the most appropriate number of cells
-        int gridLevel = Math.min(zoomLevelByWidth, zoomLevelByHeight) + 7;
-        solrQuery.set(
-                "facet.heatmap.gridLevel",
-                String.valueOf(gridLevel)); // good for points, probably
-
-        solrQuery.setFacetLimit(-1);
-        solrQuery.setFacet(true);
-        solrQuery.setFilterQueries(filterQueries);
-        solrQuery.setRows(0);
-        solrQuery.setQuery(query);
-        return solrQuery;
+        return Math.min(zoomLevelByWidth, zoomLevelByHeight) + 7;
     }
 
     @Override
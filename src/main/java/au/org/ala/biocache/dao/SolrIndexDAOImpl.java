@@ -5,6 +5,9 @@ import au.org.ala.biocache.dto.IndexFieldDTO;
 import au.org.ala.biocache.dto.OccurrenceIndex;
 import au.org.ala.biocache.service.LayersService;
 import au.org.ala.biocache.service.RestartDataService;
+import au.org.ala.biocache.stream.ExportReader;
+import au.org.ala.biocache.stream.JavabinExportReader;
+import au.org.ala.biocache.stream.ProcessColumnsInterface;
 import au.org.ala.biocache.stream.ProcessInterface;
 import au.org.ala.biocache.util.DwCTerms;
 import au.org.ala.biocache.util.DwcTermDetails;
@@ -27,6 +30,7 @@ import org.apache.solr.client.solrj.impl.*;
 import org.apache.solr.client.solrj.io.SolrClientCache;
 import org.apache.solr.client.solrj.io.Tuple;
 import org.apache.solr.client.solrj.io.stream.*;
+import org.apache.solr.client.solrj.request.QueryRequest;
 import org.apache.solr.client.solrj.request.UpdateRequest;
 import org.apache.solr.client.solrj.request.schema.SchemaRequest;
 import org.apache.solr.client.solrj.response.FieldStatsInfo;
@@ -47,7 +51,9 @@ import org.springframework.stereotype.Component;
 
 import javax.annotation.PostConstruct;
 import javax.inject.Inject;
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.*;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -185,6 +191,13 @@ public class SolrIndexDAOImpl implements IndexDAO {
     @Value("${solr.home:}")
     protected String solrHome;
 
+    /**
+     * Read /export requests of processes that accept columns, e.g. downloads, with wt=javabin instead of
+     * creating a Tuple for each record.
+     */
+    @Value("${solr.export.javabin:true}")
+    protected Boolean exportJavabin = true;
+
     // CoreContainer cc;
     SolrClient solrClient;
     CloseableHttpClient httpClient;
@@ -1124,7 +1137,17 @@ public class SolrIndexDAOImpl implements IndexDAO {
             }
 
             // do search
-            if (procSearch != null && query.getRows() != 0) {
+            if (procSearch != null && query.getRows() != 0 && isJavabinExport(query, procSearch)) {
+                ProcessColumnsInterface procColumns = (ProcessColumnsInterface) procSearch;
+                Object[] row = new Object[procColumns.getColumnFields().length];
+                try (ExportReader reader = openExport(buildSearchExpr(query), procColumns.getColumnFields())) {
+                    while (reader.next(row)) {
+                        tupleCount++;
+                        procColumns.process(row);
+                    }
+                    procColumns.flush();
+                }
+            } else if (procSearch != null && query.getRows() != 0) {
                 try (TupleStream solrStream = openStream(buildSearchExpr(query));) {
                     Tuple tuple;
                     while (!(tuple = solrStream.read()).EOF && (tupleCount < query.getRows() || query.getRows() < 0)) {
@@ -1137,14 +1160,17 @@ public class SolrIndexDAOImpl implements IndexDAO {
 
             // do facets
             if (procFacet != null && query.getFacetFields() != null) {
-                // process one at a time
+                // process one at a time, until procFacet stops, e.g. when the client has gone
                 for (String facetField : query.getFacetFields()) {
                     try (TupleStream solrStream = createTupleStream(query, endemicFacetSuperset, facetField);) {
                         Tuple tuple;
-                        while (!(tuple = solrStream.read()).EOF) {
+                        while (!procFacet.isStopped() && !(tuple = solrStream.read()).EOF) {
                             procFacet.process(tuple);
                         }
                     }
+                    if (procFacet.isStopped()) {
+                        break;
+                    }
                 }
                 procFacet.flush();
             }
@@ -1162,6 +1188,85 @@ public class SolrIndexDAOImpl implements IndexDAO {
         return tupleCount;
     }
 
+    /**
+     * All rows are requested with the /export handler
+     */
+    private boolean isJavabinExport(SolrQuery query, ProcessInterface procSearch) {
+        return exportJavabin && procSearch instanceof ProcessColumnsInterface
+                && query.getStart() <= 0 && query.getRows() < 0;
+    }
+
+    /**
+     * Open an /export with wt=javabin on each shard.
+     *
+     * @param params /export request
+     * @param fields the fields of each column
+     */
+    private ExportReader openExport(ModifiableSolrParams params, String[] fields) throws IOException {
+        Map<String, Integer> columns = new HashMap<>();
+        for (int i = 0; i < fields.length; i++) {
+            columns.putIfAbsent(fields[i], i);
+        }
+
+        // sort fields that are not columns are read to merge the shards
+        String[] sorts = params.get("sort").split(",");
+        int[] sortColumns = new int[sorts.length];
+        boolean[] descending = new boolean[sorts.length];
+        int rowLength = fields.length;
+        for (int i = 0; i < sorts.length; i++) {
+            String[] sort = sorts[i].trim().split("\\s+");
+            Integer column = columns.get(sort[0]);
+            if (column == null) {
+                column = rowLength++;
+                columns.put(sort[0], column);
+            }
+            sortColumns[i] = column;
+            descending[i] = sort.length > 1 && "desc".equalsIgnoreCase(sort[1]);
+        }
+
+        List<String> urls;
+        ModifiableSolrParams exportParams = new ModifiableSolrParams(params);
+        String qt = exportParams.get("qt");
+        exportParams.remove("qt");
+        exportParams.set("wt", "javabin");
+        if (!solrHome.startsWith("http://")) {
+            // one request per shard, the same as CloudSolrStream
+            StreamContext streamContext = new StreamContext();
+            streamContext.setSolrClientCache(solrClientCache);
+            urls = TupleStream.getShards(solrHome, solrCollection, streamContext, exportParams);
+            exportParams.set("distrib", "false");
+        } else {
+            urls = Collections.singletonList(solrHome);
+        }
+
+        List<JavabinExportReader> shards = new ArrayList<>();
+        try {
+            for (String url : urls) {
+                QueryRequest request = new QueryRequest(exportParams, SolrRequest.METHOD.POST);
+                request.setPath(qt);
+                request.setResponseParser(new InputStreamResponseParser("javabin"));
+                NamedList<Object> response = solrClientCache.getHttpSolrClient(url).request(request);
+                shards.add(new JavabinExportReader((InputStream) response.get("stream"),
+                        (Closeable) response.get("closeableResponse"), columns));
+            }
+        } catch (Exception e) {
+            for (JavabinExportReader shard : shards) {
+                try {
+                    shard.close();
+                } catch (IOException ignored) {
+                }
+            }
+            if (e instanceof IOException) {
+                throw (IOException) e;
+            } else if (e instanceof RuntimeException) {
+                throw (RuntimeException) e;
+            }
+            throw new IOException(e);
+        }
+
+        return new ExportReader(shards, rowLength, sortColumns, descending);
+    }
+
     private TupleStream createTupleStream(SolrQuery query, SolrQuery endemicFacetSuperset, String facetField) throws IOException {
         if (endemicFacetSuperset == null) {
             return openStream(buildFacetExpr(query, facetField));
@@ -0,0 +1,191 @@
+package au.org.ala.biocache.dto;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The point an offline download can resume from after a restart or SOLR failure.
+ * <p>
+ * A checkpoint is taken when a data file entry of the zip is complete. The completed entries are copied from
+ * the partial zip and the download continues with the records after lastId, sorted by id, in a new _part entry.
+ * <p>
+ * Persisted with the download in the offline queue.
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class DownloadCheckpoint {
+
+    // index of the download query, of the non-sensitive and sensitive queries, that was being written
+    private int query;
+
+    // id of the last record in the completed entries of the query, null when the query was not started
+    private String lastId;
+
+    // records in the completed entries
+    private long records;
+
+    // length of the zip when the last entry was completed
+    private long bytes;
+
+    // number of times the download was resumed
+    private int attempts;
+
+    private List<Entry> entries = new ArrayList<>();
+
+    private String[] miscFields = new String[0];
+
+    // download stats of the completed entries, when the stats are counted as records are written
+    private Map<String, Integer> uidStats = new LinkedHashMap<>();
+    private Set<String> licences = new LinkedHashSet<>();
+
+    /**
+     * Location of a completed zip entry, enough to copy the deflated data without inflating it.
+     */
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public static class Entry {
+        private String name;
+        // offset of the local file header
+        private long offset;
+        private long compressedSize;
+        private long size;
+        private long crc;
+        private long time;
+
+        public Entry() {
+        }
+
+        public Entry(String name, long offset, long compressedSize, long size, long crc, long time) {
+            this.name = name;
+            this.offset = offset;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.crc = crc;
+            this.time = time;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public void setOffset(long offset) {
+            this.offset = offset;
+        }
+
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+
+        public void setCompressedSize(long compressedSize) {
+            this.compressedSize = compressedSize;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public void setSize(long size) {
+            this.size = size;
+        }
+
+        public long getCrc() {
+            return crc;
+        }
+
+        public void setCrc(long crc) {
+            this.crc = crc;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public void setTime(long time) {
+            this.time = time;
+        }
+    }
+
+    public int getQuery() {
+        return query;
+    }
+
+    public void setQuery(int query) {
+        this.query = query;
+    }
+
+    public String getLastId() {
+        return lastId;
+    }
+
+    public void setLastId(String lastId) {
+        this.lastId = lastId;
+    }
+
+    public long getRecords() {
+        return records;
+    }
+
+    public void setRecords(long records) {
+        this.records = records;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public void setBytes(long bytes) {
+        this.bytes = bytes;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    public void setEntries(List<Entry> entries) {
+        this.entries = entries;
+    }
+
+    public String[] getMiscFields() {
+        return miscFields;
+    }
+
+    public void setMiscFields(String[] miscFields) {
+        this.miscFields = miscFields;
+    }
+
+    public Map<String, Integer> getUidStats() {
+        return uidStats;
+    }
+
+    public void setUidStats(Map<String, Integer> uidStats) {
+        this.uidStats = uidStats;
+    }
+
+    public Set<String> getLicences() {
+        return licences;
+    }
+
+    public void setLicences(Set<String> licences) {
+        this.licences = licences;
+    }
+}
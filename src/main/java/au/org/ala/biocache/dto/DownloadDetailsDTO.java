@@ -16,6 +16,7 @@ package au.org.ala.biocache.dto;
 
 import au.org.ala.ws.security.profile.AlaUserProfile;
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
 import io.swagger.v3.oas.annotations.media.Schema;
 
 import javax.validation.constraints.NotNull;
@@ -24,6 +25,7 @@ import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 /**
  * Stores the details of a logged download.  Will allow for monitoring of downloads.
@@ -50,6 +52,12 @@ public class DownloadDetailsDTO {
     private long totalRecords = 0;
     private final AtomicLong recordsDownloaded = new AtomicLong(0);
     private String processingThreadName = null;
+    private final DownloadMetrics metrics = new DownloadMetrics();
+
+    // point to resume from after a restart or failure, persisted with the offline queue
+    private DownloadCheckpoint checkpoint;
+    // receives new checkpoints while the download is written, null when the download is not resumable
+    private Consumer<DownloadCheckpoint> checkpointListener;
 
     private AtomicBoolean interrupt = new AtomicBoolean(false);
 
@@ -101,6 +109,14 @@ public class DownloadDetailsDTO {
         return recordsDownloaded;
     }
 
+    /**
+     * @return throughput and stage times of the download, not restored from the persistent queue
+     */
+    @JsonProperty(access = JsonProperty.Access.READ_ONLY)
+    public DownloadMetrics getMetrics() {
+        return metrics;
+    }
+
     public String getIpAddress(){
         return ipAddress;
     }
@@ -231,8 +247,27 @@ public class DownloadDetailsDTO {
         return interrupt.get();
     }
 
+    public DownloadCheckpoint getCheckpoint() {
+        return checkpoint;
+    }
+
+    public void setCheckpoint(DownloadCheckpoint checkpoint) {
+        this.checkpoint = checkpoint;
+    }
+
+    @JsonIgnore
+    public Consumer<DownloadCheckpoint> getCheckpointListener() {
+        return checkpointListener;
+    }
+
+    @JsonIgnore
+    public void setCheckpointListener(Consumer<DownloadCheckpoint> checkpointListener) {
+        this.checkpointListener = checkpointListener;
+    }
+
     public void resetCounts() {
         recordsDownloaded.set(0);
+        metrics.reset();
         lastUpdate = new Date();
     }
 
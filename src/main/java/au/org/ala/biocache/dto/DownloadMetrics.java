@@ -0,0 +1,138 @@
+package au.org.ala.biocache.dto;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+import io.swagger.v3.oas.annotations.media.Schema;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Throughput of a download and the time spent in each stage of writing records, so that the stage limiting a
+ * download can be found while it is running.
+ * <p>
+ * Updated by the download thread and read by status requests.
+ */
+@Schema(name = "DownloadMetrics")
+@JsonIgnoreProperties(ignoreUnknown = true)
+@JsonPropertyOrder({"records", "bytes", "recordsPerSecond", "bytesPerSecond", "elapsedMs", "queueWaitMs", "stageMs"})
+public class DownloadMetrics {
+
+    public enum Stage {
+        // waiting on SOLR for the next record
+        READ,
+        // formatting index fields, assertions and misc fields
+        FORMAT,
+        // species list lookups
+        LISTS,
+        // analysis layer intersections, excluding writing the rows
+        INTERSECTION,
+        // the record writer
+        WRITE;
+
+        public String getName() {
+            return name().toLowerCase();
+        }
+    }
+
+    private final AtomicLong records = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLongArray stageNanos = new AtomicLongArray(Stage.values().length);
+
+    // ms in the download queue, -1 when not queued
+    private volatile long queueWaitMs = -1;
+
+    // nanoTime of the start and end, 0 when not started or not finished
+    private volatile long startNanos;
+    private volatile long endNanos;
+
+    public void start() {
+        startNanos = System.nanoTime();
+        endNanos = 0;
+    }
+
+    public void finish() {
+        if (startNanos != 0 && endNanos == 0) {
+            endNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * Clear the record count and stage times when the records are written again. The bytes, elapsed time and
+     * queue wait are for the whole download.
+     */
+    public void reset() {
+        records.set(0);
+        for (int i = 0; i < stageNanos.length(); i++) {
+            stageNanos.set(i, 0);
+        }
+    }
+
+    public void addRecords(long count) {
+        records.addAndGet(count);
+    }
+
+    public void addBytes(long count) {
+        bytes.addAndGet(count);
+    }
+
+    public void addStageTime(Stage stage, long nanos) {
+        stageNanos.addAndGet(stage.ordinal(), nanos);
+    }
+
+    public void setQueueWaitMs(long queueWaitMs) {
+        this.queueWaitMs = queueWaitMs;
+    }
+
+    public long getQueueWaitMs() {
+        return queueWaitMs;
+    }
+
+    public long getRecords() {
+        return records.get();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public long getStageNanos(Stage stage) {
+        return stageNanos.get(stage.ordinal());
+    }
+
+    /**
+     * @return ms since the download started, or until it finished
+     */
+    public long getElapsedMs() {
+        long start = startNanos;
+        if (start == 0) {
+            return 0;
+        }
+        long end = endNanos;
+        return TimeUnit.NANOSECONDS.toMillis((end == 0 ? System.nanoTime() : end) - start);
+    }
+
+    public long getRecordsPerSecond() {
+        long elapsed = getElapsedMs();
+        return elapsed > 0 ? getRecords() * 1000 / elapsed : 0;
+    }
+
+    public long getBytesPerSecond() {
+        long elapsed = getElapsedMs();
+        return elapsed > 0 ? getBytes() * 1000 / elapsed : 0;
+    }
+
+    /**
+     * @return ms spent in each stage
+     */
+    public Map<String, Long> getStageMs() {
+        Map<String, Long> stages = new LinkedHashMap<>();
+        for (Stage stage : Stage.values()) {
+            stages.put(stage.getName(), TimeUnit.NANOSECONDS.toMillis(getStageNanos(stage)));
+        }
+        return stages;
+    }
+}
@@ -68,7 +68,7 @@ public class DownloadRequestDTO extends SpatialSearchRequestDTO {
     @LogType(type="source")
     protected Integer sourceTypeId = null;
     //The file type for the download file.
-    @Pattern(regexp="(csv|tsv)")
+    @Pattern(regexp="(csv|tsv|arrow)")
     protected String fileType = "csv";
 
     /** URL to layersService to include intersections with layers that are not indexed */
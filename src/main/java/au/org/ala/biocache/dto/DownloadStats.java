@@ -1,6 +1,7 @@
 package au.org.ala.biocache.dto;
 
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
@@ -15,6 +16,27 @@ public class DownloadStats {
     public DownloadStats() {
     }
 
+    /**
+     * Copy the statistics of another download.
+     *
+     * @param other
+     */
+    public DownloadStats(DownloadStats other) {
+        addAll(other);
+    }
+
+    /**
+     * Add the uid counts and licences of another download to this one.
+     *
+     * @param other
+     */
+    public void addAll(DownloadStats other) {
+        for (Map.Entry<String, AtomicInteger> entry : other.getUidStats().entrySet()) {
+            uidStats.computeIfAbsent(entry.getKey(), k -> new AtomicInteger()).addAndGet(entry.getValue().get());
+        }
+        licences.addAll(other.getLicences());
+    }
+
     public ConcurrentMap<String, AtomicInteger> getUidStats() {
         return uidStats;
     }
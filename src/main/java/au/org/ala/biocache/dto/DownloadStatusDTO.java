@@ -35,6 +35,8 @@ public class DownloadStatusDTO {
 
     String startDate;
 
+    DownloadMetrics metrics;
+
     public DownloadStatusDTO() {}
 
     public DownloadStatus getStatus() {
@@ -132,6 +134,12 @@ public class DownloadStatusDTO {
     public void setStartDate(String startDate) {
         this.startDate = startDate;
     }
-}
 
+    public DownloadMetrics getMetrics() {
+        return metrics;
+    }
 
+    public void setMetrics(DownloadMetrics metrics) {
+        this.metrics = metrics;
+    }
+}
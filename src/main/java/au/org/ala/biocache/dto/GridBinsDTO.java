@@ -0,0 +1,42 @@
+package au.org.ala.biocache.dto;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+
+import java.util.List;
+
+@Schema(name = "GridBins")
+public class GridBinsDTO {
+
+    // hex or square
+    public final String shape;
+    // distance between the centres of adjacent columns in EPSG:3857 metres
+    public final double cellSize;
+    // cells with occurrences
+    public final List<GridBin> bins;
+
+    public GridBinsDTO(String shape, double cellSize, List<GridBin> bins) {
+        this.shape = shape;
+        this.cellSize = cellSize;
+        this.bins = bins;
+    }
+
+    @Schema(name = "GridBin")
+    public static class GridBin {
+        public final int column;
+        public final int row;
+        public final int count;
+        public final double longitude;
+        public final double latitude;
+        // closed ring of longitude, latitude pairs
+        public final double[][] polygon;
+
+        public GridBin(int column, int row, int count, double longitude, double latitude, double[][] polygon) {
+            this.column = column;
+            this.row = row;
+            this.count = count;
+            this.longitude = longitude;
+            this.latitude = latitude;
+            this.polygon = polygon;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/**************************************************************************
+ *  Copyright (C) 2022 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.dto;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Distinct occurrence coordinates and their counts, in primitive arrays.
+ * <p>
+ * 12 bytes for each point, where an OccurrencePoint with a List of Float coordinates is over 100 bytes.
+ */
+public class OccurrencePoints {
+
+    private final PointType type;
+
+    // long, lat order
+    private float[] coordinates;
+    private int[] counts;
+    private int size;
+    private long totalCount;
+
+    public OccurrencePoints(PointType type) {
+        this(type, 1024);
+    }
+
+    public OccurrencePoints(PointType type, int initialCapacity) {
+        this.type = type;
+        this.coordinates = new float[Math.max(1, initialCapacity) * 2];
+        this.counts = new int[Math.max(1, initialCapacity)];
+    }
+
+    public void add(float longitude, float latitude, long count) {
+        if (size == counts.length) {
+            int capacity = counts.length + (counts.length >> 1) + 1;
+            counts = Arrays.copyOf(counts, capacity);
+            coordinates = Arrays.copyOf(coordinates, capacity * 2);
+        }
+        coordinates[size * 2] = longitude;
+        coordinates[size * 2 + 1] = latitude;
+        counts[size] = (int) Math.min(Integer.MAX_VALUE, count);
+        size++;
+        totalCount += count;
+    }
+
+    public PointType getType() {
+        return type;
+    }
+
+    /**
+     * @return number of distinct points
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return number of occurrences of all points
+     */
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    public float getLongitude(int i) {
+        return coordinates[i * 2];
+    }
+
+    public float getLatitude(int i) {
+        return coordinates[i * 2 + 1];
+    }
+
+    public int getCount(int i) {
+        return counts[i];
+    }
+
+    /**
+     * @return the coordinates in long, lat order. Only the first size() * 2 values are points.
+     */
+    public float[] getCoordinates() {
+        return coordinates;
+    }
+
+    /**
+     * @return the count of each point. Only the first size() values are points.
+     */
+    public int[] getCounts() {
+        return counts;
+    }
+
+    /**
+     * @return the points as OccurrencePoint, for the deprecated List methods of SearchDAO
+     */
+    public List<OccurrencePoint> toOccurrencePoints() {
+        List<OccurrencePoint> points = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            OccurrencePoint point = new OccurrencePoint(type);
+            point.setCount((long) counts[i]);
+            List<Float> coords = new ArrayList<>(2);
+            coords.add(coordinates[i * 2]);
+            coords.add(coordinates[i * 2 + 1]);
+            point.setCoordinates(coords);
+            points.add(point);
+        }
+        return points;
+    }
+}
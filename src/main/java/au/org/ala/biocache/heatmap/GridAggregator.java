@@ -0,0 +1,340 @@
+package au.org.ala.biocache.heatmap;
+
+import au.org.ala.biocache.dao.IndexDAO;
+import au.org.ala.biocache.dao.SearchDAO;
+import au.org.ala.biocache.dto.HeatmapDTO;
+import au.org.ala.biocache.util.WebMercator;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Occurrence counts in hexagonal or square grid cells of any size.
+ * <p>
+ * The grid is in EPSG:3857 with a column edge at longitude 0 and a row edge at the equator, so the cells of a WMS
+ * tile, and of neighbouring tiles, are the same cells as those of a request for any other area.
+ * <p>
+ * Hexagons have a flat top. Odd columns are half a cell lower than even columns.
+ * <p>
+ * Cell sizes are snapped to those of the WMS hexbin tiles, the width of a tile of zoom level z divided by an even
+ * number of columns from MIN_TILE_COLUMNS to MAX_TILE_COLUMNS, so requests share the cached blocks of the tiles.
+ * <p>
+ * Counts are from the facet.heatmap of SearchDAO.getHeatMap for blocks of BLOCK_SIZE x BLOCK_SIZE cells, so there
+ * are a few heatmap cells for each grid cell whatever the size of the grid cells. Blocks are cached for each query,
+ * cell size and index version. Each block not in the cache is a SOLR request, so a request for more than
+ * grid.aggregation.blocks.load.max of them is rejected.
+ */
+@Component("gridAggregator")
+public class GridAggregator {
+
+    private final static Logger logger = Logger.getLogger(GridAggregator.class);
+
+    /**
+     * Cells in each row and column of a block.
+     */
+    static final int BLOCK_SIZE = 16;
+
+    /**
+     * Range of the number of columns in a WMS hexbin tile.
+     */
+    static final int MIN_TILE_COLUMNS = 6;
+    static final int MAX_TILE_COLUMNS = 22;
+
+    private static final int MAX_ZOOM = 28;
+
+    private static final double HEX_HEIGHT = 2 / Math.sqrt(3);
+
+    public enum Shape {
+        HEX, SQUARE
+    }
+
+    @Inject
+    protected SearchDAO searchDAO;
+
+    @Inject
+    protected IndexDAO indexDao;
+
+    /**
+     * Number of blocks of grid cells in memory.
+     */
+    @Value("${grid.aggregation.cache.size:5000}")
+    protected Integer cacheSize = 5000;
+
+    /**
+     * Maximum number of grid cells in a request.
+     */
+    @Value("${grid.aggregation.cells.max:1000000}")
+    protected Integer maxCells = 1000000;
+
+    /**
+     * Maximum number of blocks, not in the cache, that a request can load.
+     */
+    @Value("${grid.aggregation.blocks.load.max:64}")
+    protected Integer maxBlockLoads = 64;
+
+    // counts of the cells of a block, one row after another
+    private Cache<String, int[]> blocks;
+
+    @PostConstruct
+    public void init() {
+        blocks = CacheBuilder.newBuilder().maximumSize(cacheSize).build();
+    }
+
+    /**
+     * Get the cells with occurrences that intersect an area.
+     *
+     * @param query    formatted query
+     * @param fqs      formatted filter queries
+     * @param shape
+     * @param cellSize distance between the centres of adjacent columns in EPSG:3857 metres, snapped to the nearest
+     *                 cell size of the WMS hexbin tiles
+     * @param minx     EPSG:3857 bounding box of the area
+     * @param miny
+     * @param maxx
+     * @param maxy
+     * @return the cells, of the snapped cell size
+     * @throws IllegalArgumentException when the area has more than grid.aggregation.cells.max cells, or more than
+     *                                  grid.aggregation.blocks.load.max blocks that are not cached
+     */
+    public GridBins getBins(String query, String[] fqs, Shape shape, double cellSize,
+                            double minx, double miny, double maxx, double maxy) throws Exception {
+        if (!(cellSize > 0)) {
+            throw new IllegalArgumentException("cell size " + cellSize + " is not positive");
+        }
+        cellSize = snapCellSize(cellSize);
+        double cellHeight = cellHeight(shape, cellSize);
+
+        // y is down for rows
+        int minColumn = (int) Math.floor(minx / cellSize) - 1;
+        int maxColumn = (int) Math.floor(maxx / cellSize) + 1;
+        int minRow = (int) Math.floor(-maxy / cellHeight) - 1;
+        int maxRow = (int) Math.floor(-miny / cellHeight) + 1;
+
+        if ((maxColumn - minColumn + 1L) * (maxRow - minRow + 1L) > maxCells) {
+            throw new IllegalArgumentException("More than " + maxCells + " cells of size " + cellSize + " in the area");
+        }
+
+        String key = indexDao.getIndexVersion(false) + "|" + shape + "|" + cellSize + "|" + query + "|"
+                + (fqs == null ? "" : StringUtils.join(fqs, "|"));
+
+        int minBlockColumn = Math.floorDiv(minColumn, BLOCK_SIZE);
+        int maxBlockColumn = Math.floorDiv(maxColumn, BLOCK_SIZE);
+        int minBlockRow = Math.floorDiv(minRow, BLOCK_SIZE);
+        int maxBlockRow = Math.floorDiv(maxRow, BLOCK_SIZE);
+        int loads = 0;
+        for (int blockRow = minBlockRow; blockRow <= maxBlockRow; blockRow++) {
+            for (int blockColumn = minBlockColumn; blockColumn <= maxBlockColumn; blockColumn++) {
+                if (blocks.getIfPresent(blockKey(key, blockColumn, blockRow)) == null && ++loads > maxBlockLoads) {
+                    throw new IllegalArgumentException("More than " + maxBlockLoads + " blocks of " + BLOCK_SIZE + "x"
+                            + BLOCK_SIZE + " cells of size " + cellSize + " to load for the area");
+                }
+            }
+        }
+
+        GridBins bins = new GridBins(shape, cellSize);
+        for (int blockRow = minBlockRow; blockRow <= maxBlockRow; blockRow++) {
+            for (int blockColumn = minBlockColumn; blockColumn <= maxBlockColumn; blockColumn++) {
+                int[] counts = getBlock(key, query, fqs, shape, cellSize, blockColumn, blockRow);
+
+                int firstColumn = blockColumn * BLOCK_SIZE;
+                int firstRow = blockRow * BLOCK_SIZE;
+                for (int row = Math.max(minRow, firstRow); row <= Math.min(maxRow, firstRow + BLOCK_SIZE - 1); row++) {
+                    for (int column = Math.max(minColumn, firstColumn); column <= Math.min(maxColumn, firstColumn + BLOCK_SIZE - 1); column++) {
+                        int count = counts[(row - firstRow) * BLOCK_SIZE + column - firstColumn];
+                        if (count > 0) {
+                            bins.add(column, row, count);
+                        }
+                    }
+                }
+            }
+        }
+        return bins;
+    }
+
+    private int[] getBlock(String key, String query, String[] fqs, Shape shape, double cellSize, int blockColumn, int blockRow) throws Exception {
+        try {
+            return blocks.get(blockKey(key, blockColumn, blockRow),
+                    () -> loadBlock(query, fqs, shape, cellSize, blockColumn, blockRow));
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    private static String blockKey(String key, int blockColumn, int blockRow) {
+        return blockColumn + "," + blockRow + "|" + key;
+    }
+
+    int[] loadBlock(String query, String[] fqs, Shape shape, double cellSize, int blockColumn, int blockRow) throws Exception {
+        int[] counts = new int[BLOCK_SIZE * BLOCK_SIZE];
+
+        double cellHeight = cellHeight(shape, cellSize);
+        int firstColumn = blockColumn * BLOCK_SIZE;
+        int firstRow = blockRow * BLOCK_SIZE;
+
+        // area of the cells, with a cell around it for the hexagon sides and the offset of odd columns
+        double minLng = Math.max(WebMercator.toLongitude((firstColumn - 1) * cellSize), -180);
+        double maxLng = Math.min(WebMercator.toLongitude((firstColumn + BLOCK_SIZE + 1) * cellSize), 180);
+        double maxLat = WebMercator.toLatitude(-(firstRow - 1) * cellHeight);
+        double minLat = WebMercator.toLatitude(-(firstRow + BLOCK_SIZE + 1) * cellHeight);
+        if (minLng >= maxLng || minLat >= maxLat) {
+            return counts;
+        }
+
+        HeatmapDTO heatmap = searchDAO.getHeatMap(query, fqs, minLng, minLat, maxLng, maxLat, null, 1);
+        List<List<Integer>> layer = heatmap == null || heatmap.layers.isEmpty() ? null : heatmap.layers.get(0);
+        if (layer == null) {
+            return counts;
+        }
+
+        double columnWidth = heatmap.columnWidth();
+        double rowHeight = heatmap.rowHeight();
+        for (int row = 0; row < layer.size(); row++) {
+            List<Integer> cells = layer.get(row);
+            if (cells == null) {
+                continue;
+            }
+            double lat = heatmap.maxy - rowHeight * (row + 0.5);
+            if (Math.abs(lat) > WebMercator.MAX_LATITUDE) {
+                continue;
+            }
+            double y = WebMercator.toY(lat);
+            for (int column = 0; column < cells.size(); column++) {
+                Integer count = cells.get(column);
+                if (count == null || count <= 0) {
+                    continue;
+                }
+                double lng = heatmap.minx + columnWidth * (column + 0.5);
+                if (lng > 180) {
+                    lng -= 360;
+                }
+                int[] cell = cell(shape, cellSize, WebMercator.toX(lng), y);
+                int c = cell[0] - firstColumn;
+                int r = cell[1] - firstRow;
+                if (c >= 0 && c < BLOCK_SIZE && r >= 0 && r < BLOCK_SIZE) {
+                    counts[r * BLOCK_SIZE + c] += count;
+                }
+            }
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("grid block " + blockColumn + "," + blockRow + " of " + shape + " " + cellSize + "m from a "
+                    + heatmap.columns + "x" + heatmap.rows + " heatmap");
+        }
+        return counts;
+    }
+
+    /**
+     * @return cell size for a tile with the width of a web map tile, so the cells of every tile of a zoom level are
+     * the same size
+     */
+    public static double cellSizeForTile(double tileWidth, int columns) {
+        double zoom = Math.log(WebMercator.WORLD_WIDTH / tileWidth) / Math.log(2);
+        if (Math.abs(zoom - Math.rint(zoom)) < 1e-6) {
+            tileWidth = WebMercator.WORLD_WIDTH / Math.pow(2, Math.rint(zoom));
+        }
+        return tileWidth / columns;
+    }
+
+    /**
+     * @return the cell size of a WMS hexbin tile, WORLD_WIDTH / 2^z / columns, that is nearest to a cell size
+     */
+    static double snapCellSize(double cellSize) {
+        double snapped = WebMercator.WORLD_WIDTH / MIN_TILE_COLUMNS;
+        double distance = Double.MAX_VALUE;
+        for (int zoom = 0; zoom <= MAX_ZOOM; zoom++) {
+            double tileWidth = WebMercator.WORLD_WIDTH / Math.pow(2, zoom);
+            for (int columns = MIN_TILE_COLUMNS; columns <= MAX_TILE_COLUMNS; columns += 2) {
+                double size = tileWidth / columns;
+                double d = Math.abs(Math.log(size / cellSize));
+                if (d < distance) {
+                    distance = d;
+                    snapped = size;
+                }
+            }
+        }
+        return snapped;
+    }
+
+    static double cellHeight(Shape shape, double cellSize) {
+        return shape == Shape.HEX ? cellSize * HEX_HEIGHT : cellSize;
+    }
+
+    /**
+     * Find the cell of a point.
+     * <p>
+     * A hexagon is made up of a left side triangle, a middle rectangle and a right side triangle. A point in the
+     * column of the rectangle is in this hexagon unless it is in the corners to the left of the triangle. Then it is
+     * in the hexagon to the left, up or down a row for the offset of odd columns.
+     *
+     * @param x EPSG:3857
+     * @param y EPSG:3857
+     * @return column, row. Rows are numbered down.
+     */
+    static int[] cell(Shape shape, double cellSize, double x, double y) {
+        int column = (int) Math.floor(x / cellSize);
+        if (shape == Shape.SQUARE) {
+            return new int[]{column, (int) Math.floor(-y / cellSize)};
+        }
+
+        double cellHeight = cellSize * HEX_HEIGHT;
+        double xOverlap = cellSize / 3;
+
+        double xpos = x - column * cellSize;
+        double yoffset = Math.floorMod(column, 2) == 0 ? 0 : cellHeight / 2;
+        int row = (int) Math.floor((-y - yoffset) / cellHeight);
+        double ypos = -y - yoffset - row * cellHeight;
+
+        if (xpos < xOverlap) {
+            // the slope of the sides of the triangle is 60 degrees
+            double slope = Math.abs(cellHeight / 2 - ypos) / xpos;
+            if (xpos <= 0 || slope > Math.tan(Math.PI / 3)) {
+                if (ypos < cellHeight / 2) {
+                    // above
+                    if (yoffset == 0) {
+                        row--;
+                    }
+                } else if (yoffset > 0) {
+                    // below
+                    row++;
+                }
+                column--;
+            }
+        }
+        return new int[]{column, row};
+    }
+
+    /**
+     * @return vertices of a cell in EPSG:3857 as x, y pairs, clockwise from the top left
+     */
+    static double[] polygon(Shape shape, double cellSize, int column, int row) {
+        if (shape == Shape.SQUARE) {
+            double x1 = column * cellSize;
+            double x2 = x1 + cellSize;
+            double y1 = -row * cellSize;
+            double y2 = y1 - cellSize;
+            return new double[]{x1, y1, x2, y1, x2, y2, x1, y2};
+        }
+
+        double cellHeight = cellSize * HEX_HEIGHT;
+        double xOverlap = cellSize / 3;
+        double top = row * cellHeight + (Math.floorMod(column, 2) == 0 ? 0 : cellHeight / 2);
+
+        double left = column * cellSize;
+        return new double[]{
+                left + xOverlap, -top,
+                left + cellSize, -top,
+                left + cellSize + xOverlap, -(top + cellHeight / 2),
+                left + cellSize, -(top + cellHeight),
+                left + xOverlap, -(top + cellHeight),
+                left, -(top + cellHeight / 2)
+        };
+    }
+}
@@ -0,0 +1,88 @@
+package au.org.ala.biocache.heatmap;
+
+import au.org.ala.biocache.dto.GridBinsDTO;
+import au.org.ala.biocache.util.WebMercator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Occurrence counts of the hexagonal or square cells of a GridAggregator grid, for the cells with occurrences.
+ */
+public class GridBins {
+
+    public final GridAggregator.Shape shape;
+
+    /**
+     * Distance between the centres of adjacent columns in EPSG:3857 metres.
+     */
+    public final double cellSize;
+
+    private int size;
+    private int[] columns = new int[64];
+    private int[] rows = new int[64];
+    private int[] counts = new int[64];
+
+    public GridBins(GridAggregator.Shape shape, double cellSize) {
+        this.shape = shape;
+        this.cellSize = cellSize;
+    }
+
+    void add(int column, int row, int count) {
+        if (size == counts.length) {
+            columns = Arrays.copyOf(columns, size * 2);
+            rows = Arrays.copyOf(rows, size * 2);
+            counts = Arrays.copyOf(counts, size * 2);
+        }
+        columns[size] = column;
+        rows[size] = row;
+        counts[size] = count;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getColumn(int i) {
+        return columns[i];
+    }
+
+    public int getRow(int i) {
+        return rows[i];
+    }
+
+    public int getCount(int i) {
+        return counts[i];
+    }
+
+    /**
+     * @return vertices of a cell in EPSG:3857 as x, y pairs
+     */
+    public double[] getPolygon(int i) {
+        return GridAggregator.polygon(shape, cellSize, columns[i], rows[i]);
+    }
+
+    public GridBinsDTO toDTO() {
+        List<GridBinsDTO.GridBin> bins = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            double[] polygon = getPolygon(i);
+            double[][] lngLat = new double[polygon.length / 2 + 1][];
+            double x = 0;
+            double y = 0;
+            for (int j = 0; j < polygon.length; j += 2) {
+                lngLat[j / 2] = new double[]{WebMercator.toLongitude(polygon[j]), WebMercator.toLatitude(polygon[j + 1])};
+                x += polygon[j];
+                y += polygon[j + 1];
+            }
+            // closed ring
+            lngLat[lngLat.length - 1] = lngLat[0];
+
+            int n = polygon.length / 2;
+            bins.add(new GridBinsDTO.GridBin(columns[i], rows[i], counts[i],
+                    WebMercator.toLongitude(x / n), WebMercator.toLatitude(y / n), lngLat));
+        }
+        return new GridBinsDTO(shape.name().toLowerCase(), cellSize, bins);
+    }
+}
@@ -14,6 +14,8 @@
  ***************************************************************************/
 package au.org.ala.biocache.heatmap;
 
+import au.org.ala.biocache.dto.HeatmapDTO;
+import au.org.ala.biocache.dto.OccurrencePoints;
 import org.apache.log4j.Logger;
 
 import javax.imageio.ImageIO;
@@ -23,6 +25,7 @@ import java.awt.image.*;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.List;
 
 import static java.awt.image.BufferedImage.TYPE_INT_ARGB;
 
@@ -202,11 +205,11 @@ public class HeatMap {
         return Toolkit.getDefaultToolkit().createImage(ip);
     }
 
-    private void addDotImage(Point p, Color pointColor) {
-        Graphics2D g = (Graphics2D) monochromeImage.getGraphics();
+    private void addDotImage(Graphics2D g, Paint outline, Point p, Color pointColor) {
         float radius = 10f;
 
         Shape circle = new Ellipse2D.Float(p.x - (radius / 2), p.y - (radius / 2), radius, radius);
+        g.setPaint(outline);
         g.draw(circle);
         g.setPaint(pointColor);
         g.fill(circle);
@@ -236,18 +239,21 @@ public class HeatMap {
         return null;
     }
 
-    private void generateLogScaleCircle(int dPoints[][]) {
+    /**
+     * Draw the values of a raster on the monochrome image, on a log scale, and generate the legend.
+     *
+     * @param raster values of each pixel, one row after another
+     */
+    private void generateLogScaleCircle(int[] raster) {
         try {
 
             int maxValue = 0;
             int width = monochromeImage.getWidth();
             int height = monochromeImage.getHeight();
 
-            for (int mi = 0; mi < width; mi++) {
-                for (int mj = 0; mj < height; mj++) {
-                    if (maxValue < dPoints[mi][mj]) {
-                        maxValue = dPoints[mi][mj];
-                    }
+            for (int value : raster) {
+                if (maxValue < value) {
+                    maxValue = value;
                 }
             }
 
@@ -258,21 +264,16 @@ public class HeatMap {
                 // we are doing "1" here to make sure nothing is 0
                 int roundFactor = 1;
 
-                for (int mi = 0; mi < width; mi++) {
-                    for (int mj = 0; mj < height; mj++) {
-                        int rgba = (int) (255 - Math.log(dPoints[mi][mj]) * 255 / Math.log((double) maxValue));
-                        if (rgba < 255 && rgba > 255 - (255 / numColours) - roundFactor) {
-                            rgba = 255 - (255 / numColours) - roundFactor;
-                        }
-                        //rgba <<= 8;
-                        //
-                        //rgba = (((short)rgba) & 0x000000ff) << 24;
-                        rgba = (rgba) | (rgba << 8) | (rgba << 16) | 0xff000000;
-                        //System.out.println("rgba: " + Integer.toHexString(rgba));
-
-                        monochromeImage.setRGB(mi, mj, rgba);
+                double logMax = Math.log((double) maxValue);
+                int[] pixels = new int[raster.length];
+                for (int i = 0; i < raster.length; i++) {
+                    int rgba = (int) (255 - Math.log(raster[i]) * 255 / logMax);
+                    if (rgba < 255 && rgba > 255 - (255 / numColours) - roundFactor) {
+                        rgba = 255 - (255 / numColours) - roundFactor;
                     }
+                    pixels[i] = (rgba) | (rgba << 8) | (rgba << 16) | 0xff000000;
                 }
+                monochromeImage.setRGB(0, 0, width, height, pixels, 0, width);
 
                 generateLegend(maxValue);
             }
@@ -286,15 +287,16 @@ public class HeatMap {
      *
      * @param points
      */
-    public void generateClasses(double[] points) {
+    public void generateClasses(OccurrencePoints points) {
 
         int width = backgroundImage.getWidth();
         int height = backgroundImage.getHeight();
 
-        int dPoints[][] = new int[width][height];
-        for (int i = 0; i < points.length; i += 2) {
-            double cx = points[i];
-            double cy = points[i + 1];
+        float[] coordinates = points.getCoordinates();
+        int[] raster = new int[width * height];
+        for (int i = 0; i < points.size() * 2; i += 2) {
+            double cx = coordinates[i];
+            double cy = coordinates[i + 1];
 
             Point p = translate(cx, cy);
 
@@ -307,23 +309,136 @@ public class HeatMap {
                         if ((int) d <= pradius) {
                             // applying gradient to this circle so outer influence is low
                             // and at the peak it's maximum
-                            dPoints[ci][cj] += numColours - ((d * numColours) / pradius);
+                            raster[cj * width + ci] += numColours - ((d * numColours) / pradius);
                         }
                     }
                 }
             }
         }
 
-        generateLogScaleCircle(dPoints);
+        generateLogScaleCircle(raster);
     }
 
-    public void generatePoints(double[] points, Color pointColour, String label) {
-        for (int i = 0; i < points.length; i += 2) {
-            double cx = points[i];
-            double cy = points[i + 1];
+    /**
+     * Generate classes from the first layer of a facet.heatmap grid, e.g. from SearchDAO.getHeatMap for getBBox().
+     * <p>
+     * The count of each cell is added to the pixel at the centre of the cell and the raster is blurred with a
+     * Gaussian, so the cost depends on the size of the image and not on the number of points.
+     *
+     * @param heatmap
+     */
+    public void generateClasses(HeatmapDTO heatmap) {
+        int width = backgroundImage.getWidth();
+        int height = backgroundImage.getHeight();
+
+        int[] raster = new int[width * height];
+        List<List<Integer>> layer = heatmap == null || heatmap.layers.isEmpty() ? null : heatmap.layers.get(0);
+        if (layer != null) {
+            double columnWidth = heatmap.columnWidth();
+            double rowHeight = heatmap.rowHeight();
+
+            // rows are from the top
+            for (int row = 0; row < layer.size(); row++) {
+                List<Integer> cells = layer.get(row);
+                if (cells == null) {
+                    continue;
+                }
+                double cy = heatmap.maxy - (row + 0.5) * rowHeight;
+                int y = (int) Math.floor((1 - (cy - minY) / (maxY - minY)) * height);
+                if (y < 0 || y >= height) {
+                    continue;
+                }
+                for (int column = 0; column < cells.size(); column++) {
+                    Integer count = cells.get(column);
+                    if (count == null || count <= 0) {
+                        continue;
+                    }
+                    double cx = heatmap.minx + (column + 0.5) * columnWidth;
+                    int x = (int) Math.floor((cx - minX) / (maxX - minX) * width);
+                    if (x >= 0 && x < width) {
+                        raster[y * width + x] += count;
+                    }
+                }
+            }
+        }
+
+        gaussianBlur(raster, width, height, radius);
+
+        generateLogScaleCircle(raster);
+    }
+
+    /**
+     * Blur a raster, in place, with a Gaussian of standard deviation radius / 2 that has a weight of 1 at the centre.
+     * <p>
+     * Like the circles drawn for each point, a pixel with the value 1 is at least 1 at the centre after the blur.
+     * The blur is applied to the rows and then the columns in fixed point, with a kernel of 8 fraction bits, so rows
+     * have 8 and columns 16 fraction bits. Intermediate values are long and the result is limited to Integer.MAX_VALUE.
+     *
+     * @param raster values of each pixel, one row after another
+     * @param width
+     * @param height
+     * @param radius
+     */
+    static void gaussianBlur(int[] raster, int width, int height, int radius) {
+        double sigma = Math.max(radius, 1) / 2.0;
+        int size = (int) Math.ceil(3 * sigma);
+        int[] kernel = new int[size + 1];
+        for (int i = 0; i <= size; i++) {
+            kernel[i] = (int) Math.round(Math.exp(-i * i / (2 * sigma * sigma)) * 256);
+        }
+
+        // rows, with 8 bits for the fraction
+        long[] blurred = new long[raster.length];
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            int offset = y * width;
+            System.arraycopy(raster, offset, row, 0, width);
+            for (int x = 0; x < width; x++) {
+                long sum = (long) row[x] * kernel[0];
+                for (int i = 1; i <= size; i++) {
+                    if (x - i >= 0) {
+                        sum += (long) row[x - i] * kernel[i];
+                    }
+                    if (x + i < width) {
+                        sum += (long) row[x + i] * kernel[i];
+                    }
+                }
+                blurred[offset + x] = sum;
+            }
+        }
+
+        // columns, rounded to the nearest integer
+        long[] column = new long[height];
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                column[y] = blurred[y * width + x];
+            }
+            for (int y = 0; y < height; y++) {
+                long sum = column[y] * kernel[0];
+                for (int i = 1; i <= size; i++) {
+                    if (y - i >= 0) {
+                        sum += column[y - i] * kernel[i];
+                    }
+                    if (y + i < height) {
+                        sum += column[y + i] * kernel[i];
+                    }
+                }
+                raster[y * width + x] = (int) Math.min((sum + 32768) >> 16, Integer.MAX_VALUE);
+            }
+        }
+    }
+
+    public void generatePoints(OccurrencePoints points, Color pointColour, String label) {
+        Graphics2D g = (Graphics2D) monochromeImage.getGraphics();
+        Paint outline = g.getPaint();
+        float[] coordinates = points.getCoordinates();
+        for (int i = 0; i < points.size() * 2; i += 2) {
+            double cx = coordinates[i];
+            double cy = coordinates[i + 1];
             Point p = translate(cx, cy);
-            addDotImage(p, pointColour);
+            addDotImage(g, outline, p, pointColour);
         }
+        g.dispose();
         addToLegend(pointColour, label);
     }
 
@@ -464,6 +579,13 @@ public class HeatMap {
         }
     }
 
+    /**
+     * @return bounding box of the image in decimal degrees, minX, minY, maxX, maxY
+     */
+    public double[] getBBox() {
+        return new double[]{minX, minY, maxX, maxY};
+    }
+
     public void setLegendImage(BufferedImage legendImage) {
         this.legendImage = legendImage;
     }
@@ -0,0 +1,300 @@
+package au.org.ala.biocache.heatmap;
+
+import au.org.ala.biocache.dto.HeatmapDTO;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Merges concurrent facet.heatmap requests.
+ * <p>
+ * A map loads many tiles at once, all with the same query and, for tiles of the same zoom level, the same gridLevel.
+ * A request is loaded immediately unless a request with the same query, filter queries and gridLevel is already
+ * loading. Then it waits heatmap.coalesce.window ms and the requests that arrive in that time are loaded with one
+ * facet.heatmap of the bbox containing them all. Each request gets the cells of its own bbox, which are the cells a
+ * facet.heatmap of that bbox returns because the grid of a gridLevel is fixed.
+ * <p>
+ * A request that is the same as one being loaded waits for that result.
+ * <p>
+ * Requests are merged within this instance only. Requests that cross the date line are not merged.
+ */
+@Component("heatmapCoalescer")
+public class HeatmapCoalescer {
+
+    private final static Logger logger = Logger.getLogger(HeatmapCoalescer.class);
+
+    // fraction of a cell for matching bbox edges to cell edges
+    private static final double EPSILON = 1e-6;
+
+    // SOLR default facet.heatmap.maxCells
+    static final int SOLR_MAX_CELLS = 100000;
+
+    /**
+     * Loads a single layer facet.heatmap.
+     */
+    public interface GridLoader {
+        /**
+         * @param maxCells facet.heatmap.maxCells, 0 for the SOLR default
+         * @return heatmap with one layer and the bbox of the cells, or null when there is no heatmap
+         */
+        HeatmapDTO load(String query, String[] filterQueries, double minx, double miny, double maxx, double maxy,
+                        int gridLevel, int maxCells) throws Exception;
+    }
+
+    /**
+     * Time in ms that a request waits for other requests to merge with when a request with the same query and
+     * gridLevel is already loading. 0 to only merge identical requests.
+     */
+    @Value("${heatmap.coalesce.window:10}")
+    protected Integer window = 10;
+
+    /**
+     * Maximum number of cells in a merged facet.heatmap.
+     */
+    @Value("${heatmap.coalesce.cells.max:1000000}")
+    protected Integer maxCells = 1000000;
+
+    // batches accepting requests, by query and gridLevel
+    private final Map<String, Batch> open = new HashMap<>();
+
+    // results of requests being loaded, by query, gridLevel and bbox. Guarded by open.
+    private final Map<String, CompletableFuture<HeatmapDTO>> loading = new HashMap<>();
+
+    // number of batches being loaded, by query and gridLevel. Guarded by open.
+    private final Map<String, Integer> batchesLoading = new HashMap<>();
+
+    private static class Request {
+        final String key;
+        final double minx;
+        final double miny;
+        final double maxx;
+        final double maxy;
+        final CompletableFuture<HeatmapDTO> result = new CompletableFuture<>();
+
+        Request(String key, double minx, double miny, double maxx, double maxy) {
+            this.key = key;
+            this.minx = minx;
+            this.miny = miny;
+            this.maxx = maxx;
+            this.maxy = maxy;
+        }
+
+        double area() {
+            return (maxx - minx) * (maxy - miny);
+        }
+    }
+
+    /**
+     * Requests loaded with one facet.heatmap.
+     */
+    private class Batch {
+        final String query;
+        final String[] filterQueries;
+        final int gridLevel;
+        final List<Request> requests = new ArrayList<>();
+        double minx;
+        double miny;
+        double maxx;
+        double maxy;
+        // sum of the request areas
+        double area;
+
+        Batch(String query, String[] filterQueries, int gridLevel, Request request) {
+            this.query = query;
+            this.filterQueries = filterQueries;
+            this.gridLevel = gridLevel;
+            requests.add(request);
+            minx = request.minx;
+            miny = request.miny;
+            maxx = request.maxx;
+            maxy = request.maxy;
+            area = request.area();
+        }
+
+        /**
+         * Add a request unless the bbox of the batch becomes too large, or is mostly not in any request.
+         */
+        boolean add(Request request) {
+            if (request.minx > request.maxx) {
+                return false;
+            }
+            double unionMinx = Math.min(minx, request.minx);
+            double unionMiny = Math.min(miny, request.miny);
+            double unionMaxx = Math.max(maxx, request.maxx);
+            double unionMaxy = Math.max(maxy, request.maxy);
+            if ((unionMaxx - unionMinx) * (unionMaxy - unionMiny) > 2 * (area + request.area())
+                    || cells(gridLevel, unionMinx, unionMiny, unionMaxx, unionMaxy) > maxCells) {
+                return false;
+            }
+            requests.add(request);
+            minx = unionMinx;
+            miny = unionMiny;
+            maxx = unionMaxx;
+            maxy = unionMaxy;
+            area += request.area();
+            return true;
+        }
+    }
+
+    /**
+     * Get a single layer facet.heatmap.
+     *
+     * @param query         formatted query
+     * @param filterQueries formatted filter queries
+     * @param minx          bbox in EPSG:4326, minx > maxx when it crosses the date line
+     * @param gridLevel     facet.heatmap.gridLevel
+     * @param loader        loads the heatmap of a bbox
+     * @return heatmap with one layer and the bbox of the cells, or null when there is no heatmap
+     */
+    public HeatmapDTO getGrid(String query, String[] filterQueries, double minx, double miny, double maxx, double maxy,
+                              int gridLevel, GridLoader loader) throws Exception {
+        String batchKey = query + "|" + Arrays.toString(filterQueries) + "|" + gridLevel;
+        String key = batchKey + "|" + minx + "," + miny + "," + maxx + "," + maxy;
+
+        CompletableFuture<HeatmapDTO> result;
+        Batch batch = null;
+        synchronized (open) {
+            result = loading.get(key);
+            if (result == null) {
+                Request request = new Request(key, minx, miny, maxx, maxy);
+                result = request.result;
+                loading.put(key, result);
+
+                Batch current = open.get(batchKey);
+                if (current == null || !current.add(request)) {
+                    batch = new Batch(query, filterQueries, gridLevel, request);
+                    // wait for other requests only when this is not the first
+                    if (window > 0 && minx <= maxx && batchesLoading.containsKey(batchKey)) {
+                        open.put(batchKey, batch);
+                    }
+                    batchesLoading.merge(batchKey, 1, Integer::sum);
+                }
+            }
+        }
+
+        // the first request of a batch loads it
+        if (batch != null) {
+            load(batchKey, batch, loader);
+        }
+
+        try {
+            return result.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private void load(String batchKey, Batch batch, GridLoader loader) {
+        boolean merging;
+        synchronized (open) {
+            merging = open.get(batchKey) == batch;
+        }
+        if (merging) {
+            try {
+                Thread.sleep(window);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        List<Request> requests;
+        synchronized (open) {
+            open.remove(batchKey, batch);
+            requests = new ArrayList<>(batch.requests);
+        }
+
+        try {
+            // a merged bbox may have more cells than SOLR allows by default
+            int batchMaxCells = requests.size() > 1
+                    && cells(batch.gridLevel, batch.minx, batch.miny, batch.maxx, batch.maxy) > SOLR_MAX_CELLS ? maxCells : 0;
+            HeatmapDTO grid = loader.load(batch.query, batch.filterQueries, batch.minx, batch.miny, batch.maxx, batch.maxy,
+                    batch.gridLevel, batchMaxCells);
+            if (requests.size() > 1 && logger.isDebugEnabled()) {
+                logger.debug("merged " + requests.size() + " heatmap requests of gridLevel " + batch.gridLevel);
+            }
+            for (Request request : requests) {
+                request.result.complete(grid == null || requests.size() == 1 ? grid
+                        : slice(grid, request.minx, request.miny, request.maxx, request.maxy));
+            }
+        } catch (Throwable e) {
+            for (Request request : requests) {
+                request.result.completeExceptionally(e);
+            }
+        } finally {
+            synchronized (open) {
+                for (Request request : requests) {
+                    loading.remove(request.key);
+                }
+                batchesLoading.computeIfPresent(batchKey, (k, n) -> n > 1 ? n - 1 : null);
+            }
+        }
+    }
+
+    /**
+     * Cells of a heatmap that intersect a bbox.
+     *
+     * @param grid single layer heatmap
+     * @return heatmap with the cells of the bbox
+     */
+    static HeatmapDTO slice(HeatmapDTO grid, double minx, double miny, double maxx, double maxy) {
+        double width = grid.columnWidth();
+        double height = grid.rowHeight();
+
+        int minColumn = Math.max(0, (int) Math.floor((minx - grid.minx) / width + EPSILON));
+        int maxColumn = Math.min(grid.columns, Math.max(minColumn + 1, (int) Math.ceil((maxx - grid.minx) / width - EPSILON)));
+
+        // the first row is at the top
+        int minRow = Math.max(0, (int) Math.floor((grid.maxy - maxy) / height + EPSILON));
+        int maxRow = Math.min(grid.rows, Math.max(minRow + 1, (int) Math.ceil((grid.maxy - miny) / height - EPSILON)));
+
+        // rows without counts are null, and the layer is null when there are no counts
+        List<List<Integer>> layer = grid.layers.get(0);
+        List<List<Integer>> counts = null;
+        if (layer != null) {
+            boolean empty = true;
+            counts = new ArrayList<>(maxRow - minRow);
+            for (int row = minRow; row < maxRow; row++) {
+                List<Integer> columns = layer.get(row);
+                List<Integer> slice = null;
+                if (columns != null) {
+                    for (int column = minColumn; column < maxColumn; column++) {
+                        if (columns.get(column) != 0) {
+                            slice = new ArrayList<>(columns.subList(minColumn, maxColumn));
+                            empty = false;
+                            break;
+                        }
+                    }
+                }
+                counts.add(slice);
+            }
+            if (empty) {
+                counts = null;
+            }
+        }
+
+        List<List<List<Integer>>> layers = new ArrayList<>();
+        layers.add(counts);
+        return new HeatmapDTO(grid.gridLevel, layers, grid.legend, grid.gridSizeInPixels, maxRow - minRow, maxColumn - minColumn,
+                grid.minx + minColumn * width, grid.maxy - maxRow * height, grid.minx + maxColumn * width, grid.maxy - minRow * height);
+    }
+
+    /**
+     * Approximate number of facet.heatmap cells of a bbox. The grid of a gridLevel is 2^gridLevel x 2^gridLevel cells
+     * of the world.
+     */
+    static double cells(int gridLevel, double minx, double miny, double maxx, double maxy) {
+        double n = Math.pow(2, gridLevel);
+        return ((maxx - minx) / 360 * n + 2) * ((maxy - miny) / 180 * n + 2);
+    }
+}
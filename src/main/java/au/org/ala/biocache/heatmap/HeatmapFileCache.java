@@ -0,0 +1,337 @@
+/**************************************************************************
+ *  Copyright (C) 2022 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.heatmap;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Cache of the static heatmap images in heatmap.output.dir.
+ * <p>
+ * Each image is generated once. Concurrent requests for an image that is not cached, or for an image written by the
+ * same generator (e.g. a map and its legend), wait for the same generation. Images are written to a temporary
+ * directory and moved into heatmap.output.dir, so an image being sent is never truncated by a refresh.
+ * <p>
+ * Images are evicted, least recently used first, when the images exceed heatmap.cache.size.max bytes. The order of use
+ * and the size of each image are kept in an index file in the directory, so that they are not lost on restart.
+ */
+@Component("heatmapFileCache")
+public class HeatmapFileCache {
+
+    private final static Logger logger = Logger.getLogger(HeatmapFileCache.class);
+
+    static final String INDEX_FILE = "cache.index";
+
+    // prefix of the temporary directories of generators
+    static final String GENERATING_PREFIX = ".generating";
+
+    @Value("${heatmap.output.dir:/data/output/heatmap}")
+    protected String heatmapOutputDir;
+
+    /**
+     * Maximum bytes of cached images. 0 for no limit.
+     */
+    @Value("${heatmap.cache.size.max:1073741824}")
+    protected Long maxSize = 1073741824L;
+
+    /**
+     * Writes the images of a cache entry.
+     */
+    public interface Generator {
+        /**
+         * @param dir directory to write the images to
+         */
+        void generate(File dir) throws Exception;
+    }
+
+    // file name and size of each image, least recently used first
+    private final LinkedHashMap<String, Long> index = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+    private boolean indexChanged;
+
+    // generations in progress, by the file names of their images. Updated when synchronized on generating.
+    private final ConcurrentHashMap<String, FutureTask<Void>> generating = new ConcurrentHashMap<>();
+
+    private File dir;
+
+    @PostConstruct
+    public void init() throws IOException {
+        dir = new File(heatmapOutputDir);
+        if (!dir.isDirectory()) {
+            // created when the first image is generated
+            return;
+        }
+
+        // left by generators that did not finish
+        File[] tmpDirs = dir.listFiles((d, name) -> name.startsWith(GENERATING_PREFIX));
+        if (tmpDirs != null) {
+            for (File tmpDir : tmpDirs) {
+                FileUtils.deleteQuietly(tmpDir);
+            }
+        }
+
+        synchronized (index) {
+            index.clear();
+            size = 0;
+
+            File indexFile = new File(dir, INDEX_FILE);
+            if (indexFile.exists()) {
+                for (String line : FileUtils.readLines(indexFile, StandardCharsets.UTF_8)) {
+                    String[] split = line.split("\t", 2);
+                    if (split.length == 2 && new File(dir, split[1]).isFile()) {
+                        put(split[1], Long.parseLong(split[0]));
+                    }
+                }
+            }
+
+            // images that are not in the index, e.g. from before the index, oldest first
+            File[] files = dir.listFiles((d, name) -> name.endsWith(".png") && !index.containsKey(name));
+            if (files != null && files.length > 0) {
+                Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+                List<Map.Entry<String, Long>> indexed = new ArrayList<>(index.entrySet());
+                index.clear();
+                size = 0;
+                for (File file : files) {
+                    put(file.getName(), file.length());
+                }
+                for (Map.Entry<String, Long> entry : indexed) {
+                    put(entry.getKey(), entry.getValue());
+                }
+                indexChanged = true;
+            }
+
+            evict(Collections.emptySet());
+            writeIndex();
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        synchronized (index) {
+            writeIndex();
+        }
+    }
+
+    /**
+     * Get an image, generating it when it is not cached.
+     *
+     * @param refresh   true to generate the image even when it is cached
+     * @param generator writes the image and any related images
+     * @param name      file name of the image
+     * @param related   file names of other images written by the generator, e.g. a legend
+     * @return the image file. It does not exist when the generator did not write it.
+     */
+    public File get(boolean refresh, Generator generator, String name, String... related) throws Exception {
+        File file = new File(dir, name);
+        Set<String> names = new LinkedHashSet<>();
+        names.add(name);
+        names.addAll(Arrays.asList(related));
+
+        while (true) {
+            FutureTask<Void> task = null;
+            FutureTask<Void> newTask = null;
+            synchronized (generating) {
+                for (String n : names) {
+                    task = generating.get(n);
+                    if (task != null) {
+                        break;
+                    }
+                }
+                if (task == null && (refresh || !file.isFile())) {
+                    newTask = new FutureTask<>(() -> {
+                        generate(generator, names);
+                        return null;
+                    });
+                    for (String n : names) {
+                        generating.put(n, newTask);
+                    }
+                }
+            }
+
+            if (task == null && newTask == null) {
+                touch(name);
+                return file;
+            }
+
+            if (newTask != null) {
+                try {
+                    newTask.run();
+                } finally {
+                    synchronized (generating) {
+                        for (String n : names) {
+                            generating.remove(n, newTask);
+                        }
+                    }
+                }
+                await(newTask);
+                return file;
+            }
+
+            // another request is writing the images
+            await(task);
+            if (file.isFile()) {
+                touch(name);
+                return file;
+            }
+
+            // the other generator did not write this image, e.g. a map request does not write the legend of a heatmap
+            refresh = false;
+        }
+    }
+
+    private static void await(FutureTask<Void> task) throws Exception {
+        try {
+            task.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    /**
+     * Generate images in a temporary directory and move them into the cache.
+     */
+    private void generate(Generator generator, Set<String> names) throws Exception {
+        FileUtils.forceMkdir(dir);
+        File tmpDir = Files.createTempDirectory(dir.toPath(), GENERATING_PREFIX).toFile();
+        try {
+            generator.generate(tmpDir);
+            synchronized (index) {
+                for (String n : names) {
+                    File written = new File(tmpDir, n);
+                    if (written.isFile()) {
+                        long length = written.length();
+                        Files.move(written.toPath(), new File(dir, n).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                        put(n, length);
+                    }
+                }
+                indexChanged = true;
+                evict(names);
+                writeIndex();
+            }
+        } finally {
+            FileUtils.deleteQuietly(tmpDir);
+        }
+    }
+
+    /**
+     * Write an image to a stream, without decoding it.
+     *
+     * @return number of bytes written
+     */
+    public static long transferTo(File file, OutputStream out) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            WritableByteChannel target = Channels.newChannel(out);
+            long length = channel.size();
+            long position = 0;
+            while (position < length) {
+                position += channel.transferTo(position, length - position, target);
+            }
+            return length;
+        }
+    }
+
+    /**
+     * @return bytes of the cached images
+     */
+    public long getSize() {
+        synchronized (index) {
+            return size;
+        }
+    }
+
+    private void touch(String name) {
+        synchronized (index) {
+            if (index.get(name) != null) {
+                indexChanged = true;
+            } else {
+                // written by another instance or before the index
+                File file = new File(dir, name);
+                put(name, file.length());
+                indexChanged = true;
+                evict(Collections.singleton(name));
+            }
+        }
+    }
+
+    private void put(String name, long length) {
+        Long previous = index.put(name, length);
+        size += length - (previous == null ? 0 : previous);
+    }
+
+    /**
+     * Delete the least recently used images until the cache is within maxSize.
+     *
+     * @param keep images that are not deleted
+     */
+    private void evict(Set<String> keep) {
+        if (maxSize <= 0) {
+            return;
+        }
+        Iterator<Map.Entry<String, Long>> it = index.entrySet().iterator();
+        while (size > maxSize && it.hasNext()) {
+            Map.Entry<String, Long> entry = it.next();
+            if (keep.contains(entry.getKey()) || generating.containsKey(entry.getKey())) {
+                continue;
+            }
+            File file = new File(dir, entry.getKey());
+            if (file.exists() && !file.delete()) {
+                logger.warn("failed to delete heatmap image: " + file.getPath());
+                continue;
+            }
+            size -= entry.getValue();
+            it.remove();
+            indexChanged = true;
+        }
+    }
+
+    private void writeIndex() {
+        if (!indexChanged) {
+            return;
+        }
+        File indexFile = new File(dir, INDEX_FILE);
+        File tmp = new File(dir, INDEX_FILE + ".tmp");
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8))) {
+            for (Map.Entry<String, Long> entry : index.entrySet()) {
+                writer.write(entry.getValue() + "\t" + entry.getKey() + "\n");
+            }
+        } catch (IOException e) {
+            logger.error("failed to write heatmap cache index: " + tmp.getPath(), e);
+            return;
+        }
+        try {
+            Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            indexChanged = false;
+        } catch (IOException e) {
+            logger.error("failed to write heatmap cache index: " + indexFile.getPath(), e);
+        }
+    }
+}
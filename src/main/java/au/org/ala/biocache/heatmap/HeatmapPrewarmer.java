@@ -0,0 +1,215 @@
+package au.org.ala.biocache.heatmap;
+
+import au.org.ala.biocache.dao.IndexDAO;
+import au.org.ala.biocache.dto.SpatialSearchRequestDTO;
+import au.org.ala.biocache.util.WebMercator;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.log4j.Logger;
+import org.springframework.beans.BeanUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.inject.Inject;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Reloads the WMS heatmaps of the most requested layers after the index changes.
+ * <p>
+ * Layers (query, ENV, STYLES and tile size) are counted as standard EPSG:3857 tiles are requested. When the index
+ * version changes the tiles of zoom levels 0 to wms.prewarm.zoom.max of the top wms.prewarm.layers layers are
+ * reloaded into heatmapCache, one at a time on a minimum priority thread, so the first requests for them after the
+ * change do not wait for SOLR.
+ */
+@Component("heatmapPrewarmer")
+public class HeatmapPrewarmer {
+
+    private final static Logger logger = Logger.getLogger(HeatmapPrewarmer.class);
+
+    /**
+     * Loads the heatmap of a tile of a layer.
+     */
+    public interface TileLoader {
+        void load(Layer layer, double[] tilebbox) throws Exception;
+    }
+
+    /**
+     * A WMS layer and the number of requests for it.
+     */
+    public static class Layer {
+        // query before formatting
+        private final SpatialSearchRequestDTO params;
+        public final String env;
+        public final String styles;
+        public final String srs;
+        public final int width;
+        public final int height;
+        public final int gridDivisionCount;
+
+        final AtomicLong hits = new AtomicLong();
+
+        Layer(SpatialSearchRequestDTO params, String env, String styles, String srs, int width, int height, int gridDivisionCount) {
+            this.params = new SpatialSearchRequestDTO();
+            BeanUtils.copyProperties(params, this.params);
+            this.env = env;
+            this.styles = styles;
+            this.srs = srs;
+            this.width = width;
+            this.height = height;
+            this.gridDivisionCount = gridDivisionCount;
+        }
+
+        /**
+         * @return copy of the query, for formatting
+         */
+        public SpatialSearchRequestDTO getParams() {
+            SpatialSearchRequestDTO copy = new SpatialSearchRequestDTO();
+            BeanUtils.copyProperties(params, copy);
+            return copy;
+        }
+    }
+
+    @Inject
+    protected IndexDAO indexDao;
+
+    /**
+     * Enable reloading of the heatmaps of the top layers after an index change.
+     */
+    @Value("${wms.prewarm.enabled:true}")
+    protected Boolean enabled = true;
+
+    /**
+     * Number of the most requested layers to reload.
+     */
+    @Value("${wms.prewarm.layers:10}")
+    protected Integer maxLayers = 10;
+
+    /**
+     * Highest zoom level to reload. There are 4^zoom tiles in a zoom level.
+     */
+    @Value("${wms.prewarm.zoom.max:3}")
+    protected Integer maxZoom = 3;
+
+    // counts of requests of recently requested layers
+    private final Cache<String, Layer> layers = CacheBuilder.newBuilder().maximumSize(1000).build();
+
+    private final ExecutorService warmExecutor = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setNameFormat("wms-prewarm").setDaemon(true).setPriority(Thread.MIN_PRIORITY).build());
+    private final AtomicBoolean warming = new AtomicBoolean();
+
+    // index version of the last reload, or of the first check
+    private volatile Long warmedVersion;
+
+    private volatile TileLoader loader;
+
+    public void setLoader(TileLoader loader) {
+        this.loader = loader;
+    }
+
+    /**
+     * Count a request for a standard EPSG:3857 tile.
+     *
+     * @param params query before formatting
+     */
+    public void record(SpatialSearchRequestDTO params, String env, String styles, String srs, int width, int height, int gridDivisionCount) {
+        if (!enabled) {
+            return;
+        }
+        String key = params + "|" + env + "|" + styles + "|" + srs + "|" + width + "x" + height + "|" + gridDivisionCount;
+        try {
+            layers.get(key, () -> new Layer(params, env, styles, srs, width, height, gridDivisionCount)).hits.incrementAndGet();
+        } catch (ExecutionException e) {
+            logger.debug("failed to record WMS layer " + key, e);
+        }
+    }
+
+    /**
+     * Start a reload when the index version changes.
+     */
+    @Scheduled(fixedDelay = 60000L)
+    public void checkIndexVersion() {
+        if (!enabled || loader == null) {
+            return;
+        }
+        Long version = indexDao.getIndexVersion(false);
+        if (version == null || version.equals(warmedVersion)) {
+            return;
+        }
+
+        // a reload in progress stops when it sees the new version, the next check starts another
+        if (warming.compareAndSet(false, true)) {
+            Long previous = warmedVersion;
+            warmedVersion = version;
+            if (previous == null) {
+                // nothing is cached yet
+                warming.set(false);
+                return;
+            }
+            warmExecutor.execute(() -> {
+                try {
+                    warm(version);
+                } finally {
+                    warming.set(false);
+                }
+            });
+        }
+    }
+
+    /**
+     * Reload the tiles of the top layers, all layers of a zoom level before the next zoom level.
+     */
+    void warm(Long version) {
+        List<Layer> top = topLayers();
+        if (top.isEmpty()) {
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        int tiles = 0;
+        try {
+            for (int zoom = 0; zoom <= maxZoom; zoom++) {
+                int n = 1 << zoom;
+                for (Layer layer : top) {
+                    for (int y = 0; y < n; y++) {
+                        for (int x = 0; x < n; x++) {
+                            if (!version.equals(indexDao.getIndexVersion(false))) {
+                                logger.info("stopped reloading WMS heatmaps of index version " + version + " after " + tiles + " tiles");
+                                return;
+                            }
+                            loader.load(layer, WebMercator.tileBBox(zoom, x, y));
+                            tiles++;
+                        }
+                    }
+                }
+            }
+        } catch (Exception e) {
+            logger.warn("failed to reload WMS heatmaps of index version " + version + " after " + tiles + " tiles", e);
+            return;
+        } finally {
+            // older requests count for less in the next reload
+            for (Layer layer : layers.asMap().values()) {
+                layer.hits.updateAndGet(hits -> hits / 2);
+            }
+        }
+
+        logger.info("reloaded " + tiles + " WMS heatmap tiles of " + top.size() + " layers for index version " + version
+                + " in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    List<Layer> topLayers() {
+        return layers.asMap().values().stream()
+                .filter(layer -> layer.hits.get() > 0)
+                .sorted(Comparator.comparingLong((Layer layer) -> layer.hits.get()).reversed())
+                .limit(maxLayers)
+                .collect(Collectors.toList());
+    }
+}
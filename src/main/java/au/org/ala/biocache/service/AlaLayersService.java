@@ -78,6 +78,21 @@ public class AlaLayersService implements LayersService {
     @Value("${layers.service.url:https://spatial.ala.org.au/ws}")
     protected String layersServiceUrl;
 
+    /**
+     * Minimum time in ms between checks of the status of an intersection
+     */
+    @Value("${layers.service.sample.poll.min:100}")
+    protected Long samplePollMin = 100L;
+
+    /**
+     * Maximum time in ms between checks of the status of an intersection
+     */
+    @Value("${layers.service.sample.poll.max:2000}")
+    protected Long samplePollMax = 2000L;
+
+    // moving average of the time taken by recent intersections, the first status check is made after this time
+    private volatile long sampleTimeAverage = 0;
+
     protected Map<String, Integer> distributions = RestartDataService.get(this, "distributions", new TypeReference<HashMap<String, Integer>>() {
     }, HashMap.class);
     protected Map<String, Integer> checklists = RestartDataService.get(this, "checklists", new TypeReference<HashMap<String, Integer>>() {
@@ -265,8 +280,9 @@ public class AlaLayersService implements LayersService {
 
     @Override
     public Reader sample(String url, String[] analysisLayers, double[][] points) {
-        // These are batches of 1000, so it should not take long to finish. 1000ms delay between status checks
-        long sleepTime = 1000;
+        // These are batches of 1000, so it should not take long to finish. The first status check is made when
+        // an intersection is expected to finish, then the delay between status checks doubles up to samplePollMax.
+        long sleepTime = Math.min(samplePollMax, Math.max(samplePollMin, sampleTimeAverage));
 
         try {
             HttpHeaders requestHeaders = new HttpHeaders();
@@ -274,18 +290,29 @@ public class AlaLayersService implements LayersService {
 
             HttpEntity<MultiValueMap<String, String>> request = new HttpEntity<>(sampleBody(analysisLayers, points), requestHeaders);
             Map status = (Map) restTemplate.postForObject(url + "/intersect/batch", request, Map.class);
+            long start = System.currentTimeMillis();
 
+            boolean polled = false;
             while (status.containsKey("statusUrl")) {
                 Thread.sleep(sleepTime);
+                sleepTime = polled ? Math.min(samplePollMax, sleepTime * 2) : samplePollMin;
+                polled = true;
                 status = (Map) restTemplate.getForObject((String) status.get("statusUrl"), Map.class);
             }
 
+            if (polled) {
+                long time = System.currentTimeMillis() - start;
+                sampleTimeAverage = sampleTimeAverage == 0 ? time : (sampleTimeAverage * 3 + time) / 4;
+            }
+
             if (status.containsKey("downloadUrl")) {
                 URLConnection connection = new URL((String) status.get("downloadUrl")).openConnection();
                 ZipInputStream zis = new ZipInputStream(connection.getInputStream());
                 zis.getNextEntry();
                 return new InputStreamReader(zis);
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } catch (Exception e) {
             logger.error("layer sampling failed: " + url + ", " + e.getMessage());
         }
@@ -0,0 +1,338 @@
+/**************************************************************************
+ *  Copyright (C) 2022 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.service;
+
+import au.org.ala.biocache.dao.IndexDAO;
+import au.org.ala.biocache.dto.DownloadDetailsDTO;
+import au.org.ala.biocache.dto.DownloadHeaders;
+import au.org.ala.biocache.dto.DownloadRequestDTO;
+import au.org.ala.biocache.dto.DownloadStats;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.inject.Inject;
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Shares the occurrence data of offline downloads between requests that would produce identical output.
+ * <p>
+ * Requests are keyed by the parameters that determine the content of the data files (query, filters,
+ * fields, file format, sensitive data access) and the current index version. The first request for a key
+ * becomes the leader and runs the export. Identical requests that arrive while the leader is running, or
+ * after it has finished, copy the data entries out of its zip once it has finished instead of querying
+ * the index again. A request does not hold a download thread while it waits for the leader. Citations, README, DOI, email and logging remain the responsibility of each request.
+ */
+@Component("downloadResultStore")
+public class DownloadResultStore {
+
+    private static final Logger logger = Logger.getLogger(DownloadResultStore.class);
+
+    /**
+     * Set to false to disable sharing the results of identical offline downloads
+     */
+    @Value("${download.dedup.enabled:true}")
+    protected Boolean enabled = true;
+
+    /**
+     * The time in milliseconds that a finished download remains available for reuse
+     */
+    @Value("${download.dedup.maxAge:86400000}")
+    protected Long maxAge = 86400000L;
+
+    @Inject
+    protected IndexDAO indexDao;
+
+    @Inject
+    protected SensitiveService sensitiveService;
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Register an offline download.
+     *
+     * @param dd the download
+     * @return a leader ticket when the download must run the export, a follower ticket when an identical
+     * download is running or has finished, or null when sharing is disabled
+     */
+    public Ticket join(DownloadDetailsDTO dd) {
+        if (enabled == null || !enabled || dd.getRequestParams() == null) {
+            return null;
+        }
+
+        String key;
+        try {
+            key = getKey(dd);
+        } catch (Exception e) {
+            logger.warn("Unable to build download key, the download will not be shared: " + e.getMessage());
+            return null;
+        }
+
+        final long now = System.currentTimeMillis();
+        final Ticket[] ticket = new Ticket[1];
+        entries.compute(key, (k, existing) -> {
+            if (existing != null && existing.isReusable(now, maxAge)) {
+                ticket[0] = new Ticket(existing, false);
+                return existing;
+            }
+            Entry entry = new Entry(k);
+            ticket[0] = new Ticket(entry, true);
+            return entry;
+        });
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Download " + dd.getUniqueId() + " is " + (ticket[0].isLeader() ? "leader" : "follower") + " for " + key);
+        }
+
+        return ticket[0];
+    }
+
+    /**
+     * Remove finished downloads that have expired or whose file is no longer available.
+     */
+    @Scheduled(fixedDelay = 3600000)
+    public void evict() {
+        long now = System.currentTimeMillis();
+        entries.entrySet().removeIf(e -> e.getValue().future.isDone() && !e.getValue().isReusable(now, maxAge));
+    }
+
+    /**
+     * Build the canonical key for a download. Only parameters that change the content of the data files are used.
+     *
+     * @param dd
+     * @return SHA-256 hex of the canonical parameters
+     */
+    String getKey(DownloadDetailsDTO dd) {
+        DownloadRequestDTO params = dd.getRequestParams();
+        StringBuilder sb = new StringBuilder();
+
+        append(sb, "q", params.getQ());
+        String[] fqs = params.getFq() == null ? new String[0] : params.getFq().clone();
+        Arrays.sort(fqs);
+        for (String fq : fqs) {
+            append(sb, "fq", fq);
+        }
+        append(sb, "qc", params.getQc());
+        append(sb, "wkt", params.getWkt());
+        append(sb, "lat", params.getLat());
+        append(sb, "lon", params.getLon());
+        append(sb, "radius", params.getRadius());
+        append(sb, "qualityProfile", params.getQualityProfile());
+        append(sb, "disableAllQualityFilters", params.isDisableAllQualityFilters());
+        List<String> disabled = new ArrayList<>(params.getDisableQualityFilter());
+        Collections.sort(disabled);
+        for (String filter : disabled) {
+            append(sb, "disableQualityFilter", filter);
+        }
+
+        append(sb, "fields", params.getFields());
+        append(sb, "extra", params.getExtra());
+        append(sb, "qa", params.getQa());
+        append(sb, "fileType", params.getFileType());
+        append(sb, "sep", params.getSep());
+        append(sb, "esc", params.getEsc());
+        append(sb, "dwcHeaders", params.getDwcHeaders());
+        append(sb, "includeMisc", params.getIncludeMisc());
+        append(sb, "includeMultivalues", params.getIncludeMultivalues());
+        append(sb, "layersServiceUrl", params.getLayersServiceUrl());
+        append(sb, "customHeader", params.getCustomHeader());
+        append(sb, "downloadType", dd.getDownloadType());
+
+        // users with different sensitive data access get different records
+        append(sb, "sensitive", sensitiveService.getSensitiveFq(dd.getAlaUser() == null ? Collections.emptySet() : dd.getAlaUser().getRoles()));
+        append(sb, "indexVersion", indexDao.getIndexVersion(false));
+
+        return DigestUtils.sha256Hex(sb.toString());
+    }
+
+    private static void append(StringBuilder sb, String name, Object value) {
+        sb.append(name).append('=').append(value == null ? "" : value.toString().length() + ":" + value).append('\n');
+    }
+
+    private static class Entry {
+        final String key;
+        final CompletableFuture<Result> future = new CompletableFuture<>();
+
+        Entry(String key) {
+            this.key = key;
+        }
+
+        boolean isReusable(long now, long maxAge) {
+            if (!future.isDone()) {
+                return true;
+            }
+            Result result = future.getNow(null);
+            return result != null
+                    && now - result.completed < maxAge
+                    && new File(result.fileLocation).exists();
+        }
+    }
+
+    /**
+     * The membership of a download in a group of identical downloads.
+     */
+    public class Ticket {
+        private final Entry entry;
+        private final boolean leader;
+
+        private DownloadHeaders headers;
+        private DownloadStats downloadStats;
+        private Result result;
+
+        Ticket(Entry entry, boolean leader) {
+            this.entry = entry;
+            this.leader = leader;
+        }
+
+        public boolean isLeader() {
+            return leader;
+        }
+
+        /**
+         * @return the result of the leader once {@link #collect()} has returned it, otherwise null
+         */
+        public Result getResult() {
+            return result;
+        }
+
+        /**
+         * Leader only. Retain the headers and statistics of the data files once they are written.
+         */
+        public void capture(DownloadHeaders headers, DownloadStats downloadStats) {
+            this.headers = headers;
+            this.downloadStats = new DownloadStats(downloadStats);
+        }
+
+        /**
+         * Leader only. Make the finished download available to identical downloads.
+         *
+         * @param dd the finished leader download
+         */
+        public void publish(DownloadDetailsDTO dd) {
+            if (!leader || headers == null) {
+                fail();
+                return;
+            }
+            Result result = new Result(dd.getFileLocation(), dd.getRequestParams().getFile(),
+                    headers, downloadStats, dd.getMiscFields(), dd.getTotalRecords(),
+                    dd.getRecordsDownloaded().get(), System.currentTimeMillis());
+            entry.future.complete(result);
+        }
+
+        /**
+         * Leader only. The download failed or was cancelled, waiting downloads will need to run their own export.
+         * Has no effect when the download is already published.
+         */
+        public void fail() {
+            if (leader && entry.future.complete(null)) {
+                entries.remove(entry.key, entry);
+            }
+        }
+
+        /**
+         * @return true for a follower of a leader that has not finished
+         */
+        public boolean isWaiting() {
+            return !leader && !entry.future.isDone();
+        }
+
+        /**
+         * Follower only. Run an action when the leader finishes, on the thread that finishes it, or now when it
+         * has already finished.
+         */
+        public void whenDone(Runnable action) {
+            entry.future.whenComplete((leaderResult, e) -> action.run());
+        }
+
+        /**
+         * Follower only. Take the result of the finished leader.
+         *
+         * @return the leader result, or null when the leader has not finished, failed, or the result is no longer
+         * available
+         */
+        public Result collect() {
+            Result leaderResult = leader ? null : entry.future.getNow(null);
+            if (leaderResult != null && new File(leaderResult.fileLocation).exists()) {
+                result = leaderResult;
+            }
+            return result;
+        }
+    }
+
+    /**
+     * A finished download that can be reused.
+     */
+    public static class Result {
+        private final String fileLocation;
+        private final String file;
+        private final DownloadHeaders headers;
+        private final DownloadStats downloadStats;
+        private final String[] miscFields;
+        private final long totalRecords;
+        private final long recordsDownloaded;
+        private final long completed;
+
+        Result(String fileLocation, String file, DownloadHeaders headers, DownloadStats downloadStats,
+               String[] miscFields, long totalRecords, long recordsDownloaded, long completed) {
+            this.fileLocation = fileLocation;
+            this.file = file;
+            this.headers = headers;
+            this.downloadStats = downloadStats;
+            this.miscFields = miscFields;
+            this.totalRecords = totalRecords;
+            this.recordsDownloaded = recordsDownloaded;
+            this.completed = completed;
+        }
+
+        /**
+         * @return the zip file of the leader download
+         */
+        public String getFileLocation() {
+            return fileLocation;
+        }
+
+        /**
+         * @return the name of the data file in the leader zip, without the file type suffix
+         */
+        public String getFile() {
+            return file;
+        }
+
+        public DownloadHeaders getHeaders() {
+            return headers;
+        }
+
+        public DownloadStats getDownloadStats() {
+            return downloadStats;
+        }
+
+        public String[] getMiscFields() {
+            return miscFields;
+        }
+
+        public long getTotalRecords() {
+            return totalRecords;
+        }
+
+        public long getRecordsDownloaded() {
+            return recordsDownloaded;
+        }
+    }
+}
@@ -23,17 +23,22 @@ import au.org.ala.biocache.dto.*;
 import au.org.ala.biocache.dto.DownloadDetailsDTO.DownloadType;
 import au.org.ala.biocache.stream.OptionalZipOutputStream;
 import au.org.ala.biocache.util.AlaFileUtils;
+import au.org.ala.biocache.util.CitationCache;
 import au.org.ala.biocache.util.TooManyDownloadRequestsException;
 import au.org.ala.biocache.writer.RecordWriterException;
 import au.org.ala.doi.CreateDoiResponse;
 import au.org.ala.ws.security.profile.AlaUserProfile;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.ala.client.model.LogEventVO;
 import org.apache.commons.httpclient.HttpException;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.apache.commons.io.output.ProxyOutputStream;
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
 import org.apache.velocity.Template;
@@ -42,6 +47,7 @@ import org.apache.velocity.runtime.RuntimeConstants;
 import org.apache.velocity.runtime.RuntimeServices;
 import org.apache.velocity.runtime.RuntimeSingleton;
 import org.json.simple.parser.ParseException;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.ApplicationListener;
 import org.springframework.context.event.ContextClosedEvent;
@@ -61,7 +67,12 @@ import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 import static java.util.stream.Collectors.toList;
 
@@ -115,6 +126,12 @@ public class DownloadService implements ApplicationListener<ContextClosedEvent>
     protected DoiService doiService;
     @Inject
     protected DataQualityService dataQualityService;
+    @Inject
+    protected DownloadResultStore downloadResultStore;
+    @Inject
+    protected CitationCache citationCache;
+    @Autowired(required = false)
+    protected MeterRegistry meterRegistry;
 
     // default value is supplied for the property below
     @Value("${webservices.root:http://localhost:8080/biocache-service}")
@@ -145,9 +162,6 @@ public class DownloadService implements ApplicationListener<ContextClosedEvent>
     @Value("${registry.url:https://collections.ala.org.au/ws}")
     protected String registryUrl = "https://collections.ala.org.au/ws";
 
-    @Value("${citations.url:https://collections.ala.org.au/ws/citations}")
-    protected String citationServiceUrl = "https://collections.ala.org.au/ws/citations";
-
     @Value("${download.email.subject:ALA Occurrence Download Complete - [filename]}")
     protected String biocacheDownloadEmailSubject = "ALA Occurrence Download Complete - [filename]";
 
@@ -216,6 +230,26 @@ public class DownloadService implements ApplicationListener<ContextClosedEvent>
     @Value("${zip.file.size.mb.max:4000}")
     public Integer maxMB;
 
+    /** deflate level of zip entries, 0-9 or -1 for the default level */
+    @Value("${zip.file.compression.level:-1}")
+    public Integer zipCompressionLevel = -1;
+
+    /** Resume offline downloads from the last completed zip entry after a restart or failure */
+    @Value("${download.offline.resume.enabled:true}")
+    public Boolean downloadResumeEnabled = true;
+
+    /** Number of times an offline download may resume before it fails */
+    @Value("${download.offline.resume.max.attempts:3}")
+    public Integer downloadResumeMaxAttempts = 3;
+
+    /** Size in MB at which the data file of a resumable offline download is split into a new _part, with a checkpoint */
+    @Value("${download.offline.checkpoint.mb:500}")
+    public Integer downloadCheckpointMB = 500;
+
+    /** Delay in ms before a failed offline download resumes */
+    @Value("${download.offline.resume.delay:60000}")
+    public Long downloadResumeDelay = 60000L;
+
     @Value("${download.url:https://biocache.ala.org.au/biocache-download}")
     public String biocacheDownloadUrl;
 
@@ -254,6 +288,11 @@ public class DownloadService implements ApplicationListener<ContextClosedEvent>
 
     ConcurrentHashMap<String, ThreadPoolExecutor> userExecutors;
 
+    // queues downloads again, failed downloads after downloadResumeDelay and identical downloads when the download
+    // they wait for finishes, without holding a download thread
+    final ScheduledExecutorService resumeExecutor = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("download-resume").setDaemon(true).build());
+
     @PostConstruct
     public void init() throws ParseException {
 
@@ -293,6 +332,8 @@ public class DownloadService implements ApplicationListener<ContextClosedEvent>
         for(ThreadPoolExecutor ex : userExecutors.values()) {
             ex.shutdown();
         }
+        // downloads waiting to resume are still in the persistent queue and resume on restart
+        resumeExecutor.shutdownNow();
     }
 
     @Scheduled(fixedDelay = 43200000)// schedule to run every 12 hours
@@ -384,6 +425,29 @@ public class DownloadService implements ApplicationListener<ContextClosedEvent>
                                    ExecutorService parallelExecutor,
                                    List<CreateDoiResponse> doiResponseList)
             throws Exception {
+        writeQueryToStream(dd, out, limit, zip, parallelExecutor, doiResponseList, null);
+    }
+
+    /**
+     * Asynchronous
+     *
+     * Writes the supplied download to the supplied output stream. When the ticket holds the result of an
+     * identical download the data files are copied from it instead of being exported from the index.
+     *
+     * @param dd
+     * @param out
+     * @param doiResponseList Return the CreateDoiResponse instance as the first element of the list if requestParams.mintDoi was true
+     * @param ticket membership of the download in a group of identical downloads, may be null
+     * @throws Exception
+     */
+    public void writeQueryToStream(DownloadDetailsDTO dd,
+                                   OutputStream out,
+                                   boolean limit,
+                                   boolean zip,
+                                   ExecutorService parallelExecutor,
+                                   List<CreateDoiResponse> doiResponseList,
+                                   @Nullable DownloadResultStore.Ticket ticket)
+            throws Exception {
         DownloadRequestDTO requestParams = dd.getRequestParams();
         String filename = dd.getRequestParams().getFile();
         String originalParams = dd.getRequestParams().toString();
@@ -391,12 +455,40 @@ public class DownloadService implements ApplicationListener<ContextClosedEvent>
         String assertions = OccurrenceIndex.ASSERTIONS;
         String data_resource_uid = OccurrenceIndex.DATA_RESOURCE_UID;
 
+        DownloadMetrics metrics = dd.getMetrics();
+        metrics.start();
+        OutputStream counted = new ProxyOutputStream(new CloseShieldOutputStream(out)) {
+            @Override
+            protected void afterWrite(int n) {
+                metrics.addBytes(n);
+            }
+        };
+
         // Use a zip output stream to include the data and citation together in
         // the download.
         try (OptionalZipOutputStream sp = new OptionalZipOutputStream(
-                zip ? OptionalZipOutputStream.Type.zipped : OptionalZipOutputStream.Type.unzipped, new CloseShieldOutputStream(out), maxMB);) {
+                zip ? OptionalZipOutputStream.Type.zipped : OptionalZipOutputStream.Type.unzipped, counted, maxMB,
+                zipCompressionLevel == null ? Deflater.DEFAULT_COMPRESSION : zipCompressionLevel);) {
             String suffix = requestParams.getFileType();
-            sp.putNextEntry(filename + "." + suffix);
+            DownloadResultStore.Result reuse = ticket == null ? null : ticket.getResult();
+            DownloadCheckpoint resume = dd.getCheckpoint();
+            if (resume != null && (reuse != null || !zip || !getResumeFile(dd).exists())) {
+                dd.setCheckpoint(null);
+                resume = null;
+            }
+            if (zip && reuse == null && dd.getCheckpointListener() != null) {
+                // a checkpoint is taken when each part is complete
+                sp.setCheckpointMB(downloadCheckpointMB);
+            }
+            if (resume != null) {
+                // copy the completed entries and continue with the next part
+                for (DownloadCheckpoint.Entry entry : resume.getEntries()) {
+                    sp.copyEntry(entry, getResumeFile(dd));
+                }
+                sp.putNextEntry(filename + "." + suffix, resume.getEntries().size() + 1);
+            } else {
+                sp.putNextEntry(filename + "." + suffix);
+            }
             // put the facets
             if ("all".equals(requestParams.getQa())) {
                 requestParams.setFacets(new String[]{assertions, data_resource_uid});
@@ -405,8 +497,17 @@ public class DownloadService implements ApplicationListener<ContextClosedEvent>
             }
 
             final DownloadStats downloadStats = new DownloadStats();
-            DownloadHeaders downloadHeaders = searchDAO.writeResultsFromIndexToStream(
-                    requestParams, sp, downloadStats, dd, limit, parallelExecutor);
+            DownloadHeaders downloadHeaders;
+            if (reuse != null) {
+                downloadHeaders = copyDownloadData(reuse, dd, sp, downloadStats);
+            } else {
+                downloadHeaders = searchDAO.writeResultsFromIndexToStream(
+                        requestParams, sp, downloadStats, dd, limit, parallelExecutor);
+
+                if (ticket != null && ticket.isLeader() && !dd.getInterrupt()) {
+                    ticket.capture(downloadHeaders, downloadStats);
+                }
+            }
 
             sp.closeEntry();
 
@@ -593,7 +694,135 @@ public class DownloadService implements ApplicationListener<ContextClosedEvent>
             Thread.currentThread().interrupt();
             // sApplication may be shutting down, do not delete the download file
             throw e;
+        } finally {
+            metrics.finish();
+            recordDownloadMetrics(dd);
+        }
+    }
+
+    /**
+     * @return the partial zip of a download that is resuming, it is next to the download file
+     */
+    private static File getResumeFile(DownloadDetailsDTO dd) {
+        return new File(dd.getFileLocation() + ".resume");
+    }
+
+    /**
+     * Prepare an offline download with a checkpoint to resume. The partial zip is moved aside to copy its completed
+     * entries, unless it is already moved aside because the previous attempt did not finish copying. The checkpoint
+     * is dropped and the download starts again when the partial zip is incomplete or there are too many attempts.
+     *
+     * @return true when the download will resume
+     */
+    boolean prepareResume(DownloadDetailsDTO dd) {
+        DownloadCheckpoint checkpoint = dd.getCheckpoint();
+        if (checkpoint == null) {
+            return false;
+        }
+
+        File file = new File(dd.getFileLocation());
+        File resumeFile = getResumeFile(dd);
+        if (downloadResumeEnabled && checkpoint.getAttempts() < downloadResumeMaxAttempts &&
+                (resumeFile.exists() || (file.length() >= checkpoint.getBytes() && file.renameTo(resumeFile)))) {
+            checkpoint.setAttempts(checkpoint.getAttempts() + 1);
+            logger.info("Resuming download " + dd.getUniqueId() + " after " + checkpoint.getRecords() +
+                    " records, attempt " + checkpoint.getAttempts());
+            return true;
         }
+
+        dd.setCheckpoint(null);
+        FileUtils.deleteQuietly(resumeFile);
+        return false;
+    }
+
+    /**
+     * Save the checkpoint of an offline download. The partial zip of a resumed download is no longer required
+     * once a checkpoint of the new zip is saved.
+     */
+    void saveCheckpoint(DownloadDetailsDTO dd, DownloadCheckpoint checkpoint) {
+        dd.setCheckpoint(checkpoint);
+        try {
+            persistentQueueDAO.update(dd);
+            FileUtils.deleteQuietly(getResumeFile(dd));
+        } catch (IOException e) {
+            logger.warn("Failed to save the checkpoint of download " + dd.getUniqueId() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Add the throughput and stage times of a finished download to the actuator metrics.
+     */
+    private void recordDownloadMetrics(DownloadDetailsDTO dd) {
+        if (meterRegistry == null) {
+            return;
+        }
+        DownloadMetrics metrics = dd.getMetrics();
+        String type = dd.getDownloadType() == null ? "unknown" : dd.getDownloadType().name().toLowerCase();
+
+        for (DownloadMetrics.Stage stage : DownloadMetrics.Stage.values()) {
+            meterRegistry.timer("download.stage", "type", type, "stage", stage.getName())
+                    .record(metrics.getStageNanos(stage), TimeUnit.NANOSECONDS);
+        }
+        meterRegistry.counter("download.records", "type", type).increment(metrics.getRecords());
+        meterRegistry.counter("download.bytes", "type", type).increment(metrics.getBytes());
+        DistributionSummary.builder("download.records.rate").baseUnit("records/s").tag("type", type)
+                .register(meterRegistry).record(metrics.getRecordsPerSecond());
+        DistributionSummary.builder("download.bytes.rate").baseUnit("bytes/s").tag("type", type)
+                .register(meterRegistry).record(metrics.getBytesPerSecond());
+        if (metrics.getQueueWaitMs() >= 0) {
+            meterRegistry.timer("download.queue.wait", "type", type).record(metrics.getQueueWaitMs(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Copy the data files of an identical download into the current entry of the stream.
+     * <p>
+     * The data files of the identical download already include the misc header. Split files are renamed to
+     * match the file name of this download.
+     *
+     * @param reuse         the finished identical download
+     * @param dd            this download
+     * @param sp            stream with the data file entry open
+     * @param downloadStats populated with the statistics of the identical download
+     * @return the headers of the identical download
+     * @throws IOException
+     */
+    private DownloadHeaders copyDownloadData(DownloadResultStore.Result reuse, DownloadDetailsDTO dd,
+                                             OptionalZipOutputStream sp, DownloadStats downloadStats) throws IOException {
+        String filename = dd.getRequestParams().getFile();
+        String suffix = dd.getRequestParams().getFileType();
+        Pattern dataEntry = Pattern.compile(
+                Pattern.quote(reuse.getFile()) + "(?:_part(\\d+))?\\." + Pattern.quote(suffix));
+
+        try (ZipFile zipFile = new ZipFile(reuse.getFileLocation())) {
+            // order by part number, the first part is written to the entry that is already open
+            TreeMap<Integer, ZipEntry> parts = new TreeMap<>();
+            for (ZipEntry entry : Collections.list(zipFile.entries())) {
+                Matcher matcher = dataEntry.matcher(entry.getName());
+                if (matcher.matches()) {
+                    parts.put(matcher.group(1) == null ? 1 : Integer.parseInt(matcher.group(1)), entry);
+                }
+            }
+
+            for (Map.Entry<Integer, ZipEntry> part : parts.entrySet()) {
+                if (part.getKey() > 1) {
+                    sp.closeEntry();
+                    sp.putNextEntry(filename + "_part" + part.getKey() + "." + suffix);
+                }
+                try (InputStream in = zipFile.getInputStream(part.getValue())) {
+                    IOUtils.copy(in, sp);
+                }
+            }
+        }
+
+        downloadStats.addAll(reuse.getDownloadStats());
+        dd.setMiscFields(reuse.getMiscFields());
+        dd.setTotalRecords(reuse.getTotalRecords());
+        dd.getRecordsDownloaded().set(reuse.getRecordsDownloaded());
+
+        logger.info("Download " + dd.getUniqueId() + " reused the data files of " + reuse.getFileLocation());
+
+        return reuse.getHeaders();
     }
 
     private List<QualityFilterDTO> getQualityFilterDTOS(Map<String, String> filtersByLabel) {
@@ -702,12 +931,7 @@ public class DownloadService implements ApplicationListener<ContextClosedEvent>
                 });
 
                 if (!uidStats.isEmpty()) {
-                    List<LinkedHashMap<String, Object>> entities = restTemplate.postForObject(citationServiceUrl,
-                            uidStats.keySet(), List.class);
-                    if (logger.isDebugEnabled()) {
-                        logger.debug("Posting to " + citationServiceUrl);
-                        logger.debug("UIDs " + uidStats.keySet().stream().collect(Collectors.joining(",")));
-                    }
+                    List<Map<String, Object>> useableRecords = citationCache.getCitations(uidStats.keySet());
                     final int UID = 0;
                     final int NAME = 1;
                     final int CITATION = 3;
@@ -715,9 +939,6 @@ public class DownloadService implements ApplicationListener<ContextClosedEvent>
                     final int LINK = 5;
                     final int COUNT = 9;
 
-                    List<Map<String, Object>> useableRecords = entities.stream()
-                            .filter(m -> m != null && m.get("uid") != null).collect(toList());
-
                     for (Map<String, Object> record : useableRecords) {
                         Object uid = record.get("uid");
                         AtomicInteger uidRecordCount = uidStats.get(uid);
@@ -1120,13 +1341,33 @@ public class DownloadService implements ApplicationListener<ContextClosedEvent>
             if (logger.isInfoEnabled()) {
                 logger.info("Starting to download the offline request: " + currentDownload);
             }
+            currentDownload.getMetrics().setQueueWaitMs(System.currentTimeMillis() - currentDownload.getStartTime());
             // we are now ready to start the download
             // we need to create an output stream to the file system
 
             boolean shuttingDown = false;
             boolean doRetry = false;
 
+            // identical downloads share a single export of the data files
+            DownloadResultStore.Ticket ticket = downloadResultStore == null ? null : downloadResultStore.join(currentDownload);
+            if (ticket != null && ticket.isWaiting()) {
+                // queued again when the identical download finishes, so the download thread of the user is free
+                logger.info("Download " + currentDownload.getUniqueId() + " waits for an identical download");
+                ticket.whenDone(() -> requeue(currentDownload, 0));
+                return;
+            }
+
+            // resume from the last completed zip entry, and take checkpoints to resume from
+            prepareResume(currentDownload);
+            if (downloadResumeEnabled) {
+                currentDownload.setCheckpointListener(checkpoint -> saveCheckpoint(currentDownload, checkpoint));
+            }
+
             try (FileOutputStream fos = FileUtils.openOutputStream(new File(currentDownload.getFileLocation()));) {
+                if (ticket != null && !ticket.isLeader()) {
+                    ticket.collect();
+                }
+
                 List<CreateDoiResponse> doiResponseList = null;
                 Boolean mintDoi = currentDownload.getRequestParams().getMintDoi();
 
@@ -1142,7 +1383,8 @@ public class DownloadService implements ApplicationListener<ContextClosedEvent>
                         currentDownload.getDownloadType() == DownloadType.RECORDS_INDEX,
                         true,
                         null,
-                        doiResponseList
+                        doiResponseList,
+                        ticket
                 );
 
                 // continue if not cancelled
@@ -1167,7 +1409,12 @@ public class DownloadService implements ApplicationListener<ContextClosedEvent>
                     if (currentDownload != null && currentDownload.getFileLocation() != null) {
 
                         logger.info("currentDownload.getFileLocation() = " + currentDownload.getFileLocation());
-                        insertMiscHeader(currentDownload);
+                        if (ticket == null || ticket.getResult() == null) {
+                            insertMiscHeader(currentDownload);
+                        }
+                        if (ticket != null && ticket.isLeader()) {
+                            ticket.publish(currentDownload);
+                        }
 
                         //ensure new directories and download file have correct permissions
                         new File(currentDownload.getFileLocation()).setReadable(true, false);
@@ -1256,40 +1503,49 @@ public class DownloadService implements ApplicationListener<ContextClosedEvent>
                 //shutting down
                 shuttingDown = true;
             } catch (Exception e) {
-                logger.error("Error in offline download, sending email. download path: "
-                        + currentDownload.getFileLocation(), e);
+                if (isResumable(currentDownload)) {
+                    logger.error("Error in offline download, resuming from the checkpoint. download path: "
+                            + currentDownload.getFileLocation(), e);
+                    doRetry = true;
+                } else {
+                    logger.error("Error in offline download, sending email. download path: "
+                            + currentDownload.getFileLocation(), e);
 
-                try {
-                    final String hubName = currentDownload.getRequestParams().getHubName() != null ? currentDownload.getRequestParams().getHubName() : "ALA";
-                    String subject = messageSource.getMessage("offlineEmailSubjectError", null, biocacheDownloadEmailSubjectError, null)
-                            .replace("[filename]", currentDownload.getRequestParams().getFile())
-                            .replace("[hubName]", hubName);
+                    try {
+                        final String hubName = currentDownload.getRequestParams().getHubName() != null ? currentDownload.getRequestParams().getHubName() : "ALA";
+                        String subject = messageSource.getMessage("offlineEmailSubjectError", null, biocacheDownloadEmailSubjectError, null)
+                                .replace("[filename]", currentDownload.getRequestParams().getFile())
+                                .replace("[hubName]", hubName);
 
-                    String copyTo = supportEmailEnabled ? supportEmail : null;
-
-                    Map<String, String> substitutions = new HashMap<>();
-                    substitutions.put(SEARCH_URL, generateSearchUrl(currentDownload.getRequestParams()));
-                    substitutions.put(SUPPORT, support);
-                    substitutions.put(UNIQUE_ID, currentDownload.getUniqueId());
-                    substitutions.put(MY_DOWNLOADS_URL, myDownloadsUrl);
-                    substitutions.put(HUB_NAME, hubName);
-                    substitutions.put(DOWNLOAD_FILE_LOCATION, currentDownload.getFileLocation().replace(biocacheDownloadDir,
-                            biocacheDownloadUrl));
-
-                    String emailTemplate = getFailEmailBodyTemplate(currentDownload);
-                    String emailBody = generateEmailContent(emailTemplate, substitutions);
-                    // email error to user and support (configurable)
-                    emailService.sendEmail(currentDownload.getRequestParams().getEmail(), copyTo, subject, emailBody);
-
-                } catch (Exception ex) {
-                    logger.error("Error sending error message to download email. "
-                            + currentDownload.getFileLocation(), ex);
-                }
+                        String copyTo = supportEmailEnabled ? supportEmail : null;
 
-                // If we ever want to retry on failure, enable doRetry and disable queue.remove
-                //doRetry = true
-                persistentQueueDAO.remove(currentDownload);
+                        Map<String, String> substitutions = new HashMap<>();
+                        substitutions.put(SEARCH_URL, generateSearchUrl(currentDownload.getRequestParams()));
+                        substitutions.put(SUPPORT, support);
+                        substitutions.put(UNIQUE_ID, currentDownload.getUniqueId());
+                        substitutions.put(MY_DOWNLOADS_URL, myDownloadsUrl);
+                        substitutions.put(HUB_NAME, hubName);
+                        substitutions.put(DOWNLOAD_FILE_LOCATION, currentDownload.getFileLocation().replace(biocacheDownloadDir,
+                                biocacheDownloadUrl));
+
+                        String emailTemplate = getFailEmailBodyTemplate(currentDownload);
+                        String emailBody = generateEmailContent(emailTemplate, substitutions);
+                        // email error to user and support (configurable)
+                        emailService.sendEmail(currentDownload.getRequestParams().getEmail(), copyTo, subject, emailBody);
+
+                    } catch (Exception ex) {
+                        logger.error("Error sending error message to download email. "
+                                + currentDownload.getFileLocation(), ex);
+                    }
+
+                    persistentQueueDAO.remove(currentDownload);
+                }
             } finally {
+                // release downloads waiting on this one when it did not finish
+                if (ticket != null) {
+                    ticket.fail();
+                }
+
                 // in case of server up/down, only remove from queue
                 // after emails are sent
                 if (currentDownload.getInterrupt() || (!shuttingDown && !doRetry)) {
@@ -1300,6 +1556,42 @@ public class DownloadService implements ApplicationListener<ContextClosedEvent>
             if (currentDownload.getInterrupt()) {
                 // remove output file when cancelled
                 new File(currentDownload.getFileLocation()).delete();
+                FileUtils.deleteQuietly(getResumeFile(currentDownload));
+            } else if (doRetry && !shuttingDown) {
+                // after a delay to allow SOLR to recover
+                requeue(currentDownload, downloadResumeDelay);
+            } else if (!shuttingDown) {
+                FileUtils.deleteQuietly(getResumeFile(currentDownload));
+            }
+        }
+
+        /**
+         * @return true when a failed download has a checkpoint and attempts left to resume from it
+         */
+        private boolean isResumable(DownloadDetailsDTO dd) {
+            return downloadResumeEnabled && !dd.getInterrupt() && dd.getCheckpoint() != null &&
+                    dd.getCheckpoint().getAttempts() < downloadResumeMaxAttempts;
+        }
+
+        /**
+         * Queue a download again after a delay, unless it is cancelled.
+         */
+        private void requeue(DownloadDetailsDTO dd, long delay) {
+            try {
+                resumeExecutor.schedule(() -> {
+                    if (dd.getInterrupt()) {
+                        return;
+                    }
+                    try {
+                        persistentQueueDAO.remove(dd);
+                        add(dd);
+                    } catch (Exception e) {
+                        logger.error("Failed to queue download " + dd.getUniqueId() + " again: " + e.getMessage(), e);
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // shutting down, the download is still in the persistent queue and runs after a restart
+                logger.info("Download " + dd.getUniqueId() + " runs after a restart");
             }
         }
     }
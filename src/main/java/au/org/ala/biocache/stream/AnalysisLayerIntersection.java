@@ -0,0 +1,316 @@
+/**************************************************************************
+ *  Copyright (C) 2022 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.stream;
+
+import au.com.bytecode.opencsv.CSVReader;
+import au.org.ala.biocache.service.LayersService;
+import au.org.ala.biocache.util.RecordWriter;
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+
+import java.io.Reader;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Fills the analysis layer columns of download rows with values sampled by the layers service.
+ * <p>
+ * Rows are collected into batches. A full batch is sampled on the executor while the download continues,
+ * with up to maxInFlight batches waiting on the layers service. Rows are written in the order they were added.
+ * <p>
+ * Only the unique coordinates of a batch are sent. A coordinate that is in an earlier batch that is not yet
+ * written uses that sampling, and the values of recently written coordinates are kept in an LRU cache.
+ * <p>
+ * Not thread safe, rows must be added by the download thread.
+ */
+class AnalysisLayerIntersection {
+
+    private static final Logger logger = Logger.getLogger(AnalysisLayerIntersection.class);
+
+    private final LayersService layersService;
+    private final String layersServiceUrl;
+    private final String[] analysisIds;
+    private final int offset;
+    private final RecordWriter recordWriter;
+
+    // null to sample on the calling thread
+    private final ExecutorService executor;
+    private final int batchSize;
+    private final int maxInFlight;
+
+    // sampled values of written coordinates, in access order
+    private final Map<Point, String[]> cache;
+
+    // coordinates of batches that are not yet written
+    private final Map<Point, Point> pending = new HashMap<>();
+
+    private final ArrayDeque<Batch> inFlight = new ArrayDeque<>();
+    private final ArrayDeque<Batch> free = new ArrayDeque<>();
+    private Batch current;
+
+    private long rowCount;
+    private long pointCount;
+
+    AnalysisLayerIntersection(LayersService layersService, String layersServiceUrl, String[] analysisIds, int offset,
+                              RecordWriter recordWriter, ExecutorService executor, int batchSize, int maxInFlight,
+                              int cacheSize) {
+        this.layersService = layersService;
+        this.layersServiceUrl = layersServiceUrl;
+        this.analysisIds = analysisIds;
+        this.offset = offset;
+        this.recordWriter = recordWriter;
+        this.executor = executor;
+        this.batchSize = batchSize;
+        this.maxInFlight = Math.max(0, maxInFlight);
+
+        this.cache = new LinkedHashMap<Point, String[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Point, String[]> eldest) {
+                return size() > cacheSize;
+            }
+        };
+
+        this.current = new Batch();
+    }
+
+    /**
+     * @return the row that can be reused for the next add(), or null. It may be shorter than required.
+     */
+    String[] nextRow() {
+        return current.rows[current.size];
+    }
+
+    /**
+     * Add a row. The analysis layer columns are written by the intersection.
+     *
+     * @param row       row with space for the analysis layer columns
+     * @param longitude longitude, or NaN when the record has no coordinates
+     * @param latitude  latitude, or NaN when the record has no coordinates
+     */
+    void add(String[] row, double longitude, double latitude) {
+        Batch batch = current;
+        int i = batch.size++;
+        batch.rows[i] = row;
+        batch.sources[i] = null;
+        rowCount++;
+
+        Arrays.fill(row, offset, offset + analysisIds.length, null);
+
+        if (!Double.isNaN(longitude) && !Double.isNaN(latitude) && StringUtils.isNotEmpty(layersServiceUrl)) {
+            Point point = new Point(longitude, latitude);
+            String[] cached = cache.get(point);
+            if (cached != null) {
+                System.arraycopy(cached, 2, row, offset, analysisIds.length);
+            } else {
+                Point found = pending.get(point);
+                if (found == null) {
+                    point.sampling = batch.sampling;
+                    point.index = batch.sampling.points.size();
+                    batch.sampling.points.add(point);
+                    pending.put(point, point);
+                    found = point;
+                }
+                batch.sources[i] = found;
+            }
+        }
+
+        if (batch.size == batchSize) {
+            submit();
+            drain(false);
+        }
+    }
+
+    /**
+     * Sample the current batch and write all rows.
+     */
+    void flush() {
+        if (current.size > 0) {
+            submit();
+        }
+        drain(true);
+
+        if (logger.isDebugEnabled() && rowCount > 0) {
+            logger.debug("Analysis layer intersection: " + rowCount + " rows, " + pointCount + " coordinates sampled");
+        }
+    }
+
+    /**
+     * @return number of coordinates sent to the layers service
+     */
+    long getPointCount() {
+        return pointCount;
+    }
+
+    private void submit() {
+        Batch batch = current;
+        Sampling sampling = batch.sampling;
+        if (!sampling.points.isEmpty()) {
+            pointCount += sampling.points.size();
+            if (executor == null) {
+                sampling.task.run();
+            } else {
+                try {
+                    executor.execute(sampling.task);
+                } catch (RejectedExecutionException e) {
+                    sampling.task.run();
+                }
+            }
+        }
+        inFlight.add(batch);
+
+        current = free.isEmpty() ? new Batch() : free.poll();
+    }
+
+    /**
+     * Write batches in order. Waits for the oldest batch when there are more than maxInFlight.
+     *
+     * @param all true to write all batches
+     */
+    private void drain(boolean all) {
+        while (!inFlight.isEmpty() && (all || inFlight.size() > maxInFlight || inFlight.peek().sampling.isDone())) {
+            write(inFlight.poll());
+        }
+    }
+
+    private void write(Batch batch) {
+        for (int i = 0; i < batch.size; i++) {
+            Point source = batch.sources[i];
+            if (source != null) {
+                String[][] values = source.sampling.get();
+                if (values != null && values[source.index] != null) {
+                    System.arraycopy(values[source.index], 2, batch.rows[i], offset, analysisIds.length);
+                }
+                batch.sources[i] = null;
+            }
+            recordWriter.write(batch.rows[i]);
+        }
+
+        // coordinates of this batch are now found in the cache. Later batches may still refer to the sampling.
+        Sampling sampling = batch.sampling;
+        String[][] values = sampling.get();
+        for (Point point : sampling.points) {
+            pending.remove(point);
+            if (values != null && values[point.index] != null) {
+                cache.put(new Point(point.longitude, point.latitude), values[point.index]);
+            }
+        }
+
+        batch.size = 0;
+        batch.sampling = new Sampling();
+        free.add(batch);
+    }
+
+    private final class Batch {
+        // rows are reused when the batch is recycled
+        final String[][] rows = new String[batchSize][];
+        // the coordinate of each row that is waiting on a sampling, or null
+        final Point[] sources = new Point[batchSize];
+        int size;
+        Sampling sampling = new Sampling();
+    }
+
+    private static final class Point {
+        final double longitude;
+        final double latitude;
+        Sampling sampling;
+        int index;
+
+        Point(double longitude, double latitude) {
+            this.longitude = longitude;
+            this.latitude = latitude;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Point)) {
+                return false;
+            }
+            Point p = (Point) o;
+            return Double.doubleToLongBits(longitude) == Double.doubleToLongBits(p.longitude) &&
+                    Double.doubleToLongBits(latitude) == Double.doubleToLongBits(p.latitude);
+        }
+
+        @Override
+        public int hashCode() {
+            long bits = Double.doubleToLongBits(longitude) * 31 + Double.doubleToLongBits(latitude);
+            return (int) (bits ^ (bits >>> 32));
+        }
+    }
+
+    /**
+     * The unique coordinates of a batch and their sampled values.
+     */
+    private final class Sampling {
+        final List<Point> points = new ArrayList<>();
+        final FutureTask<String[][]> task = new FutureTask<>(this::sample);
+        private String[][] values;
+        private boolean done;
+
+        boolean isDone() {
+            return points.isEmpty() || task.isDone();
+        }
+
+        /**
+         * @return sampled rows (latitude, longitude, analysis layer values) in the order of points, or null when
+         * the sampling failed
+         */
+        String[][] get() {
+            if (!done) {
+                done = true;
+                if (points.isEmpty()) {
+                    return null;
+                }
+                try {
+                    values = task.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    task.cancel(true);
+                } catch (ExecutionException e) {
+                    logger.error("Failed to intersect analysis layers", e.getCause());
+                }
+            }
+            return values;
+        }
+
+        private String[][] sample() throws Exception {
+            double[][] coordinates = new double[points.size()][];
+            for (int i = 0; i < coordinates.length; i++) {
+                Point point = points.get(i);
+                coordinates[i] = new double[]{point.longitude, point.latitude};
+            }
+
+            Reader reader = layersService.sample(layersServiceUrl, analysisIds, coordinates);
+            if (reader == null) {
+                return null;
+            }
+
+            List<String[]> intersection;
+            try (CSVReader csv = new CSVReader(reader)) {
+                intersection = csv.readAll();
+            }
+
+            //+1 offset for header row in intersection list
+            //+2 offset for latitude,longitude columns in sampling array
+            String[][] result = new String[coordinates.length][];
+            for (int i = 0; i < result.length && i + 1 < intersection.size(); i++) {
+                String[] sampling = intersection.get(i + 1);
+                if (sampling != null && sampling.length == analysisIds.length + 2) {
+                    result[i] = sampling;
+                }
+            }
+            return result;
+        }
+    }
+}
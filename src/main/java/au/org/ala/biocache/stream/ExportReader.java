@@ -0,0 +1,112 @@
+package au.org.ala.biocache.stream;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Reads the records of an /export from one or more shards, merged in sort order.
+ * <p>
+ * The same order as CloudSolrStream, so that a download sorted by id can be resumed.
+ */
+public class ExportReader implements Closeable {
+
+    private final List<JavabinExportReader> shards;
+
+    // sort columns and direction, compared in order
+    private final int[] sortColumns;
+    private final boolean[] descending;
+
+    // the next record of each shard, null when the shard is finished
+    private final Object[][] next;
+    private boolean started;
+
+    /**
+     * @param shards      readers of each shard
+     * @param rowLength   number of columns of the shards, the columns of next() followed by any sort columns
+     * @param sortColumns the column of each sort field
+     * @param descending  true for each sort field that is sorted in descending order
+     */
+    public ExportReader(List<JavabinExportReader> shards, int rowLength, int[] sortColumns, boolean[] descending) {
+        this.shards = shards;
+        this.sortColumns = sortColumns;
+        this.descending = descending;
+        this.next = new Object[shards.size()][];
+        for (int i = 0; i < next.length; i++) {
+            next[i] = new Object[rowLength];
+        }
+    }
+
+    /**
+     * @param row receives the values of the next record
+     * @return false when all shards are finished
+     */
+    public boolean next(Object[] row) throws IOException {
+        if (!started) {
+            started = true;
+            for (int i = 0; i < next.length; i++) {
+                advance(i);
+            }
+        }
+
+        // there are few shards, a heap is not required
+        int min = -1;
+        for (int i = 0; i < next.length; i++) {
+            if (next[i] != null && (min < 0 || compare(next[i], next[min]) < 0)) {
+                min = i;
+            }
+        }
+        if (min < 0) {
+            return false;
+        }
+
+        System.arraycopy(next[min], 0, row, 0, row.length);
+        advance(min);
+        return true;
+    }
+
+    private void advance(int shard) throws IOException {
+        if (!shards.get(shard).next(next[shard])) {
+            next[shard] = null;
+        }
+    }
+
+    /**
+     * Null values are first in ascending order, the same as FieldComparator.
+     */
+    private int compare(Object[] a, Object[] b) {
+        for (int i = 0; i < sortColumns.length; i++) {
+            Comparable left = (Comparable) a[sortColumns[i]];
+            Comparable right = (Comparable) b[sortColumns[i]];
+            int c;
+            if (left == right) {
+                c = 0;
+            } else if (left == null) {
+                c = -1;
+            } else if (right == null) {
+                c = 1;
+            } else {
+                c = left.compareTo(right);
+            }
+            if (c != 0) {
+                return descending[i] ? -c : c;
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException error = null;
+        for (JavabinExportReader shard : shards) {
+            try {
+                shard.close();
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+}
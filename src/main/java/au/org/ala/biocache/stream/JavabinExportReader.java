@@ -0,0 +1,169 @@
+package au.org.ala.biocache.stream;
+
+import org.apache.solr.common.util.DataInputInputStream;
+import org.apache.solr.common.util.JavaBinCodec;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * Reads the documents of a single /export response with wt=javabin.
+ * <p>
+ * The fields of each document are decoded straight into a row of values, in column order. Fields that are not
+ * columns are skipped. Unlike JavabinTupleStreamParser no Map or Tuple is created for each document.
+ * <p>
+ * Values are the same as the Tuples of a wt=json response, except numbers keep their SOLR type. Dates are ISO-8601
+ * strings.
+ */
+public class JavabinExportReader extends JavaBinCodec implements Closeable {
+
+    private final InputStream in;
+    private final Closeable response;
+    private final DataInputInputStream fis;
+
+    // column of each field
+    private final Map<String, Integer> columns;
+
+    // docs remaining in an array, or Integer.MAX_VALUE for an iterator
+    private int remaining;
+    private boolean iterator;
+    private int objectSize;
+
+    /**
+     * @param in       the response
+     * @param response closed with the reader, or null
+     * @param columns  the column of each field
+     */
+    public JavabinExportReader(InputStream in, Closeable response, Map<String, Integer> columns) throws IOException {
+        this.in = in;
+        this.response = response;
+        this.columns = columns;
+        this.fis = initRead(in);
+        if (!readTillDocs()) {
+            remaining = 0;
+        }
+    }
+
+    /**
+     * Read the next document.
+     *
+     * @param row the values of the document, other columns are set to null
+     * @return false at the end of the response
+     * @throws IOException when the response is an error
+     */
+    public boolean next(Object[] row) throws IOException {
+        if (remaining <= 0) {
+            return false;
+        }
+        tagByte = fis.readByte();
+        if (iterator) {
+            if (tagByte == END) {
+                remaining = 0;
+                return false;
+            }
+        } else {
+            remaining--;
+        }
+
+        int size;
+        if (tagByte == MAP_ENTRY_ITER) {
+            size = Integer.MAX_VALUE;
+        } else if (tagByte == MAP) {
+            size = readVInt(fis);
+        } else if (tagByte == SOLRDOC) {
+            // followed by an ordered map
+            tagByte = fis.readByte();
+            size = readSize(fis);
+        } else {
+            throw new IOException("Unexpected javabin tag " + tagByte + " in /export response");
+        }
+
+        Arrays.fill(row, null);
+        for (int i = 0; i < size; i++) {
+            Object key = readVal(fis);
+            if (key == END_OBJ) {
+                break;
+            }
+            Object value = readVal(fis);
+            Integer column = columns.get(key);
+            if (column != null) {
+                // the same as the date format of a wt=json response
+                row[column] = value instanceof Date ? ((Date) value).toInstant().toString() : value;
+            } else if ("EXCEPTION".equals(key)) {
+                remaining = 0;
+                throw new IOException(String.valueOf(value));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Read until the docs of the response. The same as JavabinTupleStreamParser.
+     *
+     * @return false when there are no docs
+     */
+    private boolean readTillDocs() throws IOException {
+        if (isObjectType()) {
+            if (tagByte == SOLRDOCLST) {
+                // numFound, start, maxScore
+                readVal(fis);
+                tagByte = fis.readByte();
+                remaining = readSize(fis);
+                return true;
+            }
+            for (int i = objectSize; i > 0; i--) {
+                Object key = readVal(fis);
+                if (key == END_OBJ) {
+                    break;
+                }
+                if ("docs".equals(key)) {
+                    tagByte = fis.readByte();
+                    if (tagByte == ITERATOR) {
+                        iterator = true;
+                        remaining = Integer.MAX_VALUE;
+                        return true;
+                    } else if (tagByte >>> 5 == ARR >>> 5) {
+                        remaining = readSize(fis);
+                        return true;
+                    }
+                    return false;
+                } else if (readTillDocs()) {
+                    return true;
+                }
+            }
+        } else {
+            readObject(fis);
+        }
+        return false;
+    }
+
+    private boolean isObjectType() throws IOException {
+        tagByte = fis.readByte();
+        if (tagByte >>> 5 == ORDERED_MAP >>> 5 || tagByte >>> 5 == NAMED_LST >>> 5) {
+            objectSize = readSize(fis);
+            return true;
+        } else if (tagByte == MAP) {
+            objectSize = readVInt(fis);
+            return true;
+        } else if (tagByte == MAP_ENTRY_ITER) {
+            objectSize = Integer.MAX_VALUE;
+            return true;
+        }
+        return tagByte == SOLRDOCLST;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            in.close();
+        } finally {
+            if (response != null) {
+                response.close();
+            }
+        }
+    }
+}
@@ -1,14 +1,36 @@
 package au.org.ala.biocache.stream;
 
+import au.org.ala.biocache.dto.DownloadCheckpoint;
 import au.org.ala.biocache.writer.RecordWriterError;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.commons.io.output.CountingOutputStream;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
 /**
  * An OutputStream that will write ZipOutputStream entries or file name separated unzipped output.
+ * <p>
+ * The location of each closed zip entry is recorded so that a partial zip can be resumed by copying its
+ * completed entries into a new zip with {@link #copyEntry(DownloadCheckpoint.Entry, File)}.
  */
 public class OptionalZipOutputStream extends OutputStream {
 
@@ -18,6 +40,10 @@ public class OptionalZipOutputStream extends OutputStream {
 
     private final static String UNZIPPED_ENTRY_SEPARATOR = "------------------------------------------------------\n";
 
+    // zip local file header signature and length, excluding the name and extra field
+    private final static int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private final static int LOCAL_HEADER_LENGTH = 30;
+
     private Type type;
     private OutputStream out;
     private ZipOutputStream zop;
@@ -25,9 +51,16 @@ public class OptionalZipOutputStream extends OutputStream {
     private long currentEntryLength;
     private int splitCount;
     private Integer maxMB;
+    private Integer checkpointMB;
+
+    // zipped output is counted for the offset of each entry
+    private CountingOutputStream counter;
+    private ZipEntry currentJavaEntry;
+    private long currentEntryOffset;
+    private final List<DownloadCheckpoint.Entry> closedEntries = new ArrayList<>();
 
     /**
-     * Determine when a file has reached the maxMB.
+     * Determine when a file has reached the maxMB, or the checkpointMB when it is smaller.
      *
      * Keeps track of the length of written records so a flush is not required.
      *
@@ -40,15 +73,15 @@ public class OptionalZipOutputStream extends OutputStream {
         boolean isNewFile = false;
         if (type == OptionalZipOutputStream.Type.zipped) {
             currentEntryLength += length;
-            if (currentEntryLength >= maxMB * 1024L * 1024L) {
+            int splitMB = checkpointMB != null && checkpointMB > 0 && checkpointMB < maxMB ? checkpointMB : maxMB;
+            if (currentEntryLength >= splitMB * 1024L * 1024L) {
                 if (writer instanceof RecordWriterError) ((RecordWriterError) writer).flush();
 
                 closeEntry();
                 currentEntryLength = 0;
 
                 splitCount++;
-                String[] parts = currentEntry.split("\\.(?=[^\\.]+$)");
-                zop.putNextEntry(new java.util.zip.ZipEntry(parts[0] + "_part" + splitCount + "." + parts[1]));
+                startEntry(partName(currentEntry, splitCount));
                 isNewFile = true;
             }
         }
@@ -56,36 +89,137 @@ public class OptionalZipOutputStream extends OutputStream {
     }
 
     public OptionalZipOutputStream(Type type, OutputStream out, Integer maxZipFileMB) {
+        this(type, out, maxZipFileMB, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param type
+     * @param out
+     * @param maxZipFileMB    size at which a zip entry is split into a new _part entry
+     * @param level           deflate level for zip entries, -1 for the default level
+     */
+    public OptionalZipOutputStream(Type type, OutputStream out, Integer maxZipFileMB, int level) {
         this.type = type;
         this.out = out;
         this.maxMB = maxZipFileMB;
 
         if (type == Type.zipped) {
-            zop = new ZipOutputStream(out);
+            counter = new CountingOutputStream(out);
+            this.out = counter;
+            zop = new ZipOutputStream(counter);
+            zop.setLevel(level);
         }
     }
 
+    /**
+     * Also split entries at a smaller size, so that a resumable download takes a checkpoint when each _part entry
+     * is complete.
+     *
+     * @param checkpointMB size at which a zip entry is split, null or 0 to split at maxZipFileMB only
+     */
+    public void setCheckpointMB(Integer checkpointMB) {
+        this.checkpointMB = checkpointMB;
+    }
+
     public void putNextEntry(String name) throws IOException {
+        putNextEntry(name, 1);
+    }
+
+    /**
+     * Start an entry that continues the _part numbering of a split entry.
+     *
+     * @param name name of the first part
+     * @param part part number of this entry, 1 for the first part
+     * @throws IOException
+     */
+    public void putNextEntry(String name, int part) throws IOException {
         currentEntry = name;
         currentEntryLength = 0;
-        splitCount = 1;
+        splitCount = part;
 
         if (type == Type.zipped) {
-            zop.putNextEntry(new java.util.zip.ZipEntry(name));
+            startEntry(part > 1 ? partName(name, part) : name);
         } else {
             out.write(UNZIPPED_ENTRY_SEPARATOR.getBytes(StandardCharsets.UTF_8));
             out.write((name + "\n").getBytes(StandardCharsets.UTF_8));
         }
     }
 
+    private void startEntry(String name) throws IOException {
+        currentEntryOffset = counter.getByteCount();
+        currentJavaEntry = new ZipEntry(name);
+        zop.putNextEntry(currentJavaEntry);
+    }
+
+    private static String partName(String name, int part) {
+        String[] parts = name.split("\\.(?=[^\\.]+$)");
+        return parts[0] + "_part" + part + "." + parts[1];
+    }
+
     public void closeEntry() throws IOException {
         if (type == Type.zipped) {
             zop.closeEntry();
+            if (currentJavaEntry != null) {
+                // sizes and crc are set when the entry is closed
+                closedEntries.add(new DownloadCheckpoint.Entry(currentJavaEntry.getName(), currentEntryOffset,
+                        currentJavaEntry.getCompressedSize(), currentJavaEntry.getSize(), currentJavaEntry.getCrc(),
+                        currentJavaEntry.getTime()));
+                currentJavaEntry = null;
+            }
         } else {
             out.write("\n".getBytes(StandardCharsets.UTF_8));
         }
     }
 
+    /**
+     * Copy a completed entry of another zip into this zip. The entry must not be open.
+     * <p>
+     * The deflated data is inflated and deflated again.
+     *
+     * @param entry  location of the entry in the source
+     * @param source a zip written by this class, it may be incomplete
+     * @throws IOException when the entry is not found or is corrupt
+     */
+    public void copyEntry(DownloadCheckpoint.Entry entry, File source) throws IOException {
+        if (type != Type.zipped) {
+            throw new IOException("entries can only be copied into a zip");
+        }
+
+        try (RandomAccessFile file = new RandomAccessFile(source, "r")) {
+            // the deflated data follows the local header, name and extra field
+            byte[] header = new byte[LOCAL_HEADER_LENGTH];
+            file.seek(entry.getOffset());
+            file.readFully(header);
+            ByteBuffer buffer = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+                throw new IOException("no zip entry at " + entry.getOffset() + " of " + source);
+            }
+            long dataOffset = entry.getOffset() + LOCAL_HEADER_LENGTH
+                    + (buffer.getShort(26) & 0xffff) + (buffer.getShort(28) & 0xffff);
+            if (dataOffset + entry.getCompressedSize() > file.length()) {
+                throw new IOException("zip entry " + entry.getName() + " is incomplete in " + source);
+            }
+
+            InputStream raw = new BoundedInputStream(Channels.newInputStream(file.getChannel().position(dataOffset)),
+                    entry.getCompressedSize());
+            startEntry(entry.getName());
+            // raw deflate requires an extra byte after the data
+            Inflater inflater = new Inflater(true);
+            try {
+                IOUtils.copy(new InflaterInputStream(
+                        new SequenceInputStream(raw, new ByteArrayInputStream(new byte[1])), inflater), zop);
+            } finally {
+                inflater.end();
+            }
+            closeEntry();
+
+            DownloadCheckpoint.Entry copied = closedEntries.get(closedEntries.size() - 1);
+            if (copied.getCrc() != entry.getCrc() || copied.getSize() != entry.getSize()) {
+                throw new IOException("zip entry " + entry.getName() + " of " + source + " is corrupt");
+            }
+        }
+    }
+
     @Override
     public void write(int b) throws IOException {
         if (type == Type.zipped) {
@@ -104,6 +238,15 @@ public class OptionalZipOutputStream extends OutputStream {
         }
     }
 
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (type == Type.zipped) {
+            zop.write(b, off, len);
+        } else {
+            out.write(b, off, len);
+        }
+    }
+
     @Override
     public void close() throws IOException {
         if (type == Type.zipped) {
@@ -130,4 +273,25 @@ public class OptionalZipOutputStream extends OutputStream {
         return currentEntry;
     }
 
+    /**
+     * @return the part number of the current entry, 1 when it is not split
+     */
+    public int getCurrentPart() {
+        return splitCount;
+    }
+
+    /**
+     * @return locations of the zip entries that are closed, in the order they were written
+     */
+    public List<DownloadCheckpoint.Entry> getClosedEntries() {
+        return Collections.unmodifiableList(closedEntries);
+    }
+
+    /**
+     * @return bytes of the zip written to the underlying stream, 0 when unzipped
+     */
+    public long getBytesWritten() {
+        return counter == null ? 0 : counter.getByteCount();
+    }
+
 }
@@ -0,0 +1,18 @@
+package au.org.ala.biocache.stream;
+
+/**
+ * A ProcessInterface that also accepts the values of a record in a fixed column order, so that an /export can be
+ * decoded without creating a Tuple for each record.
+ */
+public interface ProcessColumnsInterface extends ProcessInterface {
+
+    /**
+     * @return the field of each column of a row
+     */
+    String[] getColumnFields();
+
+    /**
+     * @param row values of the fields of getColumnFields(), null when missing. The row is reused for the next record.
+     */
+    boolean process(Object[] row);
+}
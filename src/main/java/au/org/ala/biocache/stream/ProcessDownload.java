@@ -1,8 +1,8 @@
 package au.org.ala.biocache.stream;
 
-import au.com.bytecode.opencsv.CSVReader;
 import au.org.ala.biocache.dao.SearchDAOImpl;
 import au.org.ala.biocache.dto.*;
+import au.org.ala.biocache.dto.DownloadMetrics.Stage;
 import au.org.ala.biocache.service.LayersService;
 import au.org.ala.biocache.service.ListsService;
 import au.org.ala.biocache.util.RecordWriter;
@@ -12,20 +12,23 @@ import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
 import org.apache.solr.client.solrj.io.Tuple;
 
-import java.io.Reader;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.function.Consumer;
 
 import static au.org.ala.biocache.dto.OccurrenceIndex.*;
 
-public class ProcessDownload implements ProcessInterface {
+public class ProcessDownload implements ProcessColumnsInterface {
 
     protected static final Logger logger = Logger.getLogger(ProcessDownload.class);
 
     final static int MAX_BATCH_SIZE = 1000;
 
+    final static int DEFAULT_SAMPLE_CACHE_SIZE = 100000;
+
     DownloadStats downloadStats;
     RecordWriter recordWriter;
     DownloadDetailsDTO downloadDetails;
@@ -41,23 +44,114 @@ public class ProcessDownload implements ProcessInterface {
     boolean includeMultivalues;
     boolean includeMisc;
 
-    // remote analysis layer intersections require batching for performance reasons
-    List<String[]> batch = new ArrayList();
-    double[][] points = new double[MAX_BATCH_SIZE][2];
+    // false when the download stats are found with a facet query
+    boolean countStats = true;
+
+    // remote analysis layer intersections require batching for performance reasons.
+    // Rows in the batch are reused after they are written.
+    final AnalysisLayerIntersection intersection;
+
+    // longitude and latitude of the current record, NaN when invalid
+    final double[] coordinates = new double[2];
 
+    // reused row when batching is not required
     String[] values = new String[0];
 
     long startTime = 0;
 
+    // stage times are accumulated here and added to the download metrics after each batch of records
+    final DownloadMetrics metrics;
+    final long[] stageNanos = new long[Stage.values().length];
+    int unpublishedRecords;
+    // nanoTime at the end of the previous process(), 0 before the first record
+    long lastNanos;
+
+    // column plan, offsets of each group of columns in a row
+    final int analysisOffset;
+    final int speciesListOffset;
+    final int qaOffset;
+    final int miscOffset;
+
+    // species list data resource and kvp index of each species list column
+    final String[] speciesListDrs;
+    final int[] speciesListFieldIdx;
+    List<Kvp>[] speciesListKvps;
+
+    // qa id to bit index, the bit index of each qa column, and the assertions of the current record
+    final Map<String, Integer> qaIndex = new HashMap<>();
+    final int[] qaBits;
+    final BitSet qaValues = new BitSet();
+
+    // misc field to column index. Known fields are found without locking miscFields.
+    final ConcurrentHashMap<String, Integer> miscIndex = new ConcurrentHashMap<>();
+
+    final StringBuilder multivalueBuilder = new StringBuilder();
+
+    // fields of the columns of a record, the included fields followed by other fields used to process a record
+    final Map<String, Integer> columns = new LinkedHashMap<>();
+    final String[] columnFields;
+    // column of each headers.included field that is requested of SOLR
+    final int[] includedColumns;
+    final int dataResourceColumn;
+    final int idColumn;
+    final int institutionColumn;
+    final int collectionColumn;
+    final int dataProviderColumn;
+    final int licenseColumn;
+    final int lftColumn;
+    final int rgtColumn;
+    final int assertionsColumn;
+    final int sensitiveLongitudeColumn;
+    final int sensitiveLatitudeColumn;
+    final int longitudeColumn;
+    final int latitudeColumn;
+    final int miscColumn;
+
+    // reused record of process(Tuple)
+    final Object[] tupleRow;
+
+    // resumable downloads, a checkpoint is taken when a data file entry of the zip is complete
+    OptionalZipOutputStream checkpointZip;
+    Consumer<DownloadCheckpoint> checkpointListener;
+    int checkpointQuery;
+    int checkpointAttempts;
+    int checkpointEntries;
+    long checkpointRecords;
+    String lastWrittenId;
+    // ids of the rows that are processed and not yet written, in the order they are written
+    final ArrayDeque<String> unwrittenIds = new ArrayDeque<>();
+
+    // separate values of multivalue columns of the rows that are processed and not yet written
+    final boolean writeMultivalues;
+    final ArrayDeque<String[][]> unwrittenMultivalues = new ArrayDeque<>();
+    String[][] multivalues;
+
     public ProcessDownload(DownloadStats downloadStats, DownloadHeaders headers,
                            RecordWriter recordWriter, DownloadDetailsDTO downloadDetails, boolean checkLimit,
                            long maxDownloadSize,
                            ListsService listsService,
                            LayersService layersService) {
+        this(downloadStats, headers, recordWriter, downloadDetails, checkLimit, maxDownloadSize, listsService,
+                layersService, null, 0, DEFAULT_SAMPLE_CACHE_SIZE);
+    }
+
+    /**
+     * @param sampleExecutor    executor for analysis layer intersections, or null to sample on the download thread
+     * @param sampleMaxInFlight number of batches that may be waiting on the layers service while the download continues
+     * @param sampleCacheSize   number of sampled coordinates to keep for the remainder of the download
+     */
+    public ProcessDownload(DownloadStats downloadStats, DownloadHeaders headers,
+                           RecordWriter recordWriter, DownloadDetailsDTO downloadDetails, boolean checkLimit,
+                           long maxDownloadSize,
+                           ListsService listsService,
+                           LayersService layersService,
+                           ExecutorService sampleExecutor, int sampleMaxInFlight, int sampleCacheSize) {
         this.downloadStats = downloadStats;
         this.headers = headers;
-        this.recordWriter = recordWriter;
+        this.recordWriter = new TimedRecordWriter(recordWriter);
+        this.writeMultivalues = recordWriter.writesMultivalues();
         this.downloadDetails = downloadDetails;
+        this.metrics = downloadDetails.getMetrics();
         this.checkLimit = checkLimit;
         this.resultsCount = downloadDetails.getRecordsDownloaded();
         this.maxDownloadSize = maxDownloadSize;
@@ -71,6 +165,80 @@ public class ProcessDownload implements ProcessInterface {
                 !downloadDetails.getRequestParams().getIncludeMultivalues();
         this.includeMisc = downloadDetails != null && downloadDetails.getRequestParams() != null &&
                 downloadDetails.getRequestParams().getIncludeMisc();
+
+        this.includedColumns = new int[headers.labels.length];
+        for (int j = 0; j < headers.labels.length; j++) {
+            includedColumns[j] = column(headers.included[j]);
+        }
+        this.dataResourceColumn = column(DATA_RESOURCE_UID);
+        this.idColumn = column(ID);
+        this.institutionColumn = column(INSTITUTION_UID);
+        this.collectionColumn = column(COLLECTION_UID);
+        this.dataProviderColumn = column(DATA_PROVIDER_UID);
+        this.licenseColumn = column(LICENSE);
+        this.lftColumn = column("lft");
+        this.rgtColumn = column("rgt");
+        this.assertionsColumn = column("assertions");
+        this.sensitiveLongitudeColumn = column("sensitive_decimalLongitude");
+        this.sensitiveLatitudeColumn = column("sensitive_decimalLatitude");
+        this.longitudeColumn = column("decimalLongitude");
+        this.latitudeColumn = column("decimalLatitude");
+        this.miscColumn = column(OccurrenceIndex.MISC);
+        this.columnFields = columns.keySet().toArray(new String[0]);
+        this.tupleRow = new Object[columnFields.length];
+
+        this.analysisOffset = headers.labels.length;
+        this.speciesListOffset = analysisOffset + headers.analysisIds.length;
+        this.qaOffset = speciesListOffset + headers.speciesListIds.length;
+        this.miscOffset = qaOffset + headers.qaLabels.length;
+
+        // species list columns are grouped by data resource, e.g. dr1.0, dr1.1, dr2.0
+        this.speciesListDrs = new String[headers.speciesListIds.length];
+        this.speciesListFieldIdx = new int[headers.speciesListIds.length];
+        String drDot = ".";
+        String dr = "";
+        int fieldIdx = 0;
+        for (int i = 0; i < headers.speciesListIds.length; i++) {
+            if (headers.speciesListIds[i].startsWith(drDot)) {
+                fieldIdx++;
+            } else {
+                dr = headers.speciesListIds[i].split("\\.", 2)[0];
+                drDot = dr + ".";
+                fieldIdx = 0;
+            }
+            speciesListDrs[i] = dr;
+            speciesListFieldIdx[i] = fieldIdx;
+        }
+
+        this.qaBits = new int[headers.qaIds.length];
+        for (int k = 0; k < headers.qaIds.length; k++) {
+            qaIndex.putIfAbsent(headers.qaIds[k], k);
+            qaBits[k] = qaIndex.get(headers.qaIds[k]);
+        }
+
+        synchronized (miscFields) {
+            for (int i = 0; i < miscFields.size(); i++) {
+                miscIndex.put(miscFields.get(i), i);
+            }
+        }
+
+        if (headers.analysisIds.length > 0) {
+            String layersServiceUrl = downloadDetails.getRequestParams() == null ? null :
+                    downloadDetails.getRequestParams().getLayersServiceUrl();
+            this.intersection = new AnalysisLayerIntersection(layersService, layersServiceUrl, headers.analysisIds,
+                    analysisOffset, this.recordWriter, sampleExecutor, MAX_BATCH_SIZE, sampleMaxInFlight, sampleCacheSize);
+        } else {
+            this.intersection = null;
+        }
+    }
+
+    private int column(String field) {
+        return columns.computeIfAbsent(field, key -> columns.size());
+    }
+
+    @Override
+    public String[] getColumnFields() {
+        return columnFields;
     }
 
     /**
@@ -80,16 +248,99 @@ public class ProcessDownload implements ProcessInterface {
      */
     public boolean flush() {
         // do analysis layer intersections before writing the batch
-        intersectAnalysisLayers();
+        if (intersection != null) {
+            long start = System.nanoTime();
+            long written = stageNanos[Stage.WRITE.ordinal()];
+            intersection.flush();
+            addIntersectionTime(start, written);
+        }
+        publishMetrics();
 
-        batch.forEach(row -> recordWriter.write(row));
-        batch.clear();
+        synchronized (miscFields) {
+            downloadDetails.setMiscFields(miscFields.toArray(new String[0]));
+        }
 
-        downloadDetails.setMiscFields(miscFields.toArray(new String[0]));
+        // flush() is called at the end of each query
+        if (checkpointListener != null) {
+            checkpointQuery++;
+            lastWrittenId = null;
+            unwrittenIds.clear();
+        }
 
         return true;
     }
 
+    /**
+     * Take a checkpoint each time a data file entry of the zip is completed. The queries must be sorted by id.
+     * <p>
+     * When resuming, a checkpoint is taken immediately for the entries that were copied to the zip.
+     *
+     * @param zip      the zip the record writer writes to
+     * @param resume   the checkpoint this download resumed from, or null
+     * @param listener receives each checkpoint on the download thread
+     */
+    public void enableCheckpoints(OptionalZipOutputStream zip, DownloadCheckpoint resume,
+                                  Consumer<DownloadCheckpoint> listener) {
+        this.checkpointZip = zip;
+        this.checkpointListener = listener;
+        this.checkpointEntries = zip.getClosedEntries().size();
+        if (resume != null) {
+            checkpointQuery = resume.getQuery();
+            checkpointAttempts = resume.getAttempts();
+            checkpointRecords = resume.getRecords();
+            lastWrittenId = resume.getLastId();
+            checkpoint();
+        }
+    }
+
+    /**
+     * Checkpoint of the completed entries. The stats of rows that are processed and not yet written are
+     * included, so they are approximate when a download with analysis layers resumes.
+     */
+    private void checkpoint() {
+        List<DownloadCheckpoint.Entry> entries = checkpointZip.getClosedEntries();
+        checkpointEntries = entries.size();
+
+        DownloadCheckpoint checkpoint = new DownloadCheckpoint();
+        checkpoint.setQuery(checkpointQuery);
+        checkpoint.setLastId(lastWrittenId);
+        checkpoint.setRecords(checkpointRecords);
+        checkpoint.setBytes(checkpointZip.getBytesWritten());
+        checkpoint.setAttempts(checkpointAttempts);
+        checkpoint.setEntries(new ArrayList<>(entries));
+        synchronized (miscFields) {
+            checkpoint.setMiscFields(miscFields.toArray(new String[0]));
+        }
+        if (countStats) {
+            for (Map.Entry<String, AtomicInteger> entry : downloadStats.getUidStats().entrySet()) {
+                checkpoint.getUidStats().put(entry.getKey(), entry.getValue().get());
+            }
+            checkpoint.getLicences().addAll(downloadStats.getLicences());
+        }
+
+        checkpointListener.accept(checkpoint);
+    }
+
+    /**
+     * @param countStats false when the uid counts and licences of the download are added by a facet query
+     */
+    public void setCountStats(boolean countStats) {
+        this.countStats = countStats;
+    }
+
+    /**
+     * Check the record count of the facet query that found the download stats against the records written.
+     * They differ when the index changed during the download or the download was cancelled.
+     *
+     * @param statsCount number of records of the facet query
+     */
+    public void reconcileStats(long statsCount) {
+        long written = resultsCount.get();
+        if (statsCount != written && !downloadDetails.getInterrupt()) {
+            logger.warn("Download stats are for " + statsCount + " records, " + written + " records were written");
+        }
+    }
+
     /**
      * process() transforms a tuple from /export query() into a single row.
      *
@@ -97,6 +348,25 @@ public class ProcessDownload implements ProcessInterface {
      * @return
      */
     public boolean process(Tuple tuple) {
+        for (int i = 0; i < columnFields.length; i++) {
+            tupleRow[i] = tuple.get(columnFields[i]);
+        }
+        return process(tupleRow);
+    }
+
+    /**
+     * process() transforms the values of a record, in the order of getColumnFields(), into a single row.
+     *
+     * @param record values to be formatted
+     * @return
+     */
+    @Override
+    public boolean process(Object[] record) {
+        long start = System.nanoTime();
+        if (lastNanos != 0) {
+            stageNanos[Stage.READ.ordinal()] += start - lastNanos;
+        }
+
         if (downloadDetails.getInterrupt()) {
             // task cancelled
             return false;
@@ -104,7 +374,7 @@ public class ProcessDownload implements ProcessInterface {
 
         boolean finished = false;
 
-        if (tuple.get(DATA_RESOURCE_UID) != null && (!checkLimit || (checkLimit && resultsCount.intValue() < maxDownloadSize))) {
+        if (record[dataResourceColumn] != null && (!checkLimit || (checkLimit && resultsCount.intValue() < maxDownloadSize))) {
 
             long count = resultsCount.getAndIncrement();
 
@@ -113,13 +383,10 @@ public class ProcessDownload implements ProcessInterface {
             // - requested field labels, headers.labels
             // - spatial analysisIds for intersection
             // - species list information
-            int numColumns = headers.labels.length +
-                    headers.analysisIds.length +
-                    headers.speciesListIds.length +
-                    headers.qaLabels.length +
-                    headers.miscLabels.size();
-            if (values.length < numColumns) {
-                values = new String[numColumns];
+            int numColumns = miscOffset + miscIndex.size();
+            String[] row = intersection != null ? intersection.nextRow() : values;
+            if (row == null || row.length < numColumns) {
+                row = new String[numColumns];
             }
 
             if (count % 10000 == 0) {
@@ -129,226 +396,308 @@ public class ProcessDownload implements ProcessInterface {
                 startTime = System.currentTimeMillis();
             }
 
-            appendColumns(tuple, values);
+            if (writeMultivalues) {
+                multivalues = new String[headers.labels.length][];
+                unwrittenMultivalues.add(multivalues);
+            }
+            appendColumns(record, row);
 
             // add species list info after field label and analysisId columns
             if (headers.speciesListIds.length > 0) {
-                appendSpeciesListColumns(tuple, values, headers.labels.length + headers.analysisIds.length);
+                long listsStart = System.nanoTime();
+                stageNanos[Stage.FORMAT.ordinal()] += listsStart - start;
+                appendSpeciesListColumns(record, row, speciesListOffset);
+                start = System.nanoTime();
+                stageNanos[Stage.LISTS.ordinal()] += start - listsStart;
             }
 
             // add the assertions in separate columns
             if (headers.qaLabels.length > 0) {
-                appendQaColumns(tuple, values, headers.labels.length + headers.analysisIds.length + headers.speciesListIds.length);
+                appendQaColumns(record, row, qaOffset);
             }
 
             // Append previous and new non-empty misc fields.
             if (includeMisc) {
-                values = appendMiscColumns(tuple, values, headers.labels.length + headers.analysisIds.length + headers.speciesListIds.length + headers.qaLabels.length);
+                row = appendMiscColumns(record, row, miscOffset);
             }
 
-            //increment the counters....
-            SearchDAOImpl.incrementCount(downloadStats.getUidStats(), tuple.get(INSTITUTION_UID));
-            SearchDAOImpl.incrementCount(downloadStats.getUidStats(), tuple.get(COLLECTION_UID));
-            SearchDAOImpl.incrementCount(downloadStats.getUidStats(), tuple.get(DATA_PROVIDER_UID));
-            SearchDAOImpl.incrementCount(downloadStats.getUidStats(), tuple.get(DATA_RESOURCE_UID));
-            downloadStats.addLicence((String) tuple.get(LICENSE));
-
-            if (headers.analysisIds.length > 0) {
-                // record longitude and latitude for remote analysis layer intersections
-                recordCoordinates(tuple);
-                batch.add(Arrays.copyOf(values, values.length));
+            if (checkpointListener != null) {
+                unwrittenIds.add(String.valueOf(record[idColumn]));
+            }
 
-                if (batch.size() == MAX_BATCH_SIZE) {
-                    try {
-                        flush();
-                    } catch (Exception ignored) {
+            //increment the counters....
+            if (countStats) {
+                SearchDAOImpl.incrementCount(downloadStats.getUidStats(), record[institutionColumn]);
+                SearchDAOImpl.incrementCount(downloadStats.getUidStats(), record[collectionColumn]);
+                SearchDAOImpl.incrementCount(downloadStats.getUidStats(), record[dataProviderColumn]);
+                SearchDAOImpl.incrementCount(downloadStats.getUidStats(), record[dataResourceColumn]);
+                downloadStats.addLicence((String) record[licenseColumn]);
+            }
 
-                    }
+            long formatted = System.nanoTime();
+            stageNanos[Stage.FORMAT.ordinal()] += formatted - start;
 
-                    // Clear the batch. May be required when flush() throws an exception.
-                    batch.clear();
-                }
+            if (intersection != null) {
+                // record longitude and latitude for remote analysis layer intersections
+                recordCoordinates(record);
+                long written = stageNanos[Stage.WRITE.ordinal()];
+                intersection.add(row, coordinates[0], coordinates[1]);
+                addIntersectionTime(formatted, written);
             } else {
                 // batching is not required where there are no analysis layers
-                recordWriter.write(values);
+                values = row;
+                recordWriter.write(row);
+            }
+
+            if (++unpublishedRecords == MAX_BATCH_SIZE) {
+                publishMetrics();
             }
         } else {
             // reached the record limit
             finished = true;
         }
 
+        lastNanos = System.nanoTime();
+
         return finished;
     }
 
-    private void appendQaColumns(Tuple tuple, String[] values, int offset) {
-        java.util.Collection<String> assertions = tuple.getStrings("assertions");
+    /**
+     * Time in the intersection, excluding the rows it wrote since writeNanos.
+     */
+    private void addIntersectionTime(long start, long writeNanos) {
+        long elapsed = System.nanoTime() - start;
+        stageNanos[Stage.INTERSECTION.ordinal()] += elapsed - (stageNanos[Stage.WRITE.ordinal()] - writeNanos);
+    }
+
+    private void publishMetrics() {
+        metrics.addRecords(unpublishedRecords);
+        unpublishedRecords = 0;
+        for (Stage stage : Stage.values()) {
+            metrics.addStageTime(stage, stageNanos[stage.ordinal()]);
+            stageNanos[stage.ordinal()] = 0;
+        }
+    }
+
+    /**
+     * Adds the time spent writing rows to the WRITE stage.
+     */
+    private final class TimedRecordWriter implements RecordWriter {
+        private final RecordWriter writer;
+
+        TimedRecordWriter(RecordWriter writer) {
+            this.writer = writer;
+        }
+
+        @Override
+        public void initialise() {
+            writer.initialise();
+        }
+
+        @Override
+        public void write(String[] record) {
+            long start = System.nanoTime();
+            if (writeMultivalues) {
+                writer.write(record, unwrittenMultivalues.poll());
+            } else {
+                writer.write(record);
+            }
+            stageNanos[Stage.WRITE.ordinal()] += System.nanoTime() - start;
+
+            if (checkpointListener != null) {
+                lastWrittenId = unwrittenIds.poll();
+                checkpointRecords++;
+                // the zip entry is split after a record is written
+                if (checkpointZip.getClosedEntries().size() > checkpointEntries) {
+                    checkpoint();
+                }
+            }
+        }
+
+        @Override
+        public boolean finalised() {
+            return writer.finalised();
+        }
+
+        @Override
+        public void finalise() {
+            writer.finalise();
+        }
+    }
+
+    private void appendQaColumns(Object[] record, String[] values, int offset) {
+        java.util.Collection<String> assertions = (java.util.Collection<String>) record[assertionsColumn];
 
         //Handle the case where there a no assertions against a record
-        if (assertions == null) {
-            assertions = Collections.EMPTY_LIST;
+        if (assertions != null) {
+            for (String assertion : assertions) {
+                Integer k = qaIndex.get(assertion);
+                if (k != null) {
+                    qaValues.set(k);
+                }
+            }
         }
 
         for (int k = 0; k < headers.qaIds.length; k++) {
-            values[offset + k] = Boolean.toString(assertions.contains(headers.qaIds[k]));
+            values[offset + k] = qaValues.get(qaBits[k]) ? "true" : "false";
         }
+        qaValues.clear();
     }
 
-    private void appendColumns(Tuple tuple, String[] values) {
+    private void appendColumns(Object[] record, String[] values) {
         // get all the fields requested of SOLR, excluding post-process fields.
         // post-process fields requested are headers.included[pos] where pos >= headers.labels.length
         for (int j = 0; j < headers.labels.length; j++) {
-            Object obj = tuple.get(headers.included[j]);
+            Object obj = record[includedColumns[j]];
 
             if (obj == null) {
                 values[j] = "";
+            } else if (obj instanceof String) {
+                values[j] = (String) obj;
             } else if (obj instanceof Collection) {
-
-                Stream objStream = ((Collection) obj).stream();
-
-                if (!includeMultivalues) {
-                    objStream = objStream.limit(1);
+                values[j] = formatMultivalue((Collection) obj);
+                if (writeMultivalues && includeMultivalues && ((Collection) obj).size() > 1) {
+                    multivalues[j] = formatValues((Collection) obj);
                 }
-
-                values[j] = (String) objStream.map(SearchUtils::formatValue).collect(Collectors.joining(" | "));
-
             } else {
                 values[j] = SearchUtils.formatValue(obj);
             }
         }
     }
 
-    private void appendSpeciesListColumns(Tuple tuple, String[] values, int offset) {
-        String lftString = String.valueOf(tuple.getString("lft"));
-        String rgtString = String.valueOf(tuple.getString("rgt"));
+    /**
+     * Join the values with " | ", or the first value only when multivalues are not included.
+     */
+    private String formatMultivalue(Collection collection) {
+        Iterator it = collection.iterator();
+        if (!it.hasNext()) {
+            return "";
+        }
+        String first = SearchUtils.formatValue(it.next());
+        if (!includeMultivalues || !it.hasNext()) {
+            return first;
+        }
+
+        StringBuilder sb = multivalueBuilder;
+        sb.setLength(0);
+        sb.append(first);
+        while (it.hasNext()) {
+            sb.append(" | ").append(SearchUtils.formatValue(it.next()));
+        }
+        return sb.toString();
+    }
+
+    private static String[] formatValues(Collection collection) {
+        String[] formatted = new String[collection.size()];
+        int i = 0;
+        for (Object value : collection) {
+            formatted[i++] = SearchUtils.formatValue(value);
+        }
+        return formatted;
+    }
+
+    private void appendSpeciesListColumns(Object[] record, String[] values, int offset) {
+        String lftString = String.valueOf(record[lftColumn]);
+        String rgtString = String.valueOf(record[rgtColumn]);
         if (StringUtils.isNumeric(lftString)) {
             long lft = Long.parseLong(lftString);
             long rgt = Long.parseLong(rgtString);
             Kvp lftrgt = new Kvp(lft, rgt);
 
-            String drDot = ".";
-            String dr = "";
-            int fieldIdx = 0;
-            for (int i = 0; i < headers.speciesListIds.length; i++) {
-                if (headers.speciesListIds[i].startsWith(drDot)) {
-                    fieldIdx++;
-                } else {
-                    dr = headers.speciesListIds[i].split("\\.", 2)[0];
-                    drDot = dr + ".";
-                    fieldIdx = 0;
+            if (speciesListKvps == null) {
+                speciesListKvps = new List[speciesListDrs.length];
+                for (int i = 0; i < speciesListDrs.length; i++) {
+                    speciesListKvps[i] = (i > 0 && speciesListDrs[i].equals(speciesListDrs[i - 1])) ?
+                            speciesListKvps[i - 1] : listsService.getKvp(speciesListDrs[i]);
                 }
-
-                values[offset + i] = listsService.getKvpValue(fieldIdx, listsService.getKvp(dr), lftrgt);
             }
-        }
-    }
-
-    private void intersectAnalysisLayers() {
-        String layersServiceUrl = downloadDetails.getRequestParams().getLayersServiceUrl();
 
-        if (batch.size() > 0 && StringUtils.isNotEmpty(layersServiceUrl) && headers.analysisIds.length > 0) {
-            List<String[]> intersection = new ArrayList<String[]>();
-            try {
-                // only do intersection where there is at least one valid coordinate
-                int i = 0;
-                for (i = 0; i < batch.size(); i++) {
-                    if (points[i][0] != Integer.MIN_VALUE) {
-                        break;
-                    }
-                }
-                if (i < batch.size()) {
-                    Reader reader = layersService.sample(layersServiceUrl, headers.analysisIds, points);
-
-                    CSVReader csv = new CSVReader(reader);
-                    intersection = csv.readAll();
-                    csv.close();
-
-                    for (int j = 0; j < batch.size(); j++) {
-                        //+1 offset for header row in intersection list
-                        String[] sampling = intersection.get(j + 1);
-                        //+2 offset for latitude,longitude columns in sampling array
-                        if (sampling != null && sampling.length == headers.analysisIds.length + 2) {
-                            // suitable space is already available in each batch row String[]
-                            System.arraycopy(sampling, 2, batch.get(j), headers.labels.length, sampling.length - 2);
-                        }
-                    }
-                }
-            } catch (Exception e) {
-                logger.error("Failed to intersect analysis layers", e);
+            for (int i = 0; i < speciesListDrs.length; i++) {
+                values[offset + i] = listsService.getKvpValue(speciesListFieldIdx[i], speciesListKvps[i], lftrgt);
             }
+        } else {
+            Arrays.fill(values, offset, offset + speciesListDrs.length, "");
         }
     }
 
-    private void recordCoordinates(Tuple tuple) {
+    private void recordCoordinates(Object[] record) {
         try {
             Object lon = null;
             Object lat = null;
-            if ((lon = tuple.get("sensitive_decimalLongitude")) == null || (lat = tuple.get("sensitive_decimalLatitude")) == null) {
-                lon = tuple.get("decimalLongitude");
-                lat = tuple.get("decimalLatitude");
+            if ((lon = record[sensitiveLongitudeColumn]) == null || (lat = record[sensitiveLatitudeColumn]) == null) {
+                lon = record[longitudeColumn];
+                lat = record[latitudeColumn];
             }
             if (lon == null || lat == null) {
-                // set as invalid longitude
-                points[batch.size()][0] = Integer.MIN_VALUE;
-                points[batch.size()][1] = Integer.MIN_VALUE;
+                // set as invalid coordinates
+                coordinates[0] = Double.NaN;
+                coordinates[1] = Double.NaN;
             } else {
-                points[batch.size()][0] = (Double) lon;
-                points[batch.size()][1] = (Double) lat;
+                coordinates[0] = ((Number) lon).doubleValue();
+                coordinates[1] = ((Number) lat).doubleValue();
             }
         } catch (Exception e) {
             // set the coordinates of the point to something that is invalid
-            points[batch.size()][0] = Integer.MIN_VALUE;
-            points[batch.size()][1] = Integer.MIN_VALUE;
+            coordinates[0] = Double.NaN;
+            coordinates[1] = Double.NaN;
         }
     }
 
     /**
      * Appending misc columns can change the size of 'values' when new columns are added.
      *
-     * @param tuple
+     * @param record
      * @param values
      * @return
      */
-    private String[] appendMiscColumns(Tuple tuple, String[] values, int offset) {
-        // append miscValues for columns found
-        List<String> miscValues = new ArrayList<String>(miscFields.size());  // TODO: reuse
+    private String[] appendMiscColumns(Object[] record, String[] values, int offset) {
+        // values of misc fields not in this record are empty
+        Arrays.fill(values, offset, values.length, "");
 
-        // maintain miscFields order using synchronized
-        synchronized (miscFields) {
-            // append known miscField values
-            String json = SearchUtils.formatValue(tuple.get(OccurrenceIndex.MISC));
-            if (StringUtils.isNotEmpty(json)) {
-                try {
-                    JSONObject jo = JSONObject.fromObject(json);
-                    for (String f : miscFields) {
-                        values[offset] = SearchUtils.formatValue(jo.get(f));
-                        offset++;
-
-                        jo.remove(f);
-                    }
-                    // find and append new miscFields and their values
-                    for (Object entry : jo.entrySet()) {
-                        String value = SearchUtils.formatValue(((Map.Entry) entry).getValue());
-                        if (StringUtils.isNotEmpty(value)) {
-                            miscValues.add(value);
-                            miscFields.add((String) ((Map.Entry) entry).getKey());
+        String json = SearchUtils.formatValue(record[miscColumn]);
+        if (StringUtils.isNotEmpty(json)) {
+            try {
+                JSONObject jo = JSONObject.fromObject(json);
+                for (Object o : jo.entrySet()) {
+                    Map.Entry entry = (Map.Entry) o;
+                    String value = SearchUtils.formatValue(entry.getValue());
+                    Integer idx = miscIndex.get(entry.getKey());
+                    if (idx == null) {
+                        if (StringUtils.isEmpty(value)) {
+                            continue;
                         }
+                        idx = addMiscField((String) entry.getKey());
                     }
-                } catch (Exception e) {
-                    // ignore malformed dynamicProperties
-                }
-            }
-        }
 
-        // append miscValues to values
-        if (miscValues.size() > 0) {
-            String[] newValues = new String[miscValues.size() + values.length];
-            System.arraycopy(values, 0, newValues, 0, values.length);
-            for (int i = 0; i < miscValues.size(); i++) {
-                newValues[values.length + i] = miscValues.get(i);
+                    int column = offset + idx;
+                    if (column >= values.length) {
+                        // new columns, including any found by other threads
+                        int length = values.length;
+                        values = Arrays.copyOf(values, Math.max(column + 1, offset + miscIndex.size()));
+                        Arrays.fill(values, length, values.length, "");
+                    }
+                    values[column] = value;
+                }
+            } catch (Exception e) {
+                // ignore malformed dynamicProperties
             }
-            values = newValues;
         }
 
         return values;
     }
+
+    /**
+     * Add a misc field. miscFields is only locked when a new field is found.
+     *
+     * @return the index of the misc field
+     */
+    private int addMiscField(String name) {
+        return miscIndex.computeIfAbsent(name, key -> {
+            // maintain miscFields order using synchronized
+            synchronized (miscFields) {
+                miscFields.add(key);
+                return miscFields.size() - 1;
+            }
+        });
+    }
 }
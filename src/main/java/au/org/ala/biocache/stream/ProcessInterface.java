@@ -6,4 +6,11 @@ public interface ProcessInterface {
     boolean process(Tuple t);
 
     boolean flush();
+
+    /**
+     * @return true when no more tuples are wanted, e.g. the client has gone, so the stream can be closed
+     */
+    default boolean isStopped() {
+        return false;
+    }
 }
\ No newline at end of file
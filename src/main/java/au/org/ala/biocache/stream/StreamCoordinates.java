@@ -0,0 +1,88 @@
+package au.org.ala.biocache.stream;
+
+import org.apache.log4j.Logger;
+import org.apache.solr.client.solrj.io.Tuple;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes the values of a streaming facet of a point field, e.g. lat_long, as CSV.
+ * <p>
+ * Each value is written as it is read, through a fixed size buffer, so a slow client slows the read of the facet
+ * instead of the values accumulating in memory.
+ */
+public class StreamCoordinates implements ProcessInterface {
+
+    private final static Logger logger = Logger.getLogger(StreamCoordinates.class);
+
+    static final String HEADER = "latitude,longitude\n";
+
+    Writer writer;
+    long count;
+    boolean failed;
+
+    public StreamCoordinates(OutputStream out) {
+        this.writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 65536);
+    }
+
+    public boolean process(Tuple tuple) {
+        if (failed) {
+            return false;
+        }
+
+        String name = null;
+        long valueCount = 0;
+        for (Object value : tuple.getMap().values()) {
+            if (value instanceof String) {
+                name = (String) value;
+            } else if (value instanceof Number) {
+                valueCount = ((Number) value).longValue();
+            }
+        }
+
+        if (name != null && valueCount > 0) {
+            try {
+                if (count == 0) {
+                    writer.write(HEADER);
+                }
+                writer.write(name);
+                writer.write('\n');
+                if (count == 0) {
+                    // start the response
+                    writer.flush();
+                }
+                count++;
+            } catch (IOException e) {
+                // the client has gone
+                logger.debug("failed to write coordinates after " + count + ": " + e.getMessage());
+                failed = true;
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    public boolean flush() {
+        try {
+            writer.flush();
+        } catch (IOException e) {
+            logger.debug("failed to write coordinates after " + count + ": " + e.getMessage());
+            failed = true;
+        }
+        return !failed;
+    }
+
+    @Override
+    public boolean isStopped() {
+        return failed;
+    }
+
+    /**
+     * @return number of coordinates written
+     */
+    public long getCount() {
+        return count;
+    }
+}
@@ -0,0 +1,65 @@
+package au.org.ala.biocache.stream;
+
+import au.org.ala.biocache.dto.OccurrencePoints;
+import org.apache.log4j.Logger;
+import org.apache.solr.client.solrj.io.Tuple;
+
+/**
+ * Reads a streaming facet of a point field, e.g. point-0.01 with values "lat,long", into OccurrencePoints.
+ */
+public class StreamPoints implements ProcessInterface {
+
+    private final static Logger logger = Logger.getLogger(StreamPoints.class);
+
+    OccurrencePoints points;
+    int max;
+
+    /**
+     * @param points receives the points
+     * @param max    maximum number of points, -1 for no limit
+     */
+    public StreamPoints(OccurrencePoints points, int max) {
+        this.points = points;
+        this.max = max;
+    }
+
+    public boolean process(Tuple tuple) {
+        if (max >= 0 && points.size() >= max) {
+            return false;
+        }
+
+        String name = null;
+        long count = 0;
+        for (Object value : tuple.getMap().values()) {
+            if (value instanceof String) {
+                name = (String) value;
+            } else if (value instanceof Number) {
+                count = ((Number) value).longValue();
+            }
+        }
+
+        if (name != null && count > 0) {
+            int comma = name.indexOf(',');
+            if (comma > 0) {
+                try {
+                    float latitude = Float.parseFloat(name.substring(0, comma));
+                    float longitude = Float.parseFloat(name.substring(comma + 1));
+                    points.add(longitude, latitude, count);
+                } catch (NumberFormatException e) {
+                    logger.warn("Error parsing Float for Lat/Long: " + name);
+                }
+            }
+        }
+
+        return true;
+    }
+
+    public boolean flush() {
+        return true;
+    }
+
+    @Override
+    public boolean isStopped() {
+        return max >= 0 && points.size() >= max;
+    }
+}
@@ -0,0 +1,218 @@
+/**************************************************************************
+ *  Copyright (C) 2022 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.util;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.RestOperations;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Caches the citation metadata of collectory uids (institutions, collections, data providers and data resources).
+ * <p>
+ * Only uids that are not cached are requested from the citation service, in bulk. Entries older than the TTL are
+ * still used and are refreshed in the background. Uids that the collectory does not know are also cached, so that
+ * they are not requested by every download.
+ * <p>
+ * The cache is warmed with the uids of the CollectionsCache when the service starts, or after the CollectionsCache
+ * is first loaded.
+ */
+@Component("citationCache")
+public class CitationCache {
+
+    private final static Logger logger = Logger.getLogger(CitationCache.class);
+
+    @Value("${citations.url:https://collections.ala.org.au/ws/citations}")
+    protected String citationServiceUrl = "https://collections.ala.org.au/ws/citations";
+
+    @Value("${caches.citations.enabled:true}")
+    protected Boolean enabled = true;
+
+    /**
+     * Time in ms before a citation is refreshed
+     */
+    @Value("${caches.citations.ttl:86400000}")
+    protected Long ttl = 86400000L;
+
+    /**
+     * Maximum number of uids in a request to the citation service
+     */
+    @Value("${caches.citations.batch.size:500}")
+    protected Integer batchSize = 500;
+
+    @Inject
+    private RestOperations restTemplate;
+
+    @Inject
+    protected CollectionsCache collectionsCache;
+
+    private final Map<String, Entry> cache = new ConcurrentHashMap<>();
+
+    final ExecutorService warmExecutor = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setNameFormat("citation-cache-warm").setDaemon(true).build());
+    private final AtomicBoolean warmed = new AtomicBoolean();
+
+    /**
+     * A citation, or a uid that is not in the collectory when citation is null
+     */
+    private static final class Entry {
+        final Map<String, Object> citation;
+        final long time;
+
+        Entry(Map<String, Object> citation, long time) {
+            this.citation = citation;
+            this.time = time;
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        if (enabled) {
+            collectionsCache.addUpdateListener(this::warmOnce);
+            warmOnce();
+        }
+    }
+
+    /**
+     * Warm the cache in the background the first time the CollectionsCache has data resources.
+     */
+    private void warmOnce() {
+        if (!collectionsCache.getDataResources().isEmpty() && warmed.compareAndSet(false, true)) {
+            warmExecutor.execute(this::warm);
+        }
+    }
+
+    /**
+     * Fetch the citations of all uids in the CollectionsCache.
+     */
+    void warm() {
+        Set<String> uids = new LinkedHashSet<>();
+        uids.addAll(collectionsCache.getDataResources().keySet());
+        uids.addAll(collectionsCache.getDataProviders().keySet());
+        uids.addAll(collectionsCache.getInstitutions().keySet());
+        uids.addAll(collectionsCache.getCollections().keySet());
+
+        logger.info("Warming citation cache with " + uids.size() + " uids");
+        fetch(uids);
+    }
+
+    /**
+     * Refresh citations that are older than the TTL.
+     */
+    @Scheduled(fixedDelay = 3600000L) //every hour
+    public void refresh() {
+        if (enabled) {
+            long expired = System.currentTimeMillis() - ttl;
+            List<String> uids = new ArrayList<>();
+            for (Map.Entry<String, Entry> entry : cache.entrySet()) {
+                if (entry.getValue().time < expired) {
+                    uids.add(entry.getKey());
+                }
+            }
+            if (!uids.isEmpty()) {
+                logger.debug("Refreshing " + uids.size() + " citations");
+                fetch(uids);
+            }
+        }
+    }
+
+    /**
+     * Get citations. Uids that are not cached are requested from the citation service.
+     *
+     * @param uids collectory uids
+     * @return the citation of each uid that is in the collectory, in the order of uids
+     */
+    public List<Map<String, Object>> getCitations(Collection<String> uids) {
+        if (!enabled) {
+            return request(new ArrayList<>(uids));
+        }
+
+        List<String> missing = new ArrayList<>();
+        for (String uid : uids) {
+            if (!cache.containsKey(uid)) {
+                missing.add(uid);
+            }
+        }
+        if (!missing.isEmpty()) {
+            fetch(missing);
+        }
+
+        List<Map<String, Object>> citations = new ArrayList<>(uids.size());
+        for (String uid : uids) {
+            Entry entry = cache.get(uid);
+            if (entry != null && entry.citation != null) {
+                citations.add(entry.citation);
+            }
+        }
+        return citations;
+    }
+
+    /**
+     * Request citations in batches and cache them. Requested uids without a citation are cached as missing.
+     * Existing entries are kept when a request fails.
+     */
+    private void fetch(Collection<String> uids) {
+        List<String> list = new ArrayList<>(uids);
+        for (int i = 0; i < list.size(); i += batchSize) {
+            List<String> batch = list.subList(i, Math.min(list.size(), i + batchSize));
+            try {
+                long time = System.currentTimeMillis();
+                Map<String, Map<String, Object>> found = new HashMap<>();
+                for (Map<String, Object> citation : request(batch)) {
+                    found.put((String) citation.get("uid"), citation);
+                }
+                for (String uid : batch) {
+                    cache.put(uid, new Entry(found.get(uid), time));
+                }
+            } catch (Exception e) {
+                logger.error("Failed to get citations from " + citationServiceUrl + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * POST uids to the citation service.
+     *
+     * @return citations with a uid
+     */
+    private List<Map<String, Object>> request(List<String> uids) {
+        if (logger.isDebugEnabled()) {
+            logger.debug("Posting to " + citationServiceUrl);
+            logger.debug("UIDs " + String.join(",", uids));
+        }
+        List<Map<String, Object>> citations = new ArrayList<>();
+        if (!uids.isEmpty()) {
+            List<Map<String, Object>> entities = restTemplate.postForObject(citationServiceUrl, uids, List.class);
+            if (entities != null) {
+                for (Map<String, Object> entity : entities) {
+                    if (entity != null && entity.get("uid") != null) {
+                        citations.add(Collections.unmodifiableMap(entity));
+                    }
+                }
+            }
+        }
+        return citations;
+    }
+}
@@ -16,17 +16,31 @@ package au.org.ala.biocache.util;
 
 import au.org.ala.biocache.service.RestartDataService;
 import com.fasterxml.jackson.core.type.TypeReference;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.MeterBinder;
 import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 import org.springframework.web.client.RestOperations;
 
 import javax.annotation.PostConstruct;
 import javax.inject.Inject;
-import java.lang.reflect.Field;
-import java.util.LinkedHashMap;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Provides access to the collection and institution codes and names from the Collectory.
@@ -35,20 +49,25 @@ import java.util.List;
  *
  * NC 2013-0925 Changed the collection cache to be async scheduled
  *
+ * The maps are held in an immutable {@link Snapshot} that is replaced when an update has finished, so readers
+ * never see a partially updated cache. Updates are conditional (ETag, Last-Modified) so unchanged registry
+ * lists are not downloaded again.
+ *
  * @author "Nick dos Remedios <Nick.dosRemedios@csiro.au>"
  */
 @Component("collectionsCache")
-public class CollectionsCache {
+public class CollectionsCache implements MeterBinder {
 
-    protected LinkedHashMap<String, String> dataResources = RestartDataService.get(this, "dataResources", new TypeReference<LinkedHashMap>(){}, LinkedHashMap.class);
-    protected LinkedHashMap<String, String> dataProviders = RestartDataService.get(this, "dataProviders", new TypeReference<LinkedHashMap>(){}, LinkedHashMap.class);
-    protected LinkedHashMap<String, String> tempDataResources = RestartDataService.get(this, "tempDataResources", new TypeReference<LinkedHashMap>(){}, LinkedHashMap.class);
-    protected LinkedHashMap<String, Integer> downloadLimits = RestartDataService.get(this, "downloadLimits", new TypeReference<LinkedHashMap>(){}, LinkedHashMap.class);
-    protected LinkedHashMap<String, String> institutions = RestartDataService.get(this, "institutions", new TypeReference<LinkedHashMap>(){}, LinkedHashMap.class);
-    protected LinkedHashMap<String, String> collections = RestartDataService.get(this, "collections", new TypeReference<LinkedHashMap>(){}, LinkedHashMap.class);
-    protected LinkedHashMap<String, String> dataHubs = RestartDataService.get(this, "dataHubs", new TypeReference<LinkedHashMap>(){}, LinkedHashMap.class);
+    // last maps, saved by RestartDataService. They are not modified after they are added to a snapshot.
+    protected Map<String, String> dataResources = RestartDataService.get(this, "dataResources", new TypeReference<LinkedHashMap>(){}, LinkedHashMap.class);
+    protected Map<String, String> dataProviders = RestartDataService.get(this, "dataProviders", new TypeReference<LinkedHashMap>(){}, LinkedHashMap.class);
+    protected Map<String, String> tempDataResources = RestartDataService.get(this, "tempDataResources", new TypeReference<LinkedHashMap>(){}, LinkedHashMap.class);
+    protected Map<String, Integer> downloadLimits = RestartDataService.get(this, "downloadLimits", new TypeReference<LinkedHashMap>(){}, LinkedHashMap.class);
+    protected Map<String, String> institutions = RestartDataService.get(this, "institutions", new TypeReference<LinkedHashMap>(){}, LinkedHashMap.class);
+    protected Map<String, String> collections = RestartDataService.get(this, "collections", new TypeReference<LinkedHashMap>(){}, LinkedHashMap.class);
+    protected Map<String, String> dataHubs = RestartDataService.get(this, "dataHubs", new TypeReference<LinkedHashMap>(){}, LinkedHashMap.class);
 
-    protected LinkedHashMap<String, String> combinedLookup = RestartDataService.get(this, "combinedLookup", new TypeReference<LinkedHashMap>(){}, LinkedHashMap.class);
+    protected Map<String, String> combinedLookup = RestartDataService.get(this, "combinedLookup", new TypeReference<LinkedHashMap>(){}, LinkedHashMap.class);
 
     protected List<String> institution_uid = null;
     protected List<String> collection_uid = null;
@@ -66,39 +85,84 @@ public class CollectionsCache {
     @Inject
     private RestOperations restTemplate; // NB MappingJacksonHttpMessageConverter() injected by Spring
     /** Log4J logger */
-    private final static Logger logger = Logger.getLogger(CollectionsCache.class);  
-    
+    private final static Logger logger = Logger.getLogger(CollectionsCache.class);
+
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<>(new Snapshot(institutions, collections,
+            dataResources, dataProviders, tempDataResources, dataHubs, downloadLimits, combinedLookup, 0));
+
+    // ETag and Last-Modified of the last response for each resource type
+    private final Map<ResourceType, HttpHeaders> validators = new EnumMap<>(ResourceType.class);
+
+    private final ExecutorService updateExecutor = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setNameFormat("collections-cache-update").setDaemon(true).build());
+    private final AtomicBoolean updating = new AtomicBoolean();
+
+    private volatile Timer updateTimer;
+
+    private final List<Runnable> updateListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Immutable codes and names of each resource type.
+     */
+    static final class Snapshot {
+        final Map<String, String> institutions;
+        final Map<String, String> collections;
+        // includes temporary data resources
+        final Map<String, String> dataResources;
+        final Map<String, String> dataProviders;
+        final Map<String, String> tempDataResources;
+        final Map<String, String> dataHubs;
+        final Map<String, Integer> downloadLimits;
+        final Map<String, String> combinedLookup;
+        // time of the last successful update of all resource types, 0 when not updated
+        final long updated;
+
+        Snapshot(Map<String, String> institutions, Map<String, String> collections, Map<String, String> dataResources,
+                 Map<String, String> dataProviders, Map<String, String> tempDataResources, Map<String, String> dataHubs,
+                 Map<String, Integer> downloadLimits, Map<String, String> combinedLookup, long updated) {
+            this.institutions = Collections.unmodifiableMap(institutions);
+            this.collections = Collections.unmodifiableMap(collections);
+            this.dataResources = Collections.unmodifiableMap(dataResources);
+            this.dataProviders = Collections.unmodifiableMap(dataProviders);
+            this.tempDataResources = Collections.unmodifiableMap(tempDataResources);
+            this.dataHubs = Collections.unmodifiableMap(dataHubs);
+            this.downloadLimits = Collections.unmodifiableMap(downloadLimits);
+            this.combinedLookup = Collections.unmodifiableMap(combinedLookup);
+            this.updated = updated;
+        }
+    }
+
     /**
      * Get the institutions
      *
      * @return
      */
-    public LinkedHashMap<String, String> getInstitutions() {
-        return this.institutions;
+    public Map<String, String> getInstitutions() {
+        return snapshot.get().institutions;
     }
-    
-    public LinkedHashMap<String, String> getDataResources(){
-        return this.dataResources;
+
+    public Map<String, String> getDataResources(){
+        return snapshot.get().dataResources;
     }
 
-    public LinkedHashMap<String, String> getDataProviders(){
-        return this.dataProviders;
+    public Map<String, String> getDataProviders(){
+        return snapshot.get().dataProviders;
     }
 
-    public LinkedHashMap<String, String> getTempDataResources(){
-        return this.tempDataResources;
+    public Map<String, String> getTempDataResources(){
+        return snapshot.get().tempDataResources;
     }
 
-    public LinkedHashMap<String, String> getCollections() {
-        return this.collections;
+    public Map<String, String> getCollections() {
+        return snapshot.get().collections;
     }
-    
-    public LinkedHashMap<String, String> getDataHubs() {
-        return this.dataHubs;
+
+    public Map<String, String> getDataHubs() {
+        return snapshot.get().dataHubs;
     }
 
-    public LinkedHashMap<String, Integer> getDownloadLimits(){
-        return downloadLimits;
+    public Map<String, Integer> getDownloadLimits(){
+        return snapshot.get().downloadLimits;
     }
 
 
@@ -107,13 +171,20 @@ public class CollectionsCache {
         updateCache();
     }
 
+    /**
+     * @param listener called on the updating thread after each update of the cache
+     */
+    public void addUpdateListener(Runnable listener) {
+        updateListeners.add(listener);
+    }
+
     /**
      * Retrieve a name for UID.
      * @param code
      * @return
      */
     public String getNameForCode(String code){
-        return combinedLookup.get(code);
+        return snapshot.get().combinedLookup.get(code);
     }
 
     /**
@@ -121,56 +192,96 @@ public class CollectionsCache {
      */
     @Scheduled(fixedDelay = 3600000L) //every hour
     public void updateCache() {
-        Thread thread = new Thread() {
-            @Override
-            public void run() {
-                if(enabled){
-                    logger.info("Updating collectory cache...");
-                    LinkedHashMap m;
-                    combinedLookup = new LinkedHashMap<String,String>();
+        if (!enabled) {
+            logger.info("Collectory cache has been disabled");
+            return;
+        }
 
-                    m = getCodesMap(ResourceType.COLLECTION, collection_uid);
-                    if (m != null && m.size() > 0) collections = m; combinedLookup.putAll(m);
+        if (getCollections().size() > 0) {
+            //data already exists, do not wait
+            if (updating.compareAndSet(false, true)) {
+                updateExecutor.execute(() -> {
+                    try {
+                        update();
+                    } finally {
+                        updating.set(false);
+                    }
+                });
+            }
+        } else {
+            //wait
+            update();
+        }
+    }
 
-                    m = getCodesMap(ResourceType.INSTITUTION, institution_uid);
-                    if (m != null && m.size() > 0) institutions = m; combinedLookup.putAll(m);
+    /**
+     * Build a new snapshot and replace the current snapshot.
+     */
+    synchronized void update() {
+        logger.info("Updating collectory cache...");
+        long start = System.nanoTime();
+        Snapshot previous = snapshot.get();
 
-                    m = getCodesMap(ResourceType.DATA_RESOURCE,data_resource_uid);
-                    if (m != null && m.size() > 0) dataResources = m; combinedLookup.putAll(m);
+        // a resource type that failed to update keeps the previous codes
+        boolean complete = true;
+        Map<String, String> collections = getCodesMap(ResourceType.COLLECTION, collection_uid);
+        Map<String, String> institutions = getCodesMap(ResourceType.INSTITUTION, institution_uid);
+        Map<String, String> dataResources = getCodesMap(ResourceType.DATA_RESOURCE, data_resource_uid);
+        Map<String, String> dataProviders = getCodesMap(ResourceType.DATA_PROVIDER, data_provider_uid);
+        Map<String, String> tempDataResources = getCodesMap(ResourceType.TEMP_DATA_RESOURCE, null);
+        Map<String, String> dataHubs = getCodesMap(ResourceType.DATA_HUB, data_hub_uid);
+        if (collections == null) { collections = previous.collections; complete = false; }
+        if (institutions == null) { institutions = previous.institutions; complete = false; }
+        if (dataResources == null) { dataResources = this.dataResources; complete = false; }
+        if (dataProviders == null) { dataProviders = previous.dataProviders; complete = false; }
+        if (tempDataResources == null) { tempDataResources = previous.tempDataResources; complete = false; }
+        if (dataHubs == null) { dataHubs = previous.dataHubs; complete = false; }
 
-                    m = getCodesMap(ResourceType.DATA_PROVIDER, data_provider_uid);
-                    if (m != null && m.size() > 0) dataProviders = m; combinedLookup.putAll(m);
+        LinkedHashMap<String, String> allDataResources = new LinkedHashMap<>(dataResources);
+        allDataResources.putAll(tempDataResources);
 
-                    m = getCodesMap(ResourceType.TEMP_DATA_RESOURCE, null);
-                    if (m != null && m.size() > 0) tempDataResources = m; combinedLookup.putAll(m);
+        LinkedHashMap<String, String> combined = new LinkedHashMap<>();
+        combined.putAll(collections);
+        combined.putAll(institutions);
+        combined.putAll(dataResources);
+        combined.putAll(dataProviders);
+        combined.putAll(tempDataResources);
+        combined.putAll(dataHubs);
 
-                    m = getCodesMap(ResourceType.DATA_HUB, data_hub_uid);
-                    if (m != null && m.size() > 0) dataHubs = m; combinedLookup.putAll(m);
+        snapshot.set(new Snapshot(institutions, collections, allDataResources, dataProviders, tempDataResources,
+                dataHubs, previous.downloadLimits, combined, complete ? System.currentTimeMillis() : previous.updated));
 
-                    dataResources.putAll(tempDataResources);
-                } else{
-                    logger.info("Collectory cache has been disabled");
-                }
-            }
-        };
+        // for RestartDataService
+        this.collections = collections;
+        this.institutions = institutions;
+        this.dataResources = dataResources;
+        this.dataProviders = dataProviders;
+        this.tempDataResources = tempDataResources;
+        this.dataHubs = dataHubs;
+        this.combinedLookup = combined;
 
-        if (collections.size() > 0) {
-            //data already exists, do not wait
-            thread.start();
-        } else {
-            //wait
-            thread.run();
+        Timer timer = updateTimer;
+        if (timer != null) {
+            timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+
+        for (Runnable listener : updateListeners) {
+            try {
+                listener.run();
+            } catch (Exception e) {
+                logger.error("Collectory cache update listener failed: " + e.getMessage(), e);
+            }
         }
     }
-    
+
     /**
      * Do the web services call. Uses RestTemplate.
      *
      * @param type
-     * @return
+     * @return the codes and names, the previous codes when the list is not modified, or null when the request failed
+     * or the list was empty
      */
-    protected LinkedHashMap<String,String> getCodesMap(ResourceType type, List<String> guids) {
-        LinkedHashMap<String, String> entityMap = null;
+    protected Map<String,String> getCodesMap(ResourceType type, List<String> guids) {
         if (logger.isDebugEnabled()) {
             if (guids != null) {
                 logger.debug("Updating code map with guids: " + guids);
@@ -178,32 +289,67 @@ public class CollectionsCache {
                 logger.debug("Updating code map");
             }
         }
-        try {
-            // grab cached values (map) in case WS is not available (uses reflection)
-            Field f = CollectionsCache.class.getDeclaredField(type.getType() + "s"); // field is plural form
-            entityMap = (LinkedHashMap<String, String>) f.get(this);
-            logger.debug("checking map size: " + entityMap.size());
-        } catch (Exception ex) {
-            logger.error("Java reflection error: " + ex.getMessage(), ex);
-        }
 
         try {
-            entityMap = new LinkedHashMap<String, String>(); // reset now we're inside the try
             final String jsonUri = registryUrl + "/" + type.getType() + ".json";
             logger.debug("Requesting: " + jsonUri);
-            List<LinkedHashMap<String, String>> entities = restTemplate.getForObject(jsonUri, List.class);
-            logger.debug("Number of entities = " + entities.size());
 
-            for (LinkedHashMap<String, String> je : entities) {
+            HttpHeaders requestHeaders = new HttpHeaders();
+            HttpHeaders previous = validators.get(type);
+            if (previous != null) {
+                if (previous.getETag() != null) {
+                    requestHeaders.setIfNoneMatch(previous.getETag());
+                }
+                if (previous.getLastModified() > 0) {
+                    requestHeaders.setIfModifiedSince(previous.getLastModified());
+                }
+            }
+
+            ResponseEntity<List> response = restTemplate.exchange(jsonUri, HttpMethod.GET, new HttpEntity<>(requestHeaders), List.class);
+            if (response.getStatusCode() == HttpStatus.NOT_MODIFIED) {
+                logger.debug("Not modified: " + jsonUri);
+                return previousCodes(type);
+            }
+
+            List<Map<String, String>> entities = response.getBody();
+            logger.debug("Number of entities = " + (entities == null ? 0 : entities.size()));
+            if (entities == null || entities.isEmpty()) {
+                return null;
+            }
+
+            LinkedHashMap<String, String> entityMap = new LinkedHashMap<String, String>();
+            for (Map<String, String> je : entities) {
                 if(addToCodeMap(je.get("uid"), guids)){
                     entityMap.put(je.get("uid"), je.get("name"));
                 }
             }
+
+            HttpHeaders validator = new HttpHeaders();
+            if (response.getHeaders().getETag() != null) {
+                validator.setETag(response.getHeaders().getETag());
+            }
+            if (response.getHeaders().getLastModified() > 0) {
+                validator.setLastModified(response.getHeaders().getLastModified());
+            }
+            validators.put(type, validator);
+
+            return entityMap;
         } catch (Exception ex) {
             logger.error("RestTemplate error: " + ex.getMessage(), ex);
         }
 
-        return entityMap;
+        return null;
+    }
+
+    private Map<String, String> previousCodes(ResourceType type) {
+        switch (type) {
+            case INSTITUTION: return institutions;
+            case COLLECTION: return collections;
+            case DATA_RESOURCE: return dataResources;
+            case DATA_PROVIDER: return dataProviders;
+            case TEMP_DATA_RESOURCE: return tempDataResources;
+            default: return dataHubs;
+        }
     }
 
     private boolean addToCodeMap(String uid, List<String> guids){
@@ -212,7 +358,27 @@ public class CollectionsCache {
         }
         return true;
     }
-    
+
+    /**
+     * Update time and the time since the last complete update.
+     */
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        updateTimer = Timer.builder("collections.cache.update")
+                .description("Time to update the collectory cache")
+                .register(registry);
+        Gauge.builder("collections.cache.staleness", this, cache -> {
+                    long updated = cache.snapshot.get().updated;
+                    return updated == 0 ? Double.NaN : (System.currentTimeMillis() - updated) / 1000.0;
+                })
+                .description("Seconds since the collectory cache was last updated")
+                .baseUnit("seconds")
+                .register(registry);
+        Gauge.builder("collections.cache.size", this, cache -> cache.snapshot.get().combinedLookup.size())
+                .description("Number of codes in the collectory cache")
+                .register(registry);
+    }
+
     /**
      * Inner enum class
      */
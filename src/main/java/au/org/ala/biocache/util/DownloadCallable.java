@@ -2,28 +2,118 @@ package au.org.ala.biocache.util;
 
 import au.org.ala.biocache.dao.IndexDAO;
 import au.org.ala.biocache.stream.ProcessDownload;
+import org.apache.log4j.Logger;
 import org.apache.solr.client.solrj.SolrQuery;
 
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 public class DownloadCallable implements Callable {
 
+    private static final Logger logger = Logger.getLogger(DownloadCallable.class);
+
     List<SolrQuery> queries;
     IndexDAO indexDAO;
     ProcessDownload procDownload;
 
+    // adds the download stats of all queries and returns the number of records, or null when records are counted
+    // as they are processed
+    Callable<Long> statsQuery;
+    ExecutorService statsExecutor;
+
+    // returns the number of records of each query, or null, so that empty queries are not streamed
+    Callable<long[]> queryCounts;
+
+    // index of queries[0] in the counts of queryCounts. A resumed download skips the queries before its checkpoint.
+    int firstQuery;
+
     public DownloadCallable(List<SolrQuery> queries, IndexDAO indexDAO, ProcessDownload procDownload) {
         this.queries = queries;
         this.procDownload = procDownload;
         this.indexDAO = indexDAO;
     }
 
+    /**
+     * @param statsQuery    adds the download stats of all queries to the download and returns the number of records.
+     *                      It runs on statsExecutor while the queries are streamed.
+     * @param statsExecutor executor for statsQuery
+     */
+    public DownloadCallable(List<SolrQuery> queries, IndexDAO indexDAO, ProcessDownload procDownload,
+                            Callable<Long> statsQuery, ExecutorService statsExecutor) {
+        this(queries, indexDAO, procDownload);
+        this.statsQuery = statsQuery;
+        this.statsExecutor = statsExecutor;
+    }
+
+    /**
+     * @param queryCounts returns the number of records of each query. It is called before the queries are streamed
+     *                    and queries without records are skipped.
+     */
+    public void setQueryCounts(Callable<long[]> queryCounts) {
+        setQueryCounts(queryCounts, 0);
+    }
+
+    /**
+     * @param queryCounts returns the number of records of each query of the download, including queries before
+     *                    firstQuery
+     * @param firstQuery  index in the counts of the first query to stream, e.g. the checkpoint query of a resumed
+     *                    download
+     */
+    public void setQueryCounts(Callable<long[]> queryCounts, int firstQuery) {
+        this.queryCounts = queryCounts;
+        this.firstQuery = firstQuery;
+    }
+
     @Override
     public Object call() throws Exception {
-        // iterate over queries
-        for (SolrQuery query : queries) {
-            indexDAO.streamingQuery(query, procDownload, null, null);
+        Future<Long> stats = null;
+        if (statsQuery != null) {
+            stats = statsExecutor.submit(statsQuery);
+            procDownload.setCountStats(false);
+        }
+
+        long[] counts = null;
+        if (queryCounts != null) {
+            try {
+                counts = queryCounts.call();
+                if (counts != null && counts.length != firstQuery + queries.size()) {
+                    logger.warn("Download query counts do not match the queries, streaming all queries");
+                    counts = null;
+                }
+            } catch (Exception e) {
+                logger.warn("Download query counts failed, streaming all queries: " + e.getMessage());
+            }
+        }
+
+        try {
+            // iterate over queries
+            for (int i = 0; i < queries.size(); i++) {
+                if (counts != null && counts[firstQuery + i] == 0) {
+                    // flush() marks the end of each query for checkpoints
+                    procDownload.flush();
+                    continue;
+                }
+                indexDAO.streamingQuery(queries.get(i), procDownload, null, null);
+            }
+        } catch (Exception e) {
+            if (stats != null) {
+                stats.cancel(true);
+            }
+            throw e;
+        }
+
+        if (stats != null) {
+            Long count;
+            try {
+                count = stats.get();
+            } catch (ExecutionException e) {
+                logger.warn("Download stats query failed, retrying: " + e.getMessage());
+                count = statsQuery.call();
+            }
+            procDownload.reconcileStats(count);
         }
 
         return null;
@@ -0,0 +1,225 @@
+package au.org.ala.biocache.util;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes a Mapbox Vector Tile (version 2) of point and polygon features with integer properties.
+ * <p>
+ * Coordinates are in tile units, 0 to EXTENT from the top left of the tile. Features may be outside the tile, in
+ * the buffer around it.
+ * <p>
+ * The protobuf encoding is written directly. The messages are small and only a few fields are used.
+ */
+public class MvtEncoder {
+
+    public static final int EXTENT = 4096;
+
+    // protobuf wire types
+    private static final int VARINT = 0;
+    private static final int LENGTH_DELIMITED = 2;
+
+    // geometry types
+    private static final int POINT = 1;
+    private static final int POLYGON = 3;
+
+    // geometry commands
+    private static final int MOVE_TO = 1;
+    private static final int LINE_TO = 2;
+    private static final int CLOSE_PATH = 7;
+
+    private final List<Layer> layers = new ArrayList<>();
+
+    /**
+     * @param name unique name of the layer in the tile
+     */
+    public Layer addLayer(String name) {
+        Layer layer = new Layer(name);
+        layers.add(layer);
+        return layer;
+    }
+
+    /**
+     * @return the tile, without empty layers
+     */
+    public byte[] encode() {
+        ByteArrayOutputStream tile = new ByteArrayOutputStream();
+        for (Layer layer : layers) {
+            if (layer.size > 0) {
+                writeBytes(tile, 3, layer.encode());
+            }
+        }
+        return tile.toByteArray();
+    }
+
+    public static class Layer {
+        private final String name;
+
+        private final List<String> keys = new ArrayList<>();
+        private final Map<String, Integer> keyIndex = new HashMap<>();
+        private final List<Long> values = new ArrayList<>();
+        private final Map<Long, Integer> valueIndex = new HashMap<>();
+
+        private final ByteArrayOutputStream features = new ByteArrayOutputStream();
+        private int size;
+
+        // reused for the tags and geometry of a feature
+        private int[] tags = new int[8];
+        private int[] geometry = new int[16];
+
+        Layer(String name) {
+            this.name = name;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public void addPoint(int x, int y, Map<String, Long> properties) {
+            geometry[0] = command(MOVE_TO, 1);
+            geometry[1] = zigzag(x);
+            geometry[2] = zigzag(y);
+            addFeature(POINT, 3, properties);
+        }
+
+        /**
+         * Add a polygon with a single ring.
+         *
+         * @param ring x, y pairs, clockwise on the tile (y is down), without repeating the first point
+         */
+        public void addPolygon(int[] ring, Map<String, Long> properties) {
+            int points = ring.length / 2;
+            if (geometry.length < points * 2 + 3) {
+                geometry = new int[points * 2 + 3];
+            }
+
+            // points repeated after rounding to tile units are dropped
+            int n = 1;
+            int length = 3;
+            int lastX = ring[0];
+            int lastY = ring[1];
+            long area = 0;
+            for (int i = 1; i < points; i++) {
+                int x = ring[i * 2];
+                int y = ring[i * 2 + 1];
+                if (x != lastX || y != lastY) {
+                    geometry[length++] = zigzag(x - lastX);
+                    geometry[length++] = zigzag(y - lastY);
+                    area += (long) lastX * y - (long) x * lastY;
+                    lastX = x;
+                    lastY = y;
+                    n++;
+                }
+            }
+            area += (long) lastX * ring[1] - (long) ring[0] * lastY;
+
+            // a ring of less than 3 points or with no area is not valid
+            if (n < 3 || area <= 0) {
+                return;
+            }
+            geometry[0] = command(MOVE_TO, 1);
+            geometry[1] = zigzag(ring[0]);
+            geometry[2] = zigzag(ring[1]);
+            // LINE_TO replaces the MOVE_TO parameters
+            System.arraycopy(geometry, 3, geometry, 4, length - 3);
+            geometry[3] = command(LINE_TO, n - 1);
+            geometry[length + 1] = command(CLOSE_PATH, 1);
+            addFeature(POLYGON, length + 2, properties);
+        }
+
+        private void addFeature(int type, int geometryLength, Map<String, Long> properties) {
+            if (tags.length < properties.size() * 2) {
+                tags = new int[properties.size() * 2];
+            }
+            int t = 0;
+            for (Map.Entry<String, Long> property : properties.entrySet()) {
+                tags[t++] = keyIndex.computeIfAbsent(property.getKey(), key -> {
+                    keys.add(key);
+                    return keys.size() - 1;
+                });
+                tags[t++] = valueIndex.computeIfAbsent(property.getValue(), value -> {
+                    values.add(value);
+                    return values.size() - 1;
+                });
+            }
+
+            ByteArrayOutputStream feature = new ByteArrayOutputStream(32);
+            writePacked(feature, 2, tags, t);
+            writeTag(feature, 3, VARINT);
+            writeVarint(feature, type);
+            writePacked(feature, 4, geometry, geometryLength);
+
+            writeBytes(features, 2, feature.toByteArray());
+            size++;
+        }
+
+        byte[] encode() {
+            ByteArrayOutputStream layer = new ByteArrayOutputStream(features.size() + 256);
+            writeTag(layer, 15, VARINT);
+            writeVarint(layer, 2);
+            writeBytes(layer, 1, name.getBytes(StandardCharsets.UTF_8));
+            layer.writeBytes(features.toByteArray());
+            for (String key : keys) {
+                writeBytes(layer, 3, key.getBytes(StandardCharsets.UTF_8));
+            }
+            for (Long value : values) {
+                ByteArrayOutputStream message = new ByteArrayOutputStream(12);
+                if (value >= 0) {
+                    // uint_value
+                    writeTag(message, 5, VARINT);
+                    writeVarint(message, value);
+                } else {
+                    // sint_value
+                    writeTag(message, 6, VARINT);
+                    writeVarint(message, (value << 1) ^ (value >> 63));
+                }
+                writeBytes(layer, 4, message.toByteArray());
+            }
+            writeTag(layer, 5, VARINT);
+            writeVarint(layer, EXTENT);
+            return layer.toByteArray();
+        }
+    }
+
+    private static int command(int id, int count) {
+        return (id & 0x7) | (count << 3);
+    }
+
+    private static int zigzag(int n) {
+        return (n << 1) ^ (n >> 31);
+    }
+
+    private static void writeTag(ByteArrayOutputStream out, int field, int wireType) {
+        writeVarint(out, (field << 3) | wireType);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static void writeBytes(ByteArrayOutputStream out, int field, byte[] bytes) {
+        writeTag(out, field, LENGTH_DELIMITED);
+        writeVarint(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static void writePacked(ByteArrayOutputStream out, int field, int[] values, int length) {
+        if (length == 0) {
+            return;
+        }
+        ByteArrayOutputStream packed = new ByteArrayOutputStream(length * 2);
+        for (int i = 0; i < length; i++) {
+            // unsigned
+            writeVarint(packed, values[i] & 0xFFFFFFFFL);
+        }
+        writeBytes(out, field, packed.toByteArray());
+    }
+}
@@ -0,0 +1,40 @@
+package au.org.ala.biocache.util;
+
+import org.locationtech.jts.geom.Envelope;
+
+/**
+ * WKT that is valid, oriented and within a maximum number of points, with its bounding box.
+ *
+ * @see SpatialUtils#normaliseWkt(String, int)
+ */
+public class NormalisedWkt {
+
+    private final String wkt;
+    private final Envelope envelope;
+    private final int numPoints;
+
+    public NormalisedWkt(String wkt, Envelope envelope, int numPoints) {
+        this.wkt = wkt;
+        this.envelope = envelope;
+        this.numPoints = numPoints;
+    }
+
+    public String getWkt() {
+        return wkt;
+    }
+
+    public Envelope getEnvelope() {
+        return envelope;
+    }
+
+    public int getNumPoints() {
+        return numPoints;
+    }
+
+    /**
+     * @return bounding box as [min longitude, min latitude, max longitude, max latitude]
+     */
+    public double[] getBBox() {
+        return new double[]{envelope.getMinX(), envelope.getMinY(), envelope.getMaxX(), envelope.getMaxY()};
+    }
+}
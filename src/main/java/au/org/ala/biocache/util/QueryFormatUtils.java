@@ -47,6 +47,9 @@ public class QueryFormatUtils {
     @Inject
     protected LayersService layersService;
 
+    @Inject
+    protected SpatialObjectCache spatialObjectCache;
+
     @Inject
     protected QidCacheDAO qidCacheDao;
 
@@ -823,12 +826,19 @@ public class QueryFormatUtils {
             String spatialObjectId = m.group(2);
             String prefix = m.group(1);
             try {
-                String wkt = layersService.getObjectWkt(spatialObjectId);
+                String q;
+                String layerFq = spatialObjectCache == null ? null : spatialObjectCache.getLayerFq(spatialObjectId);
+                if (layerFq != null) {
+                    q = prefix + layerFq;
+                } else {
+                    String wkt = spatialObjectCache == null ? layersService.getObjectWkt(spatialObjectId) :
+                            spatialObjectCache.getQueryWkt(spatialObjectId);
 
-                if (wkt == null) {
-                    throw new Exception("invalid object id");
+                    if (wkt == null) {
+                        throw new Exception("invalid object id");
+                    }
+                    q = prefix + spatialField + ":\"Intersects(" + wkt + ")\"";
                 }
-                String q = prefix + spatialField + ":\"Intersects(" + wkt + ")\"";
 
                 m.appendReplacement(sb, q);
             } catch (Exception e) {
@@ -13,6 +13,23 @@ public interface RecordWriter {
      */
     void write(String[] record);
 
+    /**
+     * Writes the supplied record with the separate values of multivalue columns.
+     *
+     * @param multivalues values of each column that has more than one value, otherwise null. The record has
+     *                    these values joined.
+     */
+    default void write(String[] record, String[][] multivalues) {
+        write(record);
+    }
+
+    /**
+     * Returns true if this record writer uses the separate values of multivalue columns.
+     */
+    default boolean writesMultivalues() {
+        return false;
+    }
+
     /**
      * Returns true if this record writer has been finalised
      */
@@ -0,0 +1,257 @@
+/**************************************************************************
+ *  Copyright (C) 2022 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.util;
+
+import au.org.ala.biocache.dao.IndexDAO;
+import au.org.ala.biocache.dto.IndexFieldDTO;
+import au.org.ala.biocache.dto.SpatialObjectDTO;
+import au.org.ala.biocache.service.LayersService;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.simplify.TopologyPreservingSimplifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Caches the geometry of layers service objects (spatialObject: query terms).
+ * <p>
+ * Each object is kept as its parsed geometry and WKT. SOLR queries use the original WKT, so a query matches the
+ * same records as the object. Simplification is opt-in: when spatialObject.query.maxPoints is set, a simplified
+ * variant is also made for each tolerance when the object is loaded, and queries of objects with more points use the
+ * least simplified variant below the maximum.
+ * <p>
+ * Entries are evicted by their size in bytes.
+ */
+@Component("spatialObjectCache")
+public class SpatialObjectCache {
+
+    private final static Logger logger = Logger.getLogger(SpatialObjectCache.class);
+
+    // approximate bytes of each point of a geometry
+    static final int POINT_BYTES = 40;
+
+    @Value("${caches.spatialObject.enabled:true}")
+    protected Boolean enabled = true;
+
+    /**
+     * Maximum bytes of the cached geometries and WKT
+     */
+    @Value("${caches.spatialObject.size.max:104857600}")
+    protected Long maxSize = 104857600L;
+
+    /**
+     * Simplification tolerances, in degrees, of the variants of each geometry when spatialObject.query.maxPoints is set
+     */
+    @Value("${caches.spatialObject.tolerances:0.0001,0.001,0.01}")
+    protected String tolerances = "0.0001,0.001,0.01";
+
+    /**
+     * Maximum points of the WKT of a spatialObject: in a SOLR query. The least simplified variant below this is used.
+     * 0, the default, uses the original WKT.
+     */
+    @Value("${spatialObject.query.maxPoints:0}")
+    protected Integer queryMaxPoints = 0;
+
+    /**
+     * Query objects with at least layerFq.minPoints points by the layer field of the object, e.g. cl22:"Victoria",
+     * when the layer is in the index, instead of the WKT.
+     */
+    @Value("${spatialObject.layerFq.enabled:false}")
+    protected Boolean layerFqEnabled = false;
+
+    @Value("${spatialObject.layerFq.minPoints:5000}")
+    protected Integer layerFqMinPoints = 5000;
+
+    @Inject
+    protected LayersService layersService;
+
+    @Inject
+    protected IndexDAO indexDao;
+
+    double[] toleranceLevels;
+
+    Cache<String, Entry> cache;
+
+    /**
+     * Geometry variants of an object, in order of increasing tolerance. The first is the original geometry.
+     */
+    static final class Entry {
+        final Geometry[] geometries;
+        final String[] wkts;
+        final int weight;
+
+        Entry(Geometry[] geometries, String[] wkts) {
+            this.geometries = geometries;
+            this.wkts = wkts;
+
+            long bytes = 0;
+            for (int i = 0; i < geometries.length; i++) {
+                bytes += (long) geometries[i].getNumPoints() * POINT_BYTES + wkts[i].length() * 2L;
+            }
+            this.weight = (int) Math.min(Integer.MAX_VALUE, bytes);
+        }
+
+        /**
+         * @return index of the least simplified variant with at most maxPoints, or the most simplified variant
+         */
+        int forMaxPoints(int maxPoints) {
+            if (maxPoints <= 0) {
+                return 0;
+            }
+            for (int i = 0; i < geometries.length; i++) {
+                if (geometries[i].getNumPoints() <= maxPoints) {
+                    return i;
+                }
+            }
+            return geometries.length - 1;
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        toleranceLevels = Arrays.stream(tolerances.split(","))
+                .map(String::trim)
+                .filter(StringUtils::isNotEmpty)
+                .mapToDouble(Double::parseDouble)
+                .filter(tolerance -> tolerance > 0)
+                .sorted()
+                .toArray();
+
+        cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxSize)
+                .weigher((String key, Entry entry) -> entry.weight)
+                .build();
+    }
+
+    /**
+     * WKT of an object for a SOLR query.
+     *
+     * @return the WKT, or null when the object is not found
+     */
+    public String getQueryWkt(String spatialObjectId) {
+        if (!enabled) {
+            return layersService.getObjectWkt(spatialObjectId);
+        }
+        Entry entry = get(spatialObjectId);
+        return entry == null ? null : entry.wkts[entry.forMaxPoints(queryMaxPoints)];
+    }
+
+    /**
+     * A query of the layer field of an object, when the object is large and its layer is in the index.
+     *
+     * @return the query, e.g. cl22:"Victoria", or null when the WKT is to be used
+     */
+    public String getLayerFq(String spatialObjectId) {
+        if (!layerFqEnabled) {
+            return null;
+        }
+        try {
+            Entry entry = enabled ? get(spatialObjectId) : load(spatialObjectId);
+            if (entry == null || entry.geometries[0].getNumPoints() < layerFqMinPoints) {
+                return null;
+            }
+            SpatialObjectDTO object = layersService.getObject(spatialObjectId);
+            if (object == null || StringUtils.isEmpty(object.getFid()) || StringUtils.isEmpty(object.getName())) {
+                return null;
+            }
+            IndexFieldDTO field = indexDao.getIndexedFieldsMap().get(object.getFid());
+            if (field == null || !field.isIndexed()) {
+                return null;
+            }
+            return object.getFid() + ":\"" + object.getName().replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+        } catch (Exception e) {
+            logger.warn("Failed to find the layer field of spatial object " + spatialObjectId + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    public void clear() {
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+    }
+
+    Entry get(String spatialObjectId) {
+        Entry entry = cache.getIfPresent(spatialObjectId);
+        if (entry == null) {
+            try {
+                entry = cache.get(spatialObjectId, () -> {
+                    Entry loaded = load(spatialObjectId);
+                    if (loaded == null) {
+                        throw new IllegalArgumentException("spatial object not found");
+                    }
+                    return loaded;
+                });
+            } catch (ExecutionException | RuntimeException e) {
+                // objects that are not found are not cached
+                return null;
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Fetch and parse the geometry of an object, and simplify it when spatialObject.query.maxPoints is set.
+     *
+     * @return the variants, or null when the object is not found or the WKT is invalid
+     */
+    Entry load(String spatialObjectId) {
+        String wkt = layersService.getObjectWkt(spatialObjectId);
+        if (StringUtils.isEmpty(wkt)) {
+            return null;
+        }
+
+        Geometry geometry;
+        try {
+            geometry = new WktParser().parse(wkt);
+        } catch (Exception e) {
+            logger.error("Invalid WKT for spatial object " + spatialObjectId + ": " + e.getMessage());
+            return null;
+        }
+
+        int count = queryMaxPoints > 0 ? toleranceLevels.length + 1 : 1;
+        Geometry[] geometries = new Geometry[count];
+        String[] wkts = new String[count];
+        geometries[0] = geometry;
+        wkts[0] = wkt;
+        int n = 1;
+        for (int i = 1; i < count; i++) {
+            double tolerance = toleranceLevels[i - 1];
+            Geometry simplified = TopologyPreservingSimplifier.simplify(geometry, tolerance);
+            // skip tolerances that do not reduce the points of the previous variant
+            if (simplified.getNumPoints() >= geometries[n - 1].getNumPoints()) {
+                continue;
+            }
+            geometries[n] = simplified;
+            wkts[n] = simplified.toText();
+            n++;
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Spatial object " + spatialObjectId + " points: " + Arrays.toString(
+                    Arrays.stream(geometries, 0, n).mapToInt(Geometry::getNumPoints).toArray()));
+        }
+
+        return new Entry(Arrays.copyOf(geometries, n), Arrays.copyOf(wkts, n));
+    }
+}
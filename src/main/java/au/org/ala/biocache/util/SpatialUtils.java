@@ -1,10 +1,15 @@
 package au.org.ala.biocache.util;
 
 import org.apache.log4j.Logger;
+import org.locationtech.jts.algorithm.Orientation;
 import org.locationtech.jts.geom.*;
+import org.locationtech.jts.geom.util.GeometryFixer;
 import org.locationtech.jts.io.WKTReader;
+import org.locationtech.jts.simplify.DouglasPeuckerSimplifier;
 import org.locationtech.jts.simplify.TopologyPreservingSimplifier;
 
+import java.util.Arrays;
+
 /**
  * Supplies spatial utilities that can be used for the geospatial seaches
  *
@@ -14,6 +19,9 @@ public class SpatialUtils {
 
     private final static Logger logger = Logger.getLogger(SpatialUtils.class);
 
+    // limit on the number of times a simplification tolerance is doubled
+    private static final int MAX_SIMPLIFY_ITERATIONS = 8;
+
     /**
      * Build up a WKT query.  When a geometry collection is provided this is coverted into multiple queries using
      * boolean logic.
@@ -67,86 +75,130 @@ public class SpatialUtils {
      * @return WKT that has less than or equal to maxPoints or null
      */
     public static String simplifyWkt(final String wkt, final int maxPoints) throws Exception {
-        WKTReader r = new WKTReader();
+        return normaliseWkt(wkt, maxPoints).getWkt();
+    }
 
+    /**
+     * Parse WKT and make it usable in a query.
+     * <p/>
+     * Invalid geometries, e.g. self intersecting polygons, are fixed. Geometries with more than maxPoints are
+     * simplified, preserving topology, with an increasing tolerance until there are at most maxPoints. Exterior rings
+     * are counter-clockwise and holes are clockwise.
+     *
+     * @param wkt The WKT to normalise
+     * @param maxPoints Set to 0 to disable simplification
+     * @return the WKT, the same String when it is not changed, and its bounding box
+     * @throws Exception when the WKT cannot be parsed or is empty
+     */
+    public static NormalisedWkt normaliseWkt(final String wkt, final int maxPoints) throws Exception {
+        WktParser parser = new WktParser();
+        Geometry g;
         try {
-            // quickly count points
-            int numPoints = 0;
-            for (int i=0;i<wkt.length();i++) {
-                if (wkt.charAt(i) == ',') {
-                    numPoints++;
-                }
-            }
-
-            // do not simplify when fewer than maxPoints
-            if (maxPoints <= 0 || numPoints <= maxPoints) {
-                return wkt;
-            }
+            g = parser.parse(wkt);
+        } catch (Exception e) {
+            throw new Exception("WKT simplification failed: " + e.getMessage());
+        }
+        boolean changed = parser.isRepaired();
 
-            Geometry g = r.read(wkt);
+        if (!g.isValid()) {
+            g = GeometryFixer.fix(g);
+            changed = true;
+        }
+        if (g.isEmpty()) {
+            throw new Exception("WKT simplification failed: empty geometry");
+        }
 
-            // determine average point to point distance
-            double averageDistance = 0;
-            if (g.getGeometryType().equals("Polygon")) {
-                averageDistance = getPolygonAverageDistance((Polygon) g);
-            } else if (g.getGeometryType().equals("MultiPolygon")) {
-                averageDistance = getMultipolygonAverageDistance((MultiPolygon) g);
-            } else if (g.getGeometryType().equals("GeometryCollection")) {
-                averageDistance = getGeometryCollectionAverageDistance(g);
+        int numPoints = g.getNumPoints();
+        if (maxPoints > 0 && numPoints > maxPoints) {
+            double distance = simplifyTolerance(g, maxPoints);
+            Geometry newG = TopologyPreservingSimplifier.simplify(g, distance);
+            for (int i = 0; i < MAX_SIMPLIFY_ITERATIONS && newG.getNumPoints() > maxPoints; i++) {
+                distance *= 2;
+                newG = TopologyPreservingSimplifier.simplify(g, distance);
             }
 
-            // determine new average distance required for maxPoints
-            double distance = g.getNumPoints() / (double) maxPoints * averageDistance;
-
-            // use this new average distance as the tolerance value
-            Geometry newG = TopologyPreservingSimplifier.simplify(g, distance);
+            logger.debug("WKT simplified reduced points from " + numPoints + " to " + newG.getNumPoints());
 
-            logger.debug("WKT simplified reduced points from " + g.getNumPoints() + " to " + newG.getNumPoints());
+            g = newG;
+            numPoints = g.getNumPoints();
+            changed = true;
+        }
 
-            return newG.toString();
-        } catch (Exception e) {
-            throw new Exception("WKT simplification failed");
+        Geometry oriented = orient(g);
+        if (oriented != g) {
+            g = oriented;
+            changed = true;
         }
+
+        return new NormalisedWkt(changed ? g.toText() : wkt, g.getEnvelopeInternal(), numPoints);
     }
 
-    static double getPolygonAverageDistance(Polygon p) {
-        Coordinate[] coordinates = p.getExteriorRing().getCoordinates();
-        double sumOfSq = 0;
-        int count = coordinates.length - 1;
-        for (int i=1;i<coordinates.length;i++) {
-            sumOfSq += Math.pow(coordinates[i].x - coordinates[i-1].x, 2) + Math.pow(coordinates[i].y - coordinates[i-1].y, 2);
+    /**
+     * Find a simplification tolerance that leaves close to, and no more than, maxPoints. DouglasPeuckerSimplifier
+     * removes about as many points as TopologyPreservingSimplifier and is faster, so it is used for the search.
+     */
+    static double simplifyTolerance(Geometry g, int maxPoints) {
+        // the average distance between points when there are maxPoints
+        double high = g.getLength() / maxPoints;
+        for (int i = 0; i < MAX_SIMPLIFY_ITERATIONS && DouglasPeuckerSimplifier.simplify(g, high).getNumPoints() > maxPoints; i++) {
+            high *= 2;
         }
 
-        for (int j=0;j<p.getNumInteriorRing();j++) {
-            coordinates = p.getInteriorRingN(j).getCoordinates();
-            count += coordinates.length - 1;
-            for (int i=1;i<coordinates.length;i++) {
-                sumOfSq += Math.pow(coordinates[i].x - coordinates[i-1].x, 2) + Math.pow(coordinates[i].y - coordinates[i-1].y, 2);
+        double low = high / 1024;
+        for (int i = 0; i < 10; i++) {
+            double mid = Math.sqrt(low * high);
+            int numPoints = DouglasPeuckerSimplifier.simplify(g, mid).getNumPoints();
+            if (numPoints <= maxPoints) {
+                high = mid;
+                if (numPoints >= maxPoints * 0.9) {
+                    break;
+                }
+            } else {
+                low = mid;
             }
         }
+        return high;
+    }
 
-        return Math.sqrt(sumOfSq / (double) count);
+    /**
+     * @return the geometry with counter-clockwise exterior rings and clockwise holes, or the same geometry when they
+     * are already oriented
+     */
+    static Geometry orient(Geometry g) {
+        if (g instanceof Polygon) {
+            return orient((Polygon) g);
+        } else if (g instanceof GeometryCollection) {
+            Geometry[] geometries = new Geometry[g.getNumGeometries()];
+            boolean changed = false;
+            for (int i = 0; i < geometries.length; i++) {
+                geometries[i] = orient(g.getGeometryN(i));
+                changed |= geometries[i] != g.getGeometryN(i);
+            }
+            if (!changed) {
+                return g;
+            } else if (g instanceof MultiPolygon) {
+                return g.getFactory().createMultiPolygon(GeometryFactory.toPolygonArray(Arrays.asList(geometries)));
+            }
+            return g.getFactory().buildGeometry(Arrays.asList(geometries));
+        }
+        return g;
     }
 
-    static double getMultipolygonAverageDistance(MultiPolygon mp) {
-        double sum = 0;
-        for (int i=0;i<mp.getNumGeometries();i++) {
-            Geometry g1 = mp.getGeometryN(i);
-            sum += getPolygonAverageDistance((Polygon) g1);
+    private static Geometry orient(Polygon p) {
+        LinearRing shell = orient(p.getExteriorRing(), true);
+        boolean changed = shell != p.getExteriorRing();
+        LinearRing[] holes = new LinearRing[p.getNumInteriorRing()];
+        for (int i = 0; i < holes.length; i++) {
+            holes[i] = orient(p.getInteriorRingN(i), false);
+            changed |= holes[i] != p.getInteriorRingN(i);
         }
-        return sum / (double) mp.getNumGeometries();
+        return changed ? p.getFactory().createPolygon(shell, holes) : p;
     }
 
-    static double getGeometryCollectionAverageDistance(Geometry g) {
-        double sum = 0;
-        for (int i=0;i<g.getNumGeometries();i++) {
-            Geometry g1 = g.getGeometryN(i);
-            if (g1.getGeometryType().equals("Polygon")) {
-                sum += getPolygonAverageDistance((Polygon) g);
-            } else if (g1.getGeometryType().equals("MultiPolygon")) {
-                sum += getMultipolygonAverageDistance((MultiPolygon) g);
-            }
+    private static LinearRing orient(LinearRing ring, boolean counterClockwise) {
+        if (ring.isEmpty() || Orientation.isCCW(ring.getCoordinateSequence()) == counterClockwise) {
+            return ring;
         }
-        return sum / (double) g.getNumGeometries();
+        return (LinearRing) ring.reverse();
     }
 }
@@ -0,0 +1,109 @@
+package au.org.ala.biocache.util;
+
+import org.geotools.referencing.CRS;
+import org.geotools.referencing.operation.DefaultCoordinateOperationFactory;
+import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.crs.CRSAuthorityFactory;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.MathTransform;
+import org.opengis.referencing.operation.TransformException;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Transforms coordinates between a WMS SRS and EPSG:4326.
+ * <p>
+ * EPSG:3857 and EPSG:900913 use the closed form of WebMercator. Other SRS use GeoTools, with the coordinate
+ * operations created once for each SRS.
+ */
+public abstract class SrsTransform {
+
+    private static final SrsTransform WEB_MERCATOR = new WebMercatorTransform();
+
+    private static final Map<String, SrsTransform> TRANSFORMS = new ConcurrentHashMap<>();
+
+    /**
+     * @param srs e.g. EPSG:3857
+     * @return the transform for the SRS
+     * @throws FactoryException when the SRS is not known
+     */
+    public static SrsTransform get(String srs) throws FactoryException {
+        if (isWebMercator(srs)) {
+            return WEB_MERCATOR;
+        }
+        String key = srs.toUpperCase();
+        SrsTransform transform = TRANSFORMS.get(key);
+        if (transform == null) {
+            transform = new GeoToolsTransform(srs);
+            TRANSFORMS.putIfAbsent(key, transform);
+        }
+        return transform;
+    }
+
+    public static boolean isWebMercator(String srs) {
+        return "EPSG:3857".equalsIgnoreCase(srs) || "EPSG:900913".equalsIgnoreCase(srs);
+    }
+
+    public boolean isWebMercator() {
+        return this == WEB_MERCATOR;
+    }
+
+    /**
+     * Transform points from the SRS to EPSG:4326 in place.
+     *
+     * @param points x, y pairs
+     * @param count  number of points
+     */
+    public abstract void toWgs84(double[] points, int count) throws TransformException;
+
+    /**
+     * Transform points from EPSG:4326 to the SRS in place.
+     *
+     * @param points longitude, latitude pairs
+     * @param count  number of points
+     */
+    public abstract void fromWgs84(double[] points, int count) throws TransformException;
+
+    private static class WebMercatorTransform extends SrsTransform {
+        @Override
+        public void toWgs84(double[] points, int count) {
+            for (int i = 0; i < count * 2; i += 2) {
+                points[i] = WebMercator.toLongitude(points[i]);
+                points[i + 1] = WebMercator.toLatitude(points[i + 1]);
+            }
+        }
+
+        @Override
+        public void fromWgs84(double[] points, int count) {
+            for (int i = 0; i < count * 2; i += 2) {
+                points[i] = WebMercator.toX(points[i]);
+                points[i + 1] = WebMercator.toY(points[i + 1]);
+            }
+        }
+    }
+
+    private static class GeoToolsTransform extends SrsTransform {
+        private final MathTransform to4326;
+        private final MathTransform from4326;
+
+        GeoToolsTransform(String srs) throws FactoryException {
+            CRSAuthorityFactory factory = CRS.getAuthorityFactory(true);
+            CoordinateReferenceSystem sourceCRS = factory.createCoordinateReferenceSystem(srs);
+            CoordinateReferenceSystem targetCRS = factory.createCoordinateReferenceSystem("EPSG:4326");
+            DefaultCoordinateOperationFactory operationFactory = new DefaultCoordinateOperationFactory();
+            to4326 = operationFactory.createOperation(sourceCRS, targetCRS).getMathTransform();
+            from4326 = operationFactory.createOperation(targetCRS, sourceCRS).getMathTransform();
+        }
+
+        @Override
+        public void toWgs84(double[] points, int count) throws TransformException {
+            to4326.transform(points, 0, points, 0, count);
+        }
+
+        @Override
+        public void fromWgs84(double[] points, int count) throws TransformException {
+            from4326.transform(points, 0, points, 0, count);
+        }
+    }
+}
@@ -0,0 +1,322 @@
+package au.org.ala.biocache.util;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ARGB raster for drawing WMS tiles without Java2D.
+ * <p>
+ * The pixels are drawn like ImgObj, antialiased with the SRC composite, so a point replaces what is under it and
+ * is blended only at its edge.
+ * <p>
+ * Each thread reuses one pixel array. A raster from get() is only valid until the next call to get() on the same
+ * thread.
+ */
+public class TileRaster {
+
+    /**
+     * Points up to this diameter use a precomputed stamp.
+     */
+    static final int MAX_STAMP_DIAMETER = 64;
+
+    private static final int MAX_STAMPS = 1024;
+
+    private static final ThreadLocal<int[]> POOL = new ThreadLocal<>();
+
+    // stamps by diameter and whether there is a fill and an outline, then by the fill and outline colours
+    @SuppressWarnings("unchecked")
+    private static final ConcurrentHashMap<Long, Stamp>[] STAMPS = new ConcurrentHashMap[(MAX_STAMP_DIAMETER + 1) * 4];
+
+    static {
+        for (int i = 0; i < STAMPS.length; i++) {
+            STAMPS[i] = new ConcurrentHashMap<>();
+        }
+    }
+
+    private static final AtomicInteger STAMP_COUNT = new AtomicInteger();
+
+    public final int width;
+    public final int height;
+
+    /**
+     * ARGB, one row after another. The array may be longer than width * height.
+     */
+    public final int[] pixels;
+
+    // stamp of the last circle, points of a layer are usually the same
+    private Stamp last;
+
+    public TileRaster(int width, int height) {
+        this(width, height, new int[width * height]);
+    }
+
+    private TileRaster(int width, int height, int[] pixels) {
+        this.width = width;
+        this.height = height;
+        this.pixels = pixels;
+    }
+
+    /**
+     * @return a transparent raster that uses the pixel array of this thread
+     */
+    public static TileRaster get(int width, int height) {
+        int[] pixels = POOL.get();
+        if (pixels == null || pixels.length < width * height) {
+            pixels = new int[width * height];
+            POOL.set(pixels);
+        } else {
+            Arrays.fill(pixels, 0, width * height, 0);
+        }
+        return new TileRaster(width, height, pixels);
+    }
+
+    /**
+     * Fill a rectangle, like Graphics.fillRect.
+     */
+    public void fillRect(int x, int y, int w, int h, int argb) {
+        int x1 = Math.max(x, 0);
+        int x2 = Math.min(x + w, width);
+        int y2 = Math.min(y + h, height);
+        if (x1 >= x2) {
+            return;
+        }
+        for (int row = Math.max(y, 0); row < y2; row++) {
+            Arrays.fill(pixels, row * width + x1, row * width + x2, argb);
+        }
+    }
+
+    /**
+     * Draw the outline of a rectangle, like Graphics.drawRect.
+     */
+    public void drawRect(int x, int y, int w, int h, int argb) {
+        fillRect(x, y, w + 1, 1, argb);
+        fillRect(x, y + h, w + 1, 1, argb);
+        fillRect(x, y + 1, 1, h - 1, argb);
+        fillRect(x + w, y + 1, 1, h - 1, argb);
+    }
+
+    /**
+     * Draw a circle, like Graphics.fillOval and then Graphics.drawOval with the bounds x, y, diameter, diameter.
+     * Nothing is drawn when the diameter is negative.
+     *
+     * @param fill    ARGB of the fill, or null for no fill
+     * @param outline ARGB of the outline, or null for no outline
+     */
+    public void drawCircle(int x, int y, int diameter, Integer fill, Integer outline) {
+        if (diameter < 0) {
+            return;
+        } else if (diameter <= MAX_STAMP_DIAMETER) {
+            Stamp stamp = last;
+            if (stamp == null || stamp.diameter != diameter || !Objects.equals(stamp.fill, fill)
+                    || !Objects.equals(stamp.outline, outline)) {
+                stamp = stamp(diameter, fill, outline);
+                last = stamp;
+            }
+            stamp.draw(this, x, y);
+        } else {
+            // large circles, e.g. uncertainty, are drawn within the tile only
+            rasterise(this, x, y, diameter, fill, outline, 0, 0);
+        }
+    }
+
+    /**
+     * @return the precomputed stamp of a circle
+     * @throws IllegalArgumentException when the diameter is not 0 to MAX_STAMP_DIAMETER
+     */
+    static Stamp stamp(int diameter, Integer fill, Integer outline) {
+        if (diameter < 0 || diameter > MAX_STAMP_DIAMETER) {
+            throw new IllegalArgumentException("no stamp of diameter " + diameter);
+        }
+        ConcurrentHashMap<Long, Stamp> stamps = STAMPS[diameter * 4 + (fill != null ? 2 : 0) + (outline != null ? 1 : 0)];
+        long key = (fill != null ? (fill & 0xffffffffL) << 32 : 0) | (outline != null ? outline & 0xffffffffL : 0);
+        Stamp stamp = stamps.get(key);
+        if (stamp == null) {
+            if (STAMP_COUNT.incrementAndGet() > MAX_STAMPS) {
+                for (ConcurrentHashMap<Long, Stamp> map : STAMPS) {
+                    map.clear();
+                }
+                STAMP_COUNT.set(1);
+            }
+            stamp = new Stamp(diameter, fill, outline);
+            stamps.put(key, stamp);
+        }
+        return stamp;
+    }
+
+    /**
+     * Draw a circle into a raster, clipped to the raster.
+     * <p>
+     * The coverage of a pixel is from the distance of its centre to the edge of the circle, and to the centre of the
+     * 1 pixel outline.
+     *
+     * @param offsetX x of the raster
+     * @param offsetY y of the raster
+     */
+    static void rasterise(TileRaster raster, int x, int y, int diameter, Integer fill, Integer outline,
+                          int offsetX, int offsetY) {
+        double r = diameter / 2.0;
+        double cx = x + r - offsetX;
+        double cy = y + r - offsetY;
+
+        // pixels within inner are covered by the fill only, pixels outside outer are not covered
+        double outer = r + 1;
+        double inner = outline != null ? r - 1 : r - 0.5;
+
+        int rowStart = Math.max((int) Math.floor(cy - outer), 0);
+        int rowEnd = Math.min((int) Math.ceil(cy + outer), raster.height);
+        for (int row = rowStart; row < rowEnd; row++) {
+            double dy = row + 0.5 - cy;
+            if (dy * dy >= outer * outer) {
+                continue;
+            }
+            double outerDx = Math.sqrt(outer * outer - dy * dy);
+            double innerDx = dy * dy < inner * inner ? Math.sqrt(inner * inner - dy * dy) : -1;
+
+            int colStart = Math.max((int) Math.floor(cx - outerDx), 0);
+            int colEnd = Math.min((int) Math.ceil(cx + outerDx), raster.width);
+
+            // interior of the row
+            int interiorStart = innerDx < 0 ? colEnd : Math.max((int) Math.ceil(cx - innerDx - 0.5), colStart);
+            int interiorEnd = innerDx < 0 ? colEnd : Math.min((int) Math.floor(cx + innerDx - 0.5) + 1, colEnd);
+            if (interiorEnd <= interiorStart) {
+                interiorStart = colEnd;
+                interiorEnd = colEnd;
+            }
+
+            int offset = row * raster.width;
+            if (fill != null && interiorStart < interiorEnd) {
+                Arrays.fill(raster.pixels, offset + interiorStart, offset + interiorEnd, fill);
+            }
+            for (int col = colStart; col < colEnd; col++) {
+                if (col == interiorStart) {
+                    col = interiorEnd - 1;
+                    continue;
+                }
+                double dx = col + 0.5 - cx;
+                double d = Math.sqrt(dx * dx + dy * dy);
+                int i = offset + col;
+                if (fill != null) {
+                    raster.pixels[i] = blend(raster.pixels[i], fill, coverage(r + 0.5 - d));
+                }
+                if (outline != null) {
+                    raster.pixels[i] = blend(raster.pixels[i], outline, coverage(1 - Math.abs(d - r)));
+                }
+            }
+        }
+    }
+
+    private static int coverage(double value) {
+        return value <= 0 ? 0 : value >= 1 ? 255 : (int) Math.round(value * 255);
+    }
+
+    /**
+     * Blend a colour over a pixel, like the SRC composite with antialiasing.
+     *
+     * @param coverage 0 to 255
+     * @return ARGB
+     */
+    static int blend(int dst, int src, int coverage) {
+        if (coverage >= 255) {
+            return src;
+        } else if (coverage <= 0) {
+            return dst;
+        }
+
+        // premultiplied
+        int sa = (src >>> 24) * coverage;
+        int da = (dst >>> 24) * (255 - coverage);
+        int a = sa + da;
+        if (a == 0) {
+            return 0;
+        }
+        int r = (((src >> 16) & 0xff) * sa + ((dst >> 16) & 0xff) * da) / a;
+        int g = (((src >> 8) & 0xff) * sa + ((dst >> 8) & 0xff) * da) / a;
+        int b = ((src & 0xff) * sa + (dst & 0xff) * da) / a;
+        return ((a + 127) / 255) << 24 | r << 16 | g << 8 | b;
+    }
+
+    /**
+     * Circle of one diameter and colour, drawn once into a small raster.
+     * <p>
+     * Pixels that are replaced are copied. Only the pixels at the edge are blended.
+     */
+    static class Stamp {
+        final int diameter;
+        final int size;
+        // position of the stamp relative to the bounds of the circle
+        final int offset;
+        // ARGB to copy, 0 when the pixel is blended
+        final int[] solid;
+        final boolean[] opaque;
+        // coverage of the fill and outline of the blended pixels
+        final byte[] fillCoverage;
+        final byte[] outlineCoverage;
+        final Integer fill;
+        final Integer outline;
+
+        Stamp(int diameter, Integer fill, Integer outline) {
+            this.diameter = diameter;
+            this.fill = fill;
+            this.outline = outline;
+            this.offset = -1;
+            this.size = diameter + 2;
+
+            // the alpha of opaque white drawn over transparent pixels is the coverage
+            TileRaster fillOnly = new TileRaster(size, size);
+            TileRaster outlineOnly = new TileRaster(size, size);
+            if (fill != null) {
+                rasterise(fillOnly, 0, 0, diameter, 0xffffffff, null, offset, offset);
+            }
+            if (outline != null) {
+                rasterise(outlineOnly, 0, 0, diameter, null, 0xffffffff, offset, offset);
+            }
+
+            solid = new int[size * size];
+            opaque = new boolean[size * size];
+            fillCoverage = new byte[size * size];
+            outlineCoverage = new byte[size * size];
+            for (int i = 0; i < size * size; i++) {
+                int f = fillOnly.pixels[i] >>> 24;
+                int o = outlineOnly.pixels[i] >>> 24;
+                fillCoverage[i] = (byte) f;
+                outlineCoverage[i] = (byte) o;
+                if (o == 255) {
+                    opaque[i] = true;
+                    solid[i] = outline;
+                } else if (f == 255 && o == 0) {
+                    opaque[i] = true;
+                    solid[i] = fill;
+                }
+            }
+        }
+
+        void draw(TileRaster raster, int x, int y) {
+            int left = x + offset;
+            int top = y + offset;
+            int rowStart = Math.max(0, -top);
+            int rowEnd = Math.min(size, raster.height - top);
+            int colStart = Math.max(0, -left);
+            int colEnd = Math.min(size, raster.width - left);
+            for (int row = rowStart; row < rowEnd; row++) {
+                int src = row * size;
+                int dst = (top + row) * raster.width + left;
+                for (int col = colStart; col < colEnd; col++) {
+                    if (opaque[src + col]) {
+                        raster.pixels[dst + col] = solid[src + col];
+                    } else {
+                        int f = fillCoverage[src + col] & 0xff;
+                        int o = outlineCoverage[src + col] & 0xff;
+                        if (f > 0) {
+                            raster.pixels[dst + col] = blend(raster.pixels[dst + col], fill, f);
+                        }
+                        if (o > 0) {
+                            raster.pixels[dst + col] = blend(raster.pixels[dst + col], outline, o);
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package au.org.ala.biocache.util;
+
+/**
+ * Closed form EPSG:3857 (spherical mercator) and the standard tiles of web maps.
+ * <p>
+ * Tile 0,0 of a zoom level is at the top left. There are 2^zoom x 2^zoom tiles in a zoom level.
+ */
+public final class WebMercator {
+
+    /**
+     * EPSG:3857 radius in metres
+     */
+    public static final double RADIUS = 6378137.0;
+
+    /**
+     * EPSG:3857 width of the world in metres
+     */
+    public static final double WORLD_WIDTH = 2 * Math.PI * RADIUS;
+
+    /**
+     * EPSG:3857 latitude limit
+     */
+    public static final double MAX_LATITUDE = 85.0511287798066;
+
+    /**
+     * Highest zoom level with precomputed tile latitudes.
+     */
+    static final int TABLE_ZOOM = 14;
+
+    // latitudes of the top edge of each row of tiles, and the bottom edge of the last row, for each zoom level
+    private static final double[][] ROW_LATITUDES = new double[TABLE_ZOOM + 1][];
+
+    static {
+        for (int zoom = 0; zoom <= TABLE_ZOOM; zoom++) {
+            int n = 1 << zoom;
+            double[] latitudes = new double[n + 1];
+            for (int y = 0; y <= n; y++) {
+                latitudes[y] = toLatitude(tileMaxY(zoom, y));
+            }
+            ROW_LATITUDES[zoom] = latitudes;
+        }
+    }
+
+    private WebMercator() {
+    }
+
+    public static double toX(double longitude) {
+        return longitude / 180 * (WORLD_WIDTH / 2);
+    }
+
+    public static double toY(double latitude) {
+        return RADIUS * Math.log(Math.tan(Math.PI / 4 + Math.toRadians(latitude) / 2));
+    }
+
+    public static double toLongitude(double x) {
+        return x / (WORLD_WIDTH / 2) * 180;
+    }
+
+    public static double toLatitude(double y) {
+        return Math.toDegrees(Math.atan(Math.sinh(y / RADIUS)));
+    }
+
+    /**
+     * @return EPSG:3857 bbox of a tile, minx, miny, maxx, maxy
+     */
+    public static double[] tileBBox(int zoom, int x, int y) {
+        double size = WORLD_WIDTH / (1L << zoom);
+        double minx = -WORLD_WIDTH / 2 + x * size;
+        return new double[]{minx, tileMaxY(zoom, y + 1), minx + size, tileMaxY(zoom, y)};
+    }
+
+    /**
+     * @return EPSG:4326 bbox of a tile, min longitude, min latitude, max longitude, max latitude
+     */
+    public static double[] tileBBox4326(int zoom, int x, int y) {
+        double[] bbox = tileBBox(zoom, x, y);
+        bbox[0] = toLongitude(bbox[0]);
+        bbox[2] = toLongitude(bbox[2]);
+        if (zoom <= TABLE_ZOOM) {
+            bbox[1] = ROW_LATITUDES[zoom][y + 1];
+            bbox[3] = ROW_LATITUDES[zoom][y];
+        } else {
+            bbox[1] = toLatitude(bbox[1]);
+            bbox[3] = toLatitude(bbox[3]);
+        }
+        return bbox;
+    }
+
+    /**
+     * Find the standard tile of a bbox. Clients format tile bboxes differently, so they are matched within a small
+     * fraction of the tile size.
+     *
+     * @param bbox EPSG:3857 minx, miny, maxx, maxy
+     * @return zoom, x, y, or null when the bbox is not a tile
+     */
+    public static int[] tileIndex(double[] bbox) {
+        double width = bbox[2] - bbox[0];
+        if (!(width > 0) || Math.abs(bbox[3] - bbox[1] - width) > width * 1e-6) {
+            return null;
+        }
+        double zoom = Math.rint(Math.log(WORLD_WIDTH / width) / Math.log(2));
+        if (zoom < 0 || zoom > 30) {
+            return null;
+        }
+        int n = 1 << (int) zoom;
+        double size = WORLD_WIDTH / n;
+        double x = (bbox[0] + WORLD_WIDTH / 2) / size;
+        double y = (WORLD_WIDTH / 2 - bbox[3]) / size;
+        if (Math.abs(width - size) > size * 1e-6 || Math.abs(x - Math.rint(x)) > 1e-6 || Math.abs(y - Math.rint(y)) > 1e-6
+                || x < -0.5 || x > n - 0.5 || y < -0.5 || y > n - 0.5) {
+            return null;
+        }
+        return new int[]{(int) zoom, (int) Math.rint(x), (int) Math.rint(y)};
+    }
+
+    private static double tileMaxY(int zoom, int y) {
+        return WORLD_WIDTH / 2 - y * (WORLD_WIDTH / (1L << zoom));
+    }
+}
@@ -0,0 +1,251 @@
+package au.org.ala.biocache.util;
+
+import org.locationtech.jts.geom.*;
+import org.locationtech.jts.geom.impl.PackedCoordinateSequence;
+import org.locationtech.jts.io.ParseException;
+import org.locationtech.jts.io.WKTReader;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Parses POLYGON and MULTIPOLYGON WKT in a single pass over the characters, into packed coordinate sequences.
+ * <p>
+ * Drawn and uploaded areas are mostly polygons with many vertices, where WKTReader spends most of its time
+ * tokenizing numbers. Rings that are not closed are closed and rings with fewer than 3 distinct points are dropped.
+ * Other geometry types, and Z or M coordinates, are parsed by WKTReader.
+ */
+public class WktParser {
+
+    // exact powers of ten, for numbers that can be parsed without Double.parseDouble
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+    // largest mantissa that is exact as a double
+    private static final long MAX_EXACT = 1L << 53;
+
+    private final GeometryFactory factory;
+    private String wkt;
+    private int pos;
+
+    // coordinates of the current ring, x and y
+    private double[] ring = new double[256];
+    private int ringLength;
+
+    // a ring was closed or dropped
+    private boolean repaired;
+
+    public WktParser(GeometryFactory factory) {
+        this.factory = factory;
+    }
+
+    public WktParser() {
+        this(new GeometryFactory());
+    }
+
+    /**
+     * @return true when the last WKT parsed had a ring that was not closed or had too few points
+     */
+    public boolean isRepaired() {
+        return repaired;
+    }
+
+    public Geometry parse(String wkt) throws ParseException {
+        this.wkt = wkt;
+        this.pos = 0;
+        this.repaired = false;
+
+        skipWhitespace();
+        if (matchWord("POLYGON")) {
+            return polygonOrFallback(false);
+        } else if (matchWord("MULTIPOLYGON")) {
+            return polygonOrFallback(true);
+        }
+        return new WKTReader(factory).read(wkt);
+    }
+
+    private Geometry polygonOrFallback(boolean multi) throws ParseException {
+        skipWhitespace();
+        if (pos < wkt.length() && Character.isLetter(wkt.charAt(pos))) {
+            // EMPTY, Z, M or ZM
+            return new WKTReader(factory).read(wkt);
+        }
+
+        Geometry geometry;
+        if (multi) {
+            List<Polygon> polygons = new ArrayList<>();
+            expect('(');
+            do {
+                Polygon polygon = polygon();
+                if (polygon != null) {
+                    polygons.add(polygon);
+                }
+            } while (next(',', ')'));
+            geometry = factory.createMultiPolygon(polygons.toArray(new Polygon[0]));
+        } else {
+            Polygon polygon = polygon();
+            geometry = polygon == null ? factory.createPolygon() : polygon;
+        }
+
+        skipWhitespace();
+        if (pos != wkt.length()) {
+            throw error("unexpected text");
+        }
+        return geometry;
+    }
+
+    /**
+     * @return the polygon, or null when the exterior ring has fewer than 3 distinct points
+     */
+    private Polygon polygon() throws ParseException {
+        expect('(');
+        LinearRing shell = null;
+        List<LinearRing> holes = new ArrayList<>();
+        boolean first = true;
+        do {
+            LinearRing linearRing = ring();
+            if (first) {
+                shell = linearRing;
+                first = false;
+            } else if (linearRing != null) {
+                holes.add(linearRing);
+            }
+        } while (next(',', ')'));
+
+        if (shell == null) {
+            return null;
+        }
+        return factory.createPolygon(shell, holes.toArray(new LinearRing[0]));
+    }
+
+    private LinearRing ring() throws ParseException {
+        expect('(');
+        ringLength = 0;
+        do {
+            if (ringLength + 2 > ring.length) {
+                ring = Arrays.copyOf(ring, ring.length * 2);
+            }
+            ring[ringLength++] = number();
+            ring[ringLength++] = number();
+        } while (next(',', ')'));
+
+        // close the ring
+        if (ring[0] != ring[ringLength - 2] || ring[1] != ring[ringLength - 1]) {
+            if (ringLength + 2 > ring.length) {
+                ring = Arrays.copyOf(ring, ring.length * 2);
+            }
+            ring[ringLength++] = ring[0];
+            ring[ringLength++] = ring[1];
+            repaired = true;
+        }
+        if (ringLength < 8) {
+            repaired = true;
+            return null;
+        }
+
+        return factory.createLinearRing(new PackedCoordinateSequence.Double(Arrays.copyOf(ring, ringLength), 2, 0));
+    }
+
+    /**
+     * Parse a number. Numbers with up to 15 significant digits and no exponent are the same as Double.parseDouble,
+     * without creating a String.
+     */
+    private double number() throws ParseException {
+        skipWhitespace();
+        int start = pos;
+        int length = wkt.length();
+        boolean negative = false;
+        if (pos < length && (wkt.charAt(pos) == '-' || wkt.charAt(pos) == '+')) {
+            negative = wkt.charAt(pos) == '-';
+            pos++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean point = false;
+        boolean fast = true;
+        for (; pos < length; pos++) {
+            char c = wkt.charAt(pos);
+            if (c >= '0' && c <= '9') {
+                if (mantissa == 0 && c == '0') {
+                    // leading zeros are not significant
+                } else if (digits < 18) {
+                    mantissa = mantissa * 10 + (c - '0');
+                    digits++;
+                } else {
+                    fast = false;
+                }
+                if (point) {
+                    scale++;
+                }
+            } else if (c == '.' && !point) {
+                point = true;
+            } else if (c == 'e' || c == 'E' || c == '-' || c == '+') {
+                fast = false;
+            } else {
+                break;
+            }
+        }
+
+        if (pos == start || (pos == start + 1 && !Character.isDigit(wkt.charAt(start)))) {
+            throw error("expected a number");
+        }
+
+        if (fast && mantissa < MAX_EXACT && scale < POWERS_OF_TEN.length) {
+            // both values are exact, so the division is correctly rounded
+            double value = scale == 0 ? mantissa : mantissa / POWERS_OF_TEN[scale];
+            return negative ? -value : value;
+        }
+        try {
+            return Double.parseDouble(wkt.substring(start, pos));
+        } catch (NumberFormatException e) {
+            throw error("invalid number");
+        }
+    }
+
+    /**
+     * @return true when the next character is the separator, false when it is the terminator
+     */
+    private boolean next(char separator, char terminator) throws ParseException {
+        skipWhitespace();
+        if (pos < wkt.length()) {
+            char c = wkt.charAt(pos++);
+            if (c == separator) {
+                return true;
+            } else if (c == terminator) {
+                return false;
+            }
+        }
+        throw error("expected '" + separator + "' or '" + terminator + "'");
+    }
+
+    private void expect(char c) throws ParseException {
+        skipWhitespace();
+        if (pos >= wkt.length() || wkt.charAt(pos) != c) {
+            throw error("expected '" + c + "'");
+        }
+        pos++;
+    }
+
+    private boolean matchWord(String word) {
+        if (wkt.regionMatches(true, pos, word, 0, word.length())
+                && (pos + word.length() == wkt.length() || !Character.isLetter(wkt.charAt(pos + word.length())))) {
+            pos += word.length();
+            return true;
+        }
+        return false;
+    }
+
+    private void skipWhitespace() {
+        while (pos < wkt.length() && Character.isWhitespace(wkt.charAt(pos))) {
+            pos++;
+        }
+    }
+
+    private ParseException error(String message) {
+        return new ParseException(message + " at position " + pos);
+    }
+}
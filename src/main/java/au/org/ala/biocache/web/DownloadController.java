@@ -133,7 +133,7 @@ public class DownloadController extends AbstractSecureController {
             @Parameter(name="includeMisc", description = "Include miscellaneous properties, defaults to false",  schema = @Schema(type = "boolean", defaultValue = "false"), in = ParameterIn.QUERY),
             @Parameter(name="reasonTypeId", description = "Logger reason ID See https://logger.ala.org.au/service/logger/reasons",  required = true, schema = @Schema(type = "string", defaultValue = "10"), in = ParameterIn.QUERY),
             @Parameter(name="sourceTypeId", description = "Source ID See https://logger.ala.org.au/service/logger/sources",  schema = @Schema(type = "string", defaultValue = "0"), in = ParameterIn.QUERY),
-            @Parameter(name="fileType", description = "File type. CSV or TSV. Defaults to CSV", schema = @Schema(type = "string", allowableValues = {"csv", "tsv"}), in = ParameterIn.QUERY),
+            @Parameter(name="fileType", description = "File type. CSV, TSV or Arrow IPC (Feather V2) with typed columns. Defaults to CSV", schema = @Schema(type = "string", allowableValues = {"csv", "tsv", "arrow"}), in = ParameterIn.QUERY),
             @Parameter(name="customHeader", description = "Override header names with a CSV with 'requested field','header' pairs", in = ParameterIn.QUERY),
             @Parameter(name="mintDoi", description = "Request to generate a DOI for the download or not. Default false", schema = @Schema(type = "boolean", defaultValue = "false"), in = ParameterIn.QUERY),
             @Parameter(name="emailNotify", description = "Send notification email. Default true", schema = @Schema(type = "boolean", defaultValue = "true"), in = ParameterIn.QUERY),
@@ -330,6 +330,7 @@ public class DownloadController extends AbstractSecureController {
             } else {
                 status.setStatus(DownloadStatusDTO.DownloadStatus.RUNNING);
                 status.setRecords(dd.getRecordsDownloaded().longValue());
+                status.setMetrics(dd.getMetrics());
             }
             status.setTotalRecords(dd.getTotalRecords());
             status.setStatusUrl(downloadService.webservicesRoot + "/occurrences/offline/status/" + id);
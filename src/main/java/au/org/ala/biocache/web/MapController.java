@@ -17,6 +17,7 @@ package au.org.ala.biocache.web;
 import au.org.ala.biocache.dao.SearchDAO;
 import au.org.ala.biocache.dto.*;
 import au.org.ala.biocache.heatmap.HeatMap;
+import au.org.ala.biocache.heatmap.HeatmapFileCache;
 import au.org.ala.biocache.util.ColorUtil;
 import au.org.ala.biocache.util.QueryFormatUtils;
 import com.google.common.base.Strings;
@@ -81,6 +82,12 @@ public class MapController {
     @Value("${heatmap.legend.occurrence.label:occurrence}")
     protected String heatmapLegendOccurrenceLabel;
 
+    /**
+     * Draw density maps from the facet.heatmap grid used by the WMS instead of from each distinct point.
+     */
+    @Value("${heatmap.density.grid:true}")
+    protected Boolean heatmapDensityGrid = true;
+
     /**
      * The public or private value to use in the Cache-Control HTTP header for WMS tiles. Defaults to public
      */
@@ -98,6 +105,9 @@ public class MapController {
     @Inject
     protected WMSController wmsController;
 
+    @Inject
+    protected HeatmapFileCache heatmapFileCache;
+
     /**
      * Deprecated and moved from MapController in case it is still in use somewhere.
      */
@@ -223,6 +233,20 @@ public class MapController {
         }
     }
 
+    /**
+     * Send a PNG file without decoding it
+     */
+    private void streamFile(File file, HttpServletResponse response) throws Exception {
+        response.setHeader("Cache-Control", mapCacheControlHeaderPublicOrPrivate + ", max-age=" + mapCacheControlHeaderMaxAge);
+        response.setHeader("ETag", mapETag.get());
+        response.setContentType("image/png");
+        response.setContentLengthLong(file.length());
+        ServletOutputStream outStream = response.getOutputStream();
+        HeatmapFileCache.transferTo(file, outStream);
+        outStream.flush();
+        outStream.close();
+    }
+
     private void streamImage(BufferedImage img, HttpServletResponse response) throws Exception {
         response.setHeader("Cache-Control", mapCacheControlHeaderPublicOrPrivate + ", max-age=" + mapCacheControlHeaderMaxAge);
         response.setHeader("ETag", mapETag.get());
@@ -282,23 +306,17 @@ public class MapController {
             }
         }
 
-        //Does file exist on disk?
-        File f = new File(outputDir + "/" + outputHMFile);
-
-        if (!f.isFile() || !f.exists() || forceRefresh) {
+        //generate the file when it is not on disk, once for concurrent requests
+        final String[] colourByFq = facetValues;
+        final String[] colours = facetColours;
+        File file = heatmapFileCache.get(forceRefresh, dir -> {
             logger.debug("Regenerating heatmap image");
-            //If not, generate
-            generateStaticHeatmapImages(dto, false, forcePointsDisplay, pointHeatMapThreshold, pointColour, facetValues, facetColours, opacity, request);
-        } else {
-            logger.debug("Heatmap file already exists on disk, sending file back to user");
-        }
+            generateStaticHeatmapImages(dto, false, forcePointsDisplay, pointHeatMapThreshold, pointColour, colourByFq, colours, opacity, request, dir);
+        }, outputHMFile, "legend_" + outputHMFile);
 
         try {
-            //read file off disk and send back to user
-            File file = new File(outputDir + "/" + outputHMFile);
-            BufferedImage img = ImageIO.read(file);
-            streamImage(img, response);
-
+            //send the file back to user
+            streamFile(file, response);
         } catch (Exception e) {
             logger.error("Unable to write image.", e);
         }
@@ -335,28 +353,19 @@ public class MapController {
 
         SpatialSearchRequestDTO dto = SpatialSearchRequestDTO.create(requestParams);
 
-        File baseDir = new File(heatmapOutputDir);
-
         String outputHMFile = getOutputFile(request);
 
-        //Does file exist on disk?
-        File f = new File(baseDir + "/" + "legend_" + outputHMFile);
-
-        if (!f.isFile() || !f.exists() || forceRefresh) {
-            //If not, generate
+        //generate the file when it is not on disk, once for concurrent requests
+        File file = heatmapFileCache.get(forceRefresh, dir -> {
             logger.debug("regenerating heatmap legend");
-            generateStaticHeatmapImages(dto, true, false, pointHeatMapThreshold, "0000ff", null, null, 1.0f, request);
-        } else {
-            logger.debug("legend file already exists on disk, sending file back to user");
-        }
+            generateStaticHeatmapImages(dto, true, false, pointHeatMapThreshold, "0000ff", null, null, 1.0f, request, dir);
+        }, "legend_" + outputHMFile, outputHMFile);
 
-        //read file off disk and send back to user
+        //send the file back to user
         try {
-            File file = new File(baseDir + "/" + "legend_" + outputHMFile);
             //only send the image back if it actually exists - a legend won't exist if we create the map based on points
             if (file.exists()) {
-                BufferedImage img = ImageIO.read(file);
-                streamImage(img, response);
+                streamFile(file, response);
             }
 
         } catch (Exception e) {
@@ -371,6 +380,7 @@ public class MapController {
     /**
      * Generate heatmap image (and associated legend if applicable)
      * @param requestParams
+     * @param baseDir directory to write the images to
      */
     public void generateStaticHeatmapImages(
             SpatialSearchRequestDTO requestParams,
@@ -381,20 +391,29 @@ public class MapController {
             String[] colourByFq,
             String[] colours,
             Float opacity,
-            HttpServletRequest request) throws Exception {
+            HttpServletRequest request,
+            File baseDir) throws Exception {
 
-        File baseDir = new File(heatmapOutputDir);
-        logger.debug("Heatmap output directory is " + heatmapOutputDir);
+        logger.debug("Heatmap output directory is " + baseDir);
         String outputHMFile = getOutputFile(request);
 
         PointType pointType = PointType.POINT_001;
 
-        double[] points = retrievePoints(requestParams, pointType);
-
         HeatMap hm = new HeatMap();
 
+        //the grid is enough to choose between the heatmap and points
+        HeatmapDTO grid = null;
+        if (heatmapDensityGrid && !forcePointsDisplay) {
+            grid = retrieveGrid(requestParams, hm.getBBox());
+        }
+        OccurrencePoints points = grid == null ? retrievePoints(requestParams, pointType) : null;
+        long totalCount = grid == null ? points.getTotalCount() : getTotalCount(grid);
+
         //heatmap versus points
-        if (forcePointsDisplay || points.length == 0 || (points.length / 2) < pointHeatMapThreshold) {
+        if (forcePointsDisplay || totalCount == 0 || totalCount < pointHeatMapThreshold) {
+            if (points == null) {
+                points = retrievePoints(requestParams, pointType);
+            }
             hm.setLegendImage(null);
             if (!generateLegend && colourByFq != null){
                 String[] originalFq = requestParams.getFq();
@@ -404,11 +423,11 @@ public class MapController {
                     } else {
                         requestParams.setFq(new String[]{colourByFq[k]});
                     }
-                    if(forcePointsDisplay && points.length > 0 && (points.length / 2 < pointHeatMapThreshold) ){
+                    if(forcePointsDisplay && points.size() > 0 && (points.getTotalCount() < pointHeatMapThreshold) ){
                         pointType = PointType.POINT_01;
                     }
 
-                    double[] pointsForFacet = retrievePoints(requestParams, pointType);
+                    OccurrencePoints pointsForFacet = retrievePoints(requestParams, pointType);
                     Color pointColor = ColorUtil.getColor(colours[k], opacity);
 
                     String facetDisplayString = queryFormatUtils.formatQueryTerm(colourByFq[k], null)[0];
@@ -421,7 +440,12 @@ public class MapController {
             hm.drawOutput(baseDir + "/" + outputHMFile, false);
             hm.drawLegend(baseDir + "/legend_" + outputHMFile);
         } else {
-            hm.generateClasses(points); //this will create legend
+            //this will create legend
+            if (grid != null) {
+                hm.generateClasses(grid);
+            } else {
+                hm.generateClasses(points);
+            }
             if (generateLegend){
                 hm.drawLegend(baseDir + "/legend_" + outputHMFile);
             } else {
@@ -431,46 +455,57 @@ public class MapController {
     }
 
     /**
-     * Returns an array of points in the format [lat1,long1,lat2,long2,.....]
+     * Returns the distinct points of a query
      *
      * @param requestParams
      * @param pointType
-     * @return returns an empty array if none found.
+     * @return returns no points if none found.
      */
-    @Deprecated
-    private double[] retrievePoints(SpatialSearchRequestDTO requestParams, PointType pointType) {
-
-        double[] points = new double[0];
+    private OccurrencePoints retrievePoints(SpatialSearchRequestDTO requestParams, PointType pointType) {
         try {
-            requestParams.setQ(requestParams.getQ());
-            List<OccurrencePoint> occ_points = searchDAO.getFacetPoints(requestParams, pointType);
+            OccurrencePoints points = searchDAO.getOccurrencePoints(requestParams, pointType, -1);
             if (logger.isDebugEnabled()) {
-                logger.debug("Points search for " + pointType.getLabel() + " - found: " + occ_points.size());
+                logger.debug("Points search for " + pointType.getLabel() + " - found: " + points.size() +
+                        ", total number of occurrence points is " + points.getTotalCount());
             }
+            return points;
+        } catch (Exception e) {
+            logger.error("An error occurred getting heatmap points", e);
+        }
+        return new OccurrencePoints(pointType, 0);
+    }
 
-            int totalItems = 0;
-            for (int i = 0; i < occ_points.size(); i++) {
-                OccurrencePoint pt = occ_points.get(i);
-                totalItems = (int) (totalItems + pt.getCount());
-            }
-
-            logger.debug("total number of occurrence points is " + totalItems);
-
-            points = new double[totalItems * 2];
+    /**
+     * Returns the facet.heatmap grid of a query
+     *
+     * @param requestParams
+     * @param bbox minx, miny, maxx, maxy
+     * @return null if the grid is not available.
+     */
+    private HeatmapDTO retrieveGrid(SpatialSearchRequestDTO requestParams, double[] bbox) {
+        try {
+            queryFormatUtils.formatSearchQuery(requestParams);
+            return searchDAO.getHeatMap(requestParams.getFormattedQuery(), requestParams.getFormattedFq(),
+                    bbox[0], bbox[1], bbox[2], bbox[3], null, 1);
+        } catch (Exception e) {
+            logger.error("An error occurred getting the heatmap grid", e);
+        }
+        return null;
+    }
 
-            int j = 0;
-            for (int i = 0; i < occ_points.size(); i++) {
-                OccurrencePoint pt = occ_points.get(i);
-                pt.getCount();
-                double lng = pt.getCoordinates().get(0).doubleValue();
-                double lat = pt.getCoordinates().get(1).doubleValue();
-                points[j] = lng;
-                points[j + 1] = lat;
-                j = j + 2;
+    private long getTotalCount(HeatmapDTO grid) {
+        long total = 0;
+        if (!grid.layers.isEmpty() && grid.layers.get(0) != null) {
+            for (List<Integer> row : grid.layers.get(0)) {
+                if (row != null) {
+                    for (Integer count : row) {
+                        if (count != null) {
+                            total += count;
+                        }
+                    }
+                }
             }
-        } catch (Exception e) {
-            logger.error("An error occurred getting heatmap points", e);
         }
-        return points;
+        return total;
     }
 }
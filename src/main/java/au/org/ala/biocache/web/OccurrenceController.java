@@ -26,6 +26,7 @@ import au.org.ala.biocache.service.*;
 import au.org.ala.biocache.util.OccurrenceUtils;
 import au.org.ala.biocache.util.QidSizeException;
 import au.org.ala.biocache.util.SearchUtils;
+import au.org.ala.biocache.util.SpatialObjectCache;
 import au.org.ala.biocache.util.converter.FqField;
 import au.org.ala.ws.security.profile.AlaUserProfile;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -133,6 +134,8 @@ public class OccurrenceController extends AbstractSecureController {
      */
     @Inject
     protected SearchUtils searchUtils;
+    @Inject
+    protected SpatialObjectCache spatialObjectCache;
 
     @Inject
     protected SpeciesLookupService speciesLookupService;
@@ -977,6 +980,8 @@ public class OccurrenceController extends AbstractSecureController {
 
         dataQualityService.clearCache();
 
+        spatialObjectCache.clear();
+
         regenerateETag();
         return null;
     }
@@ -1421,6 +1426,12 @@ public class OccurrenceController extends AbstractSecureController {
             return;
         }
 
+        // binary files are only downloaded in a zip
+        if (!zip && "arrow".equals(downloadRequestDTO.getFileType())) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "fileType=arrow requires zip=true");
+            return;
+        }
+
         try {
             ServletOutputStream out = response.getOutputStream();
             downloadService.writeQueryToStream(
@@ -1504,11 +1515,13 @@ public class OccurrenceController extends AbstractSecureController {
         //simplify wkt
         dto.setWkt(qidCacheDAO.fixWkt(dto.getWkt()));
 
-        requestParams.setFacets(new String[]{OccurrenceIndex.LAT_LNG});
-        requestParams.setFacet(true);
-        if (requestParams.getQ().length() < 1)
-            requestParams.setQ("*:*");
+        dto.setFacets(new String[]{OccurrenceIndex.LAT_LNG});
+        dto.setFacet(true);
+        if (StringUtils.isEmpty(dto.getQ()))
+            dto.setQ("*:*");
         try {
+            response.setContentType("text/csv");
+            response.setCharacterEncoding("UTF-8");
             ServletOutputStream out = response.getOutputStream();
             searchDAO.writeCoordinatesToStream(dto, out);
         } catch (Exception e) {
@@ -14,10 +14,14 @@
  ***************************************************************************/
 package au.org.ala.biocache.web;
 
+import au.org.ala.biocache.dao.IndexDAO;
 import au.org.ala.biocache.dao.QidCacheDAO;
 import au.org.ala.biocache.dao.SearchDAO;
 import au.org.ala.biocache.dao.TaxonDAO;
 import au.org.ala.biocache.dto.*;
+import au.org.ala.biocache.heatmap.GridAggregator;
+import au.org.ala.biocache.heatmap.GridBins;
+import au.org.ala.biocache.heatmap.HeatmapPrewarmer;
 import au.org.ala.biocache.stream.StreamAsCSV;
 import au.org.ala.biocache.util.*;
 import au.org.ala.biocache.util.converter.FqField;
@@ -36,14 +40,8 @@ import org.apache.log4j.Logger;
 import org.apache.solr.client.solrj.response.FacetField;
 import org.apache.solr.common.SolrDocument;
 import org.apache.solr.common.SolrDocumentList;
-import org.geotools.geometry.GeneralDirectPosition;
 import org.geotools.referencing.CRS;
-import org.geotools.referencing.operation.DefaultCoordinateOperationFactory;
-import org.opengis.geometry.DirectPosition;
 import org.opengis.geometry.MismatchedDimensionException;
-import org.opengis.referencing.crs.CRSAuthorityFactory;
-import org.opengis.referencing.crs.CoordinateReferenceSystem;
-import org.opengis.referencing.operation.CoordinateOperation;
 import org.opengis.referencing.operation.TransformException;
 import org.springdoc.api.annotations.ParameterObject;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -55,6 +53,7 @@ import org.springframework.security.access.annotation.Secured;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.ServletWebRequest;
 import org.springframework.web.servlet.ModelAndView;
 
 import javax.annotation.PostConstruct;
@@ -66,6 +65,7 @@ import javax.servlet.http.HttpServletResponse;
 import java.awt.*;
 import java.awt.geom.Path2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.io.*;
 import java.net.URL;
 import java.net.URLEncoder;
@@ -109,6 +109,12 @@ public class WMSController extends AbstractSecureController {
     protected QidCacheDAO qidCacheDAO;
     @Inject
     public FieldMappingUtil fieldMappingUtil;
+    @Inject
+    protected GridAggregator gridAggregator;
+    @Inject
+    protected HeatmapPrewarmer heatmapPrewarmer;
+    @Inject
+    protected IndexDAO indexDao;
 
     /**
      * Load a smaller 256x256 png than java.image produces
@@ -175,6 +181,13 @@ public class WMSController extends AbstractSecureController {
      */
     private final String NULL_NAME = "Unknown";
 
+    static final String MVT_CONTENT_TYPE = "application/vnd.mapbox-vector-tile";
+
+    /**
+     * tile units of features included around the edge of a vector tile
+     */
+    static final int MVT_BUFFER = 64;
+
     /**
      * add pixel radius for wms highlight circles
      */
@@ -192,6 +205,12 @@ public class WMSController extends AbstractSecureController {
     @Value("${wms.uncertainty.grouping:0,1000,2000,4000,8000,16000,30000}")
     private String uncertaintyGroupingStr;
 
+    /**
+     * deflate level of WMS tiles, 0 (fastest) to 9 (smallest)
+     */
+    @Value("${wms.png.deflate.level:4}")
+    private Integer wmsPngDeflateLevel = 4;
+
     /**
      * buffer for hiding rounding errors and some projection errors
      */
@@ -232,6 +251,8 @@ public class WMSController extends AbstractSecureController {
 
         // configure geotools to use x/y order for SRS operations
         System.setProperty("org.geotools.referencing.forceXY", "true");
+
+        heatmapPrewarmer.setLoader(this::prewarmTile);
     }
 
     @Operation(summary = "Create a query ID", tags = "Query ID", description = "Add query details to a cache to reduce the size of the query params that are being passed around. This is particularly useful if you requests are too large for a GET.\n" +
@@ -284,11 +305,22 @@ public class WMSController extends AbstractSecureController {
 
         double[] bb = null;
         if (bbox != null && bbox.equalsIgnoreCase("true")) {
+            double[] wktBBox = null;
+            try {
+                wktBBox = qidCacheDAO.getWktBBox(requestParams.getWkt());
+            } catch (Exception e) {
+                // generateQid reports invalid WKT
+            }
             try {
                 bb = searchDAO.getBBox(requestParams);
+                if (wktBBox != null) {
+                    // occurrences are within the WKT
+                    bb = new double[]{Math.max(bb[0], wktBBox[0]), Math.max(bb[1], wktBBox[1]),
+                            Math.min(bb[2], wktBBox[2]), Math.min(bb[3], wktBBox[3])};
+                }
             } catch (Exception e) {
                 // When there are no occurrences for the query return a usable bounding box
-                bb = new double []{-180, -90, 180, 90};
+                bb = wktBBox != null ? wktBBox : new double []{-180, -90, 180, 90};
             }
         }
 
@@ -647,6 +679,197 @@ public class WMSController extends AbstractSecureController {
         return jsonBoundingBox(params, response);
     }
 
+    /**
+     * Get the occurrence counts of hexagonal or square grid cells as JSON.
+     * <p>
+     * Cells are in EPSG:3857. The hexbin WMS tiles of zoom level z and ENV size s use the same cells with the cellSize
+     * 40075016.68557849 / 2^z / (2 * (12 - s)). Other cell sizes are snapped to the nearest of these, for any z and s
+     * from 1 to 9.
+     *
+     * @param params
+     * @param bboxString min longitude, min latitude, max longitude, max latitude
+     * @param shape      hex or square
+     * @param cellSize   distance between the centres of adjacent columns in EPSG:3857 metres
+     * @param response
+     * @return the cells with occurrences, with the snapped cellSize
+     * @throws Exception
+     */
+    @Operation(summary = "Get occurrence counts in hexagonal or square grid cells as JSON", tags = "Mapping")
+    @RequestMapping(value = {"/mapping/hexbin" }, method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
+    public
+    @ResponseBody
+    GridBinsDTO jsonHexbin(
+            @ParameterObject SpatialSearchRequestParams params,
+            @RequestParam(value = "bbox", required = false, defaultValue = "-180,-85,180,85") String bboxString,
+            @RequestParam(value = "shape", required = false, defaultValue = "hex") String shape,
+            @RequestParam(value = "cellSize") Double cellSize,
+            HttpServletResponse response)
+            throws Exception {
+
+        GridAggregator.Shape gridShape;
+        double[] bbox = new double[4];
+        try {
+            gridShape = GridAggregator.Shape.valueOf(shape.toUpperCase());
+            String[] split = bboxString.split(",");
+            for (int i = 0; i < 4; i++) {
+                bbox[i] = Double.parseDouble(split[i]);
+            }
+        } catch (Exception e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid shape or bbox");
+            return null;
+        }
+        if (cellSize == null || !(cellSize > 0)) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid cellSize");
+            return null;
+        }
+
+        SpatialSearchRequestDTO dto = SpatialSearchRequestDTO.create(params);
+        queryFormatUtils.formatSearchQuery(dto, true);
+
+        try {
+            GridBins bins = gridAggregator.getBins(dto.getFormattedQuery(), dto.getFormattedFq(), gridShape, cellSize,
+                    WebMercator.toX(bbox[0]),
+                    WebMercator.toY(Math.max(bbox[1], -WebMercator.MAX_LATITUDE)),
+                    WebMercator.toX(bbox[2]),
+                    WebMercator.toY(Math.min(bbox[3], WebMercator.MAX_LATITUDE)));
+
+            response.setHeader("Cache-Control", wmsCacheControlHeaderPublicOrPrivate + ", max-age=" + wmsCacheControlHeaderMaxAge);
+            response.setHeader("ETag", wmsETag.get());
+            return bins.toDTO();
+        } catch (IllegalArgumentException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Get occurrence counts as a Mapbox Vector Tile.
+     * <p>
+     * Features are the heatmap cells with occurrences, as the point at the centre of the cell or as the cell
+     * rectangle, with a count property. There is a layer for each legend item of the colourMode, or one layer named
+     * occurrences. Tiles do not depend on the style, so the client styles them and each tile is cached once.
+     *
+     * @param params
+     * @param z          zoom level
+     * @param x          column, from longitude -180
+     * @param y          row, from the top
+     * @param colourMode facet for a layer for each legend item, or -1 for one layer
+     * @param geometry   point or polygon
+     * @throws Exception
+     */
+    @Operation(summary = "Get occurrence counts as a Mapbox Vector Tile", tags = "Mapping")
+    @GetMapping(value = {"/mapping/mvt/{z}/{x}/{y}.mvt", "/mapping/mvt/{z}/{x}/{y}"}, produces = MVT_CONTENT_TYPE)
+    public void vectorTile(
+            @ParameterObject SpatialSearchRequestParams params,
+            @PathVariable("z") Integer z,
+            @PathVariable("x") Integer x,
+            @PathVariable("y") Integer y,
+            @RequestParam(value = "colourMode", required = false, defaultValue = "-1") String colourMode,
+            @RequestParam(value = "geometry", required = false, defaultValue = "point") String geometry,
+            HttpServletRequest request,
+            HttpServletResponse response)
+            throws Exception {
+
+        boolean polygons = "polygon".equalsIgnoreCase(geometry);
+        if (!polygons && !"point".equalsIgnoreCase(geometry)) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid geometry");
+            return;
+        }
+        if (z < 0 || z > 30 || x < 0 || y < 0 || x >= (1L << z) || y >= (1L << z)) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid tile");
+            return;
+        }
+
+        // a tile changes only with the index
+        response.setHeader("Cache-Control", wmsCacheControlHeaderPublicOrPrivate + ", max-age=" + wmsCacheControlHeaderMaxAge);
+        if (new ServletWebRequest(request, response).checkNotModified("\"" + indexDao.getIndexVersion(false) + "\"")) {
+            return;
+        }
+
+        double[] tile = WebMercator.tileBBox(z, x, y);
+        double scale = MvtEncoder.EXTENT / (tile[2] - tile[0]);
+        double buffer = MVT_BUFFER / scale;
+
+        SpatialSearchRequestDTO dto = SpatialSearchRequestDTO.create(params);
+        queryFormatUtils.formatSearchQuery(dto, true);
+
+        List<LegendItem> legend = "grid".equals(colourMode) ? null : searchDAO.getColours(dto, colourMode);
+        HeatmapDTO heatmap = searchDAO.getHeatMap(dto.getFormattedQuery(), dto.getFormattedFq(),
+                Math.max(WebMercator.toLongitude(tile[0] - buffer), -180),
+                Math.max(WebMercator.toLatitude(tile[1] - buffer), -WebMercator.MAX_LATITUDE),
+                Math.min(WebMercator.toLongitude(tile[2] + buffer), 180),
+                Math.min(WebMercator.toLatitude(tile[3] + buffer), WebMercator.MAX_LATITUDE),
+                legend, 1);
+
+        MvtEncoder mvt = new MvtEncoder();
+        if (heatmap != null && heatmap.layers != null) {
+            for (int i = 0; i < heatmap.layers.size(); i++) {
+                if (heatmap.layers.get(i) != null) {
+                    String name = legend == null || legend.isEmpty() ? "occurrences" : StringUtils.defaultIfEmpty(legend.get(i).getName(), NULL_NAME);
+                    addVectorTileLayer(mvt.addLayer(name), heatmap, heatmap.layers.get(i), tile, scale, polygons);
+                }
+            }
+        }
+
+        try (ServletOutputStream outStream = response.getOutputStream()) {
+            response.setContentType(MVT_CONTENT_TYPE);
+            outStream.write(mvt.encode());
+            outStream.flush();
+        } catch (Exception e) {
+            logger.debug("Unable to write vector tile", e);
+        }
+    }
+
+    /**
+     * Add the cells with occurrences of a heatmap layer to a vector tile layer.
+     *
+     * @param tile  EPSG:3857 tile bbox
+     * @param scale tile units per EPSG:3857 metre
+     */
+    private void addVectorTileLayer(MvtEncoder.Layer mvtLayer, HeatmapDTO heatmap, List<List<Integer>> layer,
+                                    double[] tile, double scale, boolean polygons) {
+        double columnWidth = heatmap.columnWidth();
+        double rowHeight = heatmap.rowHeight();
+        int[] ring = new int[8];
+        for (int row = 0; row < layer.size(); row++) {
+            List<Integer> cells = layer.get(row);
+            if (cells == null) {
+                continue;
+            }
+            double top = Math.min(heatmap.maxy - rowHeight * row, WebMercator.MAX_LATITUDE);
+            double bottom = Math.max(heatmap.maxy - rowHeight * (row + 1), -WebMercator.MAX_LATITUDE);
+            if (top <= bottom) {
+                continue;
+            }
+            int y1 = (int) Math.round((tile[3] - WebMercator.toY(top)) * scale);
+            int y2 = (int) Math.round((tile[3] - WebMercator.toY(bottom)) * scale);
+            int yc = (int) Math.round((tile[3] - WebMercator.toY((top + bottom) / 2)) * scale);
+
+            for (int column = 0; column < cells.size(); column++) {
+                Integer count = cells.get(column);
+                if (count == null || count <= 0) {
+                    continue;
+                }
+                double left = heatmap.minx + columnWidth * column;
+                Map<String, Long> properties = Collections.singletonMap("count", (long) count);
+                if (polygons) {
+                    int x1 = (int) Math.round((WebMercator.toX(left) - tile[0]) * scale);
+                    int x2 = (int) Math.round((WebMercator.toX(left + columnWidth) - tile[0]) * scale);
+                    ring[0] = x1; ring[1] = y1;
+                    ring[2] = x2; ring[3] = y1;
+                    ring[4] = x2; ring[5] = y2;
+                    ring[6] = x1; ring[7] = y2;
+                    mvtLayer.addPolygon(ring, properties);
+                } else {
+                    int xc = (int) Math.round((WebMercator.toX(left + columnWidth / 2) - tile[0]) * scale);
+                    if (xc >= -MVT_BUFFER && xc <= MvtEncoder.EXTENT + MVT_BUFFER && yc >= -MVT_BUFFER && yc <= MvtEncoder.EXTENT + MVT_BUFFER) {
+                        mvtLayer.addPoint(xc, yc, properties);
+                    }
+                }
+            }
+        }
+    }
+
     /**
      * Get occurrences by query as JSON.
      *
@@ -797,7 +1020,7 @@ public class WMSController extends AbstractSecureController {
     }
 
     /**
-     * @param transformTo4326 TransformOp to convert from the target SRS to the coordinates in SOLR (EPSG:4326)
+     * @param transform       transform between the target SRS and the coordinates in SOLR (EPSG:4326)
      * @param bboxString      getMap bbox parameter with the tile extents in the target SRS as min x, min y, max x, max y
      * @param width           getMap width value in pixels
      * @param height          getMap height value in pixels
@@ -810,7 +1033,7 @@ public class WMSController extends AbstractSecureController {
      * @param tilebbox        raw coordinates from the getMap bbox parameter
      * @return degrees per pixel to determine which SOLR coordinate field to facet upon
      */
-    private double getBBoxesSRS(CoordinateOperation transformTo4326, String bboxString, int width, int height, int size, boolean uncertainty, double[] mbbox, double[] bbox, double[] pbbox, double[] tilebbox) throws TransformException {
+    private double getBBoxesSRS(SrsTransform transform, String bboxString, int width, int height, int size, boolean uncertainty, double[] mbbox, double[] bbox, double[] pbbox, double[] tilebbox) throws TransformException {
         String[] splitBBox = bboxString.split(",");
         for (int i = 0; i < 4; i++) {
             try {
@@ -843,19 +1066,14 @@ public class WMSController extends AbstractSecureController {
         pbbox[2] = mbbox[2];
         pbbox[3] = mbbox[3];
 
-        GeneralDirectPosition directPositionSW = new GeneralDirectPosition(mbbox[0] - xoffset, mbbox[1] - yoffset);
-        GeneralDirectPosition directPositionNE = new GeneralDirectPosition(mbbox[2] + xoffset, mbbox[3] + yoffset);
-        GeneralDirectPosition directPositionSE = new GeneralDirectPosition(mbbox[2] - xoffset, mbbox[1] - yoffset);
-        GeneralDirectPosition directPositionNW = new GeneralDirectPosition(mbbox[0] + xoffset, mbbox[3] + yoffset);
-        DirectPosition sw4326 = transformTo4326.getMathTransform().transform(directPositionSW, null);
-        DirectPosition ne4326 = transformTo4326.getMathTransform().transform(directPositionNE, null);
-        DirectPosition se4326 = transformTo4326.getMathTransform().transform(directPositionSE, null);
-        DirectPosition nw4326 = transformTo4326.getMathTransform().transform(directPositionNW, null);
-
-        bbox[0] = Math.min(Math.min(Math.min(sw4326.getOrdinate(0), ne4326.getOrdinate(0)), se4326.getOrdinate(0)), nw4326.getOrdinate(0));
-        bbox[1] = Math.min(Math.min(Math.min(sw4326.getOrdinate(1), ne4326.getOrdinate(1)), se4326.getOrdinate(1)), nw4326.getOrdinate(1));
-        bbox[2] = Math.max(Math.max(Math.max(sw4326.getOrdinate(0), ne4326.getOrdinate(0)), se4326.getOrdinate(0)), nw4326.getOrdinate(0));
-        bbox[3] = Math.max(Math.max(Math.max(sw4326.getOrdinate(1), ne4326.getOrdinate(1)), se4326.getOrdinate(1)), nw4326.getOrdinate(1));
+        // sw, ne, se, nw
+        double[] corners = new double[]{
+                mbbox[0] - xoffset, mbbox[1] - yoffset,
+                mbbox[2] + xoffset, mbbox[3] + yoffset,
+                mbbox[2] - xoffset, mbbox[1] - yoffset,
+                mbbox[0] + xoffset, mbbox[3] + yoffset};
+        transform.toWgs84(corners, 4);
+        extents(corners, bbox);
 
         double degreesPerPixel = Math.min((bbox[2] - bbox[0]) / (double) width,
                 (bbox[3] - bbox[1]) / (double) height);
@@ -1003,15 +1221,12 @@ public class WMSController extends AbstractSecureController {
         double[] tilebbox = new double[4];
         int size = vars.size + (vars.highlight != null ? HIGHLIGHT_RADIUS * 2 + (int) (vars.size * 0.2) : 0) + 5;  //bounding box buffer
 
-        CRSAuthorityFactory factory = CRS.getAuthorityFactory(true);
-        CoordinateReferenceSystem sourceCRS = factory.createCoordinateReferenceSystem(srs);
-        CoordinateReferenceSystem targetCRS = factory.createCoordinateReferenceSystem("EPSG:4326");
-        CoordinateOperation transformTo4326 = new DefaultCoordinateOperationFactory().createOperation(sourceCRS, targetCRS);
+        SrsTransform transform = SrsTransform.get(srs);
 
         double resolution;
 
         // support for any srs
-        resolution = getBBoxesSRS(transformTo4326, bboxString, width, height, size, vars.uncertainty, mbbox, bbox, pbbox, tilebbox);
+        resolution = getBBoxesSRS(transform, bboxString, width, height, size, vars.uncertainty, mbbox, bbox, pbbox, tilebbox);
 
         //resolution should be a value < 1
         PointType pointType = getPointTypeForDegreesPerPixel(resolution);
@@ -1506,14 +1721,15 @@ public class WMSController extends AbstractSecureController {
             }
         }
 
-        CRSAuthorityFactory factory = CRS.getAuthorityFactory(true);
-        CoordinateReferenceSystem sourceCRS = factory.createCoordinateReferenceSystem(srs);
-        CoordinateReferenceSystem targetCRS = factory.createCoordinateReferenceSystem("EPSG:4326");
-        CoordinateOperation transformFrom4326 = new DefaultCoordinateOperationFactory().createOperation(targetCRS, sourceCRS);
+        SrsTransform transform = SrsTransform.get(srs);
 
-        double[] bbox = reprojectBBox(tilebbox, srs, transformFrom4326);
+        // standard tiles are counted for HeatmapPrewarmer
+        if (transform.isWebMercator() && WebMercator.tileIndex(tilebbox) != null && !"hexbin".equalsIgnoreCase(vars.colourMode)) {
+            heatmapPrewarmer.record(requestParams, env, styles, srs, width, height, gridDivisionCount);
+        }
+
+        double[] bbox = reprojectBBox(tilebbox, transform);
 
-        boolean isGrid = vars.colourMode.equals("grid");
         if (logger.isDebugEnabled()) {
             logger.debug("vars.colourMode = " + vars.colourMode);
         }
@@ -1524,22 +1740,13 @@ public class WMSController extends AbstractSecureController {
         queryFormatUtils.formatSearchQuery(requestParams, true);
 
         ImgObj tile = null;
+        TileRaster raster = null;
 
-        // Hex cell rendering requires accurate coordinates.
-        // The binning by the heatmap SOLR service is difficult to align.
-        // Using the old point_* facet method for hex cell rendering
+        // Hex cells are from the same aggregated grid as /mapping/hexbin
         if ("hexbin".equalsIgnoreCase(vars.colourMode)) {
-            tile = hexGridImg(requestParams, vars, width, height, outlinePoints, outlineColour, tilebbox, bbox, transformFrom4326);
+            tile = hexGridImg(requestParams, vars, width, height, outlinePoints, outlineColour, tilebbox, bbox, transform);
         } else {
-            //retrieve legend
-            List<LegendItem> legend = searchDAO.getColours(requestParams, vars.colourMode);
-
-            // Increase size of area requested to include occurrences around the edge that overlap with the target area when drawn.
-            double bWidth = isGrid ? 0 : ((bbox[2] - bbox[0]) / (double) width) * (Math.max(wmsMaxPointWidth, pointWidth) + additionalBuffer);
-            double bHeight = isGrid ? 0 : ((bbox[3] - bbox[1]) / (double) height) * (Math.max(wmsMaxPointWidth, pointWidth) + additionalBuffer);
-
-            // faster method
-            HeatmapDTO heatmapDTO = searchDAO.getHeatMap(requestParams.getFormattedQuery(), requestParams.getFormattedFq(), bbox[0] - bWidth, bbox[1] - bHeight, bbox[2] + bWidth, bbox[3] + bHeight, legend, isGrid ? (int) Math.ceil(width / (double) gridDivisionCount) : 1);
+            HeatmapDTO heatmapDTO = getTileHeatmap(requestParams, vars, bbox, width, height, gridDivisionCount, false);
             heatmapDTO.setTileExtents(bbox);
 
             // getHeatMap is cached. The process to trigger hiddenFacets is:
@@ -1563,31 +1770,80 @@ public class WMSController extends AbstractSecureController {
             HeatmapDTO circlesHeatmap = getCirclesHeatmap(vars, bbox, requestParams, width, height, pointWidth);
 
             // render PNG...
-            tile = renderHeatmap(heatmapDTO,
+            raster = renderHeatmap(heatmapDTO,
                     vars,
                     (int) pointWidth,
                     outlinePoints,
                     outlineColour,
                     width,
-                    height, transformFrom4326, tilebbox,
+                    height, transform, tilebbox,
                     circlesHeatmap
             );
         }
 
-        if (tile != null && tile.g != null) {
+        if (raster != null) {
+            writeTile(raster.pixels, raster.width, raster.height, response);
+        } else if (tile != null && tile.g != null) {
             tile.g.dispose();
-            try (ServletOutputStream outStream = response.getOutputStream();) {
-                response.setContentType("image/png");
-                ImageIO.write(tile.img, "png", outStream);
-                outStream.flush();
-            } catch (Exception e) {
-                logger.debug("Unable to write image", e);
-            }
+            writeTile(((DataBufferInt) tile.img.getRaster().getDataBuffer()).getData(), width, height, response);
         } else {
             displayBlankImage(response);
         }
     }
 
+    /**
+     * Get the heatmap of a tile.
+     *
+     * @param requestParams formatted query
+     * @param bbox          EPSG:4326 tile bbox
+     * @param refresh       replace the cached heatmap
+     * @return
+     * @throws Exception
+     */
+    private HeatmapDTO getTileHeatmap(SpatialSearchRequestDTO requestParams, WmsEnv vars, double[] bbox, int width, int height,
+                                      int gridDivisionCount, boolean refresh) throws Exception {
+        boolean isGrid = vars.colourMode.equals("grid");
+        float pointWidth = (float) (vars.size * 2);
+
+        //retrieve legend
+        List<LegendItem> legend = searchDAO.getColours(requestParams, vars.colourMode);
+
+        // Increase size of area requested to include occurrences around the edge that overlap with the target area when drawn.
+        double bWidth = isGrid ? 0 : ((bbox[2] - bbox[0]) / (double) width) * (Math.max(wmsMaxPointWidth, pointWidth) + additionalBuffer);
+        double bHeight = isGrid ? 0 : ((bbox[3] - bbox[1]) / (double) height) * (Math.max(wmsMaxPointWidth, pointWidth) + additionalBuffer);
+        int gridSize = isGrid ? (int) Math.ceil(width / (double) gridDivisionCount) : 1;
+
+        if (refresh) {
+            return searchDAO.refreshHeatMap(requestParams.getFormattedQuery(), requestParams.getFormattedFq(), bbox[0] - bWidth, bbox[1] - bHeight, bbox[2] + bWidth, bbox[3] + bHeight, legend, gridSize);
+        }
+
+        // faster method
+        return searchDAO.getHeatMap(requestParams.getFormattedQuery(), requestParams.getFormattedFq(), bbox[0] - bWidth, bbox[1] - bHeight, bbox[2] + bWidth, bbox[3] + bHeight, legend, gridSize);
+    }
+
+    /**
+     * Reload the heatmap of a standard tile of a layer for HeatmapPrewarmer, in the same way as generateWmsTileViaHeatmap.
+     */
+    private void prewarmTile(HeatmapPrewarmer.Layer layer, double[] tilebbox) throws Exception {
+        SpatialSearchRequestDTO requestParams = layer.getParams();
+        WmsEnv vars = new WmsEnv(layer.env, layer.styles);
+
+        double[] bbox = reprojectBBox(tilebbox, SrsTransform.get(layer.srs));
+
+        queryFormatUtils.formatSearchQuery(requestParams, true);
+        getTileHeatmap(requestParams, vars, bbox, layer.width, layer.height, layer.gridDivisionCount, true);
+    }
+
+    private void writeTile(int[] pixels, int width, int height, HttpServletResponse response) {
+        try (ServletOutputStream outStream = response.getOutputStream();) {
+            response.setContentType("image/png");
+            PngEncoder.write(pixels, width, height, wmsPngDeflateLevel, outStream);
+            outStream.flush();
+        } catch (Exception e) {
+            logger.debug("Unable to write image", e);
+        }
+    }
+
     /**
      * Get HeatmapDTO of the circles that occur around the mapped points.
      * <p>
@@ -1661,36 +1917,33 @@ public class WMSController extends AbstractSecureController {
         return null;
     }
 
-    private double[] reprojectBBox(double[] tilebbox, String srs, CoordinateOperation transformFrom4326) throws Exception {
-
-        CRSAuthorityFactory factory = CRS.getAuthorityFactory(true);
-        CoordinateReferenceSystem sourceCRS = factory.createCoordinateReferenceSystem(srs);
-        CoordinateReferenceSystem targetCRS = factory.createCoordinateReferenceSystem("EPSG:4326");
-        CoordinateOperation transformTo4326 = new DefaultCoordinateOperationFactory().createOperation(sourceCRS, targetCRS);
-
-        // pixel correction buffer: adjust bbox extents with half pixel width/height
-        GeneralDirectPosition directPositionSW = new GeneralDirectPosition(tilebbox[0], tilebbox[1]);
-        GeneralDirectPosition directPositionNE = new GeneralDirectPosition(tilebbox[2], tilebbox[3]);
-
-        DirectPosition sw4326 = transformTo4326.getMathTransform().transform(directPositionSW, null);
-        DirectPosition ne4326 = transformTo4326.getMathTransform().transform(directPositionNE, null);
+    /**
+     * @param tilebbox tile bbox in the target SRS. Standard EPSG:3857 tiles are replaced with the exact bbox of the tile,
+     *                 so the heatmapCache key of a tile is the same whatever the client's formatting of the bbox.
+     *                 Longitude is moved into -180 to 180.
+     * @return EPSG:4326 bbox
+     */
+    private double[] reprojectBBox(double[] tilebbox, SrsTransform transform) throws TransformException {
+        if (transform.isWebMercator()) {
+            int[] tile = WebMercator.tileIndex(tilebbox);
+            if (tile != null) {
+                System.arraycopy(WebMercator.tileBBox(tile[0], tile[1], tile[2]), 0, tilebbox, 0, 4);
+                return WebMercator.tileBBox4326(tile[0], tile[1], tile[2]);
+            }
+        }
 
-        double[] bbox = new double[4];
-        bbox[0] = sw4326.getCoordinate()[0];
-        bbox[1] = sw4326.getCoordinate()[1];
-        bbox[2] = ne4326.getCoordinate()[0];
-        bbox[3] = ne4326.getCoordinate()[1];
+        double[] bbox = new double[]{tilebbox[0], tilebbox[1], tilebbox[2], tilebbox[3]};
+        transform.toWgs84(bbox, 2);
 
         // restrict longitude -180 to +180, assuming; minLongitude < maxLongitude and width < 360 degrees
         if (bbox[0] > 180) {
             bbox[0] -= 360;
             bbox[2] -= 360;
 
-            GeneralDirectPosition west = new GeneralDirectPosition(bbox[0], bbox[1]);
-            tilebbox[0] = transformFrom4326.getMathTransform().transform(west, null).getOrdinate(0);
-
-            GeneralDirectPosition east = new GeneralDirectPosition(bbox[2], bbox[3]);
-            tilebbox[2] = transformFrom4326.getMathTransform().transform(east, null).getOrdinate(0);
+            double[] westEast = new double[]{bbox[0], bbox[1], bbox[2], bbox[3]};
+            transform.fromWgs84(westEast, 2);
+            tilebbox[0] = westEast[0];
+            tilebbox[2] = westEast[2];
         }
 
         return bbox;
@@ -1704,7 +1957,14 @@ public class WMSController extends AbstractSecureController {
         return new ModelAndView("wms/error", model);
     }
 
-    private void transformBBox(CoordinateOperation op, String bbox, double[] source, double[] target) throws TransformException {
+    /**
+     * @param transform
+     * @param to4326    transform from the SRS to EPSG:4326, or from EPSG:4326 to the SRS
+     * @param bbox      min x, min y, max x, max y
+     * @param source    parsed bbox
+     * @param target    extents of the transformed corners
+     */
+    private void transformBBox(SrsTransform transform, boolean to4326, String bbox, double[] source, double[] target) throws TransformException {
 
         String[] bb = bbox.split(",");
 
@@ -1713,19 +1973,29 @@ public class WMSController extends AbstractSecureController {
         source[2] = Double.parseDouble(bb[2]);
         source[3] = Double.parseDouble(bb[3]);
 
-        GeneralDirectPosition sw = new GeneralDirectPosition(source[0], source[1]);
-        GeneralDirectPosition ne = new GeneralDirectPosition(source[2], source[3]);
-        GeneralDirectPosition se = new GeneralDirectPosition(source[2], source[1]);
-        GeneralDirectPosition nw = new GeneralDirectPosition(source[0], source[3]);
-        DirectPosition targetSW = op.getMathTransform().transform(sw, null);
-        DirectPosition targetNE = op.getMathTransform().transform(ne, null);
-        DirectPosition targetSE = op.getMathTransform().transform(se, null);
-        DirectPosition targetNW = op.getMathTransform().transform(nw, null);
-
-        target[0] = Math.min(Math.min(Math.min(targetSW.getOrdinate(0), targetNE.getOrdinate(0)), targetSE.getOrdinate(0)), targetNW.getOrdinate(0));
-        target[1] = Math.min(Math.min(Math.min(targetSW.getOrdinate(1), targetNE.getOrdinate(1)), targetSE.getOrdinate(1)), targetNW.getOrdinate(1));
-        target[2] = Math.max(Math.max(Math.max(targetSW.getOrdinate(0), targetNE.getOrdinate(0)), targetSE.getOrdinate(0)), targetNW.getOrdinate(0));
-        target[3] = Math.max(Math.max(Math.max(targetSW.getOrdinate(1), targetNE.getOrdinate(1)), targetSE.getOrdinate(1)), targetNW.getOrdinate(1));
+        // sw, ne, se, nw
+        double[] corners = new double[]{
+                source[0], source[1],
+                source[2], source[3],
+                source[2], source[1],
+                source[0], source[3]};
+        if (to4326) {
+            transform.toWgs84(corners, 4);
+        } else {
+            transform.fromWgs84(corners, 4);
+        }
+        extents(corners, target);
+    }
+
+    /**
+     * @param corners x, y pairs of 4 points
+     * @param bbox    min x, min y, max x, max y of the points
+     */
+    private static void extents(double[] corners, double[] bbox) {
+        bbox[0] = Math.min(Math.min(Math.min(corners[0], corners[2]), corners[4]), corners[6]);
+        bbox[1] = Math.min(Math.min(Math.min(corners[1], corners[3]), corners[5]), corners[7]);
+        bbox[2] = Math.max(Math.max(Math.max(corners[0], corners[2]), corners[4]), corners[6]);
+        bbox[3] = Math.max(Math.max(Math.max(corners[1], corners[3]), corners[5]), corners[7]);
     }
 
     /**
@@ -1780,17 +2050,13 @@ public class WMSController extends AbstractSecureController {
         }
 
         // convert extents from EPSG:4326 into target SRS
-        CRSAuthorityFactory factory = CRS.getAuthorityFactory(true);
-        CoordinateReferenceSystem sourceCRS = factory.createCoordinateReferenceSystem(srs);
-        CoordinateReferenceSystem targetCRS = factory.createCoordinateReferenceSystem("EPSG:4326");
-        CoordinateOperation transformTo4326 = new DefaultCoordinateOperationFactory().createOperation(sourceCRS, targetCRS);
-        CoordinateOperation transformFrom4326 = new DefaultCoordinateOperationFactory().createOperation(targetCRS, sourceCRS);
+        SrsTransform transform = SrsTransform.get(srs);
         double[] bbox4326 = new double[4];     // extents in EPSG:4326
         double[] bboxSRS = new double[4];      //extents in target SRS
         if (bboxString != null) {
-            transformBBox(transformTo4326, bboxString, bboxSRS, bbox4326);
+            transformBBox(transform, true, bboxString, bboxSRS, bbox4326);
         } else {
-            transformBBox(transformFrom4326, extents, bbox4326, bboxSRS);
+            transformBBox(transform, false, extents, bbox4326, bboxSRS);
             bboxString = bboxSRS[0] + "," + bboxSRS[1] + "," + bboxSRS[2] + "," + bboxSRS[3];
         }
 
@@ -2013,13 +2279,13 @@ public class WMSController extends AbstractSecureController {
     }
 
 
-    private ImgObj renderHeatmap(HeatmapDTO heatmapDTO,
+    private TileRaster renderHeatmap(HeatmapDTO heatmapDTO,
                                  WmsEnv vars,
                                  float pointWidth,
                                  boolean outlinePoints,
                                  String outlineColour,
                                  int tileWidthInPx,
-                                 int tileHeightInPx, CoordinateOperation transformFrom4326, double[] tilebbox,
+                                 int tileHeightInPx, SrsTransform transform, double[] tilebbox,
                                  HeatmapDTO cirlesHeatmap
     ) {
 
@@ -2033,7 +2299,7 @@ public class WMSController extends AbstractSecureController {
             logger.debug("Image width:" + tileWidthInPx + ", height:" + tileHeightInPx);
         }
 
-        ImgObj imgObj = ImgObj.create((int) (tileWidthInPx), (int) (tileHeightInPx));
+        TileRaster raster = TileRaster.get(tileWidthInPx, tileHeightInPx);
 
         int layerIdx = 0;
 
@@ -2048,9 +2314,9 @@ public class WMSController extends AbstractSecureController {
                         true,
                         (float) tileWidthInPx,
                         (float) tileHeightInPx,
-                        imgObj,
+                        raster,
                         layerIdx,
-                        rows, transformFrom4326, tilebbox);
+                        rows, transform, tilebbox);
             }
             layerIdx++;
         }
@@ -2068,9 +2334,9 @@ public class WMSController extends AbstractSecureController {
                         true,
                         (float) tileWidthInPx,
                         (float) tileHeightInPx,
-                        imgObj,
+                        raster,
                         layerIdx,
-                        rows, transformFrom4326, tilebbox);
+                        rows, transform, tilebbox);
             }
             layerIdx++;
         }
@@ -2086,12 +2352,10 @@ public class WMSController extends AbstractSecureController {
                         int circleWidthInPixels = (int) pointWidth + HIGHLIGHT_RADIUS;  // count==0 indicates that a highlight circle is required.
                         if (dist > 0) {
                             // convert radius in meters to radius in pixels
-                            GeneralDirectPosition coord1 = new GeneralDirectPosition(dist / 100000.0, 0);
-                            GeneralDirectPosition coord2 = new GeneralDirectPosition(0, 0);
-                            DirectPosition pos1 = transformFrom4326.getMathTransform().transform(coord1, null);
-                            DirectPosition pos2 = transformFrom4326.getMathTransform().transform(coord2, null);
-                            int px1 = scaleLongitudeForImage(pos1.getOrdinate(0), tilebbox[0], tilebbox[2], (int) tileWidthInPx);
-                            int px2 = scaleLongitudeForImage(pos2.getOrdinate(0), tilebbox[0], tilebbox[2], (int) tileWidthInPx);
+                            double[] coords = new double[]{dist / 100000.0, 0, 0, 0};
+                            transform.fromWgs84(coords, 2);
+                            int px1 = scaleLongitudeForImage(coords[0], tilebbox[0], tilebbox[2], (int) tileWidthInPx);
+                            int px2 = scaleLongitudeForImage(coords[2], tilebbox[0], tilebbox[2], (int) tileWidthInPx);
                             circleWidthInPixels = Math.abs(px1 - px2);
                         }
 
@@ -2107,10 +2371,10 @@ public class WMSController extends AbstractSecureController {
                                 false,
                                 (float) tileWidthInPx,
                                 (float) tileHeightInPx,
-                                imgObj,
+                                raster,
                                 layerIdx,
                                 rows,
-                                transformFrom4326,
+                                transform,
                                 tilebbox
                         );
                     }
@@ -2121,12 +2385,12 @@ public class WMSController extends AbstractSecureController {
             }
         }
 
-        return imgObj;
+        return raster;
     }
 
     private void renderLayer(HeatmapDTO heatmapDTO, WmsEnv vars, float pointWidth, boolean outlinePoints, String outlineColour, boolean drawPointFill,
                              float tileWidthInPx,
-                             float tileHeightInPx, ImgObj imgObj, int layerIdx, List<List<Integer>> rows, CoordinateOperation transformFrom4326, double[] tilebbox) {
+                             float tileHeightInPx, TileRaster raster, int layerIdx, List<List<Integer>> rows, SrsTransform transform, double[] tilebbox) {
 
         if (rows != null && !rows.isEmpty()) {
 
@@ -2136,19 +2400,26 @@ public class WMSController extends AbstractSecureController {
             double cellWidth = heatmapDTO.columnWidth();
             double cellHeight = heatmapDTO.rowHeight();
 
-            Color oColour = Color.decode(outlineColour);
+            int oColour = Color.decode(outlineColour).getRGB();
 
             // default colour
-            Paint currentFill = null;
-
-            if (heatmapDTO.legend == null || heatmapDTO.legend.isEmpty()) {
-                currentFill = new Color(vars.colour);
-                imgObj.g.setPaint(currentFill);
+            Integer currentFill = null;
+
+            if (drawPointFill) {
+                if (heatmapDTO.legend == null || heatmapDTO.legend.isEmpty()) {
+                    currentFill = vars.colour | 0xff000000;
+                } else {
+                    // opaque, as drawn with new Color(int)
+                    currentFill = heatmapDTO.legend.get(layerIdx).getColour() | 0xff000000;
+                }
             }
 
             int rowStep = 1;
             int columnStep = 1;
 
+            // reused for the transformed coordinates of each cell
+            double[] coords = new double[4];
+
             // determine if grid cells should be aggregated
             if (heatmapDTO.gridSizeInPixels > 1) {
                 while (tileWidthInPx / (double) heatmapDTO.gridSizeInPixels < heatmapDTO.columns / columnStep) {
@@ -2199,31 +2470,31 @@ public class WMSController extends AbstractSecureController {
                                     }
 
                                     // make coordinates to match target SRS
-                                    GeneralDirectPosition sourceCoordsBottomLeft = new GeneralDirectPosition(minLng, minLat);
-                                    GeneralDirectPosition sourceCoordsTopRight = new GeneralDirectPosition(maxLng, maxLat);
-                                    DirectPosition targetCoordsBottomLeft = transformFrom4326.getMathTransform().transform(sourceCoordsBottomLeft, null);
-                                    DirectPosition targetCoordsTopRight = transformFrom4326.getMathTransform().transform(sourceCoordsTopRight, null);
-                                    int px1 = scaleLongitudeForImage(targetCoordsBottomLeft.getOrdinate(0), tilebbox[0], tilebbox[2], (int) tileWidthInPx);
-                                    int py1 = scaleLatitudeForImage(targetCoordsBottomLeft.getOrdinate(1), tilebbox[3], tilebbox[1], (int) tileHeightInPx);
-                                    int px2 = scaleLongitudeForImage(targetCoordsTopRight.getOrdinate(0), tilebbox[0], tilebbox[2], (int) tileWidthInPx);
-                                    int py2 = scaleLatitudeForImage(targetCoordsTopRight.getOrdinate(1), tilebbox[3], tilebbox[1], (int) tileHeightInPx);
+                                    coords[0] = minLng;
+                                    coords[1] = minLat;
+                                    coords[2] = maxLng;
+                                    coords[3] = maxLat;
+                                    transform.fromWgs84(coords, 2);
+                                    int px1 = scaleLongitudeForImage(coords[0], tilebbox[0], tilebbox[2], (int) tileWidthInPx);
+                                    int py1 = scaleLatitudeForImage(coords[1], tilebbox[3], tilebbox[1], (int) tileHeightInPx);
+                                    int px2 = scaleLongitudeForImage(coords[2], tilebbox[0], tilebbox[2], (int) tileWidthInPx);
+                                    int py2 = scaleLatitudeForImage(coords[3], tilebbox[3], tilebbox[1], (int) tileHeightInPx);
 
                                     int v = cellValue;
                                     if (v > 500) {
                                         v = 500;
                                     }
-                                    int colour = (((500 - v) / 2) << 8) | (vars.alpha << 24) | 0x00FF0000;
+                                    int colour = (((500 - v) / 2) << 8) | 0xFFFF0000;
                                     if (drawPointFill) {
-                                        imgObj.g.setColor(new Color(colour));
-                                        imgObj.g.fillRect(
+                                        raster.fillRect(
                                                 Math.min(px1, px2),
                                                 Math.min(py1, py2),
                                                 Math.abs(px2 - px1),
-                                                Math.abs(py2 - py1));
+                                                Math.abs(py2 - py1),
+                                                colour);
                                     }
                                     if (outlinePoints) {
-                                        imgObj.g.setPaint(oColour);
-                                        imgObj.g.drawRect(Math.min(px1, px2), Math.min(py1, py2), Math.abs(px2 - px1), Math.abs(py2 - py1));
+                                        raster.drawRect(Math.min(px1, px2), Math.min(py1, py2), Math.abs(px2 - px1), Math.abs(py2 - py1), oColour);
                                     }
                                 } else {
 
@@ -2237,33 +2508,18 @@ public class WMSController extends AbstractSecureController {
                                     }
 
                                     // make coordinates to match target SRS
-                                    GeneralDirectPosition sourceCoords = new GeneralDirectPosition(lng, lat);
-                                    DirectPosition targetCoords = transformFrom4326.getMathTransform().transform(sourceCoords, null);
-                                    int px = scaleLongitudeForImage(targetCoords.getOrdinate(0), tilebbox[0], tilebbox[2], (int) tileWidthInPx);
-                                    int py = scaleLatitudeForImage(targetCoords.getOrdinate(1), tilebbox[3], tilebbox[1], (int) tileHeightInPx);
-
-                                    if (drawPointFill) {
-                                        if (heatmapDTO.legend != null && !heatmapDTO.legend.isEmpty()) {
-                                            currentFill = new Color(heatmapDTO.legend.get(layerIdx).getColour() | (vars.alpha << 24));
-                                            imgObj.g.setPaint(currentFill);
-                                        }
-
-                                        imgObj.g.fillOval(
-                                                px - (int) (pointWidth / 2),
-                                                py - (int) (pointWidth / 2),
-                                                (int) pointWidth,
-                                                (int) pointWidth);
-                                    }
-
-                                    if (outlinePoints) {
-                                        imgObj.g.setPaint(oColour);
-                                        imgObj.g.drawOval(
-                                                px - (int) (pointWidth / 2),
-                                                py - (int) (pointWidth / 2),
-                                                (int) pointWidth,
-                                                (int) pointWidth);
-                                        imgObj.g.setPaint(currentFill);
-                                    }
+                                    coords[0] = lng;
+                                    coords[1] = lat;
+                                    transform.fromWgs84(coords, 1);
+                                    int px = scaleLongitudeForImage(coords[0], tilebbox[0], tilebbox[2], (int) tileWidthInPx);
+                                    int py = scaleLatitudeForImage(coords[1], tilebbox[3], tilebbox[1], (int) tileHeightInPx);
+
+                                    raster.drawCircle(
+                                            px - (int) (pointWidth / 2),
+                                            py - (int) (pointWidth / 2),
+                                            (int) pointWidth,
+                                            currentFill,
+                                            outlinePoints ? oColour : null);
                                 }
                             } catch (MismatchedDimensionException e) {
                             } catch (TransformException e) {
@@ -2277,85 +2533,14 @@ public class WMSController extends AbstractSecureController {
     }
 
     /**
-     * The concept of a hexagonal grid used:
-     * - Hexagonal grid cells have a flat top.
-     * - For an image tile, there are an even number of columns. i.e. a flat topped hexagonal grid is aligned to the
-     * left hand side of an image tile and the right hand side.
-     * - Each hexagonal grid cell is made up of a left side triangle, middle rectangle, right side triangle.
-     * - The hexagonal grid is staggered when moving left to right; half a grid cell height UP, LEVEL, UP, LEVEL, etc.
-     * - WMS map tile requests are for square tiles (in pixels), so only vertical tiles need alignment. This is done
-     * with respect to the pixel space of the tile requested. The top of hexagonal grid cells is at the top of the tile
-     * where the pixel space is 0, e.g. EPSG:3857 is 0 on the y-axis at the equator.
-     * - Everything is converted to pixel space before putting into hexbins.
-     *
-     * For the purpose of putting a pixel into a hexbin, the process used:
-     * - The right side triangle is ignored.
-     * - The left side triangle is treated as a rectangle. This means that it overlaps the adjacent hexbins (at this stage).
-     * - This leaves a rectangular grid that the pixel is added into.
-     * - Determine if this column is half a grid cell height UP or not (LEVEL).
-     * - If the pixel is in the middle rectangle, return this hexbin position.
-     * - If the pixel is in the area of the left side triangle, continue.
-     * - Find the pixel position relative to the left side's triangle vertex.
-     * - Calculate the angle from the left side triangle vertex.
-     * - If the point is to the right of the lines drawn from the vertex of the left side triangle, return this hexbin position.
-     * - If the point is to the left of the lines drawn from the vertex of the left side triangle, continue
-     * - If the point is closer to the top than the bottom of this grid cell, and this column is UP, move down (y+1)
-     * - If the point is closer to the bottom, and this column is LEVEL, move up (y-1)
-     * - Move left (x-1) and return this hexbin position
-     *
-     * @param px
-     * @param py
-     * @param hexCellWidth
-     * @param hexCellHeight
-     * @param xOverlap
-     * @param globalYOffset
-     * @return
+     * Draw the hexagonal grid cells of GridAggregator that are in a tile.
+     * <p>
+     * The cell width is tileWidthInPx / (2 * zoom) pixels, so each tile has an even number of columns and the cells of
+     * adjacent tiles line up.
      */
-    private int [] gridCellCoords(int px, int py, double hexCellWidth, double hexCellHeight, double xOverlap, double globalYOffset) {
-        int x1 = (int) Math.floor(px / hexCellWidth);
-
-        // xpos relative to the cell
-        double xpos = (px - x1 * hexCellWidth);
-
-        // is it in an odd column? if so, a y offset is required for the following operations
-        double yoffset = (x1 % 2 == 0) ? 0.0 : hexCellHeight / 2.0;
-
-        // is it in the top half of the cell?
-        int y1 = (int) Math.floor((py - yoffset + globalYOffset) / hexCellHeight);
-
-        // ypos relative to the cell
-        double ypos = ((py - yoffset + globalYOffset) - y1 * hexCellHeight);
-
-        // is it in the area of overlap?
-        boolean inOverlap = xpos < xOverlap;
-
-        if (inOverlap) {
-            // determine if it is above or below the angled side
-            double angle = Math.atan((hexCellHeight / 2.0 - ypos) / xpos);
-
-            // move to the left when in the left cell and above the angled line
-            if ((Double.isNaN(angle) && ypos < hexCellHeight / 2.0) || angle <= -1 * Math.PI / 3.0) {
-                x1 = x1 - 1;
-                if (yoffset > 0) {
-                    y1 = y1 + 1;
-                }
-            }
-
-            // move to the left when in the left cell and below the angled line
-            if ((Double.isNaN(angle) && ypos > hexCellHeight / 2.0) || angle > Math.PI / 3.0) {
-                x1 = x1 - 1;
-                if (yoffset == 0) {
-                    y1 = y1 - 1;
-                }
-            }
-        }
-
-        return new int[] {x1, y1};
-    }
-
     private ImgObj hexGridImg(SpatialSearchRequestDTO requestParams,
                              WmsEnv vars, int tileWidthInPx, int tileHeightInPx, boolean outlinePoints, String outlineColour,
-                             double[] tilebbox, double [] bbox, CoordinateOperation transformFrom4326) throws Exception {
+                             double[] tilebbox, double [] bbox, SrsTransform transform) throws Exception {
 
         // Zoom is how zoomed in. 1 = zoomed in, 9 = zoomed out. Limit size from 2 to 9, i.e. zoom is 11 to 3
         int sz = Math.min(Math.max(vars.size, 1), 9);
@@ -2365,163 +2550,80 @@ public class WMSController extends AbstractSecureController {
 
         if (hexCellWidth < 10) {
             gridZoom = (int) (tileWidthInPx / 10);
-            hexCellWidth = tileWidthInPx / (2.0 * gridZoom);
         }
-        double hexCellHeight = 1.1547005 * hexCellWidth;
 
-        double bWidth = ((bbox[2] - bbox[0]) / (double) tileWidthInPx) * hexCellWidth;
-        double bHeight = ((bbox[3] - bbox[1]) / (double) tileHeightInPx) * hexCellHeight;
+        // grid cells of the tile in EPSG:3857
+        double minx = WebMercator.toX(bbox[0]);
+        double maxx = WebMercator.toX(bbox[2]);
+        double miny = WebMercator.toY(Math.max(bbox[1], -WebMercator.MAX_LATITUDE));
+        double maxy = WebMercator.toY(Math.min(bbox[3], WebMercator.MAX_LATITUDE));
+        double cellSize = GridAggregator.cellSizeForTile(maxx - minx, gridZoom * 2);
 
-        double degreesPerPixel = Math.min((bbox[2] - bbox[0]) / (double) tileWidthInPx, (bbox[3] - bbox[1]) / (double) tileHeightInPx);
-
-        //resolution should be a value < 1
-        PointType pointType = getPointTypeForDegreesPerPixel(degreesPerPixel);
-
-        requestParams.setFlimit(-1);
-        FacetField facetField = searchDAO.getFacetPointsShort(requestParams, pointType.getLabel(), bbox[0] - bWidth, bbox[1] - bHeight, bbox[2] + bWidth, bbox[3] + bHeight);
-        FacetField dateLineFacetField = null;
-
-        // add dateline crossing part
-        double dateLineOffset = 0;
-        if (bbox[0] - bWidth < -180) {
-            dateLineFacetField = searchDAO.getFacetPointsShort(requestParams, pointType.getLabel(), 360 + bbox[0] - bWidth, bbox[1] - bHeight, 180.0, bbox[3] + bHeight);
-            dateLineOffset = -360.0;
-        } else if (bbox[2] + bWidth > 180) {
-            dateLineFacetField = searchDAO.getFacetPointsShort(requestParams, pointType.getLabel(), -180.0, bbox[1] - bHeight, bbox[2] + bWidth - 360, bbox[3] + bHeight);
-            dateLineOffset = 360.0;
-        }
-
-        ImgObj imgObj = null;
-
-        double xOverlap = hexCellWidth / (1.0 + Math.sin(Math.PI / 2.0) / Math.sin(Math.PI / 6.0));
-        int gridWidth = gridZoom * 2;
-
-        int gridHeight = (int) Math.ceil(tileHeightInPx / hexCellHeight);
-
-        // pixel position of -90 latitude in relation to the current WMS tile.
-        double globalYOffset = 0;
-        int pixelYOrigin = (int) Math.round((((tilebbox[3]) / (tilebbox[1] - tilebbox[3])) * tileHeightInPx));
-        int cellsAbove = (int) Math.floor(pixelYOrigin / hexCellHeight);
-        globalYOffset = (pixelYOrigin - cellsAbove * hexCellHeight);
-
-        int [][] hexgrid = null;
-        if (gridZoom > 0) {
-            hexgrid = new int[gridWidth + 1 + 2][gridHeight + 1 + 2];
-
-            for (int i = 0; i < hexgrid.length; i++) {
-                Arrays.fill(hexgrid[i], 0);
-            }
-        }
+        GridBins bins = gridAggregator.getBins(requestParams.getFormattedQuery(), requestParams.getFormattedFq(),
+                GridAggregator.Shape.HEX, cellSize, minx, miny, maxx, maxy);
 
         Color oColour = Color.decode(outlineColour);
 
-        imgObj = ImgObj.create((int) (tileWidthInPx), (int) (tileHeightInPx));
-
-        FacetField [] facetFields = new FacetField[] { facetField, dateLineFacetField };
-        for (FacetField ff : facetFields) {
-            if (ff == null) {
-                continue;
-            }
-            boolean dateLine = (ff == dateLineFacetField);
-
-            for (FacetField.Count s : ff.getValues()) {
-                String v = s.getName();
-                if (v != null) {
-                    int p = v.indexOf(',');
-                    float lng = Float.parseFloat(v.substring(p + 1));
-                    float lat = Float.parseFloat(v.substring(0, p));
-                    int count = (int) s.getCount();
-
-                    // dateline adjust
-                    if (dateLine) {
-                        lng += dateLineOffset;
-                    }
-
-                    // make coordinates to match target SRS
-                    GeneralDirectPosition sourceCoords = new GeneralDirectPosition(lng, lat);
-                    DirectPosition targetCoords = transformFrom4326.getMathTransform().transform(sourceCoords, null);
-                    int px = scaleLongitudeForImage(targetCoords.getOrdinate(0), tilebbox[0], tilebbox[2], (int) tileWidthInPx);
-                    int py = scaleLatitudeForImage(targetCoords.getOrdinate(1), tilebbox[3], tilebbox[1], (int) tileHeightInPx);
-
-                    int[] coordsI = gridCellCoords(px, py, hexCellWidth, hexCellHeight, xOverlap, globalYOffset);
-
-                    int ix = coordsI[0];
-                    int iy = coordsI[1];
-                    if (ix >= -1 && ix < hexgrid.length - 1 && iy >= -1 && iy < hexgrid[0].length - 1) {
-                        hexgrid[ix + 1][iy + 1] += count;
-                    }
-                }
-            }
-        }
+        ImgObj imgObj = ImgObj.create((int) (tileWidthInPx), (int) (tileHeightInPx));
 
         // colour is wrapped in hexColour,occurrenceCount,hexColour,occurrenceCount,hexColor
         int [] colourSteps = vars.ramp;
         Color [] colourRamp = vars.rampColours;
 
-        if (hexgrid != null) {
-            // render the hex grid
-            for (int i=0;i<hexgrid.length;i++) {
-                for (int j=0;j<hexgrid[i].length;j++) {
-                    int value = hexgrid[i][j];
-                    if (value > 0) {
-                        Color colour = new Color((((500 - (value > 500 ? 500 : value)) / 2) << 8) | (vars.alpha << 24) | 0x00FF0000, true);
-
-                        if (colourSteps != null) {
-                            int c = 0;
-                            for (c=0;c<colourSteps.length && colourSteps[c] < value;c++) {
-                                // increment c in the for statement;
-                            }
-                            colour = colourRamp[c];
-                        }
-
-                        // draw this hex grid
-                        imgObj.g.setPaint(colour);
-
-                        // the grid has an x+1, y+1 offset.
-                        double yoffset = (i - 1) % 2 == 0 ? 0 : (hexCellHeight / 2.0);
-
-                        yoffset -= globalYOffset;
-
-                        // get coordinates.
-                        double x1 = xOverlap + (i - 1) * hexCellWidth;
-                        double y1 = ((j - 1) * hexCellHeight) + yoffset;
+        // render the hex grid
+        for (int i = 0; i < bins.size(); i++) {
+            int value = bins.getCount(i);
+            Color colour = new Color((((500 - (value > 500 ? 500 : value)) / 2) << 8) | (vars.alpha << 24) | 0x00FF0000, true);
 
-                        double x2 = (i) * hexCellWidth;
-                        double y2 = y1;
-
-                        double x3 = xOverlap + i * hexCellWidth;
-                        double y3 = ((i - 1) % 2 == 0 ?
-                                hexCellHeight / 2.0 + (j - 1) * hexCellHeight + yoffset :
-                                j * hexCellHeight - globalYOffset);
-
-                        double x4 = x2;
-                        double y4 = (j * hexCellHeight) + yoffset;
-
-                        double x5 = x1;
-                        double y5 = y4;
-
-                        double x6 = (i - 1) * hexCellWidth;
-                        double y6 = y3;
-
-                        // Decided to use a Path2D.Float, with +/- 0.1 to coords, to hide aliased edges.
-                        // It also means coordinates do not need to be rounded.
-                        Path2D path = new Path2D.Float();
-                        path.moveTo(x1 - 0.2, y1 - 0.3);
-                        path.lineTo(x2 + 0.2, y2 - 0.3);
-                        path.lineTo(x3 + 0.2, y3);
-                        path.lineTo(x4 + 0.2, y4 + 0.3);
-                        path.lineTo(x5 - 0.2, y5 + 0.3);
-                        path.lineTo(x6 - 0.2, y6);
-                        path.closePath();
+            if (colourSteps != null) {
+                int c = 0;
+                for (c=0;c<colourSteps.length && colourSteps[c] < value;c++) {
+                    // increment c in the for statement;
+                }
+                colour = colourRamp[c];
+            }
 
-                        imgObj.g.fill(path);
+            // draw this hex grid
+            imgObj.g.setPaint(colour);
 
-                        if (outlinePoints) {
-                            imgObj.g.setPaint(oColour);
-                            imgObj.g.draw(path);
-                        }
+            // vertices, clockwise from the top left, in pixels
+            double[] polygon = bins.getPolygon(i);
+            double[] px = new double[6];
+            double[] py = new double[6];
+            try {
+                // the cells are already in EPSG:3857
+                if (!transform.isWebMercator()) {
+                    for (int v = 0; v < 12; v += 2) {
+                        polygon[v] = WebMercator.toLongitude(polygon[v]);
+                        polygon[v + 1] = WebMercator.toLatitude(polygon[v + 1]);
                     }
+                    transform.fromWgs84(polygon, 6);
+                }
+                for (int v = 0; v < 6; v++) {
+                    px[v] = (polygon[v * 2] - tilebbox[0]) / (tilebbox[2] - tilebbox[0]) * tileWidthInPx;
+                    py[v] = (polygon[v * 2 + 1] - tilebbox[3]) / (tilebbox[1] - tilebbox[3]) * tileHeightInPx;
                 }
+            } catch (TransformException e) {
+                // failure to transform a coordinate will result in it not rendering
+                continue;
+            }
+
+            // Decided to use a Path2D.Float, with +/- 0.1 to coords, to hide aliased edges.
+            // It also means coordinates do not need to be rounded.
+            Path2D path = new Path2D.Float();
+            path.moveTo(px[0] - 0.2, py[0] - 0.3);
+            path.lineTo(px[1] + 0.2, py[1] - 0.3);
+            path.lineTo(px[2] + 0.2, py[2]);
+            path.lineTo(px[3] + 0.2, py[3] + 0.3);
+            path.lineTo(px[4] - 0.2, py[4] + 0.3);
+            path.lineTo(px[5] - 0.2, py[5]);
+            path.closePath();
+
+            imgObj.g.fill(path);
+
+            if (outlinePoints) {
+                imgObj.g.setPaint(oColour);
+                imgObj.g.draw(path);
             }
         }
 
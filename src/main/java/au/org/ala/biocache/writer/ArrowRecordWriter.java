@@ -0,0 +1,680 @@
+/**************************************************************************
+ *  Copyright (C) 2022 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.writer;
+
+import au.org.ala.biocache.stream.OptionalZipOutputStream;
+import com.google.flatbuffers.FlatBufferBuilder;
+import org.apache.arrow.flatbuf.Block;
+import org.apache.arrow.flatbuf.Bool;
+import org.apache.arrow.flatbuf.Buffer;
+import org.apache.arrow.flatbuf.Date;
+import org.apache.arrow.flatbuf.DateUnit;
+import org.apache.arrow.flatbuf.Endianness;
+import org.apache.arrow.flatbuf.Field;
+import org.apache.arrow.flatbuf.FieldNode;
+import org.apache.arrow.flatbuf.FloatingPoint;
+import org.apache.arrow.flatbuf.Footer;
+import org.apache.arrow.flatbuf.Int;
+import org.apache.arrow.flatbuf.Message;
+import org.apache.arrow.flatbuf.MessageHeader;
+import org.apache.arrow.flatbuf.MetadataVersion;
+import org.apache.arrow.flatbuf.Precision;
+import org.apache.arrow.flatbuf.RecordBatch;
+import org.apache.arrow.flatbuf.Schema;
+import org.apache.arrow.flatbuf.Type;
+import org.apache.arrow.flatbuf.Utf8;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A Writer that outputs records in the Arrow IPC file format (Feather V2), readable with
+ * <code>pyarrow.feather.read_table</code>, <code>pandas.read_feather</code> and <code>arrow::read_feather</code>.
+ * <p>
+ * Columns are typed from the index field data types. Rows are buffered into column vectors and written as
+ * a record batch every <code>batchSize</code> rows. Empty values are written as nulls. Multivalue columns
+ * are written as lists of the separate values supplied to {@link #write(String[], String[][])}.
+ * <p>
+ * When the output is split by {@link OptionalZipOutputStream}, each part is a complete Arrow file.
+ * Values beyond the header, e.g. misc fields found during the download, are not written.
+ */
+public class ArrowRecordWriter implements RecordWriterError {
+    private final static Logger logger = LoggerFactory.getLogger(ArrowRecordWriter.class);
+
+    public enum ColumnType {
+        UTF8, INT, LONG, FLOAT, DOUBLE, BOOLEAN, DATE
+    }
+
+    public static final int DEFAULT_BATCH_SIZE = 10000;
+
+    private static final byte[] MAGIC = "ARROW1".getBytes(StandardCharsets.US_ASCII);
+    private static final int CONTINUATION = 0xFFFFFFFF;
+    private static final byte[] PADDING = new byte[8];
+
+    private final OutputStream outputStream;
+    private final String[] header;
+    private final ColumnType[] types;
+    private final boolean[] multivalue;
+    private final int batchSize;
+
+    private final AtomicBoolean initialised = new AtomicBoolean(false);
+    private final AtomicBoolean finalised = new AtomicBoolean(false);
+    private final AtomicBoolean finalisedComplete = new AtomicBoolean(false);
+
+    private final List<Throwable> errors = new ArrayList<>();
+
+    private final Vector[] vectors;
+    private int rows;
+
+    // state of the current Arrow file
+    private boolean fileOpen;
+    private long position;
+    private final List<long[]> blocks = new ArrayList<>();
+
+    private final byte[] int32 = new byte[4];
+
+    /**
+     * @param out        stream to write to
+     * @param header     column names
+     * @param types      column types, the same length as header
+     * @param multivalue true for columns that are lists of values, the same length as header
+     * @param batchSize  number of rows in each record batch
+     */
+    public ArrowRecordWriter(OutputStream out, String[] header, ColumnType[] types, boolean[] multivalue, int batchSize) {
+        if (types.length != header.length || multivalue.length != header.length) {
+            throw new IllegalArgumentException("header, types and multivalue must be the same length");
+        }
+        this.outputStream = out;
+        this.header = header;
+        this.types = types;
+        this.multivalue = multivalue;
+        this.batchSize = Math.max(batchSize, 1);
+
+        this.vectors = new Vector[header.length];
+        for (int i = 0; i < header.length; i++) {
+            vectors[i] = multivalue[i] ? new Vector(new Vector(types[i])) : new Vector(types[i]);
+        }
+    }
+
+    /**
+     * Map an index field data type to a column type.
+     *
+     * @param dataType SOLR data type, e.g. from IndexFieldDTO.getDataType()
+     * @return the column type, UTF8 for unknown data types
+     */
+    public static ColumnType columnType(String dataType) {
+        if (dataType == null) {
+            return ColumnType.UTF8;
+        }
+        switch (dataType) {
+            case "int":
+            case "tint":
+            case "pint":
+                return ColumnType.INT;
+            case "long":
+            case "tlong":
+            case "plong":
+                return ColumnType.LONG;
+            case "float":
+            case "tfloat":
+            case "pfloat":
+                return ColumnType.FLOAT;
+            case "double":
+            case "tdouble":
+            case "pdouble":
+                return ColumnType.DOUBLE;
+            case "boolean":
+                return ColumnType.BOOLEAN;
+            case "date":
+            case "tdate":
+            case "pdate":
+                return ColumnType.DATE;
+            default:
+                return ColumnType.UTF8;
+        }
+    }
+
+    @Override
+    public void initialise() {
+        if (initialised.compareAndSet(false, true)) {
+            synchronized (this) {
+                try {
+                    startFile();
+                } catch (IOException e) {
+                    errors.add(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Buffers the supplied record and writes a record batch when the batch is full.
+     */
+    @Override
+    public void write(String[] record) {
+        write(record, null);
+    }
+
+    /**
+     * Buffers the supplied record and writes a record batch when the batch is full. A value of a multivalue
+     * column without separate values is written as a list of one value.
+     */
+    @Override
+    public synchronized void write(String[] record, String[][] multivalues) {
+        if (!initialised.get()) {
+            throw new IllegalStateException("Must call initialise method before calling write.");
+        }
+        for (int i = 0; i < vectors.length; i++) {
+            String[] values = multivalues != null && i < multivalues.length ? multivalues[i] : null;
+            if (values != null) {
+                vectors[i].appendList(values);
+            } else {
+                vectors[i].append(i < record.length ? record[i] : null);
+            }
+        }
+        rows++;
+
+        if (rows >= batchSize) {
+            try {
+                writeBatch(true);
+            } catch (IOException e) {
+                logger.error("Found error writing to Arrow file", e);
+                errors.add(e);
+            }
+        }
+    }
+
+    @Override
+    public boolean writesMultivalues() {
+        return true;
+    }
+
+    /**
+     * Writes buffered rows and ends the current Arrow file. This is called by {@link OptionalZipOutputStream}
+     * before the output is split, rows written after this start a new Arrow file.
+     */
+    @Override
+    public synchronized void flush() {
+        try {
+            endFile();
+            outputStream.flush();
+        } catch (IOException e) {
+            logger.debug(e.getMessage(), e);
+            errors.add(e);
+        }
+    }
+
+    @Override
+    public void finalise() {
+        if (finalised.compareAndSet(false, true)) {
+            try {
+                flush();
+            } finally {
+                finalisedComplete.set(true);
+            }
+        }
+    }
+
+    @Override
+    public boolean finalised() {
+        return finalisedComplete.get();
+    }
+
+    @Override
+    public boolean hasError() {
+        return !errors.isEmpty();
+    }
+
+    @Override
+    public List<Throwable> getErrors() {
+        return errors;
+    }
+
+    @Override
+    public void close() throws IOException {
+        finalise();
+    }
+
+    private void startFile() throws IOException {
+        position = 0;
+        blocks.clear();
+
+        writeBytes(MAGIC, 0, MAGIC.length);
+        writeBytes(PADDING, 0, 2);
+
+        FlatBufferBuilder builder = new FlatBufferBuilder();
+        int schema = buildSchema(builder);
+        writeMessage(builder, MessageHeader.Schema, schema, 0);
+
+        fileOpen = true;
+    }
+
+    private void endFile() throws IOException {
+        if (!fileOpen) {
+            return;
+        }
+        if (rows > 0) {
+            writeBatch(false);
+        }
+
+        // end of stream marker
+        writeInt(CONTINUATION);
+        writeInt(0);
+
+        FlatBufferBuilder builder = new FlatBufferBuilder();
+        int schema = buildSchema(builder);
+        Footer.startRecordBatchesVector(builder, blocks.size());
+        for (int i = blocks.size() - 1; i >= 0; i--) {
+            long[] block = blocks.get(i);
+            Block.createBlock(builder, block[0], (int) block[1], block[2]);
+        }
+        int recordBatches = builder.endVector();
+        Footer.startFooter(builder);
+        Footer.addVersion(builder, MetadataVersion.V5);
+        Footer.addSchema(builder, schema);
+        Footer.addRecordBatches(builder, recordBatches);
+        Footer.finishFooterBuffer(builder, Footer.endFooter(builder));
+
+        byte[] footer = builder.sizedByteArray();
+        writeBytes(footer, 0, footer.length);
+        writeInt(footer.length);
+        writeBytes(MAGIC, 0, MAGIC.length);
+
+        fileOpen = false;
+    }
+
+    /**
+     * Write the buffered rows as a record batch.
+     *
+     * @param split true when the output may be split after this batch
+     */
+    private void writeBatch(boolean split) throws IOException {
+        long start = position;
+
+        // buffers are written in depth first order of the vectors, each padded to 8 bytes
+        List<Vector> nodes = new ArrayList<>(vectors.length * 2);
+        for (Vector vector : vectors) {
+            for (Vector v = vector; v != null; v = v.child) {
+                nodes.add(v);
+            }
+        }
+
+        FlatBufferBuilder builder = new FlatBufferBuilder(1024);
+        RecordBatch.startNodesVector(builder, nodes.size());
+        for (int i = nodes.size() - 1; i >= 0; i--) {
+            FieldNode.createFieldNode(builder, nodes.get(i).length, nodes.get(i).nullCount);
+        }
+        int fieldNodes = builder.endVector();
+
+        List<Buf> buffers = new ArrayList<>(nodes.size() * 3);
+        for (Vector v : nodes) {
+            v.buffers(buffers);
+        }
+        long[] offsets = new long[buffers.size()];
+        long bodyLength = 0;
+        for (int i = 0; i < buffers.size(); i++) {
+            offsets[i] = bodyLength;
+            bodyLength += padded(buffers.get(i).length);
+        }
+        RecordBatch.startBuffersVector(builder, buffers.size());
+        for (int i = buffers.size() - 1; i >= 0; i--) {
+            Buffer.createBuffer(builder, offsets[i], buffers.get(i).length);
+        }
+        int bufferVector = builder.endVector();
+
+        RecordBatch.startRecordBatch(builder);
+        RecordBatch.addLength(builder, rows);
+        RecordBatch.addNodes(builder, fieldNodes);
+        RecordBatch.addBuffers(builder, bufferVector);
+        int recordBatch = RecordBatch.endRecordBatch(builder);
+
+        int metadataLength = writeMessage(builder, MessageHeader.RecordBatch, recordBatch, bodyLength);
+        for (Buf buf : buffers) {
+            writeBytes(buf.bytes, 0, buf.length);
+            writeBytes(PADDING, 0, padded(buf.length) - buf.length);
+        }
+        blocks.add(new long[]{start, metadataLength, bodyLength});
+
+        for (Vector vector : vectors) {
+            vector.reset();
+        }
+        rows = 0;
+
+        if (split && outputStream instanceof OptionalZipOutputStream) {
+            if (((OptionalZipOutputStream) outputStream).isNewFile(this, position - start)) {
+                startFile();
+            }
+        }
+    }
+
+    /**
+     * Write an encapsulated message without the body.
+     *
+     * @return length of the message metadata, including the prefix and padding
+     */
+    private int writeMessage(FlatBufferBuilder builder, byte headerType, int header, long bodyLength) throws IOException {
+        Message.startMessage(builder);
+        Message.addVersion(builder, MetadataVersion.V5);
+        Message.addHeaderType(builder, headerType);
+        Message.addHeader(builder, header);
+        Message.addBodyLength(builder, bodyLength);
+        Message.finishMessageBuffer(builder, Message.endMessage(builder));
+
+        ByteBuffer message = builder.dataBuffer();
+        int length = message.remaining();
+        // the body that follows must be 8 byte aligned
+        int paddedLength = padded(8 + length) - 8;
+
+        writeInt(CONTINUATION);
+        writeInt(paddedLength);
+        writeBytes(message.array(), message.position(), length);
+        writeBytes(PADDING, 0, paddedLength - length);
+
+        return 8 + paddedLength;
+    }
+
+    private int buildSchema(FlatBufferBuilder builder) {
+        int[] fields = new int[header.length];
+        for (int i = 0; i < header.length; i++) {
+            int name = builder.createString(header[i] == null ? "" : header[i]);
+            if (multivalue[i]) {
+                int item = buildField(builder, builder.createString("item"), types[i], 0);
+                int children = Field.createChildrenVector(builder, new int[]{item});
+                org.apache.arrow.flatbuf.List.startList(builder);
+                int list = org.apache.arrow.flatbuf.List.endList(builder);
+                fields[i] = Field.createField(builder, name, true, Type.List, list, 0, children, 0);
+            } else {
+                fields[i] = buildField(builder, name, types[i], 0);
+            }
+        }
+        int fieldVector = Schema.createFieldsVector(builder, fields);
+        return Schema.createSchema(builder, Endianness.Little, fieldVector, 0, 0);
+    }
+
+    private static int buildField(FlatBufferBuilder builder, int name, ColumnType type, int children) {
+        byte typeType;
+        int typeOffset;
+        switch (type) {
+            case INT:
+                typeType = Type.Int;
+                typeOffset = Int.createInt(builder, 32, true);
+                break;
+            case LONG:
+                typeType = Type.Int;
+                typeOffset = Int.createInt(builder, 64, true);
+                break;
+            case FLOAT:
+                typeType = Type.FloatingPoint;
+                typeOffset = FloatingPoint.createFloatingPoint(builder, Precision.SINGLE);
+                break;
+            case DOUBLE:
+                typeType = Type.FloatingPoint;
+                typeOffset = FloatingPoint.createFloatingPoint(builder, Precision.DOUBLE);
+                break;
+            case BOOLEAN:
+                typeType = Type.Bool;
+                Bool.startBool(builder);
+                typeOffset = Bool.endBool(builder);
+                break;
+            case DATE:
+                typeType = Type.Date;
+                typeOffset = Date.createDate(builder, DateUnit.DAY);
+                break;
+            default:
+                typeType = Type.Utf8;
+                Utf8.startUtf8(builder);
+                typeOffset = Utf8.endUtf8(builder);
+        }
+        return Field.createField(builder, name, true, typeType, typeOffset, 0, children, 0);
+    }
+
+    private static int padded(int length) {
+        return (length + 7) & ~7;
+    }
+
+    private static long padded(long length) {
+        return (length + 7) & ~7L;
+    }
+
+    private void writeInt(int value) throws IOException {
+        Buf.putInt(int32, 0, value);
+        writeBytes(int32, 0, 4);
+    }
+
+    private void writeBytes(byte[] b, int off, int len) throws IOException {
+        if (len > 0) {
+            outputStream.write(b, off, len);
+            position += len;
+        }
+    }
+
+    /**
+     * A growable little endian byte buffer.
+     */
+    private static class Buf {
+        byte[] bytes = new byte[1024];
+        int length;
+
+        void ensure(int capacity) {
+            if (capacity > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(capacity, bytes.length * 2));
+            }
+        }
+
+        void putInt(int value) {
+            ensure(length + 4);
+            putInt(bytes, length, value);
+            length += 4;
+        }
+
+        void putLong(long value) {
+            ensure(length + 8);
+            putInt(bytes, length, (int) value);
+            putInt(bytes, length + 4, (int) (value >>> 32));
+            length += 8;
+        }
+
+        void put(byte[] b) {
+            ensure(length + b.length);
+            System.arraycopy(b, 0, bytes, length, b.length);
+            length += b.length;
+        }
+
+        /**
+         * Grow a bitmap to hold the bit at index, new bits are 0.
+         */
+        void ensureBit(int index) {
+            int required = (index >> 3) + 1;
+            if (required > length) {
+                ensure(required);
+                Arrays.fill(bytes, length, required, (byte) 0);
+                length = required;
+            }
+        }
+
+        void setBit(int index) {
+            ensureBit(index);
+            bytes[index >> 3] |= 1 << (index & 7);
+        }
+
+        static void putInt(byte[] b, int off, int value) {
+            b[off] = (byte) value;
+            b[off + 1] = (byte) (value >>> 8);
+            b[off + 2] = (byte) (value >>> 16);
+            b[off + 3] = (byte) (value >>> 24);
+        }
+    }
+
+    /**
+     * Column vector for the rows of a single record batch. A list vector has the values in a child vector.
+     */
+    private static class Vector {
+        final ColumnType type;
+        final Vector child;
+
+        final Buf validity = new Buf();
+        final Buf offsets = new Buf();
+        final Buf data = new Buf();
+        int length;
+        int nullCount;
+
+        Vector(ColumnType type) {
+            this.type = type;
+            this.child = null;
+            reset();
+        }
+
+        Vector(Vector child) {
+            this.type = null;
+            this.child = child;
+            reset();
+        }
+
+        boolean hasOffsets() {
+            return child != null || type == ColumnType.UTF8;
+        }
+
+        void reset() {
+            validity.length = 0;
+            offsets.length = 0;
+            data.length = 0;
+            length = 0;
+            nullCount = 0;
+            if (hasOffsets()) {
+                offsets.putInt(0);
+            }
+            if (child != null) {
+                child.reset();
+            }
+        }
+
+        void buffers(List<Buf> buffers) {
+            // a validity bitmap covers all values even when there are no nulls
+            validity.ensureBit(Math.max(length - 1, 0));
+            buffers.add(validity);
+            if (hasOffsets()) {
+                buffers.add(offsets);
+            }
+            if (child == null) {
+                if (type == ColumnType.BOOLEAN) {
+                    data.ensureBit(Math.max(length - 1, 0));
+                }
+                buffers.add(data);
+            }
+        }
+
+        void append(String value) {
+            if (value == null || value.isEmpty()) {
+                appendNull();
+            } else if (child != null) {
+                appendList(new String[]{value});
+            } else if (!appendValue(value)) {
+                appendNull();
+            }
+        }
+
+        void appendList(String[] values) {
+            if (child == null) {
+                append(values.length > 0 ? values[0] : null);
+                return;
+            }
+            for (String value : values) {
+                child.append(value);
+            }
+            offsets.putInt(child.length);
+            validity.setBit(length++);
+        }
+
+        /**
+         * @return false when the value cannot be parsed as the column type
+         */
+        private boolean appendValue(String value) {
+            try {
+                switch (type) {
+                    case INT:
+                        data.putInt(Integer.parseInt(value));
+                        break;
+                    case LONG:
+                        data.putLong(Long.parseLong(value));
+                        break;
+                    case FLOAT:
+                        data.putInt(Float.floatToRawIntBits(Float.parseFloat(value)));
+                        break;
+                    case DOUBLE:
+                        data.putLong(Double.doubleToRawLongBits(Double.parseDouble(value)));
+                        break;
+                    case BOOLEAN:
+                        if ("true".equalsIgnoreCase(value)) {
+                            data.setBit(length);
+                        } else if (!"false".equalsIgnoreCase(value)) {
+                            return false;
+                        }
+                        break;
+                    case DATE:
+                        // ISO instants from /export, e.g. 2019-08-14T00:00:00Z, or yyyy-MM-dd
+                        LocalDate date = value.length() == 10 ? LocalDate.parse(value)
+                                : Instant.parse(value).atOffset(ZoneOffset.UTC).toLocalDate();
+                        data.putInt((int) date.toEpochDay());
+                        break;
+                    default:
+                        data.put(value.getBytes(StandardCharsets.UTF_8));
+                        offsets.putInt(data.length);
+                }
+            } catch (NumberFormatException | DateTimeException e) {
+                return false;
+            }
+            validity.setBit(length++);
+            return true;
+        }
+
+        private void appendNull() {
+            validity.ensureBit(length);
+            if (child != null) {
+                offsets.putInt(child.length);
+            } else {
+                switch (type) {
+                    case INT:
+                    case FLOAT:
+                    case DATE:
+                        data.putInt(0);
+                        break;
+                    case LONG:
+                    case DOUBLE:
+                        data.putLong(0);
+                        break;
+                    case BOOLEAN:
+                        data.ensureBit(length);
+                        break;
+                    default:
+                        offsets.putInt(data.length);
+                }
+            }
+            nullCount++;
+            length++;
+        }
+    }
+}
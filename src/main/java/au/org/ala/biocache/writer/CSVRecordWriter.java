@@ -16,14 +16,11 @@ package au.org.ala.biocache.writer;
 
 import au.com.bytecode.opencsv.CSVWriter;
 import au.org.ala.biocache.stream.OptionalZipOutputStream;
-import org.apache.commons.io.output.CloseShieldOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -51,7 +48,7 @@ public class CSVRecordWriter implements RecordWriterError {
     private final List<Throwable> errors = new ArrayList<>();
     
     // Resources that are created during initialise because their creation sequence may include Exception's
-    private CSVWriter csvWriter;
+    private Utf8DelimitedWriter csvWriter;
     
     public CSVRecordWriter(OutputStream out, String[] header){
         outputStream = out;
@@ -80,27 +77,23 @@ public class CSVRecordWriter implements RecordWriterError {
         if (csvWriter == null) {
             throw new IllegalStateException("The initialise method did not create a CSVWriter instance.");
         }
-        csvWriter.writeNext(record);
+        try {
+            int length = csvWriter.writeRecord(record);
 
-        //mark the end of line
-        if (outputStream instanceof OptionalZipOutputStream) {
-            try {
-                // add record byte length, standard separator byte length and buffer (*2) for occasional record character encoding
-                int length = record.length * "\",\"".getBytes(StandardCharsets.UTF_8).length * 2;
-                for (String s : record) if (s != null) length += s.getBytes(StandardCharsets.UTF_8).length;
+            //mark the end of line
+            if (outputStream instanceof OptionalZipOutputStream) {
                 if (((OptionalZipOutputStream) outputStream).isNewFile(this, length)) {
                     write(header);
                 }
-            } catch (Exception e) {
-                errors.add(e);
             }
+        } catch (Exception e) {
+            errors.add(e);
         }
     }
 
     @Override
     public boolean hasError() {
-        CSVWriter toCheckCsvWriter = csvWriter;
-        return (toCheckCsvWriter != null && toCheckCsvWriter.checkError()) || !errors.isEmpty();
+        return !errors.isEmpty();
     }
 
     @Override
@@ -111,7 +104,7 @@ public class CSVRecordWriter implements RecordWriterError {
     @Override
     public void flush() {
         try {
-            CSVWriter toFlushCsvWriter = csvWriter;
+            Utf8DelimitedWriter toFlushCsvWriter = csvWriter;
             if(toFlushCsvWriter != null) {
                 toFlushCsvWriter.flush();
             }
@@ -124,8 +117,12 @@ public class CSVRecordWriter implements RecordWriterError {
     @Override
     public void initialise() {
         if (initialised.compareAndSet(false, true)) {
-            csvWriter = new CSVWriter(new OutputStreamWriter(new CloseShieldOutputStream(outputStream), StandardCharsets.UTF_8), separatorChar, quoteChar, escapeChar);
-            csvWriter.writeNext(header);
+            csvWriter = Utf8DelimitedWriter.csv(outputStream, separatorChar, quoteChar, escapeChar);
+            try {
+                csvWriter.writeRecord(header);
+            } catch (IOException e) {
+                errors.add(e);
+            }
         }
     }
     
@@ -136,7 +133,7 @@ public class CSVRecordWriter implements RecordWriterError {
                 flush();
             } finally {
                 try {
-                    CSVWriter toCloseCsvWriter = csvWriter;
+                    Utf8DelimitedWriter toCloseCsvWriter = csvWriter;
                     if(toCloseCsvWriter != null) {
                         toCloseCsvWriter.close();
                     }
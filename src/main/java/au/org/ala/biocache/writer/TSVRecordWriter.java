@@ -20,7 +20,6 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -35,6 +34,7 @@ public class TSVRecordWriter implements RecordWriterError {
     private final static Logger logger = LoggerFactory.getLogger(TSVRecordWriter.class);
 
     private final OutputStream outputStream;
+    private final Utf8DelimitedWriter tsvWriter;
     private final String[] header;
 
     private final AtomicBoolean initialised = new AtomicBoolean(false);
@@ -47,6 +47,7 @@ public class TSVRecordWriter implements RecordWriterError {
     
     public TSVRecordWriter(OutputStream out, String[] header){
         this.outputStream = out;
+        this.tsvWriter = Utf8DelimitedWriter.tsv(out);
         this.header = header;
     }
     
@@ -58,25 +59,13 @@ public class TSVRecordWriter implements RecordWriterError {
         if (!initialised.get()) {
             throw new IllegalStateException("Must call initialise method before calling write.");
         }
-        StringBuilder line = new StringBuilder(256);
-
-        //assume correct column count
-        for (int i = 0; i < record.length; i++) {
-            if (i > 0) line.append('\t');
-            String value = (record[i] != null) ? record[i] : "";
-            line.append(value.replace("\r","").replace("\n","").replace("\t",""));
-        }
-
-        line.append("\n");
-
         try {
-            String str = line.toString();
-            byte [] bytes = str.getBytes(StandardCharsets.UTF_8);
-            outputStream.write(bytes);
+            //assume correct column count
+            int length = tsvWriter.writeRecord(record);
 
             //mark the end of line
             if (outputStream instanceof OptionalZipOutputStream) {
-                if (((OptionalZipOutputStream) outputStream).isNewFile(this, bytes.length)) {
+                if (((OptionalZipOutputStream) outputStream).isNewFile(this, length)) {
                     write(header);
                 }
             }
@@ -123,7 +112,7 @@ public class TSVRecordWriter implements RecordWriterError {
     @Override
     public void flush() {
         try {
-            outputStream.flush();
+            tsvWriter.flush();
         } catch(java.io.IOException e) {
             errors.add(e);
             writerError.set(true);
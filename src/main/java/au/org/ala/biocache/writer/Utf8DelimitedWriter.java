@@ -0,0 +1,237 @@
+/**************************************************************************
+ *  Copyright (C) 2022 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+package au.org.ala.biocache.writer;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes delimited records to an OutputStream, encoding UTF-8 directly into a reusable buffer.
+ * <p>
+ * CSV output is the same as opencsv <code>CSVWriter.writeNext</code>: every non-null value is quoted,
+ * quote and escape characters are escaped, null values are empty and lines end with \n.
+ * TSV output removes \r, \n and \t from values. Malformed surrogates are written as '?', as with
+ * <code>String.getBytes(UTF_8)</code>.
+ * <p>
+ * The number of bytes of each record is returned by {@link #writeRecord(String[])}.
+ */
+public class Utf8DelimitedWriter implements Flushable, Closeable {
+
+    public static final char NO_QUOTE_CHARACTER = '\u0000';
+    public static final char NO_ESCAPE_CHARACTER = '\u0000';
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // largest output of a single encode, a surrogate pair
+    private static final int MAX_CHAR_BYTES = 4;
+
+    private final OutputStream out;
+    private final boolean tsv;
+    private final char separator;
+    private final char quote;
+    private final char escape;
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position;
+    private long bytesWritten;
+
+    private Utf8DelimitedWriter(OutputStream out, boolean tsv, char separator, char quote, char escape) {
+        this.out = out;
+        this.tsv = tsv;
+        this.separator = separator;
+        this.quote = quote;
+        this.escape = escape;
+    }
+
+    /**
+     * @param out    the stream to write to, it is not closed by {@link #close()}
+     * @param sep    field separator
+     * @param quote  quote character, or {@link #NO_QUOTE_CHARACTER}
+     * @param escape escape character, or {@link #NO_ESCAPE_CHARACTER}
+     * @return a CSV writer
+     */
+    public static Utf8DelimitedWriter csv(OutputStream out, char sep, char quote, char escape) {
+        return new Utf8DelimitedWriter(out, false, sep, quote, escape);
+    }
+
+    /**
+     * @param out the stream to write to, it is not closed by {@link #close()}
+     * @return a TSV writer
+     */
+    public static Utf8DelimitedWriter tsv(OutputStream out) {
+        return new Utf8DelimitedWriter(out, true, '\t', NO_QUOTE_CHARACTER, NO_ESCAPE_CHARACTER);
+    }
+
+    /**
+     * Write a record and the line end.
+     *
+     * @param record values, null values are written as empty values
+     * @return the exact number of bytes of the record
+     * @throws IOException
+     */
+    public synchronized int writeRecord(String[] record) throws IOException {
+        long start = bytesWritten + position;
+
+        for (int i = 0; i < record.length; i++) {
+            if (i > 0) {
+                writeChar(separator);
+            }
+            String value = record[i];
+            if (value == null) {
+                continue;
+            }
+            if (tsv) {
+                writeTsvValue(value);
+            } else {
+                writeCsvValue(value);
+            }
+        }
+        writeChar('\n');
+
+        return (int) (bytesWritten + position - start);
+    }
+
+    /**
+     * @return total number of bytes written, including buffered bytes
+     */
+    public synchronized long getBytesWritten() {
+        return bytesWritten + position;
+    }
+
+    private void writeCsvValue(String value) throws IOException {
+        if (quote != NO_QUOTE_CHARACTER) {
+            writeChar(quote);
+        }
+        boolean escaping = escape != NO_ESCAPE_CHARACTER;
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (escaping && (c == quote || c == escape)) {
+                writeChar(escape);
+            }
+            i = encode(value, i, c);
+        }
+        if (quote != NO_QUOTE_CHARACTER) {
+            writeChar(quote);
+        }
+    }
+
+    private void writeTsvValue(String value) throws IOException {
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (isTsvRemoved(c)) {
+                continue;
+            }
+            if (Character.isHighSurrogate(c)) {
+                // a surrogate pair may be split by a removed char
+                int j = i + 1;
+                while (j < length && isTsvRemoved(value.charAt(j))) {
+                    j++;
+                }
+                if (j < length && Character.isLowSurrogate(value.charAt(j))) {
+                    encodeSurrogatePair(c, value.charAt(j));
+                    i = j;
+                    continue;
+                }
+            }
+            i = encode(value, i, c);
+        }
+    }
+
+    private static boolean isTsvRemoved(char c) {
+        return c == '\r' || c == '\n' || c == '\t';
+    }
+
+    private void writeChar(char c) throws IOException {
+        if (c < 0x80) {
+            if (position == BUFFER_SIZE) {
+                flushBuffer();
+            }
+            buffer[position++] = (byte) c;
+        } else {
+            encode(null, 0, c);
+        }
+    }
+
+    /**
+     * Encode the char at index i of value.
+     *
+     * @return index of the last char consumed, i + 1 for a surrogate pair
+     */
+    private int encode(String value, int i, char c) throws IOException {
+        if (position > BUFFER_SIZE - MAX_CHAR_BYTES) {
+            flushBuffer();
+        }
+        byte[] b = buffer;
+        if (c < 0x80) {
+            b[position++] = (byte) c;
+        } else if (c < 0x800) {
+            b[position++] = (byte) (0xc0 | (c >> 6));
+            b[position++] = (byte) (0x80 | (c & 0x3f));
+        } else if (Character.isSurrogate(c)) {
+            char low;
+            if (Character.isHighSurrogate(c) && value != null && i + 1 < value.length()
+                    && Character.isLowSurrogate(low = value.charAt(i + 1))) {
+                encodeSurrogatePair(c, low);
+                return i + 1;
+            }
+            b[position++] = '?';
+        } else {
+            b[position++] = (byte) (0xe0 | (c >> 12));
+            b[position++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+            b[position++] = (byte) (0x80 | (c & 0x3f));
+        }
+        return i;
+    }
+
+    private void encodeSurrogatePair(char high, char low) throws IOException {
+        if (position > BUFFER_SIZE - MAX_CHAR_BYTES) {
+            flushBuffer();
+        }
+        int cp = Character.toCodePoint(high, low);
+        buffer[position++] = (byte) (0xf0 | (cp >> 18));
+        buffer[position++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+        buffer[position++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+        buffer[position++] = (byte) (0x80 | (cp & 0x3f));
+    }
+
+    private void flushBuffer() throws IOException {
+        if (position > 0) {
+            out.write(buffer, 0, position);
+            bytesWritten += position;
+            position = 0;
+        }
+    }
+
+    /**
+     * Write buffered bytes and flush the underlying stream.
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    /**
+     * Flush. The underlying stream is not closed.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        flush();
+    }
+}
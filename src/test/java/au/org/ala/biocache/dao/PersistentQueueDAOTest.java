@@ -1,5 +1,6 @@
 package au.org.ala.biocache.dao;
 
+import au.org.ala.biocache.dto.DownloadCheckpoint;
 import au.org.ala.biocache.dto.DownloadDetailsDTO;
 import au.org.ala.biocache.dto.DownloadDetailsDTO.DownloadType;
 import au.org.ala.biocache.dto.DownloadRequestDTO;
@@ -11,11 +12,14 @@ import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 import org.junit.rules.Timeout;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.Date;
+import java.util.Queue;
 import java.util.concurrent.TimeUnit;
 
-import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.*;
 
 public class PersistentQueueDAOTest {
 
@@ -82,4 +86,47 @@ public class PersistentQueueDAOTest {
         queueDAO.refreshFromPersistent();
         assertEquals(1,queueDAO.getAllDownloads().size());
     }
+
+    @Test
+    public void testCheckpoint() throws IOException {
+        DownloadDetailsDTO dd = new DownloadDetailsDTO(getParams("test1"), null,"127.0.0.1", "", DownloadType.RECORDS_INDEX);
+        DownloadDetailsDTO dd2 = new DownloadDetailsDTO(getParams("test2"), null,"127.0.0.1", "", DownloadType.RECORDS_INDEX);
+        dd2.setStartDate(new Date(dd.getStartTime() + 1));
+        queueDAO.add(dd);
+        queueDAO.add(dd2);
+        for (DownloadDetailsDTO d : queueDAO.getAllDownloads()) {
+            File partial = new File(d.getFileLocation());
+            partial.getParentFile().mkdirs();
+            assertTrue(partial.createNewFile());
+        }
+
+        DownloadCheckpoint checkpoint = new DownloadCheckpoint();
+        checkpoint.setQuery(1);
+        checkpoint.setLastId("id5");
+        checkpoint.setRecords(10);
+        checkpoint.getEntries().add(new DownloadCheckpoint.Entry("Testing.csv", 0, 100, 1000, 1234, 0));
+        dd.setCheckpoint(checkpoint);
+        queueDAO.update(dd);
+        queueDAO.update(dd2);
+
+        // the partial file of a download with a checkpoint is kept
+        Queue<DownloadDetailsDTO> restored = queueDAO.refreshFromPersistent();
+        assertEquals(2, restored.size());
+        for (DownloadDetailsDTO d : restored) {
+            if (d.getStartTime() == dd.getStartTime()) {
+                assertEquals(1, d.getCheckpoint().getQuery());
+                assertEquals("id5", d.getCheckpoint().getLastId());
+                assertEquals(1234, d.getCheckpoint().getEntries().get(0).getCrc());
+            } else {
+                assertNull(d.getCheckpoint());
+            }
+        }
+        assertTrue(new File(dd.getFileLocation()).exists());
+        assertFalse(new File(dd2.getFileLocation()).exists());
+
+        // a removed download is not saved again
+        queueDAO.remove(dd);
+        queueDAO.update(dd);
+        assertEquals(1, queueDAO.refreshFromPersistent().size());
+    }
 }
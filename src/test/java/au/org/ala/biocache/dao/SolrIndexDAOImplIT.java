@@ -118,6 +118,36 @@ public class SolrIndexDAOImplIT extends TestCase {
         }
     }
 
+    @Test
+    public void facetQueryStreamStops() throws Exception {
+        SolrQuery query = new SolrQuery();
+        query.setQuery("year:*");
+        query.addFacetField("year");
+        query.addFacetField("month");
+
+        // stops after the second tuple, e.g. the client has gone. A false return only skips a tuple.
+        List<Tuple> tuples = new ArrayList();
+        solrIndexDAO.streamingQuery(query, null, new ProcessInterface() {
+            @Override
+            public boolean process(Tuple t) {
+                tuples.add(t);
+                return false;
+            }
+
+            @Override
+            public boolean flush() {
+                return true;
+            }
+
+            @Override
+            public boolean isStopped() {
+                return tuples.size() >= 2;
+            }
+        }, null);
+
+        assertEquals(tuples.size(), 2);
+    }
+
     @Test
     @Ignore
     public void getIndexVersion() throws Exception {
@@ -0,0 +1,181 @@
+package au.org.ala.biocache.heatmap;
+
+import au.org.ala.biocache.dao.IndexDAO;
+import au.org.ala.biocache.dao.SearchDAO;
+import au.org.ala.biocache.dto.GridBinsDTO;
+import au.org.ala.biocache.dto.HeatmapDTO;
+import au.org.ala.biocache.util.WebMercator;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.awt.geom.Path2D;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+public class GridAggregatorTest {
+
+    private GridAggregator aggregator;
+
+    @Before
+    public void setUp() throws Exception {
+        aggregator = new GridAggregator();
+        aggregator.searchDAO = mock(SearchDAO.class);
+        aggregator.indexDao = mock(IndexDAO.class);
+        when(aggregator.indexDao.getIndexVersion(false)).thenReturn(1L);
+        aggregator.init();
+    }
+
+    @Test
+    public void testCellContainsPoint() {
+        Random random = new Random(1);
+        for (GridAggregator.Shape shape : GridAggregator.Shape.values()) {
+            double cellSize = 1000;
+            for (int i = 0; i < 10000; i++) {
+                double x = (random.nextDouble() - 0.5) * 20 * cellSize;
+                double y = (random.nextDouble() - 0.5) * 20 * cellSize;
+                int[] cell = GridAggregator.cell(shape, cellSize, x, y);
+
+                double[] polygon = GridAggregator.polygon(shape, cellSize, cell[0], cell[1]);
+                Path2D path = new Path2D.Double();
+                path.moveTo(polygon[0], polygon[1]);
+                for (int v = 2; v < polygon.length; v += 2) {
+                    path.lineTo(polygon[v], polygon[v + 1]);
+                }
+                path.closePath();
+                assertTrue(shape + " " + x + "," + y, path.intersects(x - 0.01, y - 0.01, 0.02, 0.02));
+            }
+        }
+    }
+
+    @Test
+    public void testHexCells() {
+        double cellSize = 300;
+        double height = cellSize * 2 / Math.sqrt(3);
+
+        // even columns start at the equator, odd columns are half a cell lower
+        assertArrayEquals(new int[]{0, 0}, GridAggregator.cell(GridAggregator.Shape.HEX, cellSize, 150, -1));
+        assertArrayEquals(new int[]{0, -1}, GridAggregator.cell(GridAggregator.Shape.HEX, cellSize, 150, 1));
+        assertArrayEquals(new int[]{1, -1}, GridAggregator.cell(GridAggregator.Shape.HEX, cellSize, 450, -1));
+        assertArrayEquals(new int[]{-1, 0}, GridAggregator.cell(GridAggregator.Shape.HEX, cellSize, -150, -height / 2 - 1));
+
+        // left corners are in the column to the left
+        assertArrayEquals(new int[]{-1, -1}, GridAggregator.cell(GridAggregator.Shape.HEX, cellSize, 1, -1));
+        assertArrayEquals(new int[]{-1, 0}, GridAggregator.cell(GridAggregator.Shape.HEX, cellSize, 1, -height + 1));
+        assertArrayEquals(new int[]{0, 0}, GridAggregator.cell(GridAggregator.Shape.HEX, cellSize, 1, -height / 2));
+    }
+
+    @Test
+    public void testCellSizeForTile() {
+        // tiles of a zoom level have the same cell size, with an even number of columns from longitude 0
+        double tileWidth = WebMercator.WORLD_WIDTH / 1024;
+        double cellSize = GridAggregator.cellSizeForTile(WebMercator.toX(-180 + 360.0 / 1024 * 7) - WebMercator.toX(-180 + 360.0 / 1024 * 6), 18);
+        assertEquals(tileWidth / 18, cellSize, 0);
+        assertEquals(cellSize, GridAggregator.cellSizeForTile(tileWidth * (1 + 1e-12), 18), 0);
+    }
+
+    @Test
+    public void testGetBins() throws Exception {
+        // one heatmap cell at 149.5,-35.5 with 10 occurrences
+        when(aggregator.searchDAO.getHeatMap(anyString(), any(), anyDouble(), anyDouble(), anyDouble(), anyDouble(), isNull(), eq(1)))
+                .thenAnswer(invocation -> heatmap(10, 149.5, -35.5));
+
+        double cellSize = 50000;
+        double x = WebMercator.toX(149.5);
+        double y = WebMercator.toY(-35.5);
+        GridBins bins = aggregator.getBins("q", new String[]{"fq"}, GridAggregator.Shape.HEX, cellSize,
+                x - 100000, y - 100000, x + 100000, y + 100000);
+
+        assertEquals(GridAggregator.snapCellSize(cellSize), bins.cellSize, 0);
+        assertEquals(1, bins.size());
+        assertEquals(10, bins.getCount(0));
+        assertArrayEquals(GridAggregator.cell(GridAggregator.Shape.HEX, bins.cellSize, x, y), new int[]{bins.getColumn(0), bins.getRow(0)});
+
+        GridBinsDTO dto = bins.toDTO();
+        assertEquals("hex", dto.shape);
+        assertEquals(7, dto.bins.get(0).polygon.length);
+        assertEquals(149.5, dto.bins.get(0).longitude, 0.5);
+        assertEquals(-35.5, dto.bins.get(0).latitude, 0.5);
+
+        // blocks are cached
+        int queries = mockingDetails(aggregator.searchDAO).getInvocations().size();
+        aggregator.getBins("q", new String[]{"fq"}, GridAggregator.Shape.HEX, cellSize,
+                x - 50000, y - 50000, x + 50000, y + 50000);
+        assertEquals(queries, mockingDetails(aggregator.searchDAO).getInvocations().size());
+
+        // until the index changes
+        when(aggregator.indexDao.getIndexVersion(false)).thenReturn(2L);
+        aggregator.getBins("q", new String[]{"fq"}, GridAggregator.Shape.HEX, cellSize,
+                x - 50000, y - 50000, x + 50000, y + 50000);
+        assertTrue(mockingDetails(aggregator.searchDAO).getInvocations().size() > queries);
+    }
+
+    @Test
+    public void testSnapCellSize() {
+        // the cells of the WMS hexbin tiles
+        double tileWidth = WebMercator.WORLD_WIDTH / 1024;
+        for (int columns = GridAggregator.MIN_TILE_COLUMNS; columns <= GridAggregator.MAX_TILE_COLUMNS; columns += 2) {
+            double cellSize = GridAggregator.cellSizeForTile(tileWidth, columns);
+            assertEquals(cellSize, GridAggregator.snapCellSize(cellSize), 0);
+            assertEquals(cellSize, GridAggregator.snapCellSize(cellSize * 1.01), 0);
+        }
+        assertEquals(WebMercator.WORLD_WIDTH / 6, GridAggregator.snapCellSize(WebMercator.WORLD_WIDTH), 0);
+        assertEquals(WebMercator.WORLD_WIDTH / Math.pow(2, 28) / 22, GridAggregator.snapCellSize(1e-6), 0);
+    }
+
+    @Test
+    public void testTooManyBlockLoads() throws Exception {
+        when(aggregator.searchDAO.getHeatMap(anyString(), any(), anyDouble(), anyDouble(), anyDouble(), anyDouble(), isNull(), eq(1)))
+                .thenAnswer(invocation -> heatmap(10, 149.5, -35.5));
+        aggregator.maxBlockLoads = 4;
+
+        // 3x3 blocks
+        double cellSize = GridAggregator.snapCellSize(50000);
+        double x = WebMercator.toX(149.5);
+        double y = WebMercator.toY(-35.5);
+        double width = GridAggregator.BLOCK_SIZE * cellSize * 1.5;
+        try {
+            aggregator.getBins("q", null, GridAggregator.Shape.SQUARE, cellSize, x - width, y - width, x + width, y + width);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        verifyNoInteractions(aggregator.searchDAO);
+
+        // cached blocks are not loaded
+        aggregator.maxBlockLoads = 100;
+        aggregator.getBins("q", null, GridAggregator.Shape.SQUARE, cellSize, x - width, y - width, x + width, y + width);
+        int queries = mockingDetails(aggregator.searchDAO).getInvocations().size();
+        assertTrue(queries > 4);
+        aggregator.maxBlockLoads = 0;
+        GridBins bins = aggregator.getBins("q", null, GridAggregator.Shape.SQUARE, cellSize, x - width, y - width, x + width, y + width);
+        assertEquals(10, bins.getCount(0));
+        assertEquals(queries, mockingDetails(aggregator.searchDAO).getInvocations().size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooManyCells() throws Exception {
+        aggregator.getBins("q", null, GridAggregator.Shape.SQUARE, 10,
+                -WebMercator.WORLD_WIDTH / 2, -WebMercator.WORLD_WIDTH / 2,
+                WebMercator.WORLD_WIDTH / 2, WebMercator.WORLD_WIDTH / 2);
+    }
+
+    // 1x1 degree heatmap cells around a point
+    private static HeatmapDTO heatmap(int count, double lng, double lat) {
+        List<List<Integer>> layer = new ArrayList<>();
+        layer.add(null);
+        List<Integer> row = new ArrayList<>();
+        row.add(0);
+        row.add(count);
+        row.add(0);
+        layer.add(row);
+        layer.add(null);
+        return new HeatmapDTO(10, Collections.singletonList(layer), null, 1, 3, 3,
+                lng - 1.5, lat - 1.5, lng + 1.5, lat + 1.5);
+    }
+}
@@ -0,0 +1,115 @@
+package au.org.ala.biocache.heatmap;
+
+import au.org.ala.biocache.dto.HeatmapDTO;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class HeatMapTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testGaussianBlur() {
+        int width = 41;
+        int height = 31;
+        int[] raster = new int[width * height];
+        raster[15 * width + 20] = 1000;
+
+        HeatMap.gaussianBlur(raster, width, height, 8);
+
+        // the peak is kept
+        assertEquals(1000, raster[15 * width + 20]);
+
+        // symmetric and decreasing from the centre
+        for (int d = 1; d <= 12; d++) {
+            int value = raster[15 * width + 20 + d];
+            assertEquals(value, raster[15 * width + 20 - d]);
+            assertEquals(value, raster[(15 + d) * width + 20]);
+            assertEquals(value, raster[(15 - d) * width + 20]);
+            assertTrue(value < raster[15 * width + 20 + d - 1]);
+        }
+
+        // sigma is radius / 2, exp(-0.5) at 4 pixels
+        assertEquals(1000 * Math.exp(-0.5), raster[15 * width + 24], 5);
+
+        // nothing past 3 sigma
+        assertEquals(0, raster[15 * width + 33]);
+        assertEquals(0, raster[2 * width + 20]);
+    }
+
+    @Test
+    public void testGaussianBlurSingleOccurrence() {
+        int[] raster = new int[9 * 9];
+        raster[4 * 9 + 4] = 1;
+
+        HeatMap.gaussianBlur(raster, 9, 9, 8);
+
+        // a single occurrence is still drawn
+        assertEquals(1, raster[4 * 9 + 4]);
+    }
+
+    @Test
+    public void testGaussianBlurLargeCounts() {
+        int width = 41;
+        int height = 31;
+        int[] raster = new int[width * height];
+        // more than Integer.MAX_VALUE after the row blur
+        raster[15 * width + 20] = 100000000;
+
+        HeatMap.gaussianBlur(raster, width, height, 8);
+
+        assertEquals(100000000, raster[15 * width + 20]);
+        assertEquals(100000000 * Math.exp(-0.5), raster[15 * width + 24], 100000000 * 0.005);
+        assertEquals(raster[15 * width + 24], raster[19 * width + 20]);
+    }
+
+    @Test
+    public void testGenerateClassesFromGrid() throws Exception {
+        HeatMap hm = new HeatMap();
+        double[] bbox = hm.getBBox();
+
+        // 4x4 grid over the image, with counts in the top left and bottom right cells
+        List<List<Integer>> layer = new ArrayList<>();
+        layer.add(list(500, 0, 0, 0));
+        layer.add(null);
+        layer.add(null);
+        layer.add(list(0, 0, 0, 5));
+        HeatmapDTO grid = new HeatmapDTO(10, Collections.singletonList(layer), null, 1, 4, 4,
+                bbox[0], bbox[1], bbox[2], bbox[3]);
+
+        hm.generateClasses(grid);
+        File output = new File(folder.getRoot(), "hm.png");
+        hm.drawOutput(output.getPath(), true);
+        File legend = new File(folder.getRoot(), "legend_hm.png");
+        hm.drawLegend(legend.getPath());
+
+        BufferedImage background = ImageIO.read(HeatMap.class.getResourceAsStream("/images/heatmap_background.png"));
+        BufferedImage image = ImageIO.read(output);
+        assertEquals(background.getWidth(), image.getWidth());
+        assertTrue(legend.length() > 0);
+
+        // the centres of the cells are drawn, the centre of the image is not
+        int width = image.getWidth();
+        int height = image.getHeight();
+        assertNotEquals(background.getRGB(width / 8, height / 8), image.getRGB(width / 8, height / 8));
+        assertNotEquals(background.getRGB(width * 7 / 8, height * 7 / 8), image.getRGB(width * 7 / 8, height * 7 / 8));
+        assertEquals(background.getRGB(width / 2, height / 2), image.getRGB(width / 2, height / 2));
+    }
+
+    private static List<Integer> list(Integer... values) {
+        List<Integer> list = new ArrayList<>();
+        Collections.addAll(list, values);
+        return list;
+    }
+}
@@ -0,0 +1,277 @@
+package au.org.ala.biocache.heatmap;
+
+import au.org.ala.biocache.dto.HeatmapDTO;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class HeatmapCoalescerTest {
+
+    private static final int GRID_LEVEL = 10;
+
+    private HeatmapCoalescer coalescer;
+    private AtomicInteger loads;
+
+    @Before
+    public void setUp() {
+        coalescer = new HeatmapCoalescer();
+        coalescer.window = 200;
+        loads = new AtomicInteger();
+    }
+
+    @Test
+    public void testMergeTiles() throws Exception {
+        // 2 x 2 tiles of 10 degrees, any two of them may start a batch in the order they arrive
+        List<double[]> tiles = new ArrayList<>();
+        for (int x = 0; x < 2; x++) {
+            for (int y = 0; y < 2; y++) {
+                tiles.add(new double[]{110 + x * 10, -40 + y * 10, 120 + x * 10, -30 + y * 10});
+            }
+        }
+
+        // the tiles wait to merge while another request is loading
+        CountDownLatch started = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<HeatmapDTO> first = executor.submit(() -> coalescer.getGrid("q", null, -10, 40, 0, 50, GRID_LEVEL,
+                (query, fqs, minx, miny, maxx, maxy, gridLevel, maxCells) -> {
+                    started.countDown();
+                    Thread.sleep(500);
+                    return load(query, fqs, minx, miny, maxx, maxy, gridLevel, maxCells);
+                }));
+        started.await();
+
+        List<HeatmapDTO> grids = getGrids(tiles, this::load);
+        assertNotNull(first.get());
+        executor.shutdown();
+        assertEquals(2, loads.get());
+
+        for (int i = 0; i < tiles.size(); i++) {
+            double[] tile = tiles.get(i);
+            assertHeatmapEquals(load("q", null, tile[0], tile[1], tile[2], tile[3], GRID_LEVEL, 0), grids.get(i));
+        }
+    }
+
+    @Test
+    public void testFirstRequest() throws Exception {
+        coalescer.window = 5000;
+
+        // a request is not delayed when there is no other request to merge with
+        long start = System.currentTimeMillis();
+        HeatmapDTO grid = coalescer.getGrid("q", null, 110, -40, 120, -30, GRID_LEVEL, this::load);
+        assertTrue(System.currentTimeMillis() - start < 1000);
+        assertHeatmapEquals(load("q", null, 110, -40, 120, -30, GRID_LEVEL, 0), grid);
+    }
+
+    @Test
+    public void testMaxCells() throws Exception {
+        List<Integer> maxCells = new ArrayList<>();
+        HeatmapCoalescer.GridLoader loader = (query, fqs, minx, miny, maxx, maxy, gridLevel, cells) -> {
+            synchronized (maxCells) {
+                maxCells.add(cells);
+            }
+            return slowLoad(query, fqs, minx, miny, maxx, maxy, gridLevel, cells);
+        };
+
+        // SOLR default for a single request and a small merged request
+        List<double[]> tiles = new ArrayList<>();
+        tiles.add(new double[]{110, -40, 120, -30});
+        tiles.add(new double[]{120, -40, 130, -30});
+        tiles.add(new double[]{130, -40, 140, -30});
+        getGrids(tiles, loader);
+        assertEquals(Arrays.asList(0, 0), maxCells);
+
+        // raised for a merged request with more cells than the SOLR default
+        maxCells.clear();
+        tiles.clear();
+        for (int x = 0; x < 4; x++) {
+            tiles.add(new double[]{-180 + x * 90, -90, -90 + x * 90, 90});
+        }
+        coalescer.maxCells = 10000000;
+        getGrids(tiles, loader);
+        Collections.sort(maxCells);
+        assertEquals(Arrays.asList(0, 10000000), maxCells);
+    }
+
+    @Test
+    public void testIdenticalRequests() throws Exception {
+        coalescer.window = 0;
+
+        List<double[]> tiles = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            tiles.add(new double[]{110, -40, 120, -30});
+        }
+
+        List<HeatmapDTO> grids = getGrids(tiles, (query, fqs, minx, miny, maxx, maxy, gridLevel, maxCells) -> {
+            // slow enough for the other requests to arrive
+            Thread.sleep(200);
+            return load(query, fqs, minx, miny, maxx, maxy, gridLevel, maxCells);
+        });
+        assertEquals(1, loads.get());
+        for (HeatmapDTO grid : grids) {
+            assertSame(grids.get(0), grid);
+        }
+    }
+
+    @Test
+    public void testDistantTiles() throws Exception {
+        List<double[]> tiles = new ArrayList<>();
+        tiles.add(new double[]{110, -40, 120, -30});
+        tiles.add(new double[]{-10, 40, 0, 50});
+
+        List<HeatmapDTO> grids = getGrids(tiles, this::load);
+        assertEquals(2, loads.get());
+        assertHeatmapEquals(load("q", null, -10, 40, 0, 50, GRID_LEVEL, 0), grids.get(1));
+    }
+
+    @Test
+    public void testTooManyCells() throws Exception {
+        coalescer.maxCells = 2 * (int) HeatmapCoalescer.cells(GRID_LEVEL, 110, -40, 120, -30);
+
+        List<double[]> tiles = new ArrayList<>();
+        for (int x = 0; x < 4; x++) {
+            tiles.add(new double[]{110 + x * 10, -40, 120 + x * 10, -30});
+        }
+
+        getGrids(tiles, this::load);
+        assertTrue(loads.get() >= 2);
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        List<double[]> tiles = new ArrayList<>();
+        tiles.add(new double[]{110, -40, 120, -30});
+        tiles.add(new double[]{120, -40, 130, -30});
+
+        tiles.add(new double[]{130, -40, 140, -30});
+
+        ExecutorService executor = Executors.newFixedThreadPool(tiles.size());
+        List<Future<HeatmapDTO>> results = new ArrayList<>();
+        for (double[] tile : tiles) {
+            results.add(executor.submit(() -> coalescer.getGrid("q", null, tile[0], tile[1], tile[2], tile[3], GRID_LEVEL,
+                    (query, fqs, minx, miny, maxx, maxy, gridLevel, maxCells) -> {
+                        loads.incrementAndGet();
+                        Thread.sleep(100);
+                        throw new IllegalStateException("SOLR is down");
+                    })));
+        }
+        for (Future<HeatmapDTO> result : results) {
+            try {
+                result.get();
+                fail();
+            } catch (Exception e) {
+                assertEquals("SOLR is down", e.getCause().getMessage());
+            }
+        }
+        executor.shutdown();
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void testSlice() {
+        HeatmapDTO grid = load("q", null, 110, -40, 130, -30, GRID_LEVEL, 0);
+
+        // no counts in the top 4 rows
+        List<List<Integer>> counts = grid.layers.get(0);
+        for (int row = 0; row < 4; row++) {
+            counts.set(row, null);
+        }
+        HeatmapDTO slice = HeatmapCoalescer.slice(grid, 110, grid.maxy - 4 * grid.rowHeight(), 112, grid.maxy);
+        assertEquals(Integer.valueOf(4), slice.rows);
+        assertEquals(grid.maxy, slice.maxy, 1e-9);
+        assertNull(slice.layers.get(0));
+
+        // partial cells
+        double cell = 360 / Math.pow(2, GRID_LEVEL);
+        slice = HeatmapCoalescer.slice(grid, 120 + cell / 2, -35, 125, -31.5);
+        assertHeatmapEquals(load("q", null, 120 + cell / 2, -35, 125, -31.5, GRID_LEVEL, 0), slice);
+    }
+
+    /**
+     * Request the tiles at the same time.
+     */
+    private List<HeatmapDTO> getGrids(List<double[]> tiles, HeatmapCoalescer.GridLoader loader) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(tiles.size());
+        CountDownLatch ready = new CountDownLatch(tiles.size());
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<HeatmapDTO>> results = new ArrayList<>();
+        for (double[] tile : tiles) {
+            results.add(executor.submit(() -> {
+                ready.countDown();
+                start.await();
+                return coalescer.getGrid("q", null, tile[0], tile[1], tile[2], tile[3], GRID_LEVEL, loader);
+            }));
+        }
+        ready.await();
+        start.countDown();
+
+        List<HeatmapDTO> grids = new ArrayList<>();
+        for (Future<HeatmapDTO> result : results) {
+            grids.add(result.get());
+        }
+        executor.shutdown();
+        return grids;
+    }
+
+    /**
+     * A load that is slow enough for the other requests to arrive.
+     */
+    private HeatmapDTO slowLoad(String query, String[] fqs, double minx, double miny, double maxx, double maxy, int gridLevel, int maxCells)
+            throws InterruptedException {
+        Thread.sleep(100);
+        return load(query, fqs, minx, miny, maxx, maxy, gridLevel, maxCells);
+    }
+
+    /**
+     * facet.heatmap of a quad grid with some empty rows.
+     */
+    private HeatmapDTO load(String query, String[] fqs, double minx, double miny, double maxx, double maxy, int gridLevel, int maxCells) {
+        loads.incrementAndGet();
+
+        double n = Math.pow(2, gridLevel);
+        double width = 360 / n;
+        double height = 180 / n;
+        int minColumn = (int) Math.floor((minx + 180) / width);
+        int maxColumn = (int) Math.ceil((maxx + 180) / width);
+        int minRow = (int) Math.floor((90 - maxy) / height);
+        int maxRow = (int) Math.ceil((90 - miny) / height);
+
+        List<List<Integer>> counts = new ArrayList<>();
+        for (int row = minRow; row < maxRow; row++) {
+            List<Integer> columns = null;
+            if (row % 5 != 0) {
+                columns = new ArrayList<>();
+                for (int column = minColumn; column < maxColumn; column++) {
+                    columns.add((column * 7 + row * 3) % 11);
+                }
+            }
+            counts.add(columns);
+        }
+
+        List<List<List<Integer>>> layers = new ArrayList<>();
+        layers.add(counts);
+        return new HeatmapDTO(gridLevel, layers, null, 1, maxRow - minRow, maxColumn - minColumn,
+                minColumn * width - 180, 90 - maxRow * height, maxColumn * width - 180, 90 - minRow * height);
+    }
+
+    private static void assertHeatmapEquals(HeatmapDTO expected, HeatmapDTO actual) {
+        assertEquals(expected.gridLevel, actual.gridLevel);
+        assertEquals(expected.rows, actual.rows);
+        assertEquals(expected.columns, actual.columns);
+        assertEquals(expected.minx, actual.minx, 1e-9);
+        assertEquals(expected.miny, actual.miny, 1e-9);
+        assertEquals(expected.maxx, actual.maxx, 1e-9);
+        assertEquals(expected.maxy, actual.maxy, 1e-9);
+        assertEquals(expected.layers, actual.layers);
+    }
+}
@@ -0,0 +1,203 @@
+package au.org.ala.biocache.heatmap;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class HeatmapFileCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File dir;
+    private HeatmapFileCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = folder.newFolder("heatmap");
+        cache = newCache(0L);
+    }
+
+    private HeatmapFileCache newCache(long maxSize) throws IOException {
+        HeatmapFileCache cache = new HeatmapFileCache();
+        cache.heatmapOutputDir = dir.getPath();
+        cache.maxSize = maxSize;
+        cache.init();
+        return cache;
+    }
+
+    private HeatmapFileCache.Generator write(String name, int length, AtomicInteger count) {
+        return outputDir -> {
+            count.incrementAndGet();
+            FileUtils.writeByteArrayToFile(new File(outputDir, name), new byte[length]);
+        };
+    }
+
+    @Test
+    public void testGenerateOnce() throws Exception {
+        AtomicInteger count = new AtomicInteger();
+
+        File file = cache.get(false, write("a_hm.png", 100, count), "a_hm.png");
+        assertEquals(100, file.length());
+        cache.get(false, write("a_hm.png", 100, count), "a_hm.png");
+        assertEquals(1, count.get());
+
+        cache.get(true, write("a_hm.png", 200, count), "a_hm.png");
+        assertEquals(2, count.get());
+        assertEquals(200, cache.getSize());
+
+        // not written by the generator
+        assertFalse(cache.get(false, outputDir -> {}, "legend_a_hm.png").exists());
+    }
+
+    @Test
+    public void testSingleFlight() throws Exception {
+        AtomicInteger count = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        HeatmapFileCache.Generator generator = outputDir -> {
+            count.incrementAndGet();
+            started.countDown();
+            release.await();
+            FileUtils.writeByteArrayToFile(new File(outputDir, "a_hm.png"), new byte[10]);
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            Future<File> first = executor.submit(() -> cache.get(false, generator, "a_hm.png"));
+            started.await();
+            Future<File> second = executor.submit(() -> cache.get(false, generator, "a_hm.png"));
+            Future<File> refresh = executor.submit(() -> cache.get(true, generator, "a_hm.png"));
+
+            // the other requests wait for the generation
+            Thread.sleep(100);
+            assertFalse(second.isDone());
+            assertFalse(refresh.isDone());
+
+            release.countDown();
+            assertEquals(10, first.get(5, TimeUnit.SECONDS).length());
+            assertEquals(10, second.get(5, TimeUnit.SECONDS).length());
+            assertEquals(10, refresh.get(5, TimeUnit.SECONDS).length());
+            assertEquals(1, count.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testSingleFlightRelated() throws Exception {
+        AtomicInteger count = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        HeatmapFileCache.Generator generator = outputDir -> {
+            count.incrementAndGet();
+            started.countDown();
+            release.await();
+            FileUtils.writeByteArrayToFile(new File(outputDir, "a_hm.png"), new byte[10]);
+            FileUtils.writeByteArrayToFile(new File(outputDir, "legend_a_hm.png"), new byte[20]);
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            // a map and its legend, requested at the same time
+            Future<File> map = executor.submit(() -> cache.get(false, generator, "a_hm.png", "legend_a_hm.png"));
+            started.await();
+            Future<File> legend = executor.submit(() -> cache.get(false, generator, "legend_a_hm.png", "a_hm.png"));
+
+            // nothing is written until the generator finishes
+            Thread.sleep(100);
+            assertFalse(legend.isDone());
+            assertFalse(new File(dir, "a_hm.png").exists());
+
+            release.countDown();
+            assertEquals(10, map.get(5, TimeUnit.SECONDS).length());
+            assertEquals(20, legend.get(5, TimeUnit.SECONDS).length());
+            assertEquals(1, count.get());
+            assertEquals(30, cache.getSize());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // the map generator does not always write the legend
+        File legend = new File(dir, "legend_b_hm.png");
+        cache.get(false, write("b_hm.png", 10, count), "b_hm.png", "legend_b_hm.png");
+        assertFalse(legend.exists());
+        assertEquals(20, cache.get(false, write("legend_b_hm.png", 20, count), "legend_b_hm.png", "b_hm.png").length());
+        assertEquals(3, count.get());
+
+        // temporary directories are removed
+        assertEquals(0, dir.listFiles((d, name) -> name.startsWith(HeatmapFileCache.GENERATING_PREFIX)).length);
+    }
+
+    @Test
+    public void testGenerateFailed() throws Exception {
+        try {
+            cache.get(false, outputDir -> {
+                throw new IOException("failed");
+            }, "a_hm.png");
+            fail();
+        } catch (IOException e) {
+            assertEquals("failed", e.getMessage());
+        }
+
+        // the next request generates again
+        AtomicInteger count = new AtomicInteger();
+        assertTrue(cache.get(false, write("a_hm.png", 10, count), "a_hm.png").exists());
+        assertEquals(1, count.get());
+    }
+
+    @Test
+    public void testEvictLeastRecentlyUsed() throws Exception {
+        cache = newCache(300L);
+        AtomicInteger count = new AtomicInteger();
+
+        cache.get(false, write("a_hm.png", 100, count), "a_hm.png");
+        cache.get(false, write("b_hm.png", 100, count), "b_hm.png");
+        cache.get(false, write("c_hm.png", 100, count), "c_hm.png");
+        assertEquals(300, cache.getSize());
+
+        // a is used, so b is the least recently used
+        cache.get(false, write("a_hm.png", 100, count), "a_hm.png");
+        cache.get(false, write("d_hm.png", 100, count), "d_hm.png");
+
+        assertTrue(new File(dir, "a_hm.png").exists());
+        assertFalse(new File(dir, "b_hm.png").exists());
+        assertTrue(new File(dir, "c_hm.png").exists());
+        assertTrue(new File(dir, "d_hm.png").exists());
+        assertEquals(300, cache.getSize());
+
+        // the order is kept after a restart, with files that are not in the index first
+        FileUtils.writeByteArrayToFile(new File(dir, "old_hm.png"), new byte[50]);
+        cache = newCache(300L);
+        assertEquals(300, cache.getSize());
+        assertFalse(new File(dir, "old_hm.png").exists());
+
+        cache.get(false, write("e_hm.png", 100, count), "e_hm.png");
+        assertFalse(new File(dir, "c_hm.png").exists());
+        assertTrue(new File(dir, "a_hm.png").exists());
+    }
+
+    @Test
+    public void testTransferTo() throws Exception {
+        File file = new File(dir, "a_hm.png");
+        byte[] bytes = new byte[100000];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) i;
+        }
+        FileUtils.writeByteArrayToFile(file, bytes);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(bytes.length, HeatmapFileCache.transferTo(file, out));
+        assertArrayEquals(bytes, out.toByteArray());
+    }
+}
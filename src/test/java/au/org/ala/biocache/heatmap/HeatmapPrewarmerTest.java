@@ -0,0 +1,76 @@
+package au.org.ala.biocache.heatmap;
+
+import au.org.ala.biocache.dao.IndexDAO;
+import au.org.ala.biocache.dto.SpatialSearchRequestDTO;
+import au.org.ala.biocache.util.WebMercator;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class HeatmapPrewarmerTest {
+
+    private HeatmapPrewarmer prewarmer;
+    private List<String> loaded;
+
+    @Before
+    public void setUp() {
+        prewarmer = new HeatmapPrewarmer();
+        prewarmer.indexDao = mock(IndexDAO.class);
+        prewarmer.maxLayers = 2;
+        prewarmer.maxZoom = 1;
+        when(prewarmer.indexDao.getIndexVersion(false)).thenReturn(2L);
+
+        loaded = new ArrayList<>();
+        prewarmer.setLoader((layer, tilebbox) -> loaded.add(layer.getParams().getQ() + " " + tilebbox[0] + "," + tilebbox[3]));
+    }
+
+    @Test
+    public void testWarmTopLayers() {
+        for (int i = 0; i < 3; i++) {
+            record("popular");
+            record("also popular");
+        }
+        record("rare");
+
+        prewarmer.warm(2L);
+
+        // zoom 0 then zoom 1 for the top 2 layers
+        assertEquals(2 * (1 + 4), loaded.size());
+        assertTrue(loaded.stream().noneMatch(tile -> tile.startsWith("rare")));
+        assertTrue(loaded.get(0).endsWith(WebMercator.tileBBox(0, 0, 0)[0] + "," + WebMercator.tileBBox(0, 0, 0)[3]));
+        assertTrue(loaded.get(2).endsWith(WebMercator.tileBBox(1, 0, 0)[0] + "," + WebMercator.tileBBox(1, 0, 0)[3]));
+
+        // counts decay
+        assertEquals(1, prewarmer.topLayers().get(0).hits.get());
+    }
+
+    @Test
+    public void testStopOnNewVersion() {
+        record("popular");
+        when(prewarmer.indexDao.getIndexVersion(false)).thenReturn(2L, 3L);
+
+        prewarmer.warm(2L);
+        assertEquals(1, loaded.size());
+    }
+
+    @Test
+    public void testCheckIndexVersion() {
+        record("popular");
+
+        // first version is not reloaded
+        prewarmer.checkIndexVersion();
+        prewarmer.checkIndexVersion();
+        assertTrue(loaded.isEmpty());
+    }
+
+    private void record(String q) {
+        SpatialSearchRequestDTO params = new SpatialSearchRequestDTO();
+        params.setQ(q);
+        prewarmer.record(params, "colormode:grid", "", "EPSG:3857", 256, 256, 16);
+    }
+}
@@ -0,0 +1,143 @@
+package au.org.ala.biocache.service;
+
+import au.org.ala.biocache.dao.IndexDAO;
+import au.org.ala.biocache.dto.DownloadDetailsDTO;
+import au.org.ala.biocache.dto.DownloadHeaders;
+import au.org.ala.biocache.dto.DownloadRequestDTO;
+import au.org.ala.biocache.dto.DownloadStats;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.rules.Timeout;
+
+import java.io.File;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class DownloadResultStoreTest {
+
+    @Rule
+    public Timeout timeout = new Timeout(30, TimeUnit.SECONDS);
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    private DownloadResultStore store;
+    private IndexDAO indexDao;
+
+    @Before
+    public void setUp() {
+        indexDao = mock(IndexDAO.class);
+        when(indexDao.getIndexVersion(anyBoolean())).thenReturn(1L);
+
+        SensitiveService sensitiveService = mock(SensitiveService.class);
+        when(sensitiveService.getSensitiveFq(any())).thenReturn(null);
+
+        store = new DownloadResultStore();
+        store.indexDao = indexDao;
+        store.sensitiveService = sensitiveService;
+    }
+
+    private DownloadDetailsDTO getDownload(String file, String email, String... fq) {
+        DownloadRequestDTO params = new DownloadRequestDTO();
+        params.setQ("taxa:Macropus");
+        params.setFq(fq);
+        params.setFile(file);
+        params.setEmail(email);
+
+        DownloadDetailsDTO dd = new DownloadDetailsDTO();
+        dd.setRequestParams(params);
+        dd.setDownloadType(DownloadDetailsDTO.DownloadType.RECORDS_INDEX);
+        dd.setStartDate(new Date());
+        return dd;
+    }
+
+    @Test
+    public void testKeyIgnoresUserAndFqOrder() {
+        DownloadDetailsDTO a = getDownload("a", "a@example.org", "year:2000", "state:Victoria");
+        DownloadDetailsDTO b = getDownload("b", "b@example.org", "state:Victoria", "year:2000");
+        DownloadDetailsDTO c = getDownload("c", "c@example.org", "year:2001");
+
+        assertEquals(store.getKey(a), store.getKey(b));
+        assertNotEquals(store.getKey(a), store.getKey(c));
+
+        // a new index version produces new data
+        String before = store.getKey(a);
+        when(indexDao.getIndexVersion(anyBoolean())).thenReturn(2L);
+        assertNotEquals(before, store.getKey(a));
+    }
+
+    @Test
+    public void testFollowerReusesLeader() throws Exception {
+        File zip = tempDir.newFile("leader.zip");
+
+        DownloadDetailsDTO leaderDownload = getDownload("leader", "a@example.org");
+        leaderDownload.setFileLocation(zip.getPath());
+        leaderDownload.setTotalRecords(10);
+        leaderDownload.getRecordsDownloaded().set(10);
+
+        DownloadResultStore.Ticket leader = store.join(leaderDownload);
+        assertTrue(leader.isLeader());
+
+        DownloadResultStore.Ticket follower = store.join(getDownload("follower", "b@example.org"));
+        assertFalse(follower.isLeader());
+        assertTrue(follower.isWaiting());
+        AtomicInteger done = new AtomicInteger();
+        follower.whenDone(done::incrementAndGet);
+        assertNull(follower.collect());
+
+        DownloadStats stats = new DownloadStats();
+        stats.getUidStats().put("dr1", new AtomicInteger(10));
+        stats.addLicence("CC-BY");
+        leader.capture(new DownloadHeaders(new String[0], new String[0], new String[0], new String[0], new String[0], new String[0]), stats);
+        leader.publish(leaderDownload);
+        assertEquals(1, done.get());
+        assertFalse(follower.isWaiting());
+
+        DownloadResultStore.Result result = follower.collect();
+        assertNotNull(result);
+        assertSame(result, follower.getResult());
+        assertEquals(zip.getPath(), result.getFileLocation());
+        assertEquals("leader", result.getFile());
+        assertEquals(10, result.getRecordsDownloaded());
+        assertEquals(10, result.getDownloadStats().getUidStats().get("dr1").get());
+        assertTrue(result.getDownloadStats().getLicences().contains("CC-BY"));
+
+        // finished downloads are reused by later requests
+        assertFalse(store.join(getDownload("later", "c@example.org")).isLeader());
+
+        // a deleted file is not reused
+        zip.delete();
+        assertTrue(store.join(getDownload("later", "c@example.org")).isLeader());
+    }
+
+    @Test
+    public void testFailedLeaderReleasesFollower() throws Exception {
+        DownloadResultStore.Ticket leader = store.join(getDownload("leader", "a@example.org"));
+        DownloadResultStore.Ticket follower = store.join(getDownload("follower", "b@example.org"));
+        assertTrue(leader.isLeader());
+        assertFalse(follower.isLeader());
+
+        AtomicInteger done = new AtomicInteger();
+        follower.whenDone(done::incrementAndGet);
+        leader.fail();
+
+        assertEquals(1, done.get());
+        assertNull(follower.collect());
+        assertTrue(store.join(getDownload("next", "c@example.org")).isLeader());
+    }
+
+    @Test
+    public void testDisabled() {
+        store.enabled = false;
+        assertNull(store.join(getDownload("a", "a@example.org")));
+    }
+}
@@ -13,6 +13,7 @@ import au.org.ala.biocache.util.QueryFormatUtils;
 import au.org.ala.doi.CreateDoiResponse;
 import au.org.ala.ws.security.profile.AlaUserProfile;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.ala.client.model.LogEventVO;
 import org.apache.commons.io.FileUtils;
 import org.junit.*;
@@ -566,6 +567,46 @@ public class DownloadServiceTest {
         assertEquals(testService.userExecutors.size(), 2);
     }
 
+    @Test
+    public final void testDownloadMetrics() throws Exception {
+        testLatch.countDown();
+
+        SearchDAO searchDAO = mock(SearchDAO.class);
+        testService.searchDAO = searchDAO;
+        testService.loggerService = mock(LoggerService.class);
+        testService.citationsEnabled = false;
+        testService.headingsEnabled = false;
+        testService.readmeEnabled = false;
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        testService.meterRegistry = meterRegistry;
+
+        DownloadRequestDTO downloadRequestDTO = new DownloadRequestDTO();
+        downloadRequestDTO.setDisplayString("");
+        DownloadDetailsDTO downloadDetailsDTO = new DownloadDetailsDTO(downloadRequestDTO, TEST_USER, "192.168.0.1", "", DownloadType.RECORDS_INDEX);
+
+        when(searchDAO.writeResultsFromIndexToStream(any(), any(), any(), any(), anyBoolean(), any())).thenAnswer(invocation -> {
+            OutputStream sp = invocation.getArgument(1);
+            sp.write("id\nid1\n".getBytes(StandardCharsets.UTF_8));
+            DownloadDetailsDTO dd = invocation.getArgument(3);
+            dd.getMetrics().addRecords(1);
+            dd.getMetrics().addStageTime(DownloadMetrics.Stage.WRITE, 1000000L);
+            return new DownloadHeaders(new String[] {}, new String[] {}, new String[] {}, new String[] {}, new String[] {}, new String[] {});
+        });
+        when(testService.dataQualityService.convertDataQualityParameters(anyString(), any())).thenReturn("");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        testService.writeQueryToStream(downloadDetailsDTO, out, true, false, (ExecutorService) null, null);
+
+        // bytes written to the output, with the stage times recorded as actuator metrics
+        DownloadMetrics metrics = downloadDetailsDTO.getMetrics();
+        assertEquals(out.size(), metrics.getBytes());
+        assertEquals(1, metrics.getRecords());
+        assertEquals(1.0, meterRegistry.get("download.records").tag("type", "records_index").counter().count(), 0);
+        assertEquals(out.size(), meterRegistry.get("download.bytes").counter().count(), 0);
+        assertEquals(1.0, meterRegistry.get("download.stage").tag("stage", "write").timer().totalTime(TimeUnit.MILLISECONDS), 0.001);
+        assertEquals(1, meterRegistry.get("download.records.rate").summary().count());
+    }
+
     /**
      * This test is to ensure the DoiApplicationMetadata supplied to the DownloadRequestParams is copied
      * correctly to the DownloadDetailsDTO before invoking the doiService.mintDoi method.
@@ -0,0 +1,259 @@
+package au.org.ala.biocache.stream;
+
+import au.org.ala.biocache.dto.DownloadDetailsDTO;
+import au.org.ala.biocache.dto.DownloadHeaders;
+import au.org.ala.biocache.dto.DownloadRequestDTO;
+import au.org.ala.biocache.dto.DownloadStats;
+import au.org.ala.biocache.service.AlaLayersService;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.IOUtils;
+import org.apache.solr.client.solrj.io.Tuple;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.client.RestTemplate;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Analysis layer intersection of downloads against a local stub of the layers service /intersect/batch.
+ */
+public class AnalysisLayerIntersectionTest {
+
+    private static final String[] FIELDS = {"id", "dataResourceUid", "decimalLatitude", "decimalLongitude"};
+    private static final String[] LAYERS = {"cl22", "el10"};
+
+    // number of status checks before a batch is finished
+    private static final int POLLS = 2;
+
+    private HttpServer server;
+    private String url;
+    private ExecutorService executor;
+
+    private final AtomicInteger batches = new AtomicInteger();
+    private final AtomicInteger points = new AtomicInteger();
+    private final AtomicInteger statusChecks = new AtomicInteger();
+    private final AtomicInteger maxConcurrent = new AtomicInteger();
+    private final Map<String, byte[]> results = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> pending = new ConcurrentHashMap<>();
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/intersect/batch", this::intersect);
+        server.createContext("/status/", this::status);
+        server.createContext("/download/", exchange -> {
+            String id = exchange.getRequestURI().getPath().substring("/download/".length());
+            send(exchange, "application/zip", results.get(id));
+        });
+        server.start();
+        url = "http://localhost:" + server.getAddress().getPort();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    private void intersect(HttpExchange exchange) throws IOException {
+        Map<String, String> form = new HashMap<>();
+        for (String param : IOUtils.toString(exchange.getRequestBody(), StandardCharsets.UTF_8).split("&")) {
+            String[] kv = param.split("=", 2);
+            form.put(kv[0], URLDecoder.decode(kv[1], "UTF-8"));
+        }
+        assertEquals(String.join(",", LAYERS), form.get("fids"));
+
+        // latitude,longitude pairs
+        String[] coordinates = form.get("points").split(",");
+        points.addAndGet(coordinates.length / 2);
+
+        StringBuilder csv = new StringBuilder("latitude,longitude,cl22,el10\n");
+        for (int i = 0; i < coordinates.length; i += 2) {
+            csv.append(coordinates[i]).append(',').append(coordinates[i + 1]).append(",\"")
+                    .append(value(coordinates[i], coordinates[i + 1])).append("\",\"").append(coordinates[i]).append("\"\n");
+        }
+        ByteArrayOutputStream zip = new ByteArrayOutputStream();
+        try (ZipOutputStream zos = new ZipOutputStream(zip)) {
+            zos.putNextEntry(new ZipEntry("sample.csv"));
+            zos.write(csv.toString().getBytes(StandardCharsets.UTF_8));
+            zos.closeEntry();
+        }
+
+        String id = Integer.toString(batches.incrementAndGet());
+        results.put(id, zip.toByteArray());
+        pending.put(id, new AtomicInteger(POLLS));
+        maxConcurrent.accumulateAndGet(pending.size(), Math::max);
+        send(exchange, "application/json", ("{\"statusUrl\":\"" + url + "/status/" + id + "\"}").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void status(HttpExchange exchange) throws IOException {
+        statusChecks.incrementAndGet();
+        String id = exchange.getRequestURI().getPath().substring("/status/".length());
+        String json;
+        if (pending.get(id).decrementAndGet() > 0) {
+            json = "{\"statusUrl\":\"" + url + "/status/" + id + "\",\"status\":\"running\"}";
+        } else {
+            pending.remove(id);
+            json = "{\"status\":\"finished\",\"downloadUrl\":\"" + url + "/download/" + id + "\"}";
+        }
+        send(exchange, "application/json", json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void send(HttpExchange exchange, String contentType, byte[] body) throws IOException {
+        exchange.getResponseHeaders().add("Content-Type", contentType);
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static String value(Object latitude, Object longitude) {
+        return "region " + latitude + " " + longitude;
+    }
+
+    private AlaLayersService layersService() {
+        AlaLayersService layersService = new AlaLayersService();
+        ReflectionTestUtils.setField(layersService, "restTemplate", new RestTemplate());
+        ReflectionTestUtils.setField(layersService, "samplePollMin", 5L);
+        ReflectionTestUtils.setField(layersService, "samplePollMax", 40L);
+        return layersService;
+    }
+
+    private static Tuple tuple(int i, int uniqueCoordinates) {
+        Tuple tuple = new Tuple();
+        tuple.put("id", "id" + i);
+        tuple.put("dataResourceUid", "dr1");
+        if (i % 10 != 9) {
+            // repeated coordinates
+            int c = i % uniqueCoordinates;
+            tuple.put("decimalLatitude", -35.0 - c / 1000.0);
+            tuple.put("decimalLongitude", 149.0 + c / 1000.0);
+        }
+        return tuple;
+    }
+
+    private List<String[]> download(int rows, int uniqueCoordinates, ExecutorService executor, int maxInFlight, int cacheSize) {
+        DownloadHeaders headers = new DownloadHeaders(FIELDS.clone(), FIELDS.clone(), LAYERS.clone(), LAYERS,
+                new String[0], new String[0]);
+        DownloadRequestDTO params = new DownloadRequestDTO();
+        params.setLayersServiceUrl(url);
+        DownloadDetailsDTO dd = new DownloadDetailsDTO(params, null, null, null, DownloadDetailsDTO.DownloadType.RECORDS_INDEX);
+        ProcessDownloadTest.CapturingRecordWriter writer = new ProcessDownloadTest.CapturingRecordWriter();
+
+        ProcessDownload processDownload = new ProcessDownload(new DownloadStats(), headers, writer, dd, false, 0,
+                null, layersService(), executor, maxInFlight, cacheSize);
+        for (int i = 0; i < rows; i++) {
+            processDownload.process(tuple(i, uniqueCoordinates));
+        }
+        processDownload.flush();
+
+        return writer.rows;
+    }
+
+    private static void assertRows(int rows, List<String[]> written) {
+        assertEquals(rows, written.size());
+        for (int i = 0; i < rows; i++) {
+            String[] row = written.get(i);
+            assertEquals("id" + i, row[0]);
+            if (row[2].isEmpty()) {
+                // records without coordinates are not intersected
+                assertNull(row[FIELDS.length]);
+                assertNull(row[FIELDS.length + 1]);
+            } else {
+                assertEquals(value(row[2], row[3]), row[FIELDS.length]);
+                assertEquals(row[2], row[FIELDS.length + 1]);
+            }
+        }
+    }
+
+    @Test
+    public void testSample() throws Exception {
+        AlaLayersService layersService = layersService();
+        Reader reader = layersService.sample(url, LAYERS, new double[][]{{149.5, -35.5}, {150.25, -36.0}});
+        List<String> lines = IOUtils.readLines(reader);
+
+        assertEquals(Arrays.asList("latitude,longitude,cl22,el10",
+                "-35.5,149.5,\"region -35.5 149.5\",\"-35.5\"",
+                "-36.0,150.25,\"region -36.0 150.25\",\"-36.0\""), lines);
+        assertEquals(POLLS, statusChecks.get());
+    }
+
+    @Test
+    public void testSampleFailed() {
+        AlaLayersService layersService = layersService();
+        server.removeContext("/intersect/batch");
+
+        assertNull(layersService.sample(url, LAYERS, new double[][]{{149.5, -35.5}}));
+    }
+
+    @Test
+    public void testDeduplicated() {
+        int rows = ProcessDownload.MAX_BATCH_SIZE * 3 + 17;
+        List<String[]> written = download(rows, 251, null, 0, 1000);
+
+        assertRows(rows, written);
+        // repeated coordinates are only intersected in the first batch, later batches only have cached coordinates
+        assertEquals(1, batches.get());
+        assertEquals(251, points.get());
+    }
+
+    @Test
+    public void testDeduplicatedWithoutCache() {
+        int rows = ProcessDownload.MAX_BATCH_SIZE * 3 + 17;
+        List<String[]> written = download(rows, 251, null, 0, 0);
+
+        assertRows(rows, written);
+        // unique coordinates of each batch, the last batch has 17 rows and one without coordinates
+        assertEquals(4, batches.get());
+        assertEquals(251 * 3 + 16, points.get());
+    }
+
+    @Test
+    public void testPipelined() {
+        executor = Executors.newFixedThreadPool(4);
+        int rows = ProcessDownload.MAX_BATCH_SIZE * 10 + 17;
+        List<String[]> written = download(rows, rows, executor, 4, 1000);
+
+        assertRows(rows, written);
+        assertEquals(11, batches.get());
+        assertEquals(rows - rows / 10, points.get());
+        // batches are waiting on the layers service at the same time
+        assertTrue(maxConcurrent.get() > 1);
+    }
+
+    @Test
+    public void testPipelinedAcrossBatches() {
+        // coordinates are repeated in the next batch while the earlier batch is in flight, without a cache
+        executor = Executors.newFixedThreadPool(2);
+        int rows = ProcessDownload.MAX_BATCH_SIZE * 6;
+        int unique = ProcessDownload.MAX_BATCH_SIZE + 501;
+        List<String[]> written = download(rows, unique, executor, 3, 0);
+
+        assertRows(rows, written);
+        int sent = points.get();
+        assertTrue("sent " + sent, sent >= unique);
+        // each batch has 900 rows with coordinates
+        assertTrue("sent " + sent, sent < 6 * 900);
+    }
+}
@@ -0,0 +1,292 @@
+package au.org.ala.biocache.stream;
+
+import au.org.ala.biocache.dto.DownloadDetailsDTO;
+import au.org.ala.biocache.dto.DownloadHeaders;
+import au.org.ala.biocache.dto.DownloadRequestDTO;
+import au.org.ala.biocache.dto.DownloadStats;
+import org.apache.solr.client.solrj.io.Tuple;
+import org.apache.solr.client.solrj.io.stream.JSONTupleStream;
+import org.apache.solr.common.IteratorWriter;
+import org.apache.solr.common.MapWriter;
+import org.apache.solr.common.util.JavaBinCodec;
+import org.apache.solr.common.util.NamedList;
+import org.junit.Test;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class JavabinExportReaderTest {
+
+    private static final String[] FIELDS = {"id", "dataResourceUid", "scientificName", "year", "eventDate", "stateProvince"};
+
+    /**
+     * Fields of a record, the same values as a SOLR document
+     */
+    private static Map<String, Object> doc(int i) {
+        Map<String, Object> doc = new LinkedHashMap<>();
+        doc.put("id", String.format("id%06d", i));
+        doc.put("dataResourceUid", "dr" + (i % 3));
+        doc.put("scientificName", "Species " + (i % 50));
+        doc.put("year", (long) (1900 + i % 120));
+        doc.put("eventDate", new Date(i * 86400000L));
+        if (i % 4 != 0) {
+            doc.put("stateProvince", i % 2 == 0 ? Arrays.asList("Victoria") : Arrays.asList("Victoria", "New South Wales"));
+        }
+        doc.put("institutionUid", "in1");
+        doc.put("license", "CC-BY");
+        doc.put("assertions", i % 3 == 0 ? Arrays.asList("ZERO_COORDINATES", "OTHER") : Arrays.asList("INVALID_DATE"));
+        doc.put("decimalLatitude", -35.0 - i / 1000.0);
+        doc.put("decimalLongitude", 149.0 + i / 1000.0);
+        if (i % 5 == 1) {
+            doc.put("dynamicProperties", "{\"colour\":\"red\",\"size\":\"" + i + "\"}");
+        }
+        return doc;
+    }
+
+    /**
+     * An /export response with wt=javabin, written the same way as the SOLR ExportWriter
+     */
+    private static byte[] javabin(List<Map<String, Object>> docs) throws IOException {
+        NamedList<Object> response = new NamedList<>();
+        response.add("responseHeader", (MapWriter) ew -> ew.put("status", 0));
+        response.add("response", (MapWriter) ew -> {
+            ew.put("numFound", (long) docs.size());
+            ew.put("docs", (IteratorWriter) iw -> {
+                for (Map<String, Object> doc : docs) {
+                    iw.add((MapWriter) dw -> {
+                        for (Map.Entry<String, Object> entry : doc.entrySet()) {
+                            dw.put(entry.getKey(), entry.getValue());
+                        }
+                    });
+                }
+            });
+        });
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new JavaBinCodec().marshal(response, bytes);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * The same response with wt=json
+     */
+    private static byte[] json(List<Map<String, Object>> docs) {
+        StringBuilder sb = new StringBuilder("{\"responseHeader\":{\"status\":0},\"response\":{\"numFound\":")
+                .append(docs.size()).append(",\"docs\":[");
+        for (int i = 0; i < docs.size(); i++) {
+            sb.append(i > 0 ? ",{" : "{");
+            boolean first = true;
+            for (Map.Entry<String, Object> entry : docs.get(i).entrySet()) {
+                sb.append(first ? "" : ",").append('"').append(entry.getKey()).append("\":");
+                appendJson(sb, entry.getValue());
+                first = false;
+            }
+            sb.append('}');
+        }
+        return sb.append("]}}").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void appendJson(StringBuilder sb, Object value) {
+        if (value instanceof Collection) {
+            sb.append('[');
+            boolean first = true;
+            for (Object item : (Collection) value) {
+                sb.append(first ? "" : ",");
+                appendJson(sb, item);
+                first = false;
+            }
+            sb.append(']');
+        } else if (value instanceof Number) {
+            sb.append(value);
+        } else if (value instanceof Date) {
+            sb.append('"').append(((Date) value).toInstant()).append('"');
+        } else {
+            sb.append('"').append(value.toString().replace("\"", "\\\"")).append('"');
+        }
+    }
+
+    private static List<Map<String, Object>> docs(int from, int to, int step) {
+        List<Map<String, Object>> docs = new ArrayList<>();
+        for (int i = from; i < to; i += step) {
+            docs.add(doc(i));
+        }
+        return docs;
+    }
+
+    private static Map<String, Integer> columns(String... fields) {
+        Map<String, Integer> columns = new HashMap<>();
+        for (int i = 0; i < fields.length; i++) {
+            columns.put(fields[i], i);
+        }
+        return columns;
+    }
+
+    private static JavabinExportReader reader(byte[] bytes, Map<String, Integer> columns) throws IOException {
+        return new JavabinExportReader(new ByteArrayInputStream(bytes), null, columns);
+    }
+
+    @Test
+    public void testNext() throws Exception {
+        Object[] row = new Object[4];
+        try (JavabinExportReader reader = reader(javabin(docs(0, 3, 1)), columns("id", "eventDate", "stateProvince", "missing"))) {
+            assertTrue(reader.next(row));
+            assertArrayEquals(new Object[]{"id000000", "1970-01-01T00:00:00Z", null, null}, row);
+            assertTrue(reader.next(row));
+            assertArrayEquals(new Object[]{"id000001", "1970-01-02T00:00:00Z", Arrays.asList("Victoria", "New South Wales"), null}, row);
+            assertTrue(reader.next(row));
+            assertEquals("id000002", row[0]);
+            assertFalse(reader.next(row));
+            assertFalse(reader.next(row));
+        }
+
+        // docs in an array, as written by other handlers
+        NamedList<Object> response = new NamedList<>();
+        response.add("response", Collections.singletonMap("docs", docs(0, 2, 1)));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new JavaBinCodec().marshal(response, bytes);
+        try (JavabinExportReader reader = reader(bytes.toByteArray(), columns("id"))) {
+            assertTrue(reader.next(row));
+            assertEquals("id000000", row[0]);
+            assertTrue(reader.next(row));
+            assertFalse(reader.next(row));
+        }
+
+        // no docs
+        try (JavabinExportReader reader = reader(javabin(Collections.emptyList()), columns("id"))) {
+            assertFalse(reader.next(row));
+        }
+    }
+
+    @Test
+    public void testException() throws Exception {
+        Map<String, Object> error = new LinkedHashMap<>();
+        error.put("EXCEPTION", "sort field not found");
+        try (JavabinExportReader reader = reader(javabin(Arrays.asList(doc(0), error)), columns("id"))) {
+            Object[] row = new Object[1];
+            assertTrue(reader.next(row));
+            try {
+                reader.next(row);
+                fail();
+            } catch (IOException e) {
+                assertEquals("sort field not found", e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void testMerge() throws Exception {
+        // the sort field is not a column
+        Map<String, Integer> columns = columns("scientificName", "id");
+        List<JavabinExportReader> shards = Arrays.asList(
+                reader(javabin(docs(0, 30, 3)), columns),
+                reader(javabin(docs(1, 30, 2)), columns),
+                reader(javabin(Collections.emptyList()), columns));
+
+        List<Object> names = new ArrayList<>();
+        try (ExportReader reader = new ExportReader(shards, 2, new int[]{1}, new boolean[]{false})) {
+            Object[] row = new Object[1];
+            while (reader.next(row)) {
+                names.add(row[0]);
+            }
+        }
+
+        List<Object> expected = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            if (i % 3 == 0) {
+                expected.add(doc(i).get("scientificName"));
+            }
+            if (i % 2 == 1) {
+                expected.add(doc(i).get("scientificName"));
+            }
+        }
+        assertEquals(expected, names);
+
+        // descending
+        List<Map<String, Object>> descending = docs(0, 10, 1);
+        Collections.reverse(descending);
+        List<Object> ids = new ArrayList<>();
+        try (ExportReader reader = new ExportReader(Arrays.asList(reader(javabin(descending.subList(0, 4)), columns),
+                reader(javabin(descending.subList(4, 10)), columns)), 2, new int[]{1}, new boolean[]{true})) {
+            Object[] row = new Object[2];
+            while (reader.next(row)) {
+                ids.add(row[1]);
+            }
+        }
+        assertEquals(Arrays.asList("id000009", "id000008", "id000007", "id000006", "id000005", "id000004",
+                "id000003", "id000002", "id000001", "id000000"), ids);
+    }
+
+    private static DownloadDetailsDTO details() {
+        DownloadRequestDTO params = new DownloadRequestDTO();
+        params.setIncludeMisc(true);
+        return new DownloadDetailsDTO(params, null, null, null, DownloadDetailsDTO.DownloadType.RECORDS_INDEX);
+    }
+
+    private static DownloadHeaders headers() {
+        DownloadHeaders headers = new DownloadHeaders(FIELDS.clone(), FIELDS.clone(), new String[0], new String[0],
+                new String[0], new String[0]);
+        headers.qaIds = new String[]{"INVALID_DATE", "ZERO_COORDINATES"};
+        headers.qaLabels = new String[]{"Invalid date", "Zero coordinates"};
+        return headers;
+    }
+
+    /**
+     * Read an export with wt=json, as SolrStream does
+     */
+    private static int processJson(byte[] json, ProcessDownload process) throws IOException {
+        int count = 0;
+        try (JSONTupleStream stream = new JSONTupleStream(new InputStreamReader(new ByteArrayInputStream(json), StandardCharsets.UTF_8))) {
+            Map<String, Object> fields;
+            while ((fields = stream.next()) != null) {
+                process.process(new Tuple(fields));
+                count++;
+            }
+        }
+        process.flush();
+        return count;
+    }
+
+    private static int processJavabin(byte[] javabin, ProcessDownload process) throws IOException {
+        int count = 0;
+        String[] fields = process.getColumnFields();
+        Map<String, Integer> columns = columns(fields);
+        Object[] row = new Object[fields.length];
+        try (ExportReader reader = new ExportReader(Collections.singletonList(reader(javabin, columns)), fields.length,
+                new int[]{columns.get("id")}, new boolean[]{false})) {
+            while (reader.next(row)) {
+                process.process(row);
+                count++;
+            }
+        }
+        process.flush();
+        return count;
+    }
+
+    @Test
+    public void testSameRowsAsJson() throws Exception {
+        List<Map<String, Object>> docs = docs(0, 100, 1);
+
+        DownloadDetailsDTO jsonDetails = details();
+        DownloadStats jsonStats = new DownloadStats();
+        ProcessDownloadTest.CapturingRecordWriter jsonWriter = new ProcessDownloadTest.CapturingRecordWriter();
+        processJson(json(docs), new ProcessDownload(jsonStats, headers(), jsonWriter, jsonDetails, false, 0, null, null));
+
+        DownloadDetailsDTO javabinDetails = details();
+        DownloadStats javabinStats = new DownloadStats();
+        ProcessDownloadTest.CapturingRecordWriter javabinWriter = new ProcessDownloadTest.CapturingRecordWriter();
+        processJavabin(javabin(docs), new ProcessDownload(javabinStats, headers(), javabinWriter, javabinDetails, false, 0, null, null));
+
+        assertEquals(100, javabinWriter.rows.size());
+        for (int i = 0; i < docs.size(); i++) {
+            assertArrayEquals(jsonWriter.rows.get(i), javabinWriter.rows.get(i));
+        }
+        assertEquals(Instant.ofEpochMilli(86400000L).toString(), javabinWriter.rows.get(1)[4]);
+        assertArrayEquals(jsonDetails.getMiscFields(), javabinDetails.getMiscFields());
+        assertEquals(jsonStats.getUidStats().keySet(), javabinStats.getUidStats().keySet());
+        assertEquals(100, javabinStats.getUidStats().get("in1").get());
+        assertEquals(jsonStats.getLicences(), javabinStats.getLicences());
+    }
+}
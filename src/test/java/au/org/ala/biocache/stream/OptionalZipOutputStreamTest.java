@@ -0,0 +1,192 @@
+package au.org.ala.biocache.stream;
+
+import au.org.ala.biocache.dto.DownloadCheckpoint;
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.Assert.*;
+
+public class OptionalZipOutputStreamTest {
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    /**
+     * Synthetic occurrence CSV rows
+     */
+    private static byte[] csv(int rows) {
+        Random random = new Random(rows);
+        StringBuilder sb = new StringBuilder("id,scientificName,decimalLatitude,decimalLongitude,eventDate\n");
+        for (int i = 0; i < rows; i++) {
+            sb.append(UUID.nameUUIDFromBytes(Integer.toString(i).getBytes())).append(",\"Macropus ")
+                    .append(random.nextInt(50)).append("\",")
+                    .append(-10 - random.nextDouble() * 30).append(',')
+                    .append(110 + random.nextDouble() * 40).append(",20")
+                    .append(10 + random.nextInt(12)).append("-0").append(1 + random.nextInt(9)).append("-1")
+                    .append(random.nextInt(10)).append('\n');
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static Map<String, byte[]> unzip(File file) throws IOException {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        // ZipInputStream validates the CRC and sizes of each entry
+        try (ZipInputStream zis = new ZipInputStream(new FileInputStream(file))) {
+            ZipEntry entry;
+            while ((entry = zis.getNextEntry()) != null) {
+                entries.put(entry.getName(), IOUtils.toByteArray(zis));
+            }
+        }
+        // and the central directory must agree
+        try (ZipFile zipFile = new ZipFile(file)) {
+            assertEquals(entries.size(), zipFile.size());
+            for (Map.Entry<String, byte[]> e : entries.entrySet()) {
+                assertArrayEquals(e.getValue(), IOUtils.toByteArray(zipFile.getInputStream(zipFile.getEntry(e.getKey()))));
+            }
+        }
+        return entries;
+    }
+
+    @Test
+    public void testEntries() throws Exception {
+        byte[] data = csv(50000);
+        File file = tempDir.newFile("entries.zip");
+
+        try (OptionalZipOutputStream zos = new OptionalZipOutputStream(OptionalZipOutputStream.Type.zipped,
+                new FileOutputStream(file), 4000, Deflater.DEFAULT_COMPRESSION)) {
+            zos.putNextEntry("data.csv");
+            for (int i = 0; i < data.length; i += 7919) {
+                zos.write(data, i, Math.min(7919, data.length - i));
+            }
+            zos.closeEntry();
+
+            zos.putNextEntry("empty.csv");
+            zos.closeEntry();
+
+            zos.putNextEntry("README.html");
+            zos.write("readme".getBytes(StandardCharsets.UTF_8));
+        }
+
+        Map<String, byte[]> entries = unzip(file);
+        assertEquals(Arrays.asList("data.csv", "empty.csv", "README.html"), new ArrayList<>(entries.keySet()));
+        assertArrayEquals(data, entries.get("data.csv"));
+        assertEquals(0, entries.get("empty.csv").length);
+        assertEquals("readme", new String(entries.get("README.html"), StandardCharsets.UTF_8));
+        assertTrue(file.length() < data.length / 2);
+    }
+
+    @Test
+    public void testSplitEntries() throws Exception {
+        File file = tempDir.newFile();
+        byte[] row = "a,b,c,d\n".getBytes(StandardCharsets.UTF_8);
+        int rows = 300000;
+
+        try (OptionalZipOutputStream zos = new OptionalZipOutputStream(OptionalZipOutputStream.Type.zipped,
+                new FileOutputStream(file), 1, 1)) {
+            zos.putNextEntry("data.csv");
+            for (int i = 0; i < rows; i++) {
+                zos.write(row);
+                zos.isNewFile(this, row.length);
+            }
+            zos.closeEntry();
+        }
+
+        Map<String, byte[]> entries = unzip(file);
+        assertEquals(Arrays.asList("data.csv", "data_part2.csv", "data_part3.csv"), new ArrayList<>(entries.keySet()));
+        assertEquals(1024 * 1024, entries.get("data.csv").length);
+        assertEquals(1024 * 1024, entries.get("data_part2.csv").length);
+        assertEquals(rows * row.length - 2 * 1024 * 1024, entries.get("data_part3.csv").length);
+    }
+
+    @Test
+    public void testCheckpointEntries() throws Exception {
+        File file = tempDir.newFile();
+        byte[] row = "a,b,c,d\n".getBytes(StandardCharsets.UTF_8);
+        int rows = 300000;
+
+        // split at the checkpoint size, which is smaller than the maximum
+        try (OptionalZipOutputStream zos = new OptionalZipOutputStream(OptionalZipOutputStream.Type.zipped,
+                new FileOutputStream(file), 2, 1)) {
+            zos.setCheckpointMB(1);
+            zos.putNextEntry("data.csv");
+            for (int i = 0; i < rows; i++) {
+                zos.write(row);
+                zos.isNewFile(this, row.length);
+            }
+            assertEquals(2, zos.getClosedEntries().size());
+            zos.closeEntry();
+        }
+
+        Map<String, byte[]> entries = unzip(file);
+        assertEquals(Arrays.asList("data.csv", "data_part2.csv", "data_part3.csv"), new ArrayList<>(entries.keySet()));
+        assertEquals(1024 * 1024, entries.get("data.csv").length);
+    }
+
+    @Test
+    public void testResumeEntries() throws Exception {
+        byte[] row = "a,b,c,d\n".getBytes(StandardCharsets.UTF_8);
+        int rows = 300000;
+
+        // the download stops while writing the third part, without completing the zip
+        File partial = tempDir.newFile();
+        List<DownloadCheckpoint.Entry> completed;
+        try (FileOutputStream out = new FileOutputStream(partial)) {
+            OptionalZipOutputStream zos = new OptionalZipOutputStream(OptionalZipOutputStream.Type.zipped,
+                    out, 1, 1);
+            zos.putNextEntry("data.csv");
+            for (int i = 0; i < rows - 20000; i++) {
+                zos.write(row);
+                zos.isNewFile(this, row.length);
+            }
+            completed = new ArrayList<>(zos.getClosedEntries());
+            assertTrue(partial.length() >= zos.getBytesWritten());
+        }
+        assertEquals(2, completed.size());
+        assertEquals("data.csv", completed.get(0).getName());
+        assertEquals("data_part2.csv", completed.get(1).getName());
+
+        // copy the completed entries and continue with the rows of the third part
+        File resumed = tempDir.newFile();
+        try (OptionalZipOutputStream zos = new OptionalZipOutputStream(OptionalZipOutputStream.Type.zipped,
+                new FileOutputStream(resumed), 1, 1)) {
+            for (DownloadCheckpoint.Entry entry : completed) {
+                zos.copyEntry(entry, partial);
+            }
+            assertEquals(2, zos.getClosedEntries().size());
+
+            zos.putNextEntry("data.csv", completed.size() + 1);
+            for (int i = 2 * 1024 * 1024 / row.length; i < rows; i++) {
+                zos.write(row);
+                zos.isNewFile(this, row.length);
+            }
+            zos.closeEntry();
+        }
+
+        Map<String, byte[]> entries = unzip(resumed);
+        assertEquals(Arrays.asList("data.csv", "data_part2.csv", "data_part3.csv"), new ArrayList<>(entries.keySet()));
+        assertEquals(1024 * 1024, entries.get("data.csv").length);
+        assertEquals(1024 * 1024, entries.get("data_part2.csv").length);
+        assertEquals(rows * row.length - 2 * 1024 * 1024, entries.get("data_part3.csv").length);
+
+        // an entry that is not at the offset is not copied
+        DownloadCheckpoint.Entry moved = completed.get(1);
+        moved.setOffset(moved.getOffset() + 1);
+        try (OptionalZipOutputStream zos = new OptionalZipOutputStream(OptionalZipOutputStream.Type.zipped,
+                new ByteArrayOutputStream(), 1, 1)) {
+            zos.copyEntry(moved, partial);
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("no zip entry"));
+        }
+    }
+}
@@ -0,0 +1,314 @@
+package au.org.ala.biocache.stream;
+
+import au.org.ala.biocache.dto.DownloadCheckpoint;
+import au.org.ala.biocache.dto.DownloadDetailsDTO;
+import au.org.ala.biocache.dto.DownloadHeaders;
+import au.org.ala.biocache.dto.DownloadMetrics;
+import au.org.ala.biocache.dto.DownloadRequestDTO;
+import au.org.ala.biocache.dto.DownloadStats;
+import au.org.ala.biocache.service.LayersService;
+import au.org.ala.biocache.util.RecordWriter;
+import au.org.ala.biocache.writer.CSVRecordWriter;
+import org.apache.commons.io.IOUtils;
+import org.apache.solr.client.solrj.io.Tuple;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ProcessDownloadTest {
+
+    private static final String[] FIELDS = {"id", "dataResourceUid", "scientificName", "year", "eventDate", "stateProvince"};
+
+    /**
+     * Keeps a copy of each row, rows are reused by ProcessDownload
+     */
+    static class CapturingRecordWriter implements RecordWriter {
+        List<String[]> rows = new ArrayList<>();
+
+        @Override
+        public void initialise() {
+        }
+
+        @Override
+        public void write(String[] record) {
+            rows.add(Arrays.copyOf(record, record.length));
+        }
+
+        @Override
+        public boolean finalised() {
+            return false;
+        }
+
+        @Override
+        public void finalise() {
+        }
+    }
+
+    private static DownloadHeaders headers(String[] analysisIds) {
+        DownloadHeaders headers = new DownloadHeaders(FIELDS.clone(), FIELDS.clone(), analysisIds.clone(), analysisIds,
+                new String[0], new String[0]);
+        headers.qaIds = new String[]{"INVALID_DATE", "ZERO_COORDINATES", "COUNTRY_MISMATCH"};
+        headers.qaLabels = new String[]{"Invalid date", "Zero coordinates", "Country mismatch"};
+        return headers;
+    }
+
+    private static DownloadDetailsDTO details(boolean includeMisc) {
+        DownloadRequestDTO params = new DownloadRequestDTO();
+        params.setIncludeMisc(includeMisc);
+        params.setLayersServiceUrl("http://layers");
+        DownloadDetailsDTO dd = new DownloadDetailsDTO(params, null, null, null, DownloadDetailsDTO.DownloadType.RECORDS_INDEX);
+        return dd;
+    }
+
+    private static Tuple tuple(int i) {
+        Tuple tuple = new Tuple();
+        tuple.put("id", "id" + i);
+        tuple.put("dataResourceUid", "dr" + (i % 3));
+        tuple.put("scientificName", "Species " + (i % 50));
+        tuple.put("year", (long) (1900 + i % 120));
+        tuple.put("eventDate", new Date(i * 86400000L));
+        if (i % 4 != 0) {
+            tuple.put("stateProvince", i % 2 == 0 ? Arrays.asList("Victoria") : Arrays.asList("Victoria", "New South Wales"));
+        }
+        tuple.put("assertions", i % 3 == 0 ? Arrays.asList("ZERO_COORDINATES", "OTHER") : Arrays.asList("INVALID_DATE"));
+        tuple.put("decimalLatitude", -35.0 - i / 1000.0);
+        tuple.put("decimalLongitude", 149.0 + i / 1000.0);
+        if (i % 5 == 1) {
+            tuple.put("dynamicProperties", "{\"colour\":\"red\",\"size\":\"" + i + "\"}");
+        } else if (i % 5 == 2) {
+            tuple.put("dynamicProperties", "{\"size\":\"" + i + "\",\"weight\":\"\"}");
+        } else if (i % 5 == 3) {
+            tuple.put("dynamicProperties", "{\"weight\":\"heavy\"}");
+        }
+        return tuple;
+    }
+
+    @Test
+    public void testRows() {
+        DownloadHeaders headers = headers(new String[0]);
+        DownloadDetailsDTO dd = details(true);
+        DownloadStats stats = new DownloadStats();
+        CapturingRecordWriter writer = new CapturingRecordWriter();
+        ProcessDownload processDownload = new ProcessDownload(stats, headers, writer, dd, false, 0, null, null);
+
+        for (int i = 0; i < 6; i++) {
+            assertFalse(processDownload.process(tuple(i)));
+        }
+        processDownload.flush();
+
+        assertEquals(6, writer.rows.size());
+        assertEquals(6, dd.getRecordsDownloaded().get());
+        assertEquals(2, stats.getUidStats().get("dr0").get());
+
+        // misc fields are in the order found
+        assertArrayEquals(new String[]{"colour", "size", "weight"}, dd.getMiscFields());
+        assertEquals(headers.miscLabels, Arrays.asList(dd.getMiscFields()));
+
+        assertArrayEquals(new String[]{"id0", "dr0", "Species 0", "1900", "1970-01-01", "",
+                "false", "true", "false"}, writer.rows.get(0));
+        assertArrayEquals(new String[]{"id1", "dr1", "Species 1", "1901", "1970-01-02", "Victoria | New South Wales",
+                "true", "false", "false", "red", "1"}, writer.rows.get(1));
+        assertArrayEquals(new String[]{"id2", "dr2", "Species 2", "1902", "1970-01-03", "Victoria",
+                "true", "false", "false", "", "2"}, writer.rows.get(2));
+        assertArrayEquals(new String[]{"id3", "dr0", "Species 3", "1903", "1970-01-04", "Victoria | New South Wales",
+                "false", "true", "false", "", "", "heavy"}, writer.rows.get(3));
+        // misc values of an earlier record are not repeated
+        assertArrayEquals(new String[]{"id4", "dr1", "Species 4", "1904", "1970-01-05", "",
+                "true", "false", "false", "", "", ""}, writer.rows.get(4));
+    }
+
+    @Test
+    public void testMultivalues() {
+        DownloadHeaders headers = headers(new String[0]);
+        DownloadDetailsDTO dd = details(false);
+        List<String[][]> multivalues = new ArrayList<>();
+        CapturingRecordWriter writer = new CapturingRecordWriter() {
+            @Override
+            public void write(String[] record, String[][] values) {
+                write(record);
+                multivalues.add(values);
+            }
+
+            @Override
+            public boolean writesMultivalues() {
+                return true;
+            }
+        };
+        ProcessDownload processDownload = new ProcessDownload(new DownloadStats(), headers, writer, dd, false, 0, null, null);
+
+        for (int i = 0; i < 4; i++) {
+            processDownload.process(tuple(i));
+        }
+        processDownload.flush();
+
+        // separate values of the columns with more than one value
+        assertEquals(4, multivalues.size());
+        assertArrayEquals(new String[FIELDS.length][], multivalues.get(0));
+        assertArrayEquals(new String[]{"Victoria", "New South Wales"}, multivalues.get(1)[5]);
+        assertNull(multivalues.get(2)[5]);
+        assertEquals("Victoria | New South Wales", writer.rows.get(3)[5]);
+        assertArrayEquals(new String[]{"Victoria", "New South Wales"}, multivalues.get(3)[5]);
+    }
+
+    @Test
+    public void testAnalysisBatches() {
+        String[] analysisIds = {"cl22"};
+        DownloadHeaders headers = headers(analysisIds);
+        DownloadDetailsDTO dd = details(false);
+        CapturingRecordWriter writer = new CapturingRecordWriter();
+
+        LayersService layersService = mock(LayersService.class);
+        int[] calls = new int[1];
+        when(layersService.sample(anyString(), any(), any())).thenAnswer(invocation -> {
+            double[][] points = invocation.getArgument(2);
+            if (calls[0]++ == 1) {
+                throw new RuntimeException("layers service unavailable");
+            }
+            StringBuilder sb = new StringBuilder("latitude,longitude,cl22\n");
+            for (int i = 0; i < points.length; i++) {
+                sb.append(points[i][1]).append(',').append(points[i][0]).append(",\"").append(points[i][0]).append("\"\n");
+            }
+            return new StringReader(sb.toString());
+        });
+
+        ProcessDownload processDownload = new ProcessDownload(new DownloadStats(), headers, writer, dd, false, 0, null, layersService);
+        int rows = ProcessDownload.MAX_BATCH_SIZE * 2 + 10;
+        for (int i = 0; i < rows; i++) {
+            processDownload.process(tuple(i));
+        }
+        processDownload.flush();
+
+        assertEquals(rows, writer.rows.size());
+        for (int i = 0; i < rows; i++) {
+            String[] row = writer.rows.get(i);
+            assertEquals("id" + i, row[0]);
+            if (i / ProcessDownload.MAX_BATCH_SIZE == 1) {
+                // the failed intersection does not repeat values of the previous batch
+                assertNull(row[FIELDS.length]);
+            } else {
+                assertEquals(Double.toString(149.0 + i / 1000.0), row[FIELDS.length]);
+            }
+        }
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        String[] analysisIds = {"cl22"};
+        DownloadHeaders headers = headers(analysisIds);
+        DownloadDetailsDTO dd = details(false);
+        dd.getMetrics().start();
+
+        // slow writer and layers service
+        CapturingRecordWriter writer = new CapturingRecordWriter() {
+            @Override
+            public void write(String[] record) {
+                super.write(record);
+                if (rows.size() % 10 == 0) {
+                    sleep(1);
+                }
+            }
+        };
+        LayersService layersService = mock(LayersService.class);
+        when(layersService.sample(anyString(), any(), any())).thenAnswer(invocation -> {
+            sleep(50);
+            return new StringReader("latitude,longitude,cl22\n");
+        });
+
+        ProcessDownload processDownload = new ProcessDownload(new DownloadStats(), headers, writer, dd, false, 0, null, layersService);
+        int rows = ProcessDownload.MAX_BATCH_SIZE + 500;
+        for (int i = 0; i < rows; i++) {
+            processDownload.process(tuple(i));
+            if (i == 10) {
+                // waiting on SOLR
+                sleep(20);
+            }
+        }
+
+        // metrics are added after each batch of records
+        DownloadMetrics metrics = dd.getMetrics();
+        assertEquals(ProcessDownload.MAX_BATCH_SIZE, metrics.getRecords());
+
+        processDownload.flush();
+        metrics.finish();
+
+        assertEquals(rows, metrics.getRecords());
+        assertTrue(metrics.getStageNanos(DownloadMetrics.Stage.READ) >= 20_000_000L);
+        assertTrue(metrics.getStageNanos(DownloadMetrics.Stage.WRITE) >= 150_000_000L);
+        // two batches are intersected, excluding the time writing rows
+        long intersection = metrics.getStageNanos(DownloadMetrics.Stage.INTERSECTION);
+        assertTrue("intersection " + intersection, intersection >= 100_000_000L && intersection < 240_000_000L);
+        assertTrue(metrics.getStageNanos(DownloadMetrics.Stage.FORMAT) > 0);
+        assertEquals(0, metrics.getStageNanos(DownloadMetrics.Stage.LISTS));
+        assertTrue(metrics.getElapsedMs() >= 270);
+        assertEquals(metrics.getStageMs().keySet(), new HashSet<>(Arrays.asList("read", "format", "lists", "intersection", "write")));
+    }
+
+    @Test
+    public void testCheckpoints() throws Exception {
+        DownloadHeaders headers = headers(new String[0]);
+        DownloadDetailsDTO dd = details(true);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OptionalZipOutputStream zip = new OptionalZipOutputStream(OptionalZipOutputStream.Type.zipped, bytes, 1);
+        zip.putNextEntry("data.csv");
+        CSVRecordWriter writer = new CSVRecordWriter(zip, headers.joinedHeader());
+        writer.initialise();
+
+        List<DownloadCheckpoint> checkpoints = new ArrayList<>();
+        ProcessDownload processDownload = new ProcessDownload(new DownloadStats(), headers, writer, dd, false, 0, null, null);
+        processDownload.enableCheckpoints(zip, null, checkpoints::add);
+
+        // two queries
+        int rows = 30000;
+        for (int i = 0; i < rows; i++) {
+            processDownload.process(tuple(i));
+            if (i == rows / 2 - 1) {
+                processDownload.flush();
+            }
+        }
+        processDownload.flush();
+        writer.finalise();
+        zip.close();
+
+        // data rows of each entry, excluding the header
+        List<Integer> entryRows = new ArrayList<>();
+        try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            while (zis.getNextEntry() != null) {
+                entryRows.add(IOUtils.readLines(zis, StandardCharsets.UTF_8).size() - 1);
+            }
+        }
+        assertEquals(checkpoints.size() + 1, entryRows.size());
+        assertTrue(checkpoints.size() >= 2);
+
+        // a checkpoint is taken after the last record of each completed entry
+        long records = 0;
+        for (int i = 0; i < checkpoints.size(); i++) {
+            DownloadCheckpoint checkpoint = checkpoints.get(i);
+            records += entryRows.get(i);
+            assertEquals(i + 1, checkpoint.getEntries().size());
+            assertEquals(records, checkpoint.getRecords());
+            assertEquals("id" + (records - 1), checkpoint.getLastId());
+            assertEquals(records <= rows / 2 ? 0 : 1, checkpoint.getQuery());
+            assertTrue(checkpoint.getUidStats().get("dr0") >= records / 3);
+            assertArrayEquals(new String[]{"colour", "size", "weight"}, checkpoint.getMiscFields());
+        }
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package au.org.ala.biocache.stream;
+
+import org.apache.solr.client.solrj.io.Tuple;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class StreamCoordinatesTest {
+
+    static Tuple tuple(String point, long count) {
+        Tuple tuple = new Tuple();
+        tuple.put("lat_long", point);
+        tuple.put("count(*)", count);
+        return tuple;
+    }
+
+    @Test
+    public void testProcess() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        StreamCoordinates streamCoordinates = new StreamCoordinates(out);
+
+        assertTrue(streamCoordinates.process(tuple("-35.2809,149.13", 10)));
+
+        // the first coordinate is written immediately
+        assertEquals("latitude,longitude\n-35.2809,149.13\n", out.toString());
+
+        streamCoordinates.process(tuple("-12.4634,130.8456", 3));
+        streamCoordinates.process(tuple("-33.8688,151.2093", 0));
+        assertTrue(streamCoordinates.flush());
+
+        assertEquals("latitude,longitude\n-35.2809,149.13\n-12.4634,130.8456\n",
+                new String(out.toByteArray(), StandardCharsets.UTF_8));
+        assertEquals(2, streamCoordinates.getCount());
+    }
+
+    @Test
+    public void testEmpty() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        StreamCoordinates streamCoordinates = new StreamCoordinates(out);
+        streamCoordinates.flush();
+        assertEquals(0, out.size());
+    }
+
+    @Test
+    public void testClientGone() {
+        OutputStream out = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("Broken pipe");
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                throw new IOException("Broken pipe");
+            }
+        };
+        StreamCoordinates streamCoordinates = new StreamCoordinates(out);
+
+        assertFalse(streamCoordinates.isStopped());
+        assertFalse(streamCoordinates.process(tuple("-35.2809,149.13", 10)));
+        assertTrue(streamCoordinates.isStopped());
+        assertFalse(streamCoordinates.process(tuple("-12.4634,130.8456", 3)));
+        assertFalse(streamCoordinates.flush());
+        assertEquals(0, streamCoordinates.getCount());
+    }
+}
@@ -0,0 +1,64 @@
+package au.org.ala.biocache.stream;
+
+import au.org.ala.biocache.dto.OccurrencePoint;
+import au.org.ala.biocache.dto.OccurrencePoints;
+import au.org.ala.biocache.dto.PointType;
+import org.apache.solr.client.solrj.io.Tuple;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class StreamPointsTest {
+
+    static Tuple tuple(String point, long count) {
+        Tuple tuple = new Tuple();
+        tuple.put("point-0.01", point);
+        tuple.put("count(*)", count);
+        return tuple;
+    }
+
+    @Test
+    public void testProcess() {
+        OccurrencePoints points = new OccurrencePoints(PointType.POINT_001, 1);
+        StreamPoints streamPoints = new StreamPoints(points, -1);
+
+        streamPoints.process(tuple("-35.28,149.13", 10));
+        streamPoints.process(tuple("-12.46,130.84", 3));
+        streamPoints.process(tuple("invalid,130.84", 5));
+        streamPoints.process(tuple("", 5));
+        streamPoints.process(tuple("-33.87,151.21", 0));
+        streamPoints.process(tuple("-31.95,115.86", 1));
+        streamPoints.flush();
+
+        assertEquals(3, points.size());
+        assertEquals(14, points.getTotalCount());
+
+        // long, lat order
+        assertEquals(149.13f, points.getLongitude(0), 0);
+        assertEquals(-35.28f, points.getLatitude(0), 0);
+        assertEquals(10, points.getCount(0));
+        assertEquals(115.86f, points.getCoordinates()[4], 0);
+        assertEquals(-31.95f, points.getCoordinates()[5], 0);
+        assertEquals(1, points.getCounts()[2]);
+
+        List<OccurrencePoint> list = points.toOccurrencePoints();
+        assertEquals(3, list.size());
+        assertEquals(Long.valueOf(3), list.get(1).getCount());
+        assertEquals(130.84f, list.get(1).getCoordinates().get(0), 0);
+        assertEquals(-12.46f, list.get(1).getCoordinates().get(1), 0);
+        assertEquals(PointType.POINT_001, list.get(1).getType());
+    }
+
+    @Test
+    public void testMax() {
+        OccurrencePoints points = new OccurrencePoints(PointType.POINT_001);
+        StreamPoints streamPoints = new StreamPoints(points, 2);
+        for (int i = 0; i < 5; i++) {
+            assertEquals(i >= 2, streamPoints.isStopped());
+            streamPoints.process(tuple("-35," + (140 + i), 1));
+        }
+        assertEquals(2, points.size());
+    }
+}
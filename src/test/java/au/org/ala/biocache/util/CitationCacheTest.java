@@ -0,0 +1,155 @@
+package au.org.ala.biocache.util;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestOperations;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+public class CitationCacheTest {
+
+    private CitationCache citationCache;
+    private RestOperations restTemplate;
+
+    // uids of each request to the citation service
+    private List<List<String>> requests;
+
+    @Before
+    public void setUp() {
+        requests = new ArrayList<>();
+        restTemplate = mock(RestOperations.class);
+        when(restTemplate.postForObject(anyString(), any(), eq(List.class))).thenAnswer(invocation -> {
+            List<String> uids = new ArrayList<>(invocation.getArgument(1));
+            requests.add(uids);
+            List<Map<String, Object>> citations = new ArrayList<>();
+            for (String uid : uids) {
+                // the collectory has no citations for unknown uids
+                if (!uid.startsWith("unknown")) {
+                    Map<String, Object> citation = new LinkedHashMap<>();
+                    citation.put("uid", uid);
+                    citation.put("name", "Name of " + uid);
+                    citation.put("citation", "Citation of " + uid);
+                    citations.add(citation);
+                }
+            }
+            return citations;
+        });
+
+        citationCache = new CitationCache();
+        citationCache.batchSize = 3;
+        ReflectionTestUtils.setField(citationCache, "restTemplate", restTemplate);
+    }
+
+    private static List<Object> uids(List<Map<String, Object>> citations) {
+        List<Object> uids = new ArrayList<>();
+        for (Map<String, Object> citation : citations) {
+            uids.add(citation.get("uid"));
+        }
+        return uids;
+    }
+
+    @Test
+    public void testGetCitations() {
+        List<Map<String, Object>> citations = citationCache.getCitations(Arrays.asList("dr1", "unknown1", "in1"));
+
+        assertEquals(Arrays.asList("dr1", "in1"), uids(citations));
+        assertEquals("Citation of dr1", citations.get(0).get("citation"));
+        assertEquals(1, requests.size());
+
+        // only uids that are not cached are requested, including unknown uids
+        citations = citationCache.getCitations(Arrays.asList("in1", "dr2", "unknown1", "dr1"));
+        assertEquals(Arrays.asList("in1", "dr2", "dr1"), uids(citations));
+        assertEquals(2, requests.size());
+        assertEquals(Arrays.asList("dr2"), requests.get(1));
+
+        citationCache.getCitations(Arrays.asList("dr1", "dr2"));
+        assertEquals(2, requests.size());
+    }
+
+    @Test
+    public void testBatches() {
+        List<Map<String, Object>> citations = citationCache.getCitations(Arrays.asList("dr1", "dr2", "dr3", "dr4", "dr5"));
+
+        assertEquals(Arrays.asList("dr1", "dr2", "dr3", "dr4", "dr5"), uids(citations));
+        assertEquals(Arrays.asList(Arrays.asList("dr1", "dr2", "dr3"), Arrays.asList("dr4", "dr5")), requests);
+    }
+
+    @Test
+    public void testWarm() {
+        CollectionsCache collectionsCache = mock(CollectionsCache.class);
+        when(collectionsCache.getDataResources()).thenReturn(Collections.singletonMap("dr1", "Resource"));
+        when(collectionsCache.getDataProviders()).thenReturn(Collections.singletonMap("dp1", "Provider"));
+        when(collectionsCache.getInstitutions()).thenReturn(Collections.singletonMap("in1", "Institution"));
+        when(collectionsCache.getCollections()).thenReturn(Collections.singletonMap("co1", "Collection"));
+        citationCache.collectionsCache = collectionsCache;
+
+        citationCache.warm();
+        assertEquals(Arrays.asList(Arrays.asList("dr1", "dp1", "in1")), requests.subList(0, 1));
+        assertEquals(2, requests.size());
+
+        citationCache.getCitations(Arrays.asList("co1", "in1"));
+        assertEquals(2, requests.size());
+    }
+
+    @Test
+    public void testWarmAfterCollectionsLoaded() throws Exception {
+        CollectionsCache collectionsCache = mock(CollectionsCache.class);
+        when(collectionsCache.getDataResources()).thenReturn(Collections.emptyMap());
+        citationCache.collectionsCache = collectionsCache;
+
+        // not loaded yet
+        citationCache.init();
+        ArgumentCaptor<Runnable> listener = ArgumentCaptor.forClass(Runnable.class);
+        verify(collectionsCache).addUpdateListener(listener.capture());
+        citationCache.warmExecutor.submit(() -> {}).get();
+        assertTrue(requests.isEmpty());
+
+        when(collectionsCache.getDataResources()).thenReturn(Collections.singletonMap("dr1", "Resource"));
+        listener.getValue().run();
+        citationCache.warmExecutor.submit(() -> {}).get();
+        assertEquals(Arrays.asList(Arrays.asList("dr1")), requests);
+
+        // warmed once
+        listener.getValue().run();
+        citationCache.warmExecutor.submit(() -> {}).get();
+        assertEquals(1, requests.size());
+    }
+
+    @Test
+    public void testRefresh() {
+        citationCache.getCitations(Arrays.asList("dr1", "unknown1"));
+
+        citationCache.refresh();
+        assertEquals(1, requests.size());
+
+        // entries older than the TTL are refreshed, including unknown uids
+        citationCache.ttl = -1L;
+        citationCache.refresh();
+        assertEquals(2, requests.size());
+        assertEquals(new HashSet<>(Arrays.asList("dr1", "unknown1")), new HashSet<>(requests.get(1)));
+    }
+
+    @Test
+    public void testFailure() {
+        citationCache.getCitations(Arrays.asList("dr1"));
+
+        reset(restTemplate);
+        when(restTemplate.postForObject(anyString(), any(), eq(List.class))).thenThrow(new RestClientException("unavailable"));
+
+        // cached citations are used, missing citations are requested again later
+        assertEquals(Arrays.asList("dr1"), uids(citationCache.getCitations(Arrays.asList("dr1", "dr2"))));
+        citationCache.ttl = -1L;
+        citationCache.refresh();
+        assertEquals(Arrays.asList("dr1"), uids(citationCache.getCitations(Arrays.asList("dr1", "dr2"))));
+        verify(restTemplate, times(3)).postForObject(anyString(), any(), eq(List.class));
+    }
+}
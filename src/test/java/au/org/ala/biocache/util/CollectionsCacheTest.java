@@ -0,0 +1,182 @@
+package au.org.ala.biocache.util;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.RestOperations;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+public class CollectionsCacheTest {
+
+    private CollectionsCache collectionsCache;
+    private RestOperations restTemplate;
+
+    // registry lists by url, a missing list fails
+    private Map<String, List<Map<String, String>>> lists;
+    // If-None-Match header of each request
+    private List<String> ifNoneMatch;
+
+    @Before
+    public void setUp() {
+        lists = new HashMap<>();
+        ifNoneMatch = new ArrayList<>();
+        list("collection", "co1", "Collection 1");
+        list("institution", "in1", "Institution 1");
+        list("dataResource", "dr1", "Resource 1");
+        list("dataProvider", "dp1", "Provider 1");
+        list("tempDataResource", "drt1", "Temporary resource 1");
+        list("dataHub", "dh1", "Hub 1");
+
+        restTemplate = mock(RestOperations.class);
+        when(restTemplate.exchange(anyString(), eq(HttpMethod.GET), any(HttpEntity.class), eq(List.class))).thenAnswer(invocation -> {
+            String url = invocation.getArgument(0);
+            HttpEntity<?> request = invocation.getArgument(2);
+            String etag = request.getHeaders().getFirst(HttpHeaders.IF_NONE_MATCH);
+            ifNoneMatch.add(etag);
+
+            List<Map<String, String>> list = lists.get(url);
+            if (list == null) {
+                throw new ResourceAccessException("unavailable");
+            }
+            HttpHeaders headers = new HttpHeaders();
+            headers.setETag("\"" + list.hashCode() + "\"");
+            if (headers.getETag().equals(etag)) {
+                return new ResponseEntity<>(headers, HttpStatus.NOT_MODIFIED);
+            }
+            return new ResponseEntity<>(list, headers, HttpStatus.OK);
+        });
+
+        collectionsCache = new CollectionsCache();
+        collectionsCache.registryUrl = "http://registry";
+        collectionsCache.enabled = true;
+        ReflectionTestUtils.setField(collectionsCache, "restTemplate", restTemplate);
+    }
+
+    private void list(String type, String uid, String name) {
+        Map<String, String> entity = new LinkedHashMap<>();
+        entity.put("uid", uid);
+        entity.put("name", name);
+        lists.computeIfAbsent("http://registry/" + type + ".json", k -> new ArrayList<>()).add(entity);
+    }
+
+    @Test
+    public void testUpdate() {
+        collectionsCache.update();
+
+        assertEquals(Collections.singletonMap("co1", "Collection 1"), collectionsCache.getCollections());
+        assertEquals(Collections.singletonMap("in1", "Institution 1"), collectionsCache.getInstitutions());
+        assertEquals(Arrays.asList("dr1", "drt1"), new ArrayList<>(collectionsCache.getDataResources().keySet()));
+        assertEquals("Hub 1", collectionsCache.getNameForCode("dh1"));
+        assertEquals("Temporary resource 1", collectionsCache.getNameForCode("drt1"));
+    }
+
+    @Test
+    public void testSnapshot() {
+        collectionsCache.update();
+        Map<String, String> collections = collectionsCache.getCollections();
+
+        list("collection", "co2", "Collection 2");
+        collectionsCache.update();
+
+        // earlier snapshots are not modified
+        assertEquals(1, collections.size());
+        assertEquals(2, collectionsCache.getCollections().size());
+        assertEquals("Collection 2", collectionsCache.getNameForCode("co2"));
+        try {
+            collectionsCache.getCollections().put("co3", "Collection 3");
+            fail();
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testNotModified() {
+        collectionsCache.update();
+        Map<String, String> institutions = collectionsCache.getInstitutions();
+        assertEquals(Collections.nCopies(6, null), ifNoneMatch);
+
+        list("collection", "co2", "Collection 2");
+        collectionsCache.update();
+
+        // unchanged lists are not downloaded again
+        assertEquals(12, ifNoneMatch.size());
+        assertTrue(ifNoneMatch.subList(6, 12).stream().allMatch(Objects::nonNull));
+        assertEquals(institutions, collectionsCache.getInstitutions());
+        assertEquals("Institution 1", collectionsCache.getNameForCode("in1"));
+        assertEquals(2, collectionsCache.getCollections().size());
+    }
+
+    @Test
+    public void testFailure() {
+        collectionsCache.update();
+
+        lists.remove("http://registry/institution.json");
+        lists.get("http://registry/dataHub.json").clear();
+        list("collection", "co2", "Collection 2");
+        collectionsCache.update();
+
+        // failed and empty lists keep the previous codes, including the combined lookup
+        assertEquals(Collections.singletonMap("in1", "Institution 1"), collectionsCache.getInstitutions());
+        assertEquals("Institution 1", collectionsCache.getNameForCode("in1"));
+        assertEquals("Hub 1", collectionsCache.getNameForCode("dh1"));
+        assertEquals("Collection 2", collectionsCache.getNameForCode("co2"));
+    }
+
+    @Test
+    public void testUpdateListener() {
+        List<Integer> sizes = new ArrayList<>();
+        collectionsCache.addUpdateListener(() -> sizes.add(collectionsCache.getCollections().size()));
+        collectionsCache.addUpdateListener(() -> {
+            throw new IllegalStateException("listener failed");
+        });
+
+        // listeners see the updated codes, and a failed listener does not fail the update
+        collectionsCache.update();
+        list("collection", "co2", "Collection 2");
+        collectionsCache.update();
+        assertEquals(Arrays.asList(1, 2), sizes);
+    }
+
+    @Test
+    public void testMetrics() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        collectionsCache.bindTo(registry);
+        assertTrue(Double.isNaN(registry.get("collections.cache.staleness").gauge().value()));
+
+        collectionsCache.update();
+        assertEquals(1, registry.get("collections.cache.update").timer().count());
+        assertEquals(6, registry.get("collections.cache.size").gauge().value(), 0);
+        double staleness = registry.get("collections.cache.staleness").gauge().value();
+        assertTrue(staleness >= 0 && staleness < 60);
+
+        // an incomplete update does not reset the staleness
+        lists.remove("http://registry/institution.json");
+        collectionsCache.update();
+        assertEquals(2, registry.get("collections.cache.update").timer().count());
+        assertTrue(registry.get("collections.cache.staleness").gauge().value() >= staleness);
+    }
+
+    @Test
+    public void testDisabled() {
+        collectionsCache.enabled = false;
+        collectionsCache.updateCache();
+
+        verify(restTemplate, never()).exchange(anyString(), any(HttpMethod.class), any(HttpEntity.class), eq(List.class));
+        assertTrue(collectionsCache.getCollections().isEmpty());
+    }
+}
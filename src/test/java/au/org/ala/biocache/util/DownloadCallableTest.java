@@ -0,0 +1,170 @@
+package au.org.ala.biocache.util;
+
+import au.org.ala.biocache.dao.IndexDAO;
+import au.org.ala.biocache.dto.DownloadDetailsDTO;
+import au.org.ala.biocache.dto.DownloadHeaders;
+import au.org.ala.biocache.dto.DownloadRequestDTO;
+import au.org.ala.biocache.dto.DownloadStats;
+import au.org.ala.biocache.stream.ProcessDownload;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.io.Tuple;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+public class DownloadCallableTest {
+
+    private static final String[] FIELDS = {"id", "dataResourceUid"};
+    private static final int RECORDS = 10;
+
+    private ExecutorService executor;
+    private IndexDAO indexDAO;
+    private DownloadStats downloadStats;
+    private DownloadDetailsDTO dd;
+    private ProcessDownload procDownload;
+
+    @Before
+    public void setUp() throws Exception {
+        executor = Executors.newSingleThreadExecutor();
+        downloadStats = new DownloadStats();
+        dd = new DownloadDetailsDTO(new DownloadRequestDTO(), null, null, null, DownloadDetailsDTO.DownloadType.RECORDS_INDEX);
+        DownloadHeaders headers = new DownloadHeaders(FIELDS.clone(), FIELDS.clone(), new String[0], new String[0],
+                new String[0], new String[0]);
+        RecordWriter recordWriter = mock(RecordWriter.class);
+        procDownload = new ProcessDownload(downloadStats, headers, recordWriter, dd, false, 0, null, null);
+
+        indexDAO = mock(IndexDAO.class);
+        when(indexDAO.streamingQuery(any(), any(), any(), any())).thenAnswer(invocation -> {
+            ProcessDownload process = invocation.getArgument(1);
+            for (int i = 0; i < RECORDS; i++) {
+                Tuple tuple = new Tuple();
+                tuple.put("id", "id" + i);
+                tuple.put("dataResourceUid", "dr1");
+                tuple.put("institutionUid", "in1");
+                tuple.put("license", "CC-BY");
+                process.process(tuple);
+            }
+            process.flush();
+            return RECORDS;
+        });
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Stats of the facet query, counts differ from the records streamed
+     */
+    private long facetStats() {
+        DownloadStats stats = new DownloadStats();
+        stats.getUidStats().put("dr1", new AtomicInteger(2 * RECORDS));
+        stats.getUidStats().put("dr2", new AtomicInteger(1));
+        stats.addLicence("CC-BY-NC");
+        downloadStats.addAll(stats);
+        return 2 * RECORDS + 1;
+    }
+
+    @Test
+    public void testCountRecords() throws Exception {
+        new DownloadCallable(Arrays.asList(new SolrQuery("*:*"), new SolrQuery("*:*")), indexDAO, procDownload).call();
+
+        assertEquals(2 * RECORDS, downloadStats.getUidStats().get("dr1").get());
+        assertEquals(2 * RECORDS, downloadStats.getUidStats().get("in1").get());
+        assertEquals(2, downloadStats.getUidStats().size());
+        assertEquals(Arrays.asList("CC-BY"), Arrays.asList(downloadStats.getLicences().toArray()));
+    }
+
+    @Test
+    public void testFacetStats() throws Exception {
+        new DownloadCallable(Arrays.asList(new SolrQuery("*:*"), new SolrQuery("*:*")), indexDAO, procDownload,
+                this::facetStats, executor).call();
+
+        // records are not counted as they are written
+        assertEquals(2 * RECORDS, dd.getRecordsDownloaded().get());
+        assertEquals(2 * RECORDS, downloadStats.getUidStats().get("dr1").get());
+        assertEquals(1, downloadStats.getUidStats().get("dr2").get());
+        assertNull(downloadStats.getUidStats().get("in1"));
+        assertEquals(Arrays.asList("CC-BY-NC"), Arrays.asList(downloadStats.getLicences().toArray()));
+    }
+
+    @Test
+    public void testFacetStatsRetry() throws Exception {
+        int[] calls = new int[1];
+        new DownloadCallable(Arrays.asList(new SolrQuery("*:*")), indexDAO, procDownload, () -> {
+            if (calls[0]++ == 0) {
+                throw new Exception("SOLR unavailable");
+            }
+            return facetStats();
+        }, executor).call();
+
+        assertEquals(2, calls[0]);
+        assertEquals(2 * RECORDS, downloadStats.getUidStats().get("dr1").get());
+        assertNull(downloadStats.getUidStats().get("in1"));
+    }
+
+    @Test
+    public void testFacetStatsCancelled() throws Exception {
+        doThrow(new RuntimeException("SOLR unavailable")).when(indexDAO).streamingQuery(any(), any(), any(), any());
+        DownloadCallable callable = new DownloadCallable(Arrays.asList(new SolrQuery("*:*")), indexDAO, procDownload,
+                () -> {
+                    Thread.sleep(10000);
+                    return facetStats();
+                }, executor);
+
+        try {
+            callable.call();
+            fail();
+        } catch (RuntimeException e) {
+            assertEquals("SOLR unavailable", e.getMessage());
+        }
+        assertTrue(downloadStats.getUidStats().isEmpty());
+        verify(indexDAO, times(1)).streamingQuery(any(), any(), any(), any());
+    }
+
+    @Test
+    public void testSkipEmptyQueries() throws Exception {
+        DownloadCallable callable = new DownloadCallable(Arrays.asList(new SolrQuery("*:*"), new SolrQuery("sensitive")),
+                indexDAO, procDownload);
+        callable.setQueryCounts(() -> new long[]{RECORDS, 0});
+        callable.call();
+
+        assertEquals(RECORDS, dd.getRecordsDownloaded().get());
+        verify(indexDAO, times(1)).streamingQuery(any(), any(), any(), any());
+    }
+
+    @Test
+    public void testResumedQueryCounts() throws Exception {
+        // resumed at the sensitive query, the non-sensitive query has no records
+        DownloadCallable callable = new DownloadCallable(Arrays.asList(new SolrQuery("sensitive")), indexDAO, procDownload);
+        callable.setQueryCounts(() -> new long[]{0, RECORDS}, 1);
+        callable.call();
+
+        assertEquals(RECORDS, dd.getRecordsDownloaded().get());
+        verify(indexDAO, times(1)).streamingQuery(any(), any(), any(), any());
+    }
+
+    @Test
+    public void testQueryCountsFailed() throws Exception {
+        DownloadCallable callable = new DownloadCallable(Arrays.asList(new SolrQuery("*:*"), new SolrQuery("sensitive")),
+                indexDAO, procDownload);
+        callable.setQueryCounts(() -> {
+            throw new Exception("SOLR unavailable");
+        });
+        callable.call();
+
+        // all queries are streamed
+        assertEquals(2 * RECORDS, dd.getRecordsDownloaded().get());
+        verify(indexDAO, times(2)).streamingQuery(any(), any(), any(), any());
+    }
+}
@@ -0,0 +1,158 @@
+package au.org.ala.biocache.util;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MvtEncoderTest {
+
+    @Test
+    public void testPoints() {
+        MvtEncoder mvt = new MvtEncoder();
+        MvtEncoder.Layer layer = mvt.addLayer("occurrences");
+        layer.addPoint(10, 20, Collections.singletonMap("count", 5L));
+        layer.addPoint(-3, 4100, Collections.singletonMap("count", 300L));
+        layer.addPoint(0, 0, Collections.singletonMap("count", 5L));
+
+        List<Message> layers = decode(mvt.encode()).all(3);
+        assertEquals(1, layers.size());
+
+        Message decoded = layers.get(0);
+        assertEquals(2, decoded.varint(15));
+        assertEquals("occurrences", decoded.string(1));
+        assertEquals(MvtEncoder.EXTENT, decoded.varint(5));
+        assertEquals(1, decoded.all(3).size());
+        assertEquals("count", new String(decoded.all(3).get(0).bytes, StandardCharsets.UTF_8));
+
+        // values are shared
+        List<Message> values = decoded.all(4);
+        assertEquals(2, values.size());
+        assertEquals(5, values.get(0).varint(5));
+        assertEquals(300, values.get(1).varint(5));
+
+        List<Message> features = decoded.all(2);
+        assertEquals(3, features.size());
+        assertEquals(1, features.get(0).varint(3));
+        assertArrayEquals(new long[]{0, 0}, features.get(0).packed(2));
+        assertArrayEquals(new long[]{9, 20, 40}, features.get(0).packed(4));
+        assertArrayEquals(new long[]{0, 1}, features.get(1).packed(2));
+        assertArrayEquals(new long[]{9, 5, 8200}, features.get(1).packed(4));
+    }
+
+    @Test
+    public void testPolygon() {
+        MvtEncoder mvt = new MvtEncoder();
+        MvtEncoder.Layer layer = mvt.addLayer("cells");
+        layer.addPolygon(new int[]{10, 10, 20, 10, 20, 30, 10, 30}, Collections.singletonMap("count", 1L));
+
+        // repeated points are dropped
+        layer.addPolygon(new int[]{0, 0, 5, 0, 5, 0, 5, 5, 0, 5}, Collections.singletonMap("count", 1L));
+
+        // anticlockwise and empty rings are not valid
+        layer.addPolygon(new int[]{10, 10, 10, 30, 20, 30, 20, 10}, Collections.singletonMap("count", 1L));
+        layer.addPolygon(new int[]{10, 10, 10, 10, 10, 10, 10, 10}, Collections.singletonMap("count", 1L));
+        assertEquals(2, layer.size());
+
+        List<Message> features = decode(mvt.encode()).all(3).get(0).all(2);
+        assertEquals(3, features.get(0).varint(3));
+        // MoveTo(10,10) LineTo(+10,0 0,+20 -10,0) ClosePath
+        assertArrayEquals(new long[]{9, 20, 20, 26, 20, 0, 0, 40, 19, 0, 15}, features.get(0).packed(4));
+        assertArrayEquals(new long[]{9, 0, 0, 26, 10, 0, 0, 10, 9, 0, 15}, features.get(1).packed(4));
+    }
+
+    @Test
+    public void testEmptyLayers() {
+        MvtEncoder mvt = new MvtEncoder();
+        mvt.addLayer("empty");
+        assertEquals(0, mvt.encode().length);
+    }
+
+    private static Message decode(byte[] bytes) {
+        return new Message(bytes);
+    }
+
+    /**
+     * Fields of a protobuf message.
+     */
+    private static class Message {
+        final byte[] bytes;
+        final List<long[]> fields = new ArrayList<>();
+        final List<byte[]> values = new ArrayList<>();
+
+        Message(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        // strings and packed fields are not messages, so the fields are read when they are used
+        private void parse() {
+            if (!fields.isEmpty()) {
+                return;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) {
+                long tag = readVarint(buffer);
+                int field = (int) (tag >>> 3);
+                if ((tag & 7) == 0) {
+                    fields.add(new long[]{field, readVarint(buffer)});
+                    values.add(null);
+                } else {
+                    byte[] value = new byte[(int) readVarint(buffer)];
+                    buffer.get(value);
+                    fields.add(new long[]{field, -1});
+                    values.add(value);
+                }
+            }
+        }
+
+        long varint(int field) {
+            parse();
+            for (long[] f : fields) {
+                if (f[0] == field) {
+                    return f[1];
+                }
+            }
+            throw new AssertionError("no field " + field);
+        }
+
+        String string(int field) {
+            return new String(all(field).get(0).bytes, StandardCharsets.UTF_8);
+        }
+
+        List<Message> all(int field) {
+            parse();
+            List<Message> messages = new ArrayList<>();
+            for (int i = 0; i < fields.size(); i++) {
+                if (fields.get(i)[0] == field) {
+                    messages.add(new Message(values.get(i)));
+                }
+            }
+            return messages;
+        }
+
+        long[] packed(int field) {
+            ByteBuffer buffer = ByteBuffer.wrap(all(field).get(0).bytes);
+            List<Long> packed = new ArrayList<>();
+            while (buffer.hasRemaining()) {
+                packed.add(readVarint(buffer));
+            }
+            return packed.stream().mapToLong(Long::longValue).toArray();
+        }
+
+        static long readVarint(ByteBuffer buffer) {
+            long value = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = buffer.get();
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package au.org.ala.biocache.util;
+
+import au.org.ala.biocache.dao.IndexDAO;
+import au.org.ala.biocache.dto.IndexFieldDTO;
+import au.org.ala.biocache.dto.SpatialObjectDTO;
+import au.org.ala.biocache.service.LayersService;
+import org.junit.Before;
+import org.junit.Test;
+import org.locationtech.jts.geom.Geometry;
+
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+public class SpatialObjectCacheTest {
+
+    private SpatialObjectCache cache;
+    private LayersService layersService;
+    private IndexDAO indexDao;
+
+    /**
+     * A polygon with a jagged coastline
+     */
+    static String polygon(int points) {
+        StringBuilder sb = new StringBuilder("POLYGON((");
+        for (int i = 0; i <= points; i++) {
+            double angle = 2 * Math.PI * (i % points) / points;
+            double radius = 5 + (i % 2) * 0.0005 + Math.sin(angle * 40) * 0.5;
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(145 + radius * Math.cos(angle)).append(' ').append(-30 + radius * Math.sin(angle));
+        }
+        return sb.append("))").toString();
+    }
+
+    @Before
+    public void setUp() {
+        layersService = mock(LayersService.class);
+        indexDao = mock(IndexDAO.class);
+        cache = new SpatialObjectCache();
+        cache.layersService = layersService;
+        cache.indexDao = indexDao;
+        cache.init();
+    }
+
+    @Test
+    public void testOriginalWkt() {
+        String wkt = polygon(50000);
+        when(layersService.getObjectWkt("1")).thenReturn(wkt);
+
+        // not simplified by default
+        assertSame(wkt, cache.getQueryWkt("1"));
+        assertEquals(1, cache.get("1").geometries.length);
+        verify(layersService, times(1)).getObjectWkt("1");
+    }
+
+    @Test
+    public void testVariants() {
+        String wkt = polygon(50000);
+        when(layersService.getObjectWkt("1")).thenReturn(wkt);
+        cache.queryMaxPoints = 20000;
+
+        SpatialObjectCache.Entry entry = cache.get("1");
+        assertSame(wkt, entry.wkts[0]);
+        assertEquals(50001, entry.geometries[0].getNumPoints());
+        for (int i = 1; i < entry.geometries.length; i++) {
+            assertTrue(entry.geometries[i].getNumPoints() < entry.geometries[i - 1].getNumPoints());
+            assertTrue(entry.geometries[i].isValid());
+        }
+
+        // the least simplified variant below the query maximum
+        Geometry query = null;
+        for (Geometry geometry : entry.geometries) {
+            query = geometry;
+            if (query.getNumPoints() <= 20000) {
+                break;
+            }
+        }
+        assertTrue(query.getNumPoints() < 50001);
+        assertEquals(query.toText(), cache.getQueryWkt("1"));
+
+        verify(layersService, times(1)).getObjectWkt("1");
+    }
+
+    @Test
+    public void testNotFound() {
+        assertNull(cache.getQueryWkt("2"));
+        when(layersService.getObjectWkt("2")).thenReturn("POLYGON((invalid");
+        assertNull(cache.getQueryWkt("2"));
+        when(layersService.getObjectWkt("2")).thenReturn(polygon(10));
+        assertNotNull(cache.getQueryWkt("2"));
+    }
+
+    @Test
+    public void testWeight() {
+        when(layersService.getObjectWkt(anyString())).thenReturn(polygon(1000));
+
+        cache.getQueryWkt("1");
+        cache.getQueryWkt("1");
+        verify(layersService, times(1)).getObjectWkt("1");
+
+        // entries larger than the cache are not kept
+        cache.maxSize = 1000L;
+        cache.init();
+        cache.getQueryWkt("1");
+        cache.getQueryWkt("1");
+        verify(layersService, times(3)).getObjectWkt("1");
+    }
+
+    @Test
+    public void testLayerFq() throws Exception {
+        when(layersService.getObjectWkt(anyString())).thenReturn(polygon(10000));
+        SpatialObjectDTO object = new SpatialObjectDTO();
+        object.setFid("cl22");
+        object.setName("New South Wales \"NSW\"");
+        when(layersService.getObject("1")).thenReturn(object);
+        IndexFieldDTO field = new IndexFieldDTO();
+        field.setIndexed(true);
+        when(indexDao.getIndexedFieldsMap()).thenReturn(Collections.singletonMap("cl22", field));
+
+        assertNull(cache.getLayerFq("1"));
+
+        cache.layerFqEnabled = true;
+        assertEquals("cl22:\"New South Wales \\\"NSW\\\"\"", cache.getLayerFq("1"));
+
+        // small objects use the WKT
+        cache.layerFqMinPoints = 20000;
+        assertNull(cache.getLayerFq("1"));
+
+        // the layer is not in the index
+        cache.layerFqMinPoints = 5000;
+        when(indexDao.getIndexedFieldsMap()).thenReturn(Collections.emptyMap());
+        assertNull(cache.getLayerFq("1"));
+    }
+}
@@ -2,12 +2,15 @@ package au.org.ala.biocache.util;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.locationtech.jts.algorithm.Orientation;
 import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.MultiPolygon;
+import org.locationtech.jts.geom.Polygon;
 import org.locationtech.jts.io.WKTReader;
 import org.mockito.junit.MockitoJUnitRunner;
 import org.springframework.util.FileCopyUtils;
 
-import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.*;
 
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -47,6 +50,64 @@ public class SpatialUtilsTest {
         }
     }
 
+    @Test
+    public void testNormaliseWktMaxPoints() throws Exception {
+        final String wkt = readTextWkt();
+        Geometry original = new WKTReader().read(wkt);
+
+        for (int maxPoints : new int[] {20000, 5000, 1000, 200}) {
+            NormalisedWkt normalised = SpatialUtils.normaliseWkt(wkt, maxPoints);
+            Geometry resultGeom = new WKTReader().read(normalised.getWkt());
+            assertTrue("numPoints=" + resultGeom.getNumPoints() + " was greater than " + maxPoints, resultGeom.getNumPoints() <= maxPoints);
+            assertEquals(resultGeom.getNumPoints(), normalised.getNumPoints());
+            assertTrue(resultGeom.isValid());
+            assertTrue(original.getEnvelopeInternal().contains(normalised.getEnvelope()));
+        }
+    }
+
+    @Test
+    public void testNormaliseWktUnchanged() throws Exception {
+        final String wkt = "POLYGON((0 0, 10 0, 10 10, 0 10, 0 0), (2 2, 2 4, 4 4, 4 2, 2 2))";
+        NormalisedWkt normalised = SpatialUtils.normaliseWkt(wkt, 5000);
+        assertSame(wkt, normalised.getWkt());
+        assertArrayEquals(new double[] {0, 0, 10, 10}, normalised.getBBox(), 0);
+        assertEquals(10, normalised.getNumPoints());
+    }
+
+    @Test
+    public void testNormaliseWktOrientation() throws Exception {
+        // clockwise exterior ring and counter-clockwise hole
+        NormalisedWkt normalised = SpatialUtils.normaliseWkt(
+                "MULTIPOLYGON(((0 0, 0 10, 10 10, 10 0, 0 0), (2 2, 4 2, 4 4, 2 4, 2 2)), ((20 20, 21 20, 21 21, 20 20)))", 0);
+        MultiPolygon mp = (MultiPolygon) new WKTReader().read(normalised.getWkt());
+        for (int i = 0; i < mp.getNumGeometries(); i++) {
+            Polygon p = (Polygon) mp.getGeometryN(i);
+            assertTrue(Orientation.isCCW(p.getExteriorRing().getCoordinates()));
+            for (int j = 0; j < p.getNumInteriorRing(); j++) {
+                assertFalse(Orientation.isCCW(p.getInteriorRingN(j).getCoordinates()));
+            }
+        }
+        assertArrayEquals(new double[] {0, 0, 21, 21}, normalised.getBBox(), 0);
+    }
+
+    @Test
+    public void testNormaliseWktInvalid() throws Exception {
+        // self intersecting and not closed
+        NormalisedWkt normalised = SpatialUtils.normaliseWkt("POLYGON((0 0, 10 10, 10 0, 0 10))", 0);
+        Geometry resultGeom = new WKTReader().read(normalised.getWkt());
+        assertTrue(resultGeom.isValid());
+        assertEquals(50, resultGeom.getArea(), 1e-9);
+
+        for (String wkt : new String[] {"POLYGON((0 0, 10 10", "POLYGON EMPTY", "POLYGON((0 0, 1 1, 0 0))"}) {
+            try {
+                SpatialUtils.normaliseWkt(wkt, 0);
+                fail(wkt);
+            } catch (Exception e) {
+                // expected
+            }
+        }
+    }
+
     private String readTextWkt() throws Exception {
         InputStream wktIn = getClass().getResourceAsStream("simplify-wkt-input.wkt");
         InputStreamReader reader = new InputStreamReader(wktIn, "UTF-8");
@@ -0,0 +1,167 @@
+package au.org.ala.biocache.util;
+
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TileRasterTest {
+
+    private static final int FILL = 0xcc3366ff;
+    private static final int OUTLINE = 0xff000000;
+
+    @Test
+    public void testBlend() {
+        assertEquals(FILL, TileRaster.blend(0, FILL, 255));
+        assertEquals(0x12345678, TileRaster.blend(0x12345678, FILL, 0));
+
+        // half covered transparent pixel keeps the colour with half the alpha
+        assertEquals(0x663366ff, TileRaster.blend(0, FILL, 128));
+
+        // half white over opaque black
+        assertEquals(0xff808080, TileRaster.blend(0xff000000, 0xffffffff, 128));
+    }
+
+    @Test
+    public void testStamps() {
+        assertSame(TileRaster.stamp(9, FILL, OUTLINE), TileRaster.stamp(9, FILL, OUTLINE));
+        assertNotSame(TileRaster.stamp(9, FILL, OUTLINE), TileRaster.stamp(10, FILL, OUTLINE));
+        assertNotSame(TileRaster.stamp(9, FILL, OUTLINE), TileRaster.stamp(9, OUTLINE, FILL));
+
+        // no fill is not a transparent fill
+        TileRaster.Stamp noFill = TileRaster.stamp(9, null, 0);
+        assertNull(noFill.fill);
+        assertEquals(Integer.valueOf(0), TileRaster.stamp(9, 0, 0).fill);
+        assertNull(TileRaster.stamp(9, 0, null).outline);
+    }
+
+    @Test
+    public void testCircleLikeJava2D() {
+        for (int diameter : new int[]{1, 4, 9, 15, 100}) {
+            TileRaster raster = new TileRaster(128, 128);
+            raster.drawCircle(20, 30, diameter, FILL, OUTLINE);
+
+            ImgObj imgObj = ImgObj.create(128, 128);
+            imgObj.g.setPaint(new Color(FILL, true));
+            imgObj.g.fillOval(20, 30, diameter, diameter);
+            imgObj.g.setPaint(new Color(OUTLINE, true));
+            imgObj.g.drawOval(20, 30, diameter, diameter);
+            imgObj.g.dispose();
+
+            // same pixels, other than antialiasing at the edge
+            int covered = 0;
+            int different = 0;
+            for (int y = 0; y < 128; y++) {
+                for (int x = 0; x < 128; x++) {
+                    int expected = imgObj.img.getRGB(x, y);
+                    int actual = raster.pixels[y * 128 + x];
+                    if ((expected >>> 24) > 200 || (actual >>> 24) > 200) {
+                        covered++;
+                        if (Math.abs((expected >>> 24) - (actual >>> 24)) > 128) {
+                            different++;
+                        }
+                    }
+                }
+            }
+            assertTrue("diameter " + diameter, covered > 0);
+            assertTrue("diameter " + diameter + ", " + different + " of " + covered, different <= covered / 10 + 2);
+        }
+    }
+
+    @Test
+    public void testStampClipped() {
+        // the stamp matches the circle drawn directly, including at the edge of the tile
+        for (int x : new int[]{-10, -3, 0, 40, 60}) {
+            TileRaster stamped = new TileRaster(64, 48);
+            TileRaster.stamp(12, FILL, OUTLINE).draw(stamped, x, x - 5);
+
+            TileRaster drawn = new TileRaster(64, 48);
+            TileRaster.rasterise(drawn, x, x - 5, 12, FILL, OUTLINE, 0, 0);
+
+            assertArrayEquals(drawn.pixels, stamped.pixels);
+        }
+
+        // outline only, large circle
+        TileRaster raster = new TileRaster(64, 64);
+        raster.drawCircle(-500, 30, 1064, null, OUTLINE);
+        assertEquals(0, raster.pixels[0]);
+        assertEquals(0, raster.pixels[40 * 64 + 32]);
+        assertTrue((raster.pixels[30 * 64 + 32] >>> 24) > 100);
+    }
+
+    @Test
+    public void testNegativeDiameter() {
+        // nothing is drawn, as with Graphics.fillOval
+        TileRaster raster = new TileRaster(10, 10);
+        raster.drawCircle(5, 5, -1, FILL, OUTLINE);
+        raster.drawCircle(5, 5, -1000, FILL, OUTLINE);
+        for (int pixel : raster.pixels) {
+            assertEquals(0, pixel);
+        }
+
+        try {
+            TileRaster.stamp(-1, FILL, OUTLINE);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testRects() {
+        TileRaster raster = new TileRaster(10, 10);
+        raster.fillRect(-2, 2, 5, 3, FILL);
+        raster.drawRect(5, 5, 3, 3, OUTLINE);
+
+        assertEquals(FILL, raster.pixels[2 * 10]);
+        assertEquals(FILL, raster.pixels[4 * 10 + 2]);
+        assertEquals(0, raster.pixels[4 * 10 + 3]);
+
+        assertEquals(OUTLINE, raster.pixels[5 * 10 + 5]);
+        assertEquals(OUTLINE, raster.pixels[8 * 10 + 8]);
+        assertEquals(0, raster.pixels[6 * 10 + 6]);
+    }
+
+    @Test
+    public void testPooled() {
+        TileRaster raster = TileRaster.get(256, 256);
+        raster.fillRect(0, 0, 256, 256, FILL);
+
+        // the same array, cleared
+        TileRaster next = TileRaster.get(128, 128);
+        assertSame(raster.pixels, next.pixels);
+        for (int i = 0; i < 128 * 128; i++) {
+            assertEquals(0, next.pixels[i]);
+        }
+    }
+
+    @Test
+    public void testPng() throws Exception {
+        TileRaster raster = new TileRaster(300, 200);
+        Random random = new Random(1);
+        for (int i = 0; i < 200; i++) {
+            raster.drawCircle(random.nextInt(320) - 10, random.nextInt(220) - 10, 3 + random.nextInt(12),
+                    random.nextInt() | 0x33000000, OUTLINE);
+        }
+
+        for (int level : new int[]{0, 1, 9}) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            PngEncoder.write(raster.pixels, raster.width, raster.height, level, out);
+
+            BufferedImage image = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+            assertEquals(300, image.getWidth());
+            assertEquals(200, image.getHeight());
+            for (int y = 0; y < 200; y++) {
+                for (int x = 0; x < 300; x++) {
+                    assertEquals(raster.pixels[y * 300 + x], image.getRGB(x, y));
+                }
+            }
+        }
+    }
+}
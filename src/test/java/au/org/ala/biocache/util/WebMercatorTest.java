@@ -0,0 +1,81 @@
+package au.org.ala.biocache.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class WebMercatorTest {
+
+    @Test
+    public void testRoundTrip() {
+        assertEquals(0, WebMercator.toX(0), 0);
+        assertEquals(WebMercator.WORLD_WIDTH / 2, WebMercator.toX(180), 1e-6);
+        assertEquals(WebMercator.WORLD_WIDTH / 2, WebMercator.toY(WebMercator.MAX_LATITUDE), 1e-3);
+
+        for (double latitude = -85; latitude <= 85; latitude += 8.5) {
+            assertEquals(latitude, WebMercator.toLatitude(WebMercator.toY(latitude)), 1e-9);
+        }
+        for (double longitude = -180; longitude <= 180; longitude += 15) {
+            assertEquals(longitude, WebMercator.toLongitude(WebMercator.toX(longitude)), 1e-9);
+        }
+    }
+
+    @Test
+    public void testTileBBox4326() {
+        // table
+        double[] bbox = WebMercator.tileBBox(3, 5, 2);
+        double[] bbox4326 = WebMercator.tileBBox4326(3, 5, 2);
+        assertEquals(WebMercator.toLongitude(bbox[0]), bbox4326[0], 0);
+        assertEquals(WebMercator.toLatitude(bbox[1]), bbox4326[1], 0);
+        assertEquals(WebMercator.toLongitude(bbox[2]), bbox4326[2], 0);
+        assertEquals(WebMercator.toLatitude(bbox[3]), bbox4326[3], 0);
+
+        assertArrayEquals(new double[]{-180, -WebMercator.MAX_LATITUDE, 180, WebMercator.MAX_LATITUDE},
+                WebMercator.tileBBox4326(0, 0, 0), 1e-9);
+
+        // beyond the table
+        int zoom = WebMercator.TABLE_ZOOM + 1;
+        bbox = WebMercator.tileBBox(zoom, 100, 200);
+        bbox4326 = WebMercator.tileBBox4326(zoom, 100, 200);
+        assertEquals(WebMercator.toLatitude(bbox[1]), bbox4326[1], 0);
+        assertEquals(WebMercator.toLatitude(bbox[3]), bbox4326[3], 0);
+    }
+
+    @Test
+    public void testTileIndex() {
+        double[] tile = WebMercator.tileBBox(3, 5, 2);
+        assertEquals(WebMercator.WORLD_WIDTH / 8, tile[2] - tile[0], 1e-6);
+        assertEquals(tile[2] - tile[0], tile[3] - tile[1], 1e-6);
+
+        // bbox as formatted by a client
+        double[] client = new double[]{
+                Double.parseDouble(String.format("%.6f", tile[0])), Double.parseDouble(String.format("%.6f", tile[1])),
+                Double.parseDouble(String.format("%.6f", tile[2])), Double.parseDouble(String.format("%.6f", tile[3]))};
+        assertArrayEquals(new int[]{3, 5, 2}, WebMercator.tileIndex(client));
+
+        assertArrayEquals(new int[]{0, 0, 0}, WebMercator.tileIndex(WebMercator.tileBBox(0, 0, 0)));
+        assertArrayEquals(new int[]{18, 1000, 2000}, WebMercator.tileIndex(WebMercator.tileBBox(18, 1000, 2000)));
+
+        // not a tile of the pyramid
+        assertNull(WebMercator.tileIndex(new double[]{tile[0] + 1000, tile[1], tile[2] + 1000, tile[3]}));
+        assertNull(WebMercator.tileIndex(new double[]{tile[0], tile[1], tile[2] + 1000, tile[3]}));
+        assertNull(WebMercator.tileIndex(new double[]{tile[0] + WebMercator.WORLD_WIDTH, tile[1], tile[2] + WebMercator.WORLD_WIDTH, tile[3]}));
+        assertNull(WebMercator.tileIndex(new double[]{0, 0, 0, 0}));
+    }
+
+    @Test
+    public void testSrsTransform() throws Exception {
+        SrsTransform transform = SrsTransform.get("epsg:900913");
+        assertTrue(transform.isWebMercator());
+        assertSame(transform, SrsTransform.get("EPSG:3857"));
+
+        double[] points = new double[]{145, -37, -180, WebMercator.MAX_LATITUDE};
+        transform.fromWgs84(points, 2);
+        assertEquals(WebMercator.toX(145), points[0], 0);
+        assertEquals(WebMercator.toY(-37), points[1], 0);
+        assertEquals(-WebMercator.WORLD_WIDTH / 2, points[2], 1e-6);
+
+        transform.toWgs84(points, 2);
+        assertArrayEquals(new double[]{145, -37, -180, WebMercator.MAX_LATITUDE}, points, 1e-9);
+    }
+}
@@ -0,0 +1,91 @@
+package au.org.ala.biocache.util;
+
+import org.junit.Test;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.io.ParseException;
+import org.locationtech.jts.io.WKTReader;
+import org.springframework.util.FileCopyUtils;
+
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class WktParserTest {
+
+    @Test
+    public void testSameAsWktReader() throws Exception {
+        String[] wkts = new String[]{
+                readTextWkt(),
+                SpatialObjectCacheTest.polygon(1000),
+                "POLYGON((0 0, 10 0, 10 10, 0 10, 0 0), (2 2, 2 4, 4 4, 4 2, 2 2))",
+                "multipolygon (((1 1,2 1,2 2,1 1)),((-3.5 -3.5,-2.25 -3.5,-2.25 -2.125,-3.5 -3.5)))",
+                "POLYGON((145.12345678901234567 -37.1, 1e2 -37.1, 100 1E-1, 145.12345678901234567 -37.1))",
+                "POLYGON((0.000001 +0.1, 179.9999999999999 0.1, 179.9999999999999 89.99999999999999, 0.000001 +0.1))",
+                "POINT(1 2)",
+                "LINESTRING(1 2, 3 4)",
+                "POLYGON EMPTY",
+                "POLYGON Z((0 0 1, 1 0 1, 1 1 1, 0 0 1))",
+                "GEOMETRYCOLLECTION(POLYGON((0 0, 1 0, 1 1, 0 0)), POINT(1 2))"
+        };
+        WKTReader reader = new WKTReader();
+        WktParser parser = new WktParser();
+        for (String wkt : wkts) {
+            Geometry expected = reader.read(wkt);
+            Geometry actual = parser.parse(wkt);
+            assertTrue(wkt, expected.equalsExact(actual));
+            assertEquals(expected.getGeometryType(), actual.getGeometryType());
+            assertFalse(parser.isRepaired());
+        }
+    }
+
+    @Test
+    public void testRepaired() throws Exception {
+        WktParser parser = new WktParser();
+
+        // unclosed ring
+        Geometry g = parser.parse("POLYGON((0 0, 10 0, 10 10, 0 10))");
+        assertTrue(parser.isRepaired());
+        assertEquals(new WKTReader().read("POLYGON((0 0, 10 0, 10 10, 0 10, 0 0))"), g);
+
+        // hole with too few points
+        g = parser.parse("POLYGON((0 0, 10 0, 10 10, 0 10, 0 0), (1 1, 2 2, 1 1))");
+        assertTrue(parser.isRepaired());
+        assertEquals(0, ((Polygon) g).getNumInteriorRing());
+
+        // polygon with too few points
+        g = parser.parse("MULTIPOLYGON(((0 0, 1 1, 0 0)), ((0 0, 10 0, 10 10, 0 0)))");
+        assertTrue(parser.isRepaired());
+        assertEquals(1, g.getNumGeometries());
+
+        parser.parse("POLYGON((0 0, 10 0, 10 10, 0 0))");
+        assertFalse(parser.isRepaired());
+    }
+
+    @Test
+    public void testInvalid() {
+        String[] wkts = new String[]{
+                "POLYGON((0 0, 10 0, 10 10, 0 0)",
+                "POLYGON((0 0, 10 0, 10 10, 0 0)) x",
+                "POLYGON((0 0, 10, 10 10, 0 0))",
+                "POLYGON((0 0, 10 0 10 10, 0 0))",
+                "POLYGON((0 0, - 0, 10 10, 0 0))",
+                "POLYGON((0 0, 1-2 0, 10 10, 0 0))",
+                "POLYGON(0 0, 10 0, 10 10, 0 0)"
+        };
+        for (String wkt : wkts) {
+            try {
+                new WktParser().parse(wkt);
+                fail(wkt);
+            } catch (ParseException e) {
+                // expected
+            }
+        }
+    }
+
+    private String readTextWkt() throws Exception {
+        return FileCopyUtils.copyToString(new InputStreamReader(
+                getClass().getResourceAsStream("simplify-wkt-input.wkt"), StandardCharsets.UTF_8));
+    }
+}
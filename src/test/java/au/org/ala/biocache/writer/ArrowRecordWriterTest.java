@@ -0,0 +1,247 @@
+package au.org.ala.biocache.writer;
+
+import au.org.ala.biocache.stream.OptionalZipOutputStream;
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.memory.RootAllocator;
+import org.apache.arrow.vector.*;
+import org.apache.arrow.vector.complex.ListVector;
+import org.apache.arrow.vector.ipc.ArrowFileReader;
+import org.apache.arrow.vector.types.Types;
+import org.apache.arrow.vector.util.ByteArrayReadableSeekableByteChannel;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static au.org.ala.biocache.writer.ArrowRecordWriter.ColumnType.*;
+import static org.junit.Assert.*;
+
+public class ArrowRecordWriterTest {
+
+    private static final String[] HEADER = {"id", "year", "count", "latitude", "elevation", "eventDate", "duplicate", "species_group"};
+    private static final ArrowRecordWriter.ColumnType[] TYPES = {UTF8, INT, LONG, DOUBLE, FLOAT, DATE, BOOLEAN, UTF8};
+    private static final boolean[] MULTIVALUE = {false, false, false, false, false, false, false, true};
+
+    private BufferAllocator allocator;
+
+    @Before
+    public void setUp() {
+        allocator = new RootAllocator();
+    }
+
+    @After
+    public void tearDown() {
+        allocator.close();
+    }
+
+    private static String[] row(int i) {
+        if (i % 7 == 3) {
+            // empty values are nulls
+            return new String[]{"id" + i, "", "", "", "", "", "", ""};
+        }
+        return new String[]{
+                "id" + i + (i % 5 == 0 ? " é中🐨" : ""),
+                Integer.toString(1900 + i % 120),
+                Long.toString(5000000000L + i),
+                Double.toString(-35.5 + i / 1000.0),
+                Float.toString(i / 3f),
+                LocalDate.ofEpochDay(i).toString(),
+                Boolean.toString(i % 2 == 0),
+                String.join(" | ", speciesGroups(i))
+        };
+    }
+
+    /**
+     * Values of the multivalue column, a value may contain the separator of joined values
+     */
+    private static List<String> speciesGroups(int i) {
+        switch (i % 3) {
+            case 0:
+                return Arrays.asList("Birds");
+            case 1:
+                return Arrays.asList("Birds", "Animals");
+            default:
+                return Arrays.asList("Birds | Animals", "Fish");
+        }
+    }
+
+    private static String[][] multivalues(int i) {
+        String[][] multivalues = new String[HEADER.length][];
+        if (i % 7 != 3 && speciesGroups(i).size() > 1) {
+            multivalues[7] = speciesGroups(i).toArray(new String[0]);
+        }
+        return multivalues;
+    }
+
+    private List<Map<String, Object>> read(byte[] file) throws Exception {
+        List<Map<String, Object>> rows = new ArrayList<>();
+        try (ArrowFileReader reader = new ArrowFileReader(new ByteArrayReadableSeekableByteChannel(file), allocator)) {
+            VectorSchemaRoot root = reader.getVectorSchemaRoot();
+            assertEquals(Arrays.asList(HEADER), root.getSchema().getFields().stream().map(f -> f.getName()).collect(java.util.stream.Collectors.toList()));
+            assertEquals(Types.MinorType.INT, Types.getMinorTypeForArrowType(root.getVector("year").getField().getType()));
+            assertEquals(Types.MinorType.BIGINT, Types.getMinorTypeForArrowType(root.getVector("count").getField().getType()));
+            assertEquals(Types.MinorType.FLOAT8, Types.getMinorTypeForArrowType(root.getVector("latitude").getField().getType()));
+            assertEquals(Types.MinorType.FLOAT4, Types.getMinorTypeForArrowType(root.getVector("elevation").getField().getType()));
+            assertEquals(Types.MinorType.DATEDAY, Types.getMinorTypeForArrowType(root.getVector("eventDate").getField().getType()));
+            assertEquals(Types.MinorType.BIT, Types.getMinorTypeForArrowType(root.getVector("duplicate").getField().getType()));
+            assertTrue(root.getVector("species_group") instanceof ListVector);
+
+            while (reader.loadNextBatch()) {
+                for (int i = 0; i < root.getRowCount(); i++) {
+                    Map<String, Object> row = new HashMap<>();
+                    for (FieldVector vector : root.getFieldVectors()) {
+                        Object value = vector.getObject(i);
+                        row.put(vector.getName(), value == null ? null : value.toString());
+                    }
+                    rows.add(row);
+                }
+            }
+        }
+        return rows;
+    }
+
+    private static void assertRow(int i, Map<String, Object> actual) {
+        String[] expected = row(i);
+        assertEquals(expected[0], actual.get("id"));
+        if (expected[1].isEmpty()) {
+            for (int j = 1; j < HEADER.length; j++) {
+                assertNull(HEADER[j], actual.get(HEADER[j]));
+            }
+            return;
+        }
+        assertEquals(expected[1], actual.get("year"));
+        assertEquals(expected[2], actual.get("count"));
+        assertEquals(expected[3], actual.get("latitude"));
+        assertEquals(expected[4], actual.get("elevation"));
+        // DateDayVector.getObject is the epoch day
+        assertEquals(Long.toString(LocalDate.parse(expected[5]).toEpochDay()), actual.get("eventDate"));
+        assertEquals(expected[6], actual.get("duplicate"));
+        // ListVector.getObject is a JsonStringArrayList
+        assertEquals("[\"" + String.join("\",\"", speciesGroups(i)) + "\"]", actual.get("species_group"));
+    }
+
+    @Test
+    public void testWrite() throws Exception {
+        int rows = 2500;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ArrowRecordWriter writer = new ArrowRecordWriter(out, HEADER, TYPES, MULTIVALUE, 1000);
+        writer.initialise();
+        for (int i = 0; i < rows; i++) {
+            writer.write(row(i), multivalues(i));
+        }
+        writer.finalise();
+        assertFalse(writer.hasError());
+
+        List<Map<String, Object>> read = read(out.toByteArray());
+        assertEquals(rows, read.size());
+        for (int i = 0; i < rows; i++) {
+            assertRow(i, read.get(i));
+        }
+    }
+
+    @Test
+    public void testJoinedMultivalue() throws Exception {
+        // a value without separate values is a list of one value
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ArrowRecordWriter writer = new ArrowRecordWriter(out, HEADER, TYPES, MULTIVALUE, 1000);
+        writer.initialise();
+        writer.write(row(2));
+        writer.finalise();
+
+        List<Map<String, Object>> read = read(out.toByteArray());
+        assertEquals(1, read.size());
+        assertEquals("[\"Birds | Animals | Fish\"]", read.get(0).get("species_group"));
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ArrowRecordWriter writer = new ArrowRecordWriter(out, HEADER, TYPES, MULTIVALUE, 1000);
+        writer.initialise();
+        writer.finalise();
+
+        assertEquals(0, read(out.toByteArray()).size());
+    }
+
+    @Test
+    public void testSplitEntries() throws Exception {
+        int rows = 60000;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (OptionalZipOutputStream zos = new OptionalZipOutputStream(OptionalZipOutputStream.Type.zipped, out, 1)) {
+            zos.putNextEntry("data.arrow");
+            ArrowRecordWriter writer = new ArrowRecordWriter(zos, HEADER, TYPES, MULTIVALUE, 5000);
+            writer.initialise();
+            for (int i = 0; i < rows; i++) {
+                writer.write(row(i), multivalues(i));
+            }
+            writer.finalise();
+            assertFalse(writer.hasError());
+            zos.closeEntry();
+        }
+
+        // each part is a complete Arrow file
+        List<String> names = new ArrayList<>();
+        List<Map<String, Object>> read = new ArrayList<>();
+        try (ZipInputStream zis = new ZipInputStream(new java.io.ByteArrayInputStream(out.toByteArray()))) {
+            ZipEntry entry;
+            while ((entry = zis.getNextEntry()) != null) {
+                names.add(entry.getName());
+                read.addAll(read(IOUtils.toByteArray(zis)));
+            }
+        }
+        assertTrue(names.size() > 1);
+        assertEquals("data.arrow", names.get(0));
+        assertEquals("data_part2.arrow", names.get(1));
+        assertEquals(rows, read.size());
+        for (int i = 0; i < rows; i++) {
+            assertRow(i, read.get(i));
+        }
+    }
+
+    @Test
+    public void testExportDates() throws Exception {
+        // date values as written by /export, and yyyy-MM-dd
+        String[] dates = {"2019-08-14T00:00:00Z", "1850-01-01T00:00:00Z", "2019-08-14T23:59:59.999Z", "2019-08-14", "14/08/2019"};
+        String[] header = {"eventDate"};
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ArrowRecordWriter writer = new ArrowRecordWriter(out, header, new ArrowRecordWriter.ColumnType[]{DATE}, new boolean[]{false}, 1000);
+        writer.initialise();
+        for (String date : dates) {
+            writer.write(new String[]{date});
+        }
+        writer.finalise();
+        assertFalse(writer.hasError());
+
+        List<Object> read = new ArrayList<>();
+        try (ArrowFileReader reader = new ArrowFileReader(new ByteArrayReadableSeekableByteChannel(out.toByteArray()), allocator)) {
+            VectorSchemaRoot root = reader.getVectorSchemaRoot();
+            while (reader.loadNextBatch()) {
+                for (int i = 0; i < root.getRowCount(); i++) {
+                    read.add(root.getVector("eventDate").getObject(i));
+                }
+            }
+        }
+
+        long day = LocalDate.of(2019, 8, 14).toEpochDay();
+        assertEquals(Arrays.asList(day, LocalDate.of(1850, 1, 1).toEpochDay(), day, day, null),
+                read.stream().map(value -> value == null ? null : ((Number) value).longValue()).collect(java.util.stream.Collectors.toList()));
+    }
+
+    @Test
+    public void testColumnType() {
+        assertEquals(INT, ArrowRecordWriter.columnType("int"));
+        assertEquals(LONG, ArrowRecordWriter.columnType("long"));
+        assertEquals(DOUBLE, ArrowRecordWriter.columnType("double"));
+        assertEquals(FLOAT, ArrowRecordWriter.columnType("float"));
+        assertEquals(DATE, ArrowRecordWriter.columnType("date"));
+        assertEquals(BOOLEAN, ArrowRecordWriter.columnType("boolean"));
+        assertEquals(UTF8, ArrowRecordWriter.columnType("string"));
+        assertEquals(UTF8, ArrowRecordWriter.columnType(null));
+    }
+}
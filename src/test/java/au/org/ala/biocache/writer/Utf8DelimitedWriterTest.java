@@ -0,0 +1,114 @@
+package au.org.ala.biocache.writer;
+
+import au.com.bytecode.opencsv.CSVWriter;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class Utf8DelimitedWriterTest {
+
+    private static final String CHARS = "abc ,;\"'\\\t\r\n|é°µ中文🐨🐘\uDC28\uD83D";
+
+    private static String[] randomRecord(Random random) {
+        String[] record = new String[random.nextInt(12)];
+        for (int i = 0; i < record.length; i++) {
+            if (random.nextInt(10) == 0) {
+                continue;
+            }
+            StringBuilder sb = new StringBuilder();
+            int length = random.nextInt(40);
+            for (int j = 0; j < length; j++) {
+                sb.append(CHARS.charAt(random.nextInt(CHARS.length())));
+            }
+            record[i] = sb.toString();
+        }
+        return record;
+    }
+
+    private static byte[] opencsv(String[][] records, char sep, char esc) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (CSVWriter writer = new CSVWriter(new OutputStreamWriter(bytes, StandardCharsets.UTF_8), sep, '"', esc)) {
+            for (String[] record : records) {
+                writer.writeNext(record);
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * The TSV formatting previously used by TSVRecordWriter
+     */
+    private static byte[] tsv(String[][] records) {
+        StringBuilder line = new StringBuilder();
+        for (String[] record : records) {
+            for (int i = 0; i < record.length; i++) {
+                if (i > 0) line.append('\t');
+                String value = (record[i] != null) ? record[i] : "";
+                line.append(value.replace("\r", "").replace("\n", "").replace("\t", ""));
+            }
+            line.append("\n");
+        }
+        return line.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testSameAsOpencsv() throws Exception {
+        Random random = new Random(1);
+        String[][] records = new String[5000][];
+        for (int i = 0; i < records.length; i++) {
+            records[i] = randomRecord(random);
+        }
+
+        char[][] options = {{',', '"'}, {';', '\\'}, {'\t', CSVWriter.NO_ESCAPE_CHARACTER}};
+        for (char[] option : options) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            Utf8DelimitedWriter writer = Utf8DelimitedWriter.csv(bytes, option[0], '"', option[1]);
+            long total = 0;
+            for (String[] record : records) {
+                total += writer.writeRecord(record);
+            }
+            writer.close();
+
+            byte[] expected = opencsv(records, option[0], option[1]);
+            assertArrayEquals(expected, bytes.toByteArray());
+            assertEquals(expected.length, total);
+            assertEquals(expected.length, writer.getBytesWritten());
+        }
+    }
+
+    @Test
+    public void testSameAsTsv() throws Exception {
+        Random random = new Random(2);
+        String[][] records = new String[5000][];
+        for (int i = 0; i < records.length; i++) {
+            records[i] = randomRecord(random);
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Utf8DelimitedWriter writer = Utf8DelimitedWriter.tsv(bytes);
+        long total = 0;
+        for (String[] record : records) {
+            total += writer.writeRecord(record);
+        }
+        writer.close();
+
+        byte[] expected = tsv(records);
+        assertArrayEquals(expected, bytes.toByteArray());
+        assertEquals(expected.length, total);
+    }
+
+    @Test
+    public void testRecordLength() throws Exception {
+        Utf8DelimitedWriter writer = Utf8DelimitedWriter.csv(new ByteArrayOutputStream(), ',', '"', '"');
+        // "a","é","中","🐨"\n
+        assertEquals(3 + 1 + 4 + 1 + 5 + 1 + 6 + 1, writer.writeRecord(new String[]{"a", "é", "中", "🐨"}));
+        // ,"""",\n
+        assertEquals(1 + 4 + 1 + 1, writer.writeRecord(new String[]{null, "\"", null}));
+    }
+}